@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that the allocation rate of each benchmark
+ * is reported alongside its throughput. Any standard JMH command line options may be given;
+ * requests to list the benchmarks or show help are passed to the standard JMH main class
+ */
+public class BenchmarkMain {
+
+	/**
+	 * @param args JMH command line options
+	 * @throws Exception On any error
+	 */
+	public static void main (String[] args) throws Exception {
+
+		CommandLineOptions commandLineOptions = new CommandLineOptions (args);
+
+		if (commandLineOptions.shouldList() || commandLineOptions.shouldListWithParams() || commandLineOptions.shouldHelp()) {
+			Main.main (args);
+			return;
+		}
+
+		new Runner (new OptionsBuilder()
+				.parent (commandLineOptions)
+				.addProfiler (GCProfiler.class)
+				.build()
+		).run();
+
+	}
+
+
+}
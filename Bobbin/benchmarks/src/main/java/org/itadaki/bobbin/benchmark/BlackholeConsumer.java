@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.itadaki.bobbin.bencode.BDictionary;
+import org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer;
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.itadaki.bobbin.torrentdb.PieceStyle;
+import org.itadaki.bobbin.torrentdb.ResourceType;
+import org.itadaki.bobbin.torrentdb.ViewSignature;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * A PeerProtocolConsumer that passes every decoded message argument to a Blackhole, so that the
+ * parser's work cannot be eliminated
+ */
+public class BlackholeConsumer implements PeerProtocolConsumer {
+
+	/**
+	 * The Blackhole to consume message arguments
+	 */
+	private final Blackhole blackhole;
+
+	/**
+	 * The number of messages consumed
+	 */
+	private int messageCount = 0;
+
+
+	/**
+	 * @return The number of messages consumed
+	 */
+	public int getMessageCount() {
+
+		return this.messageCount;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#keepAliveMessage()
+	 */
+	public void keepAliveMessage() throws IOException {
+
+		this.messageCount++;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#chokeMessage(boolean)
+	 */
+	public void chokeMessage (boolean choked) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (choked);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#interestedMessage(boolean)
+	 */
+	public void interestedMessage (boolean interested) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (interested);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#haveMessage(org.itadaki.bobbin.torrentdb.ResourceType, int)
+	 */
+	public void haveMessage (ResourceType resource, int pieceIndex) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (pieceIndex);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#bitfieldMessage(org.itadaki.bobbin.torrentdb.ResourceType, java.nio.ByteBuffer)
+	 */
+	public void bitfieldMessage (ResourceType resource, ByteBuffer bitField) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (bitField);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#requestMessage(org.itadaki.bobbin.torrentdb.ResourceType, org.itadaki.bobbin.torrentdb.BlockDescriptor)
+	 */
+	public void requestMessage (ResourceType resource, BlockDescriptor descriptor) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (descriptor);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#pieceMessage(org.itadaki.bobbin.torrentdb.PieceStyle, org.itadaki.bobbin.torrentdb.ResourceType, org.itadaki.bobbin.torrentdb.BlockDescriptor, java.lang.Long, java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	public void pieceMessage (PieceStyle pieceStyle, ResourceType resource, BlockDescriptor descriptor, Long viewLength, ByteBuffer hashes, ByteBuffer block)
+			throws IOException
+	{
+
+		this.messageCount++;
+		this.blackhole.consume (descriptor);
+		this.blackhole.consume (block);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#cancelMessage(org.itadaki.bobbin.torrentdb.ResourceType, org.itadaki.bobbin.torrentdb.BlockDescriptor)
+	 */
+	public void cancelMessage (ResourceType resource, BlockDescriptor descriptor) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (descriptor);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#suggestPieceMessage(int)
+	 */
+	public void suggestPieceMessage (int pieceNumber) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (pieceNumber);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#haveAllMessage()
+	 */
+	public void haveAllMessage() throws IOException {
+
+		this.messageCount++;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#haveNoneMessage()
+	 */
+	public void haveNoneMessage() throws IOException {
+
+		this.messageCount++;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#rejectRequestMessage(org.itadaki.bobbin.torrentdb.ResourceType, org.itadaki.bobbin.torrentdb.BlockDescriptor)
+	 */
+	public void rejectRequestMessage (ResourceType resource, BlockDescriptor descriptor) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (descriptor);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#allowedFastMessage(int)
+	 */
+	public void allowedFastMessage (int pieceNumber) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (pieceNumber);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#extensionHandshakeMessage(java.util.Map, java.util.Set, org.itadaki.bobbin.bencode.BDictionary)
+	 */
+	public void extensionHandshakeMessage (Map<String,Integer> extensionsEnabled, Set<String> extensionsDisabled, BDictionary extra) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (extensionsEnabled);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#extensionMessage(int, byte[])
+	 */
+	public void extensionMessage (int extensionID, byte[] data) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (data);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#peerMetadataRequestMessage(int)
+	 */
+	public void peerMetadataRequestMessage (int pieceNumber) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (pieceNumber);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#elasticSignatureMessage(org.itadaki.bobbin.torrentdb.ViewSignature)
+	 */
+	public void elasticSignatureMessage (ViewSignature signature) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (signature);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#elasticBitfieldMessage(java.nio.ByteBuffer)
+	 */
+	public void elasticBitfieldMessage (ByteBuffer bitField) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (bitField);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#resourceDirectoryMessage(java.util.List, java.util.List)
+	 */
+	public void resourceDirectoryMessage (List<ResourceType> resources, List<Integer> lengths) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (resources);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#resourceSubscribeMessage(org.itadaki.bobbin.torrentdb.ResourceType)
+	 */
+	public void resourceSubscribeMessage (ResourceType resource) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (resource);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#unknownMessage(int, byte[])
+	 */
+	public void unknownMessage (int messageID, byte[] messageBytes) throws IOException {
+
+		this.messageCount++;
+		this.blackhole.consume (messageBytes);
+
+	}
+
+
+	/**
+	 * @param blackhole The Blackhole to consume message arguments
+	 */
+	public BlackholeConsumer (Blackhole blackhole) {
+
+		this.blackhole = blackhole;
+
+	}
+
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.itadaki.bobbin.connectionmanager.Connection;
+import org.itadaki.bobbin.connectionmanager.ConnectionBackend;
+import org.itadaki.bobbin.connectionmanager.ConnectionManager;
+import org.itadaki.bobbin.connectionmanager.ConnectionOptions;
+import org.itadaki.bobbin.connectionmanager.InboundConnectionListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Compares the models by which ConnectionManager may serve connections (see
+ * {@link ConnectionBackend}) under the same load. Each benchmark thread holds a loopback
+ * connection to a ConnectionManager that echoes everything it reads, and each operation is one
+ * message sent and its echo received
+ *
+ * <p>Sample time mode reports the latency percentiles of a round trip, and the number of
+ * concurrent connections is set with the JMH thread count ({@code -t}), so the models may be
+ * compared for both throughput and tail latency as the load grows
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionBackendBenchmark {
+
+	/**
+	 * A ConnectionManager that echoes everything it reads, shared between benchmark threads
+	 */
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		/**
+		 * The model by which the ConnectionManager serves connections
+		 */
+		@Param({"EVENT_LOOP", "THREAD_PER_CONNECTION", "WORKER_POOL"})
+		public ConnectionBackend backend;
+
+		/**
+		 * The number of event loops
+		 */
+		@Param({"1"})
+		public int eventLoops;
+
+		/**
+		 * The ConnectionManager under test
+		 */
+		private ConnectionManager connectionManager;
+
+		/**
+		 * The port the ConnectionManager listens on
+		 */
+		private int port;
+
+
+		/**
+		 * Starts the ConnectionManager
+		 *
+		 * @throws IOException On any I/O error
+		 */
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+
+			this.connectionManager = new ConnectionManager (this.eventLoops, this.backend);
+			this.connectionManager.setConnectionOptions (new ConnectionOptions (true, 0, 0, 0, true, 0));
+			this.port = this.connectionManager.listen (null, 0, new InboundConnectionListener() {
+				public void accepted (Connection connection) {
+					connection.setListener (new EchoListener());
+				}
+			});
+
+		}
+
+
+		/**
+		 * Stops the ConnectionManager
+		 */
+		@TearDown(Level.Trial)
+		public void tearDown() {
+
+			this.connectionManager.close();
+
+		}
+
+	}
+
+
+	/**
+	 * The length of each message
+	 */
+	@Param({"64", "16384"})
+	public int messageLength;
+
+	/**
+	 * The connection used by one benchmark thread
+	 */
+	private Socket socket;
+
+	/**
+	 * The output stream of the connection
+	 */
+	private OutputStream output;
+
+	/**
+	 * The input stream of the connection
+	 */
+	private DataInputStream input;
+
+	/**
+	 * The message to send
+	 */
+	private byte[] message;
+
+
+	/**
+	 * Connects to the server
+	 *
+	 * @param server The server
+	 * @throws IOException On any I/O error
+	 */
+	@Setup(Level.Trial)
+	public void setUp (Server server) throws IOException {
+
+		this.socket = new Socket (InetAddress.getLoopbackAddress(), server.port);
+		this.socket.setTcpNoDelay (true);
+		this.output = this.socket.getOutputStream();
+		this.input = new DataInputStream (this.socket.getInputStream());
+		this.message = new byte[this.messageLength];
+
+	}
+
+
+	/**
+	 * Closes the connection to the server
+	 *
+	 * @throws IOException On any I/O error
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+
+		this.socket.close();
+
+	}
+
+
+	/**
+	 * Sends one message and waits for its echo
+	 *
+	 * @return The echoed message
+	 * @throws IOException On any I/O error
+	 */
+	@Benchmark
+	public byte[] roundTrip() throws IOException {
+
+		this.output.write (this.message);
+		this.input.readFully (this.message);
+
+		return this.message;
+
+	}
+
+
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.itadaki.bobbin.connectionmanager.Connection;
+import org.itadaki.bobbin.connectionmanager.ConnectionBackend;
+import org.itadaki.bobbin.connectionmanager.ConnectionManager;
+import org.itadaki.bobbin.connectionmanager.ConnectionManagerMetrics;
+import org.itadaki.bobbin.connectionmanager.ConnectionReadyListener;
+import org.itadaki.bobbin.connectionmanager.InboundConnectionListener;
+import org.itadaki.bobbin.connectionmanager.OutboundConnectionListener;
+
+
+/**
+ * A load generator that opens many loopback connections from one ConnectionManager to another
+ * that echoes everything it reads, and reports the rate at which connections were made, the round
+ * trip latency and throughput of messages, and the CPU used by the echoing side
+ *
+ * <p>Connections are opened first, and the rate at which they are made is measured while they are
+ * idle. Each connection then keeps a configurable number of messages in flight, sending another as
+ * each echo is received, so that a depth of 1 measures request / response latency and a large depth
+ * measures streaming throughput. Run with {@code --help} for the options, for example:
+ *
+ * <pre>java -cp target/benchmarks.jar org.itadaki.bobbin.benchmark.ConnectionLoadTest --connections 5000 --backend WORKER_POOL</pre>
+ *
+ * <p>Each connection uses two file descriptors in the same process, so the descriptor limit must
+ * be more than twice the number of connections.
+ */
+public class ConnectionLoadTest {
+
+	/**
+	 * The number of connections to open
+	 */
+	private int connections = 1000;
+
+	/**
+	 * The maximum number of connections that may be waiting to complete at once. Keeping this
+	 * below the listen backlog avoids measuring the operating system's SYN retry interval
+	 */
+	private int concurrentConnects = 32;
+
+	/**
+	 * The model by which the echoing ConnectionManager serves connections
+	 */
+	private ConnectionBackend backend = ConnectionBackend.EVENT_LOOP;
+
+	/**
+	 * The number of event loops of the echoing ConnectionManager
+	 */
+	private int serverEventLoops = 1;
+
+	/**
+	 * The number of event loops of the connecting ConnectionManager
+	 */
+	private int clientEventLoops = 1;
+
+	/**
+	 * The length of each message, or the maximum length if lengths are random
+	 */
+	private int messageLength = 64;
+
+	/**
+	 * If {@code true}, each message has a random length between 1 and {@link #messageLength}
+	 */
+	private boolean randomLength = false;
+
+	/**
+	 * The number of messages each connection keeps in flight
+	 */
+	private int depth = 1;
+
+	/**
+	 * The number of seconds to run before measuring
+	 */
+	private int warmup = 5;
+
+	/**
+	 * The number of seconds to measure for
+	 */
+	private int duration = 10;
+
+	/**
+	 * The round trip latencies of messages
+	 */
+	private final LatencyHistogram latencies = new LatencyHistogram();
+
+	/**
+	 * The number of echoed bytes received
+	 */
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	/**
+	 * {@code true} while connections should continue to send messages
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * Permits for connections to begin connecting
+	 */
+	private Semaphore connectPermits;
+
+	/**
+	 * Counted down as each connection completes or fails
+	 */
+	private CountDownLatch connectedLatch;
+
+	/**
+	 * The number of connections that failed
+	 */
+	private final AtomicInteger failedConnections = new AtomicInteger();
+
+	/**
+	 * The connections that completed
+	 */
+	private final List<Connection> openConnections = Collections.synchronizedList (new ArrayList<Connection>());
+
+
+	/**
+	 * A connection that sends messages and times their echoes
+	 */
+	private class LoadClient implements OutboundConnectionListener, ConnectionReadyListener {
+
+		/**
+		 * The source of random message lengths
+		 */
+		private final Random random;
+
+		/**
+		 * Messages waiting to be sent
+		 */
+		private final ByteBuffer sendBuffer = ByteBuffer.allocate (ConnectionLoadTest.this.messageLength * ConnectionLoadTest.this.depth);
+
+		/**
+		 * The buffer that echoes are read into
+		 */
+		private final ByteBuffer receiveBuffer = ByteBuffer.allocate (65536);
+
+		/**
+		 * The send times in nanoseconds of the messages in flight, as a ring starting at
+		 * {@link #head}
+		 */
+		private final long[] sendTimes = new long[ConnectionLoadTest.this.depth];
+
+		/**
+		 * The lengths of the messages in flight, as a ring starting at {@link #head}
+		 */
+		private final int[] lengths = new int[ConnectionLoadTest.this.depth];
+
+		/**
+		 * The index of the oldest message in flight
+		 */
+		private int head = 0;
+
+		/**
+		 * The number of messages in flight
+		 */
+		private int inFlight = 0;
+
+		/**
+		 * The number of bytes of the oldest message in flight yet to be echoed
+		 */
+		private int headRemaining = 0;
+
+
+		/**
+		 * Queues messages until the configured number are in flight
+		 */
+		private void fill() {
+
+			while (ConnectionLoadTest.this.running && (this.inFlight < ConnectionLoadTest.this.depth)) {
+				int length = ConnectionLoadTest.this.randomLength ? 1 + this.random.nextInt (ConnectionLoadTest.this.messageLength) : ConnectionLoadTest.this.messageLength;
+				for (int i = 0; i < length; i++) {
+					this.sendBuffer.put ((byte) i);
+				}
+				int index = (this.head + this.inFlight) % ConnectionLoadTest.this.depth;
+				this.sendTimes[index] = System.nanoTime();
+				this.lengths[index] = length;
+				if (this.inFlight == 0) {
+					this.headRemaining = length;
+				}
+				this.inFlight++;
+			}
+
+		}
+
+
+		/**
+		 * Accounts for echoed bytes, recording the latency of each message completed
+		 *
+		 * @param count The number of bytes echoed
+		 */
+		private void received (int count) {
+
+			ConnectionLoadTest.this.bytesReceived.addAndGet (count);
+
+			long now = System.nanoTime();
+			while ((count > 0) && (this.inFlight > 0)) {
+				int consumed = Math.min (count, this.headRemaining);
+				count -= consumed;
+				this.headRemaining -= consumed;
+				if (this.headRemaining == 0) {
+					ConnectionLoadTest.this.latencies.record (now - this.sendTimes[this.head]);
+					this.head = (this.head + 1) % ConnectionLoadTest.this.depth;
+					this.inFlight--;
+					this.headRemaining = (this.inFlight > 0) ? this.lengths[this.head] : 0;
+				}
+			}
+
+		}
+
+
+		/**
+		 * Sends as much of the queued messages as the connection will take
+		 *
+		 * @param connection The connection
+		 * @throws IOException On any I/O error
+		 */
+		private void send (Connection connection) throws IOException {
+
+			this.sendBuffer.flip();
+			connection.write (this.sendBuffer);
+			connection.setWriteEnabled (this.sendBuffer.hasRemaining());
+			this.sendBuffer.compact();
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see org.itadaki.bobbin.connectionmanager.OutboundConnectionListener#connected(org.itadaki.bobbin.connectionmanager.Connection)
+		 */
+		public void connected (Connection connection) {
+
+			// Messages are first sent when the connection is made writeable, once all are open
+			connection.setListener (this);
+			ConnectionLoadTest.this.openConnections.add (connection);
+
+			ConnectionLoadTest.this.connectPermits.release();
+			ConnectionLoadTest.this.connectedLatch.countDown();
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see org.itadaki.bobbin.connectionmanager.OutboundConnectionListener#rejected(org.itadaki.bobbin.connectionmanager.Connection)
+		 */
+		public void rejected (Connection connection) {
+
+			ConnectionLoadTest.this.failedConnections.incrementAndGet();
+			ConnectionLoadTest.this.connectPermits.release();
+			ConnectionLoadTest.this.connectedLatch.countDown();
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see org.itadaki.bobbin.connectionmanager.ConnectionReadyListener#connectionReady(org.itadaki.bobbin.connectionmanager.Connection, boolean, boolean)
+		 */
+		public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+
+			try {
+				int count;
+				while ((count = connection.read (this.receiveBuffer)) > 0) {
+					received (count);
+					this.receiveBuffer.clear();
+				}
+				if (count == -1) {
+					close (connection);
+					return;
+				}
+				fill();
+				send (connection);
+			} catch (IOException e) {
+				close (connection);
+			}
+
+		}
+
+
+		/**
+		 * Closes a connection after an error
+		 *
+		 * @param connection The connection
+		 */
+		private void close (Connection connection) {
+
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// Can't do anything and don't much care
+			}
+
+		}
+
+
+		/**
+		 * @param seed The seed for random message lengths
+		 */
+		public LoadClient (long seed) {
+
+			this.random = new Random (seed);
+
+		}
+
+	}
+
+
+	/**
+	 * Returns the total CPU time of the threads that serve the echoing ConnectionManager's
+	 * connections: its event loops, and any worker or blocking connection threads, which only the
+	 * echoing ConnectionManager creates
+	 *
+	 * @param serverThreadIDs The IDs of the echoing ConnectionManager's event loop threads
+	 * @return The CPU time in nanoseconds
+	 */
+	private static long getServerCpuTime (Set<Long> serverThreadIDs) {
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long cpuTime = 0;
+		for (ThreadInfo threadInfo : threadBean.getThreadInfo (threadBean.getAllThreadIds())) {
+			if ((threadInfo != null) && (serverThreadIDs.contains (threadInfo.getThreadId())
+					|| threadInfo.getThreadName().startsWith ("ConnectionManager worker") || threadInfo.getThreadName().startsWith ("BlockingConnection")))
+			{
+				cpuTime += Math.max (0, threadBean.getThreadCpuTime (threadInfo.getThreadId()));
+			}
+		}
+
+		return cpuTime;
+
+	}
+
+
+	/**
+	 * @return The IDs of all live threads whose names mark them as belonging to a
+	 *         ConnectionManager
+	 */
+	private static Set<Long> getConnectionManagerThreadIDs() {
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		Set<Long> threadIDs = new HashSet<Long>();
+		for (ThreadInfo threadInfo : threadBean.getThreadInfo (threadBean.getAllThreadIds())) {
+			if ((threadInfo != null) && threadInfo.getThreadName().startsWith ("ConnectionManager")) {
+				threadIDs.add (threadInfo.getThreadId());
+			}
+		}
+
+		return threadIDs;
+
+	}
+
+
+	/**
+	 * Runs the load test and prints its results
+	 *
+	 * @throws Exception On any error
+	 */
+	private void run() throws Exception {
+
+		System.out.printf ("%d connections, %s backend, %d server / %d client event loops, %s%d byte messages, depth %d%n",
+				this.connections, this.backend, this.serverEventLoops, this.clientEventLoops, this.randomLength ? "1 - " : "",
+				this.messageLength, this.depth);
+
+		// Start the echoing ConnectionManager, and note which threads are its own
+		Set<Long> existingThreadIDs = getConnectionManagerThreadIDs();
+		ConnectionManager server = new ConnectionManager (this.serverEventLoops, this.backend);
+		Set<Long> serverThreadIDs = getConnectionManagerThreadIDs();
+		serverThreadIDs.removeAll (existingThreadIDs);
+		InetAddress address = InetAddress.getLoopbackAddress();
+		int port = server.listen (address, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				connection.setListener (new EchoListener());
+			}
+		});
+
+		// Connect
+		ConnectionManager client = new ConnectionManager (this.clientEventLoops);
+		this.connectPermits = new Semaphore (this.concurrentConnects);
+		this.connectedLatch = new CountDownLatch (this.connections);
+		long connectStartTime = System.nanoTime();
+		for (int i = 0; i < this.connections; i++) {
+			this.connectPermits.acquire();
+			client.connect (address, port, new LoadClient (i), 30);
+		}
+		this.connectedLatch.await();
+		double connectSeconds = (System.nanoTime() - connectStartTime) / 1e9;
+		int connected = this.connections - this.failedConnections.get();
+		System.out.printf ("Connected %d in %.2fs: %.0f connections/s, %d failed%n", connected, connectSeconds, connected / connectSeconds,
+				this.failedConnections.get());
+
+		// Start sending, warm up, then measure
+		synchronized (this.openConnections) {
+			for (Connection connection : this.openConnections) {
+				connection.setWriteEnabled (true);
+			}
+		}
+		Thread.sleep (this.warmup * 1000L);
+		this.latencies.reset();
+		this.bytesReceived.set (0);
+		ConnectionManagerMetrics metrics = server.getMetrics();
+		long startIterations = metrics.getTotal (ConnectionManagerMetrics.Type.LOOP_ITERATIONS);
+		long startReadyKeys = metrics.getTotal (ConnectionManagerMetrics.Type.READY_KEYS);
+		long startSelectTime = metrics.getTotal (ConnectionManagerMetrics.Type.SELECT_TIME);
+		long startProcessingTime = metrics.getTotal (ConnectionManagerMetrics.Type.PROCESSING_TIME);
+		long startCpuTime = getServerCpuTime (serverThreadIDs);
+		long startTime = System.nanoTime();
+
+		Thread.sleep (this.duration * 1000L);
+
+		long endTime = System.nanoTime();
+		long endCpuTime = getServerCpuTime (serverThreadIDs);
+		long messages = this.latencies.getCount();
+		long bytes = this.bytesReceived.get();
+		long iterations = metrics.getTotal (ConnectionManagerMetrics.Type.LOOP_ITERATIONS) - startIterations;
+		long readyKeys = metrics.getTotal (ConnectionManagerMetrics.Type.READY_KEYS) - startReadyKeys;
+		long selectTime = metrics.getTotal (ConnectionManagerMetrics.Type.SELECT_TIME) - startSelectTime;
+		long processingTime = metrics.getTotal (ConnectionManagerMetrics.Type.PROCESSING_TIME) - startProcessingTime;
+		this.running = false;
+
+		double seconds = (endTime - startTime) / 1e9;
+		System.out.printf ("Throughput: %.0f messages/s, %.2f MB/s echoed%n", messages / seconds, bytes / seconds / 1048576);
+		System.out.printf ("Round trip (us): p50 %d, p90 %d, p99 %d, p99.9 %d, max %d%n", this.latencies.getPercentile (50),
+				this.latencies.getPercentile (90), this.latencies.getPercentile (99), this.latencies.getPercentile (99.9),
+				this.latencies.getMaximum() / 1000);
+		System.out.printf ("Server CPU: %.1f%% of one core%n", 100.0 * (endCpuTime - startCpuTime) / (endTime - startTime));
+		System.out.printf ("Server event loops: %.0f iterations/s, %.2f ready keys/iteration, %.1f%% of loop time in select%n",
+				iterations / seconds, (iterations == 0) ? 0.0 : (double) readyKeys / iterations,
+				(selectTime + processingTime == 0) ? 0.0 : 100.0 * selectTime / (selectTime + processingTime));
+
+		client.close();
+		server.close();
+
+	}
+
+
+	/**
+	 * Prints the command line options
+	 */
+	private static void usage() {
+
+		System.err.println ("Options:");
+		System.err.println ("  --connections <n>          Connections to open (1000)");
+		System.err.println ("  --concurrent-connects <n>  Connections waiting to complete at once (32)");
+		System.err.println ("  --backend <backend>        EVENT_LOOP, THREAD_PER_CONNECTION or WORKER_POOL (EVENT_LOOP)");
+		System.err.println ("  --server-loops <n>         Event loops of the echoing ConnectionManager (1)");
+		System.err.println ("  --client-loops <n>         Event loops of the connecting ConnectionManager (1)");
+		System.err.println ("  --message-length <bytes>   Message length, or maximum length if random (64)");
+		System.err.println ("  --random-length            Give each message a random length");
+		System.err.println ("  --depth <n>                Messages each connection keeps in flight (1)");
+		System.err.println ("  --warmup <seconds>         Time to run before measuring (5)");
+		System.err.println ("  --duration <seconds>       Time to measure for (10)");
+
+	}
+
+
+	/**
+	 * @param args The command line options
+	 * @throws Exception On any error
+	 */
+	public static void main (String[] args) throws Exception {
+
+		ConnectionLoadTest loadTest = new ConnectionLoadTest();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String option = args[i];
+				if ("--help".equals (option)) {
+					usage();
+					return;
+				}
+				if ("--random-length".equals (option)) {
+					loadTest.randomLength = true;
+					continue;
+				}
+				if (!option.startsWith ("--")) {
+					throw new IllegalArgumentException ("Unknown option " + option);
+				}
+				if (i + 1 == args.length) {
+					throw new IllegalArgumentException ("Missing value for " + option);
+				}
+				String value = args[++i];
+				if ("--connections".equals (option)) {
+					loadTest.connections = Integer.parseInt (value);
+				} else if ("--concurrent-connects".equals (option)) {
+					loadTest.concurrentConnects = Integer.parseInt (value);
+				} else if ("--backend".equals (option)) {
+					loadTest.backend = ConnectionBackend.valueOf (value);
+				} else if ("--server-loops".equals (option)) {
+					loadTest.serverEventLoops = Integer.parseInt (value);
+				} else if ("--client-loops".equals (option)) {
+					loadTest.clientEventLoops = Integer.parseInt (value);
+				} else if ("--message-length".equals (option)) {
+					loadTest.messageLength = Integer.parseInt (value);
+				} else if ("--depth".equals (option)) {
+					loadTest.depth = Integer.parseInt (value);
+				} else if ("--warmup".equals (option)) {
+					loadTest.warmup = Integer.parseInt (value);
+				} else if ("--duration".equals (option)) {
+					loadTest.duration = Integer.parseInt (value);
+				} else {
+					throw new IllegalArgumentException ("Unknown option " + option);
+				}
+			}
+			if ((loadTest.connections < 1) || (loadTest.concurrentConnects < 1) || (loadTest.messageLength < 1) || (loadTest.depth < 1)
+					|| (loadTest.warmup < 0) || (loadTest.duration < 1))
+			{
+				throw new IllegalArgumentException ("Invalid option value");
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println (e.getMessage());
+			usage();
+			System.exit (1);
+		}
+
+		loadTest.run();
+
+	}
+
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.itadaki.bobbin.connectionmanager.Connection;
+import org.itadaki.bobbin.connectionmanager.ConnectionReadyListener;
+
+
+/**
+ * A listener that writes back everything it reads, holding unwritten data until the connection
+ * is next writeable
+ */
+public class EchoListener implements ConnectionReadyListener {
+
+	/**
+	 * Data read and not yet written back
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocate (65536);
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.ConnectionReadyListener#connectionReady(org.itadaki.bobbin.connectionmanager.Connection, boolean, boolean)
+	 */
+	public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+
+		try {
+			if (connection.read (this.buffer) == -1) {
+				connection.close();
+				return;
+			}
+			this.buffer.flip();
+			connection.write (this.buffer);
+			connection.setWriteEnabled (this.buffer.hasRemaining());
+			this.buffer.compact();
+		} catch (IOException e) {
+			try {
+				connection.close();
+			} catch (IOException e1) {
+				// Can't do anything and don't much care
+			}
+		}
+
+	}
+
+
+}
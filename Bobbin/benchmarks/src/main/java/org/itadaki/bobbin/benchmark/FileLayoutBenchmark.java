@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.itadaki.bobbin.torrentdb.FileLayout;
+import org.itadaki.bobbin.torrentdb.Filespec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Measures the cost of mapping the pieces of a many-file torrent onto its files through
+ * FileLayout, as FileStorage does for every read and write. The files have random lengths of up
+ * to 200 KiB, one in twenty of them zero length, so that pieces of 256 KiB typically span several
+ * files
+ *
+ * <p>{@link #pieceFragments(Blackhole)} walks the fragments of one piece, moving on to the next
+ * piece each operation. {@link #create()} builds the layout, as FileStorage does when opened
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileLayoutBenchmark {
+
+	/**
+	 * The length of each piece
+	 */
+	private static final int PIECE_LENGTH = 262144;
+
+	/**
+	 * The maximum length of each file
+	 */
+	private static final int MAXIMUM_FILE_LENGTH = 204800;
+
+
+	/**
+	 * The number of files in the torrent
+	 */
+	@Param({ "1000", "100000" })
+	public int fileCount;
+
+	/**
+	 * The files of the torrent
+	 */
+	private List<File> files;
+
+	/**
+	 * The filespecs of the torrent
+	 */
+	private List<Filespec> filespecs;
+
+	/**
+	 * The layout under test
+	 */
+	private FileLayout layout;
+
+	/**
+	 * The reusable fragment cursor
+	 */
+	private FileLayout.Fragments fragments;
+
+	/**
+	 * The number of pieces in the torrent
+	 */
+	private int pieceCount;
+
+	/**
+	 * The piece to walk next
+	 */
+	private int pieceNumber;
+
+
+	/**
+	 * Creates the files and filespecs of a torrent with random file lengths, and a layout of them
+	 */
+	@Setup
+	public void setUp() {
+
+		Random random = new Random (0);
+		File directory = new File ("benchmark");
+		this.files = new ArrayList<File> (this.fileCount);
+		this.filespecs = new ArrayList<Filespec> (this.fileCount);
+		for (int i = 0; i < this.fileCount; i++) {
+			String name = "file" + i;
+			long length = (random.nextInt (20) == 0) ? 0 : 1 + random.nextInt (MAXIMUM_FILE_LENGTH);
+			this.files.add (new File (directory, name));
+			this.filespecs.add (new Filespec (name, length));
+		}
+
+		this.layout = new FileLayout (this.files, this.filespecs);
+		this.fragments = this.layout.fragments();
+		this.pieceCount = (int) ((this.layout.getTotalLength() + PIECE_LENGTH - 1) / PIECE_LENGTH);
+		this.pieceNumber = 0;
+
+	}
+
+
+	/**
+	 * Walks the fragments of one piece
+	 *
+	 * @param blackhole The blackhole to consume each fragment
+	 */
+	@Benchmark
+	public void pieceFragments (Blackhole blackhole) {
+
+		long start = (long) this.pieceNumber * PIECE_LENGTH;
+		int length = (int) Math.min (PIECE_LENGTH, this.layout.getTotalLength() - start);
+		this.fragments.reset (start, length);
+		while (this.fragments.next()) {
+			blackhole.consume (this.fragments.getFileIndex());
+			blackhole.consume (this.fragments.getFilePosition());
+			blackhole.consume (this.fragments.getLength());
+		}
+
+		if (++this.pieceNumber == this.pieceCount) {
+			this.pieceNumber = 0;
+		}
+
+	}
+
+
+	/**
+	 * Builds the layout
+	 *
+	 * @return The layout
+	 */
+	@Benchmark
+	public FileLayout create() {
+
+		return new FileLayout (this.files, this.filespecs);
+
+	}
+
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A histogram of latencies with a resolution of one microsecond up to one second, into which
+ * samples may be recorded concurrently from any thread. Latencies above one second are counted
+ * together, and contribute to percentiles as one second
+ */
+public class LatencyHistogram {
+
+	/**
+	 * The number of one microsecond buckets
+	 */
+	private static final int BUCKETS = 1000000;
+
+	/**
+	 * The count of samples in each bucket, with the final bucket counting every sample of a second
+	 * or more
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray (BUCKETS + 1);
+
+	/**
+	 * The total number of samples
+	 */
+	private final AtomicLong totalCount = new AtomicLong();
+
+	/**
+	 * The largest sample in nanoseconds
+	 */
+	private final AtomicLong maximum = new AtomicLong();
+
+
+	/**
+	 * Records a sample
+	 *
+	 * @param nanos The latency in nanoseconds
+	 */
+	public void record (long nanos) {
+
+		this.counts.incrementAndGet ((int) Math.min (BUCKETS, Math.max (0, nanos / 1000)));
+		this.totalCount.incrementAndGet();
+
+		long maximum;
+		while (nanos > (maximum = this.maximum.get())) {
+			if (this.maximum.compareAndSet (maximum, nanos)) {
+				break;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Discards all samples
+	 */
+	public void reset() {
+
+		for (int i = 0; i <= BUCKETS; i++) {
+			this.counts.set (i, 0);
+		}
+		this.totalCount.set (0);
+		this.maximum.set (0);
+
+	}
+
+
+	/**
+	 * @return The number of samples
+	 */
+	public long getCount() {
+
+		return this.totalCount.get();
+
+	}
+
+
+	/**
+	 * @return The largest sample in nanoseconds
+	 */
+	public long getMaximum() {
+
+		return this.maximum.get();
+
+	}
+
+
+	/**
+	 * @param percentile The percentile, between 0 and 100
+	 * @return The latency in microseconds at or below which the given percentage of samples lie,
+	 *         or 0 if there are no samples
+	 */
+	public long getPercentile (double percentile) {
+
+		long count = this.totalCount.get();
+		long threshold = (long) Math.ceil (count * percentile / 100);
+		long cumulative = 0;
+		for (int i = 0; i <= BUCKETS; i++) {
+			cumulative += this.counts.get (i);
+			if ((cumulative >= threshold) && (cumulative > 0)) {
+				return i;
+			}
+		}
+
+		return 0;
+
+	}
+
+
+}
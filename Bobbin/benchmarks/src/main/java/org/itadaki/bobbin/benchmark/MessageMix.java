@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+
+
+/**
+ * A repeating pattern of peer protocol messages representative of a particular phase of a
+ * connection
+ */
+public enum MessageMix {
+
+	/**
+	 * Bulk block transfer, with requests and haves interleaved between the blocks
+	 */
+	PIECE_HEAVY (Kind.PIECE, Kind.REQUEST, Kind.PIECE, Kind.HAVE),
+
+	/**
+	 * A burst of have messages, as sent by a seed announcing many pieces or a peer that has just
+	 * finished checking a partially complete torrent
+	 */
+	HAVE_STORM (Kind.HAVE),
+
+	/**
+	 * A burst of request messages, as sent when a deep request pipeline is refilled
+	 */
+	REQUEST_STORM (Kind.REQUEST);
+
+
+	/**
+	 * The kinds of message within a mix
+	 */
+	public static enum Kind {
+
+		/**
+		 * A have message
+		 */
+		HAVE,
+
+		/**
+		 * A request message
+		 */
+		REQUEST,
+
+		/**
+		 * A piece message
+		 */
+		PIECE
+
+	}
+
+
+	/**
+	 * The length of each requested or transferred block
+	 */
+	public static final int BLOCK_LENGTH = 16384;
+
+	/**
+	 * The repeating pattern of message kinds
+	 */
+	private final Kind[] pattern;
+
+
+	/**
+	 * @param index The index of a message within the mix
+	 * @return The kind of the message
+	 */
+	public Kind kind (int index) {
+
+		return this.pattern[index % this.pattern.length];
+
+	}
+
+
+	/**
+	 * @param index The index of a message within the mix
+	 * @param numberOfPieces The number of pieces in the torrent
+	 * @param pieceLength The length of each piece
+	 * @return The block that is the subject of the message
+	 */
+	public static BlockDescriptor block (int index, int numberOfPieces, int pieceLength) {
+
+		int blocksPerPiece = pieceLength / BLOCK_LENGTH;
+
+		return new BlockDescriptor ((index / blocksPerPiece) % numberOfPieces, (index % blocksPerPiece) * BLOCK_LENGTH, BLOCK_LENGTH);
+
+	}
+
+
+	/**
+	 * @param pattern The repeating pattern of message kinds
+	 */
+	private MessageMix (Kind... pattern) {
+
+		this.pattern = pattern;
+
+	}
+
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.itadaki.bobbin.connectionmanager.Connection;
+
+
+/**
+ * An in-memory Connection stand-in that accepts and discards everything written to it, and has
+ * nothing to read
+ */
+public class NullConnection extends Connection {
+
+	/**
+	 * The total number of bytes written
+	 */
+	private long bytesWritten = 0;
+
+	/**
+	 * The number of write calls made
+	 */
+	private long writeCount = 0;
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#read(java.nio.ByteBuffer[])
+	 */
+	@Override
+	public long read (ByteBuffer[] buffers) throws IOException {
+
+		return 0;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#read(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	public long read (ByteBuffer[] buffers, int offset, int length) throws IOException {
+
+		return 0;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read (ByteBuffer buffer) throws IOException {
+
+		return 0;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#write(java.nio.ByteBuffer[])
+	 */
+	@Override
+	public long write (ByteBuffer[] buffers) throws IOException {
+
+		return write (buffers, 0, buffers.length);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#write(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	public long write (ByteBuffer[] buffers, int offset, int length) throws IOException {
+
+		long written = 0;
+		for (int i = offset; i < offset + length; i++) {
+			written += buffers[i].remaining();
+			buffers[i].position (buffers[i].limit());
+		}
+
+		this.bytesWritten += written;
+		this.writeCount++;
+
+		return written;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write (ByteBuffer buffer) throws IOException {
+
+		int written = buffer.remaining();
+		buffer.position (buffer.limit());
+
+		this.bytesWritten += written;
+		this.writeCount++;
+
+		return written;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#close()
+	 */
+	@Override
+	public void close() throws IOException {
+
+		// Do nothing
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+
+		return true;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#setWriteEnabled(boolean)
+	 */
+	@Override
+	public synchronized void setWriteEnabled (boolean enabled) {
+
+		// Do nothing
+
+	}
+
+
+	/**
+	 * @return The total number of bytes written
+	 */
+	public long getBytesWritten() {
+
+		return this.bytesWritten;
+
+	}
+
+
+	/**
+	 * @return The number of write calls made
+	 */
+	public long getWriteCount() {
+
+		return this.writeCount;
+
+	}
+
+
+	/**
+	 * Creates a NullConnection
+	 */
+	public NullConnection() {
+
+		super (null, null);
+
+	}
+
+
+}
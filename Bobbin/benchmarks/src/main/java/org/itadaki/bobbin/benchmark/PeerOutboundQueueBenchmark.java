@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.itadaki.bobbin.peer.PeerOutboundQueue;
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.itadaki.bobbin.torrentdb.Filespec;
+import org.itadaki.bobbin.torrentdb.Info;
+import org.itadaki.bobbin.torrentdb.InfoFileset;
+import org.itadaki.bobbin.torrentdb.MemoryStorage;
+import org.itadaki.bobbin.torrentdb.PieceDatabase;
+import org.itadaki.bobbin.util.counter.StatisticCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the rate at which PeerOutboundQueue encodes and writes queued messages through
+ * sendData() to an in-memory connection that accepts everything written to it. Each operation is
+ * one sent message
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerOutboundQueueBenchmark {
+
+	/**
+	 * The number of messages queued before each call to sendData()
+	 */
+	private static final int MESSAGES = 256;
+
+	/**
+	 * The number of pieces in the piece database
+	 */
+	private static final int PIECES = 16;
+
+	/**
+	 * The length of each piece in the piece database
+	 */
+	private static final int PIECE_LENGTH = 262144;
+
+
+	/**
+	 * The message mix to send
+	 */
+	@Param
+	public MessageMix mix;
+
+	/**
+	 * The piece database that piece messages are read from
+	 */
+	private PieceDatabase pieceDatabase;
+
+	/**
+	 * The connection that messages are written to
+	 */
+	private NullConnection connection;
+
+	/**
+	 * The queue under test
+	 */
+	private PeerOutboundQueue queue;
+
+	/**
+	 * The blocks that are the subject of each message
+	 */
+	private final List<BlockDescriptor> blocks = new ArrayList<BlockDescriptor>();
+
+
+	/**
+	 * Creates a complete piece database of random content, and a queue to send from it
+	 *
+	 * @throws Exception On any error
+	 */
+	@Setup
+	public void setUp() throws Exception {
+
+		byte[] data = new byte[PIECES * PIECE_LENGTH];
+		new Random(0).nextBytes (data);
+		MessageDigest digest = MessageDigest.getInstance ("SHA");
+		byte[] pieceHashes = new byte[PIECES * 20];
+		for (int i = 0; i < PIECES; i++) {
+			digest.update (data, i * PIECE_LENGTH, PIECE_LENGTH);
+			System.arraycopy (digest.digest(), 0, pieceHashes, i * 20, 20);
+		}
+
+		Info info = Info.create (new InfoFileset (new Filespec ("benchmark", (long)data.length)), PIECE_LENGTH, pieceHashes);
+		this.pieceDatabase = new PieceDatabase (info, null, new MemoryStorage (data), null);
+		this.pieceDatabase.start (true);
+
+		this.connection = new NullConnection();
+		this.queue = new PeerOutboundQueue (this.connection, this.pieceDatabase, new StatisticCounter());
+		this.queue.setRequestsPlugged (false);
+		this.queue.setInboundRequestLimit (MESSAGES);
+
+		for (int i = 0; i < MESSAGES; i++) {
+			this.blocks.add (MessageMix.block (i, PIECES, PIECE_LENGTH));
+		}
+
+	}
+
+
+	/**
+	 * Terminates the piece database
+	 */
+	@TearDown
+	public void tearDown() {
+
+		this.pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Queues one batch of messages and sends them
+	 *
+	 * @return The number of bytes sent
+	 * @throws IOException On any I/O error
+	 */
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public int sendData() throws IOException {
+
+		for (int i = 0; i < MESSAGES; i++) {
+			BlockDescriptor block = this.blocks.get (i);
+			switch (this.mix.kind (i)) {
+				case HAVE:
+					this.queue.sendHaveMessage (block.getPieceNumber());
+					break;
+				case REQUEST:
+					this.queue.sendRequestMessage (block);
+					break;
+				case PIECE:
+					this.queue.sendPieceMessage (block);
+					break;
+			}
+		}
+
+		int bytesSent = this.queue.sendData();
+
+		// Retire the requests just sent, as if their blocks had been received
+		for (int i = 0; i < MESSAGES; i++) {
+			if (this.mix.kind (i) == MessageMix.Kind.REQUEST) {
+				this.queue.requestReceived (this.blocks.get (i));
+			}
+		}
+
+		return bytesSent;
+
+	}
+
+
+}
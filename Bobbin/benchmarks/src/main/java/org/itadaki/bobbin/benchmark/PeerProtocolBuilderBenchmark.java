@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.itadaki.bobbin.peer.protocol.PeerProtocolBuilder;
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.itadaki.bobbin.util.BitField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the rate at which PeerProtocolBuilder encodes individual messages, both into newly
+ * allocated buffers and directly into an existing output buffer. Each operation is one encoded
+ * message
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerProtocolBuilderBenchmark {
+
+	/**
+	 * The number of pieces in the notional torrent
+	 */
+	private static final int PIECES = 4096;
+
+	/**
+	 * The block to encode in request and piece messages
+	 */
+	private final BlockDescriptor descriptor = new BlockDescriptor (1234, 3 * MessageMix.BLOCK_LENGTH, MessageMix.BLOCK_LENGTH);
+
+	/**
+	 * The block data to encode in piece messages
+	 */
+	private final ByteBuffer block = ByteBuffer.allocate (MessageMix.BLOCK_LENGTH);
+
+	/**
+	 * A half full bitfield to encode in bitfield messages
+	 */
+	private final BitField bitField = new BitField (PIECES);
+
+	/**
+	 * The output buffer that messages are encoded directly into
+	 */
+	private final ByteBuffer outputBuffer = ByteBuffer.allocate (64);
+
+
+	/**
+	 * Sets up the bitfield
+	 */
+	@Setup
+	public void setUp() {
+
+		for (int i = 0; i < PIECES; i += 2) {
+			this.bitField.set (i);
+		}
+
+	}
+
+
+	/**
+	 * @return An encoded have message
+	 */
+	@Benchmark
+	public ByteBuffer haveMessage() {
+
+		return PeerProtocolBuilder.haveMessage (1234);
+
+	}
+
+
+	/**
+	 * @return An encoded request message
+	 */
+	@Benchmark
+	public ByteBuffer requestMessage() {
+
+		return PeerProtocolBuilder.requestMessage (this.descriptor);
+
+	}
+
+
+	/**
+	 * @return An encoded piece message
+	 */
+	@Benchmark
+	public ByteBuffer[] pieceMessage() {
+
+		return PeerProtocolBuilder.pieceMessage (this.descriptor, this.block.duplicate());
+
+	}
+
+
+	/**
+	 * @return An encoded bitfield message
+	 */
+	@Benchmark
+	public ByteBuffer bitfieldMessage() {
+
+		return PeerProtocolBuilder.bitfieldMessage (this.bitField);
+
+	}
+
+
+	/**
+	 * @return The output buffer, containing a have message
+	 */
+	@Benchmark
+	public ByteBuffer putHaveMessage() {
+
+		this.outputBuffer.clear();
+		PeerProtocolBuilder.putHaveMessage (this.outputBuffer, 1234);
+
+		return this.outputBuffer;
+
+	}
+
+
+	/**
+	 * @return The output buffer, containing a request message
+	 */
+	@Benchmark
+	public ByteBuffer putRequestMessage() {
+
+		this.outputBuffer.clear();
+		PeerProtocolBuilder.putRequestMessage (this.outputBuffer, this.descriptor);
+
+		return this.outputBuffer;
+
+	}
+
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.itadaki.bobbin.peer.protocol.PeerProtocolBuilder;
+import org.itadaki.bobbin.peer.protocol.PeerProtocolParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Measures the rate at which PeerProtocolParser decodes a stream of messages, delivered through a
+ * channel in socket sized reads. Each operation is one decoded message
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerProtocolParserBenchmark {
+
+	/**
+	 * The number of messages in the stream
+	 */
+	private static final int MESSAGES = 1024;
+
+	/**
+	 * The maximum number of bytes returned by each read, as from a socket receive buffer
+	 */
+	private static final int READ_LENGTH = 65536;
+
+	/**
+	 * The number of pieces in the notional torrent
+	 */
+	private static final int PIECES = 4096;
+
+	/**
+	 * The length of each piece of the notional torrent
+	 */
+	private static final int PIECE_LENGTH = 262144;
+
+
+	/**
+	 * A channel that replays a fixed byte stream in reads of up to {@link #READ_LENGTH} bytes,
+	 * returning 0 once the stream is exhausted
+	 */
+	private static class ReplayChannel implements ReadableByteChannel {
+
+		/**
+		 * The stream to replay
+		 */
+		private final ByteBuffer stream;
+
+		/**
+		 * Restarts the stream from the beginning
+		 */
+		public void rewind() {
+
+			this.stream.clear();
+
+		}
+
+		/* (non-Javadoc)
+		 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+		 */
+		public int read (ByteBuffer destination) throws IOException {
+
+			int length = Math.min (READ_LENGTH, Math.min (destination.remaining(), this.stream.remaining()));
+			int limit = this.stream.limit();
+			this.stream.limit (this.stream.position() + length);
+			destination.put (this.stream);
+			this.stream.limit (limit);
+
+			return length;
+
+		}
+
+		/* (non-Javadoc)
+		 * @see java.nio.channels.Channel#isOpen()
+		 */
+		public boolean isOpen() {
+
+			return true;
+
+		}
+
+		/* (non-Javadoc)
+		 * @see java.nio.channels.Channel#close()
+		 */
+		public void close() throws IOException {
+
+			// Do nothing
+
+		}
+
+		/**
+		 * @param stream The stream to replay
+		 */
+		public ReplayChannel (ByteBuffer stream) {
+
+			this.stream = stream;
+
+		}
+
+	}
+
+
+	/**
+	 * The message mix to decode
+	 */
+	@Param
+	public MessageMix mix;
+
+	/**
+	 * The channel replaying the encoded messages
+	 */
+	private ReplayChannel channel;
+
+	/**
+	 * The consumer of decoded messages
+	 */
+	private BlackholeConsumer consumer;
+
+	/**
+	 * The parser under test
+	 */
+	private PeerProtocolParser parser;
+
+
+	/**
+	 * Encodes the message stream
+	 *
+	 * @param blackhole The Blackhole to consume decoded messages
+	 */
+	@Setup
+	public void setUp (Blackhole blackhole) {
+
+		ByteBuffer block = ByteBuffer.allocate (MessageMix.BLOCK_LENGTH);
+
+		List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+		int streamLength = 0;
+		for (int i = 0; i < MESSAGES; i++) {
+			switch (this.mix.kind (i)) {
+				case HAVE:
+					messages.add (PeerProtocolBuilder.haveMessage (i % PIECES));
+					break;
+				case REQUEST:
+					messages.add (PeerProtocolBuilder.requestMessage (MessageMix.block (i, PIECES, PIECE_LENGTH)));
+					break;
+				case PIECE:
+					for (ByteBuffer buffer : PeerProtocolBuilder.pieceMessage (MessageMix.block (i, PIECES, PIECE_LENGTH), block.duplicate())) {
+						messages.add (buffer);
+					}
+					break;
+			}
+		}
+		for (ByteBuffer message : messages) {
+			streamLength += message.remaining();
+		}
+
+		ByteBuffer stream = ByteBuffer.allocate (streamLength);
+		for (ByteBuffer message : messages) {
+			stream.put (message);
+		}
+		stream.flip();
+
+		this.channel = new ReplayChannel (stream);
+		this.consumer = new BlackholeConsumer (blackhole);
+		this.parser = new PeerProtocolParser (this.consumer, true, true);
+
+	}
+
+
+	/**
+	 * Decodes the complete message stream
+	 *
+	 * @return The number of bytes parsed
+	 * @throws IOException On any parse error
+	 */
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public int parseBytes() throws IOException {
+
+		this.channel.rewind();
+
+		return this.parser.parseBytes (this.channel);
+
+	}
+
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.connectionmanager;
+
+
+/**
+ * Limits applied by a {@link ConnectionManager} to inbound TCP and uTP connections that are
+ * pending, having been accepted but not yet marked established through
+ * {@link Connection#setEstablished()}
+ *
+ * <p>While the total number of pending connections is at its limit, the ConnectionManager stops
+ * accepting TCP connections, leaving further connections queued by the operating system until a
+ * pending connection is established or closed, and refuses uTP connection requests. A connection
+ * from an address that already has its limit of pending connections is closed as soon as it is
+ * accepted. A pending connection that is not established within the handshake timeout is closed.
+ *
+ * <p>A limit or timeout of zero is unlimited. AcceptLimits are immutable.
+ */
+public class AcceptLimits {
+
+	/**
+	 * The maximum number of pending connections, or 0 for no limit
+	 */
+	private final int maximumPendingConnections;
+
+	/**
+	 * The maximum number of pending connections from a single remote address, or 0 for no limit
+	 */
+	private final int maximumPendingConnectionsPerAddress;
+
+	/**
+	 * The number of seconds after which a pending connection is closed, or 0 for no limit
+	 */
+	private final int handshakeTimeout;
+
+
+	/**
+	 * @return The maximum number of pending connections, or 0 for no limit
+	 */
+	public int getMaximumPendingConnections() {
+
+		return this.maximumPendingConnections;
+
+	}
+
+
+	/**
+	 * @return The maximum number of pending connections from a single remote address, or 0 for no
+	 *         limit
+	 */
+	public int getMaximumPendingConnectionsPerAddress() {
+
+		return this.maximumPendingConnectionsPerAddress;
+
+	}
+
+
+	/**
+	 * @return The number of seconds after which a pending connection is closed, or 0 for no limit
+	 */
+	public int getHandshakeTimeout() {
+
+		return this.handshakeTimeout;
+
+	}
+
+
+	/**
+	 * @param maximumPendingConnections The maximum number of pending connections, or 0 for no
+	 *        limit
+	 * @param maximumPendingConnectionsPerAddress The maximum number of pending connections from a
+	 *        single remote address, or 0 for no limit
+	 * @param handshakeTimeout The number of seconds after which a pending connection is closed, or
+	 *        0 for no limit
+	 * @throws IllegalArgumentException if any limit is negative
+	 */
+	public AcceptLimits (int maximumPendingConnections, int maximumPendingConnectionsPerAddress, int handshakeTimeout) {
+
+		if ((maximumPendingConnections < 0) || (maximumPendingConnectionsPerAddress < 0)) {
+			throw new IllegalArgumentException ("Invalid pending connection limit");
+		}
+		if (handshakeTimeout < 0) {
+			throw new IllegalArgumentException ("Invalid handshake timeout");
+		}
+
+		this.maximumPendingConnections = maximumPendingConnections;
+		this.maximumPendingConnectionsPerAddress = maximumPendingConnectionsPerAddress;
+		this.handshakeTimeout = handshakeTimeout;
+
+	}
+
+
+	/**
+	 * Creates limits that leave pending connections unlimited
+	 */
+	public AcceptLimits() {
+
+		this (0, 0, 0);
+
+	}
+
+
+}
@@ -0,0 +1,752 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.connectionmanager;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * A Connection served by threads of its own, using blocking reads and writes, rather than by an
+ * {@link EventLoop}
+ *
+ * <p>A reader thread blocks reading the socket straight into a ring buffer of received data. A
+ * writer thread blocks writing the socket straight from a ring buffer of data written to the
+ * connection. A listener thread reports the connection to its listener as readable when data is
+ * received or the listener has consumed some of what was waiting, and as writeable while writing
+ * is enabled and there is room to buffer data. The listener is called only on the listener
+ * thread, so a listener written for the selector based model may be used unchanged; as in that
+ * model, a write accepts only as much data as there is room for. Unlike that model, data the
+ * listener leaves unread without reading anything is not reported again until more arrives.
+ *
+ * <p>Because the listener thread never blocks on the socket, two blocking connections that write
+ * to each other at once go on reading what the other sends, and do not wait on each other.
+ * Reading pauses only while {@link #RECEIVE_BUFFER_LENGTH} bytes of received data wait to be
+ * read.
+ *
+ * <p>Each connection costs three platform threads, each with a stack of its own (typically 512
+ * KiB to 1 MiB of reserved address space, depending on the platform and {@code -Xss}), together
+ * with {@link #RECEIVE_BUFFER_LENGTH} plus {@link #SEND_BUFFER_LENGTH} bytes of heap for its
+ * buffers. No further memory is allocated per read or write.
+ *
+ * <p>Data written before the connection is closed is sent before the socket is closed, for up
+ * to {@link #CLOSE_TIMEOUT} milliseconds.
+ *
+ * <p>Outbound connections are made, and the listeners of inbound connections informed, on the
+ * reader thread before the writer and listener threads start.
+ */
+public class BlockingConnection extends Connection {
+
+	/**
+	 * The length of the ring buffer that the socket is read into. Reading the socket pauses while
+	 * it is full
+	 */
+	private static final int RECEIVE_BUFFER_LENGTH = 65536;
+
+	/**
+	 * The length of the ring buffer that written data waits in to be sent
+	 */
+	private static final int SEND_BUFFER_LENGTH = 65536;
+
+	/**
+	 * The time in milliseconds that data written before the connection is closed is given to be
+	 * sent, after which the socket is closed regardless
+	 */
+	private static final int CLOSE_TIMEOUT = 30000;
+
+
+	/**
+	 * The ring buffer of received data, through which the listener reads. Guarded by the
+	 * connection's own lock
+	 */
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocate (RECEIVE_BUFFER_LENGTH);
+
+	/**
+	 * A view of {@link #receiveBuffer} through which the reader thread reads the socket into the
+	 * free part of the ring. Used only by the reader thread
+	 */
+	private final ByteBuffer socketReadBuffer = this.receiveBuffer.duplicate();
+
+	/**
+	 * The index in {@link #receiveBuffer} of the first received byte not yet read. Guarded by the
+	 * connection's own lock
+	 */
+	private int receiveStart = 0;
+
+	/**
+	 * The number of received bytes not yet read. Guarded by the connection's own lock
+	 */
+	private int receiveCount = 0;
+
+	/**
+	 * The number of times data, the end of stream or an exception has been received. Guarded by
+	 * the connection's own lock
+	 */
+	private long receiveEvents = 0;
+
+	/**
+	 * The value of {@link #receiveEvents} when the listener last left received data unread
+	 * without reading any, or -1. Guarded by the connection's own lock
+	 */
+	private long readStalledAt = -1;
+
+	/**
+	 * The total number of received bytes read by the listener. Guarded by the connection's own
+	 * lock
+	 */
+	private long bytesRead = 0;
+
+	/**
+	 * {@code true} if the end of stream has been reached. Guarded by the connection's own lock
+	 */
+	private boolean endOfStream = false;
+
+	/**
+	 * The exception that ended reading, if any. Guarded by the connection's own lock
+	 */
+	private IOException readException = null;
+
+	/**
+	 * {@code true} if the end of stream or the exception that ended reading has been reported
+	 * to the listener. Guarded by the connection's own lock
+	 */
+	private boolean endReported = false;
+
+	/**
+	 * The ring buffer of written data waiting to be sent, into which the listener writes. Guarded
+	 * by the connection's own lock
+	 */
+	private final ByteBuffer sendBuffer = ByteBuffer.allocate (SEND_BUFFER_LENGTH);
+
+	/**
+	 * A view of {@link #sendBuffer} from which the writer thread writes the socket. Used only by
+	 * the writer thread
+	 */
+	private final ByteBuffer socketWriteBuffer = this.sendBuffer.duplicate();
+
+	/**
+	 * The index in {@link #sendBuffer} of the first written byte not yet sent. Guarded by the
+	 * connection's own lock
+	 */
+	private int sendStart = 0;
+
+	/**
+	 * The number of written bytes not yet sent, including any the writer thread is sending.
+	 * Guarded by the connection's own lock
+	 */
+	private int sendCount = 0;
+
+	/**
+	 * The exception that ended writing, if any. Guarded by the connection's own lock
+	 */
+	private IOException writeException = null;
+
+	/**
+	 * {@code true} if the listener wishes to be informed when the connection is writeable.
+	 * Guarded by the connection's own lock
+	 */
+	private boolean writeEnabled = false;
+
+	/**
+	 * {@code true} once the connection has been closed, although its socket may remain open
+	 * while written data is sent
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * The time until which reading is suspended by rate limiting, in system milliseconds
+	 */
+	private volatile long readSuspendedUntil = 0;
+
+	/**
+	 * The time until which writing is suspended by rate limiting, in system milliseconds
+	 */
+	private volatile long writeSuspendedUntil = 0;
+
+	/**
+	 * The event loop whose timer wheel runs the connection's scheduled tasks
+	 */
+	private final EventLoop timerEventLoop;
+
+	/**
+	 * The address to connect to, for an outbound connection
+	 */
+	private InetSocketAddress remoteAddress;
+
+	/**
+	 * The listener to inform when an outbound connection completes or fails
+	 */
+	private OutboundConnectionListener outboundListener;
+
+	/**
+	 * The number of seconds to wait before giving up trying to connect, or 0 to wait indefinitely
+	 */
+	private int connectTimeout;
+
+	/**
+	 * The listener to inform of an inbound connection
+	 */
+	private InboundConnectionListener inboundListener;
+
+	/**
+	 * The thread that reads the socket
+	 */
+	private final Thread readerThread = new Thread (new Runnable() {
+		public void run() {
+			if (open()) {
+				BlockingConnection.this.writerThread.start();
+				BlockingConnection.this.listenerThread.start();
+				receive();
+			}
+		}
+	}, "BlockingConnection reader");
+
+	/**
+	 * The thread that writes the socket
+	 */
+	private final Thread writerThread = new Thread (new Runnable() {
+		public void run() {
+			send();
+		}
+	}, "BlockingConnection writer");
+
+	/**
+	 * The thread that informs the listener
+	 */
+	private final Thread listenerThread = new Thread (new Runnable() {
+		public void run() {
+			dispatch();
+		}
+	}, "BlockingConnection listener");
+
+
+	/**
+	 * Completes an outbound connection, or informs the listener of an inbound connection. Called
+	 * on the reader thread
+	 *
+	 * @return {@code true} if the connection is open, or {@code false} if it could not be made
+	 */
+	private boolean open() {
+
+		if (this.outboundListener != null) {
+			try {
+				getSocketChannel().socket().connect (this.remoteAddress, this.connectTimeout * 1000);
+			} catch (IOException e) {
+				try {
+					close();
+				} catch (IOException e1) {
+					// Can't do anything and don't much care
+				}
+				this.outboundListener.rejected (this);
+				return false;
+			}
+			this.outboundListener.connected (this);
+		} else {
+			this.inboundListener.accepted (this);
+		}
+
+		return true;
+
+	}
+
+
+	/**
+	 * Closes the socket, without waiting for any written data to be sent
+	 */
+	private void closeSocket() {
+
+		try {
+			super.close();
+		} catch (IOException e) {
+			// Can't do anything and don't much care
+		}
+
+	}
+
+
+	/**
+	 * Reads the socket into the free part of the receive ring buffer, until the end of stream or
+	 * an error. Called on the reader thread
+	 */
+	private void receive() {
+
+		try {
+
+			while (true) {
+
+				synchronized (this) {
+					while ((this.receiveCount == RECEIVE_BUFFER_LENGTH) && isOpen()) {
+						wait();
+					}
+					int free = RECEIVE_BUFFER_LENGTH - this.receiveCount;
+					int end = (this.receiveStart + this.receiveCount) % RECEIVE_BUFFER_LENGTH;
+					this.socketReadBuffer.limit (end + Math.min (free, RECEIVE_BUFFER_LENGTH - end));
+					this.socketReadBuffer.position (end);
+				}
+
+				// The listener reads only the filled part of the ring, so the socket is read into
+				// the free part without holding the lock
+				int bytesReceived;
+				IOException exception = null;
+				try {
+					bytesReceived = getSocketChannel().read (this.socketReadBuffer);
+				} catch (IOException e) {
+					if (!isOpen()) {
+						return;
+					}
+					bytesReceived = 0;
+					exception = e;
+				}
+
+				synchronized (this) {
+
+					// Data received once the connection is closed is discarded
+					if ((bytesReceived > 0) && !this.closed) {
+						this.receiveCount += bytesReceived;
+					}
+					this.endOfStream = (bytesReceived == -1);
+					this.readException = exception;
+					this.receiveEvents++;
+					notifyAll();
+
+					if (this.endOfStream || (this.readException != null)) {
+						return;
+					}
+
+				}
+
+			}
+
+		} catch (InterruptedException e) {
+			// Exit
+		}
+
+	}
+
+
+	/**
+	 * Writes the data written to the connection to the socket straight from the send ring buffer,
+	 * until an error, or until the connection is closed and all data written has been sent.
+	 * Called on the writer thread
+	 */
+	private void send() {
+
+		try {
+
+			while (true) {
+
+				int length;
+				synchronized (this) {
+					while ((this.sendCount == 0) && !this.closed) {
+						wait();
+					}
+					if (this.sendCount == 0) {
+						break;
+					}
+					length = Math.min (this.sendCount, SEND_BUFFER_LENGTH - this.sendStart);
+					this.socketWriteBuffer.limit (this.sendStart + length);
+					this.socketWriteBuffer.position (this.sendStart);
+				}
+
+				// The listener writes only to the free part of the ring, so the data is sent
+				// without holding the lock
+				try {
+					while (this.socketWriteBuffer.hasRemaining()) {
+						getSocketChannel().write (this.socketWriteBuffer);
+					}
+				} catch (IOException e) {
+					synchronized (this) {
+						this.writeException = e;
+						notifyAll();
+					}
+					break;
+				}
+
+				synchronized (this) {
+					this.sendStart = (this.sendStart + length) % SEND_BUFFER_LENGTH;
+					this.sendCount -= length;
+					notifyAll();
+				}
+
+			}
+
+		} catch (InterruptedException e) {
+			// Exit
+		}
+
+		if (this.closed) {
+			closeSocket();
+		}
+
+	}
+
+
+	/**
+	 * Reports the connection readable to the listener when data is received or the listener
+	 * has consumed some of the data waiting, or when the end of stream waits to be read, unless
+	 * reading is suspended; and writeable while writing is enabled, not suspended, and there is
+	 * room to buffer data. Once the connection is closed, waits for written data to be sent until
+	 * {@link #CLOSE_TIMEOUT}. Called on the listener thread
+	 */
+	private void dispatch() {
+
+		try {
+
+			while (true) {
+
+				boolean readable = false;
+				boolean writeable = false;
+				long bytesReadBefore = 0;
+
+				synchronized (this) {
+
+					while (true) {
+						long now = System.currentTimeMillis();
+						if (!isOpen()) {
+							long deadline = now + CLOSE_TIMEOUT;
+							while ((this.sendCount > 0) && (this.writeException == null) && (now < deadline)) {
+								wait (deadline - now);
+								now = System.currentTimeMillis();
+							}
+							break;
+						}
+						boolean readPending;
+						if (this.receiveCount > 0) {
+							readPending = (this.receiveEvents != this.readStalledAt);
+						} else {
+							readPending = (this.endOfStream || (this.readException != null)) && !this.endReported;
+						}
+						boolean writePending = this.writeEnabled && ((this.sendCount < SEND_BUFFER_LENGTH) || (this.writeException != null));
+						readable = readPending && (now >= this.readSuspendedUntil);
+						writeable = writePending && (now >= this.writeSuspendedUntil);
+						if (readable || writeable) {
+							if (readable && (this.receiveCount == 0)) {
+								this.endReported = true;
+							}
+							bytesReadBefore = this.bytesRead;
+							break;
+						}
+						long delay = Long.MAX_VALUE;
+						if (readPending) {
+							delay = this.readSuspendedUntil - now;
+						}
+						if (writePending) {
+							delay = Math.min (delay, this.writeSuspendedUntil - now);
+						}
+						wait ((delay == Long.MAX_VALUE) ? 0 : delay);
+					}
+
+					if (!isOpen()) {
+						break;
+					}
+
+				}
+
+				if (readable) {
+					setReadable();
+				}
+				if (writeable) {
+					setWriteable();
+				}
+				informListener();
+
+				// Data the listener left unread without reading any is not reported again until
+				// more arrives, unless reading was suspended, in which case it is reported when the
+				// suspension ends
+				synchronized (this) {
+					if (
+							   readable
+							&& (this.receiveCount > 0)
+							&& (this.bytesRead == bytesReadBefore)
+							&& (System.currentTimeMillis() >= this.readSuspendedUntil)
+					   )
+					{
+						this.readStalledAt = this.receiveEvents;
+					}
+				}
+
+			}
+
+		} catch (InterruptedException e) {
+			// Exit
+		}
+
+		closeSocket();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#transportRead(java.nio.ByteBuffer)
+	 */
+	@Override
+	synchronized int transportRead (ByteBuffer buffer) throws IOException {
+
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+
+		if (this.receiveCount == 0) {
+			if (this.readException != null) {
+				throw this.readException;
+			}
+			return this.endOfStream ? -1 : 0;
+		}
+
+		boolean full = (this.receiveCount == RECEIVE_BUFFER_LENGTH);
+
+		int count = 0;
+		while (buffer.hasRemaining() && (this.receiveCount > 0)) {
+			int length = Math.min (buffer.remaining(), Math.min (this.receiveCount, RECEIVE_BUFFER_LENGTH - this.receiveStart));
+			this.receiveBuffer.limit (this.receiveStart + length);
+			this.receiveBuffer.position (this.receiveStart);
+			buffer.put (this.receiveBuffer);
+			this.receiveStart = (this.receiveStart + length) % RECEIVE_BUFFER_LENGTH;
+			this.receiveCount -= length;
+			count += length;
+		}
+
+		if (full) {
+			notifyAll();
+		}
+		this.bytesRead += count;
+
+		return count;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#transportRead(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	synchronized long transportRead (ByteBuffer[] buffers, int offset, int length) throws IOException {
+
+		long bytesRead = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int bufferBytesRead = transportRead (buffers[i]);
+			if (bufferBytesRead == -1) {
+				return (bytesRead == 0) ? -1 : bytesRead;
+			}
+			bytesRead += bufferBytesRead;
+		}
+
+		return bytesRead;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#transportWrite(java.nio.ByteBuffer)
+	 */
+	@Override
+	synchronized int transportWrite (ByteBuffer buffer) throws IOException {
+
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+		if (this.writeException != null) {
+			throw this.writeException;
+		}
+
+		boolean empty = (this.sendCount == 0);
+
+		int count = 0;
+		while (buffer.hasRemaining() && (this.sendCount < SEND_BUFFER_LENGTH)) {
+			int end = (this.sendStart + this.sendCount) % SEND_BUFFER_LENGTH;
+			int length = Math.min (buffer.remaining(), Math.min (SEND_BUFFER_LENGTH - this.sendCount, SEND_BUFFER_LENGTH - end));
+			int limit = buffer.limit();
+			buffer.limit (buffer.position() + length);
+			this.sendBuffer.limit (end + length);
+			this.sendBuffer.position (end);
+			this.sendBuffer.put (buffer);
+			buffer.limit (limit);
+			this.sendCount += length;
+			count += length;
+		}
+
+		if (empty && (count > 0)) {
+			notifyAll();
+		}
+
+		return count;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#transportWrite(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	synchronized long transportWrite (ByteBuffer[] buffers, int offset, int length) throws IOException {
+
+		long bytesWritten = 0;
+		for (int i = offset; i < offset + length; i++) {
+			bytesWritten += transportWrite (buffers[i]);
+			if (buffers[i].hasRemaining()) {
+				break;
+			}
+		}
+
+		return bytesWritten;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#suspend(int, long)
+	 */
+	@Override
+	void suspend (int operation, long delay) {
+
+		long until = System.currentTimeMillis() + delay;
+		if (operation == SelectionKey.OP_READ) {
+			this.readSuspendedUntil = until;
+		} else {
+			this.writeSuspendedUntil = until;
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#setWriteEnabled(boolean)
+	 */
+	@Override
+	public synchronized void setWriteEnabled (boolean enabled) {
+
+		this.writeEnabled = enabled;
+		notifyAll();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#isWriteEnabled()
+	 */
+	@Override
+	synchronized boolean isWriteEnabled() {
+
+		return this.writeEnabled;
+
+	}
+
+
+	/**
+	 * Closes the connection. Data already written continues to be sent before the socket is
+	 * closed, for up to {@link #CLOSE_TIMEOUT} milliseconds
+	 *
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#close()
+	 */
+	@Override
+	public void close() throws IOException {
+
+		synchronized (this) {
+			this.closed = true;
+			this.receiveCount = 0;
+			notifyAll();
+			if (this.sendCount > 0) {
+				// The writer thread closes the socket once the data is sent
+				return;
+			}
+		}
+
+		super.close();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#abort()
+	 */
+	@Override
+	void abort() throws IOException {
+
+		synchronized (this) {
+			this.closed = true;
+			this.receiveCount = 0;
+			notifyAll();
+		}
+
+		super.close();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#getTimerEventLoop()
+	 */
+	@Override
+	EventLoop getTimerEventLoop() {
+
+		return this.timerEventLoop;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+
+		return !this.closed && super.isOpen();
+
+	}
+
+
+	/**
+	 * Makes the connection to a given address on the reader thread
+	 *
+	 * @param remoteAddress The address to connect to
+	 * @param listener The listener to inform when the connection completes or fails
+	 * @param connectTimeout The number of seconds to wait before giving up trying to connect, or
+	 *        0 to wait indefinitely
+	 */
+	void connect (InetSocketAddress remoteAddress, OutboundConnectionListener listener, int connectTimeout) {
+
+		this.remoteAddress = remoteAddress;
+		this.outboundListener = listener;
+		this.connectTimeout = connectTimeout;
+		this.readerThread.start();
+
+	}
+
+
+	/**
+	 * Informs the given listener of the accepted connection on the reader thread, then begins
+	 * reading
+	 *
+	 * @param listener The listener to inform
+	 */
+	void accept (InboundConnectionListener listener) {
+
+		this.inboundListener = listener;
+		this.readerThread.start();
+
+	}
+
+
+	/**
+	 * @param connectionManager The ConnectionManager that manages the connection
+	 * @param socketChannel The blocking socket channel
+	 */
+	BlockingConnection (ConnectionManager connectionManager, SocketChannel socketChannel) {
+
+		super (connectionManager, socketChannel);
+
+		this.timerEventLoop = connectionManager.nextEventLoop();
+		this.readerThread.setDaemon (true);
+		this.writerThread.setDaemon (true);
+		this.listenerThread.setDaemon (true);
+
+	}
+
+
+}
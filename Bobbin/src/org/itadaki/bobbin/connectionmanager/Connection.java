@@ -7,8 +7,11 @@ package org.itadaki.bobbin.connectionmanager;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.ScatteringByteChannel;
 import java.nio.channels.SocketChannel;
 
@@ -16,6 +19,9 @@ import java.nio.channels.SocketChannel;
 /**
  * A proxy onto a SocketChannel providing a listener callback facility that is
  * informed when the Connection is readable or writeable
+ *
+ * <p>Subclasses may carry the connection over another transport, as
+ * {@link UtpConnection} does over uTP
  */
 public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 
@@ -29,6 +35,33 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	 */
 	private final SocketChannel socketChannel;
 
+	/**
+	 * The event loop that the Connection is pinned to, or {@code null} if not yet assigned
+	 */
+	private EventLoop eventLoop = null;
+
+	/**
+	 * The bucket that limits the rate of reading, or {@code null} if unlimited
+	 */
+	private volatile TokenBucket readBucket = null;
+
+	/**
+	 * The bucket that limits the rate of writing, or {@code null} if unlimited
+	 */
+	private volatile TokenBucket writeBucket = null;
+
+	/**
+	 * The operations currently suspended by rate limiting, as a set of SelectionKey operation
+	 * bits. Accessed only from the Connection's event loop
+	 */
+	int suspendedOperations = 0;
+
+	/**
+	 * {@code true} while the Connection has been handed to a worker thread to inform its listener,
+	 * during which it is not selected. Accessed only from the Connection's event loop
+	 */
+	boolean dispatched = false;
+
 	/**
 	 * A listener that is informed when data may be read or written
 	 */
@@ -54,6 +87,225 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	private boolean socketWriteable = false;
 
 
+	/**
+	 * Limits a set of buffers to a given total number of bytes remaining
+	 *
+	 * @param buffers The buffers
+	 * @param offset The offset of the first buffer
+	 * @param length The number of buffers
+	 * @param total The total number of bytes to leave remaining
+	 * @return The buffers' original limits, for {@link #restoreLimits(ByteBuffer[], int, int, int[])}
+	 */
+	private static int[] limitBuffers (ByteBuffer[] buffers, int offset, int length, long total) {
+
+		int[] limits = new int[length];
+		for (int i = 0; i < length; i++) {
+			ByteBuffer buffer = buffers[offset + i];
+			limits[i] = buffer.limit();
+			int allowed = (int) Math.min (buffer.remaining(), total);
+			buffer.limit (buffer.position() + allowed);
+			total -= allowed;
+		}
+
+		return limits;
+
+	}
+
+
+	/**
+	 * Restores the limits of a set of buffers
+	 *
+	 * @param buffers The buffers
+	 * @param offset The offset of the first buffer
+	 * @param length The number of buffers
+	 * @param limits The buffers' original limits
+	 */
+	private static void restoreLimits (ByteBuffer[] buffers, int offset, int length, int[] limits) {
+
+		for (int i = 0; i < length; i++) {
+			buffers[offset + i].limit (limits[i]);
+		}
+
+	}
+
+
+	/**
+	 * @param buffers The buffers
+	 * @param offset The offset of the first buffer
+	 * @param length The number of buffers
+	 * @return The total number of bytes remaining in the buffers
+	 */
+	private static long remaining (ByteBuffer[] buffers, int offset, int length) {
+
+		long remaining = 0;
+		for (int i = offset; i < offset + length; i++) {
+			remaining += buffers[i].remaining();
+		}
+
+		return remaining;
+
+	}
+
+
+	/**
+	 * Reads from the underlying transport, without rate limiting
+	 *
+	 * @param buffer The buffer to read into
+	 * @return The number of bytes read, or -1 at the end of stream
+	 * @throws IOException On any I/O error
+	 */
+	int transportRead (ByteBuffer buffer) throws IOException {
+
+		return this.socketChannel.read (buffer);
+
+	}
+
+
+	/**
+	 * Reads from the underlying transport, without rate limiting
+	 *
+	 * @param buffers The buffers to read into
+	 * @param offset The offset of the first buffer
+	 * @param length The number of buffers
+	 * @return The number of bytes read, or -1 at the end of stream
+	 * @throws IOException On any I/O error
+	 */
+	long transportRead (ByteBuffer[] buffers, int offset, int length) throws IOException {
+
+		return this.socketChannel.read (buffers, offset, length);
+
+	}
+
+
+	/**
+	 * Writes to the underlying transport, without rate limiting
+	 *
+	 * @param buffer The buffer to write from
+	 * @return The number of bytes written
+	 * @throws IOException On any I/O error
+	 */
+	int transportWrite (ByteBuffer buffer) throws IOException {
+
+		return this.socketChannel.write (buffer);
+
+	}
+
+
+	/**
+	 * Writes to the underlying transport, without rate limiting
+	 *
+	 * @param buffers The buffers to write from
+	 * @param offset The offset of the first buffer
+	 * @param length The number of buffers
+	 * @return The number of bytes written
+	 * @throws IOException On any I/O error
+	 */
+	long transportWrite (ByteBuffer[] buffers, int offset, int length) throws IOException {
+
+		return this.socketChannel.write (buffers, offset, length);
+
+	}
+
+
+	/**
+	 * @return The metrics recorder of the Connection's event loop, or the shared recorder if it
+	 *         has none, or {@code null} if the Connection has no ConnectionManager
+	 */
+	private ConnectionManagerMetrics.Recorder getRecorder() {
+
+		EventLoop eventLoop = this.eventLoop;
+		if (eventLoop != null) {
+			return eventLoop.getRecorder();
+		}
+
+		return (this.connectionManager == null) ? null : this.connectionManager.getMetrics().getSharedRecorder();
+
+	}
+
+
+	/**
+	 * Counts a read in the Connection's metrics
+	 *
+	 * @param bytesRead The number of bytes read, or -1 at the end of stream
+	 * @return The number of bytes read, or -1 at the end of stream
+	 */
+	private int countRead (int bytesRead) {
+
+		return (int) countRead ((long) bytesRead);
+
+	}
+
+
+	/**
+	 * Counts a read in the Connection's metrics
+	 *
+	 * @param bytesRead The number of bytes read, or -1 at the end of stream
+	 * @return The number of bytes read, or -1 at the end of stream
+	 */
+	private long countRead (long bytesRead) {
+
+		if (bytesRead > 0) {
+			ConnectionManagerMetrics.Recorder recorder = getRecorder();
+			if (recorder != null) {
+				recorder.readCompleted (bytesRead);
+			}
+		}
+
+		return bytesRead;
+
+	}
+
+
+	/**
+	 * Counts a write in the Connection's metrics
+	 *
+	 * @param bytesWritten The number of bytes written
+	 * @return The number of bytes written
+	 */
+	private int countWrite (int bytesWritten) {
+
+		return (int) countWrite ((long) bytesWritten);
+
+	}
+
+
+	/**
+	 * Counts a write in the Connection's metrics
+	 *
+	 * @param bytesWritten The number of bytes written
+	 * @return The number of bytes written
+	 */
+	private long countWrite (long bytesWritten) {
+
+		if (bytesWritten > 0) {
+			ConnectionManagerMetrics.Recorder recorder = getRecorder();
+			if (recorder != null) {
+				recorder.writeCompleted (bytesWritten);
+			}
+		}
+
+		return bytesWritten;
+
+	}
+
+
+	/**
+	 * Stops reporting the Connection as ready for an operation for a time, because its rate
+	 * limit has been reached
+	 *
+	 * @param operation The operation to suspend, {@link SelectionKey#OP_READ} or
+	 *        {@link SelectionKey#OP_WRITE}
+	 * @param delay The time to suspend for in milliseconds
+	 */
+	void suspend (int operation, long delay) {
+
+		if (this.eventLoop != null) {
+			this.eventLoop.suspend (this, operation, delay);
+		}
+
+	}
+
+
 	// ScatteringByteChannel interface
 
 	/* (non-Javadoc)
@@ -61,8 +313,7 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	 */
 	public long read (ByteBuffer[] buffers) throws IOException {
 
-		long bytesRead = this.socketChannel.read (buffers);
-		return bytesRead;
+		return read (buffers, 0, buffers.length);
 
 	}
 
@@ -71,8 +322,31 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	 */
 	public long read (ByteBuffer[] buffers, int offset, int length) throws IOException {
 
-		long bytesRead = this.socketChannel.read (buffers, offset, length);
-		return bytesRead;
+		TokenBucket bucket = this.readBucket;
+		long requested = remaining (buffers, offset, length);
+		if ((bucket == null) || (requested == 0)) {
+			return countRead (transportRead (buffers, offset, length));
+		}
+
+		long now = System.currentTimeMillis();
+		int granted = bucket.take ((int) Math.min (Integer.MAX_VALUE, requested), now);
+		if (granted == 0) {
+			suspend (SelectionKey.OP_READ, bucket.getDelay (now));
+			return 0;
+		}
+
+		int[] limits = limitBuffers (buffers, offset, length, granted);
+		long bytesRead = 0;
+		try {
+			bytesRead = transportRead (buffers, offset, length);
+		} finally {
+			restoreLimits (buffers, offset, length, limits);
+			if (bytesRead < granted) {
+				bucket.give (granted - (int) Math.max (0, bytesRead));
+			}
+		}
+
+		return countRead (bytesRead);
 
 	}
 
@@ -81,8 +355,31 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	 */
 	public int read (ByteBuffer buffer) throws IOException {
 
-		int bytesRead = this.socketChannel.read (buffer);
-		return bytesRead;
+		TokenBucket bucket = this.readBucket;
+		if ((bucket == null) || !buffer.hasRemaining()) {
+			return countRead (transportRead (buffer));
+		}
+
+		long now = System.currentTimeMillis();
+		int granted = bucket.take (buffer.remaining(), now);
+		if (granted == 0) {
+			suspend (SelectionKey.OP_READ, bucket.getDelay (now));
+			return 0;
+		}
+
+		int limit = buffer.limit();
+		buffer.limit (buffer.position() + granted);
+		int bytesRead = 0;
+		try {
+			bytesRead = transportRead (buffer);
+		} finally {
+			buffer.limit (limit);
+			if (bytesRead < granted) {
+				bucket.give (granted - Math.max (0, bytesRead));
+			}
+		}
+
+		return countRead (bytesRead);
 
 	}
 
@@ -94,8 +391,7 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	 */
 	public long write (ByteBuffer[] buffers) throws IOException {
 
-		long bytesWritten = this.socketChannel.write (buffers);
-		return bytesWritten;
+		return write (buffers, 0, buffers.length);
 
 	}
 
@@ -104,8 +400,31 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	 */
 	public long write (ByteBuffer[] buffers, int offset, int length) throws IOException {
 
-		long bytesWritten = this.socketChannel.write (buffers, offset, length);
-		return bytesWritten;
+		TokenBucket bucket = this.writeBucket;
+		long requested = remaining (buffers, offset, length);
+		if ((bucket == null) || (requested == 0)) {
+			return countWrite (transportWrite (buffers, offset, length));
+		}
+
+		long now = System.currentTimeMillis();
+		int granted = bucket.take ((int) Math.min (Integer.MAX_VALUE, requested), now);
+		if (granted == 0) {
+			suspend (SelectionKey.OP_WRITE, bucket.getDelay (now));
+			return 0;
+		}
+
+		int[] limits = limitBuffers (buffers, offset, length, granted);
+		long bytesWritten = 0;
+		try {
+			bytesWritten = transportWrite (buffers, offset, length);
+		} finally {
+			restoreLimits (buffers, offset, length, limits);
+			if (bytesWritten < granted) {
+				bucket.give (granted - (int) bytesWritten);
+			}
+		}
+
+		return countWrite (bytesWritten);
 
 	}
 
@@ -114,8 +433,31 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	 */
 	public int write (ByteBuffer buffer) throws IOException {
 
-		int bytesWritten = this.socketChannel.write (buffer);
-		return bytesWritten;
+		TokenBucket bucket = this.writeBucket;
+		if ((bucket == null) || !buffer.hasRemaining()) {
+			return countWrite (transportWrite (buffer));
+		}
+
+		long now = System.currentTimeMillis();
+		int granted = bucket.take (buffer.remaining(), now);
+		if (granted == 0) {
+			suspend (SelectionKey.OP_WRITE, bucket.getDelay (now));
+			return 0;
+		}
+
+		int limit = buffer.limit();
+		buffer.limit (buffer.position() + granted);
+		int bytesWritten = 0;
+		try {
+			bytesWritten = transportWrite (buffer);
+		} finally {
+			buffer.limit (limit);
+			if (bytesWritten < granted) {
+				bucket.give (granted - bytesWritten);
+			}
+		}
+
+		return countWrite (bytesWritten);
 
 	}
 
@@ -130,6 +472,19 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 
 	}
 
+	/**
+	 * Closes the Connection without waiting for data already written to be delivered. Used to
+	 * discard a Connection that has not completed its handshake
+	 *
+	 * @throws IOException On any I/O error
+	 */
+	void abort() throws IOException {
+
+		close();
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see java.nio.channels.Channel#isOpen()
 	 */
@@ -190,6 +545,109 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	}
 
 
+	/**
+	 * Marks an inbound Connection as established, typically once its protocol handshake is
+	 * complete, so that it no longer counts against the ConnectionManager's {@link AcceptLimits}
+	 * and is not closed at its handshake deadline. Has no effect on an outbound Connection, or one
+	 * that is already established
+	 */
+	public void setEstablished() {
+
+		if (this.connectionManager != null) {
+			this.connectionManager.connectionEstablished (this);
+		}
+
+	}
+
+
+	/**
+	 * Sets the buckets that limit the rate at which the Connection may be read and written
+	 *
+	 * @param readBucket The bucket that limits reading, or {@code null} for unlimited
+	 * @param writeBucket The bucket that limits writing, or {@code null} for unlimited
+	 */
+	public void setRateLimiters (TokenBucket readBucket, TokenBucket writeBucket) {
+
+		this.readBucket = readBucket;
+		this.writeBucket = writeBucket;
+
+	}
+
+
+	/**
+	 * Grows the Connection's socket buffers to suit its measured throughput, within the maximum
+	 * buffer size of the ConnectionManager's {@link ConnectionOptions}. Buffers are never shrunk
+	 *
+	 * @param receiveRate The measured rate of receiving in bytes per second
+	 * @param sendRate The measured rate of sending in bytes per second
+	 */
+	public void adjustBufferSizes (long receiveRate, long sendRate) {
+
+		if (this.connectionManager == null) {
+			return;
+		}
+
+		ConnectionOptions options = this.connectionManager.getConnectionOptions();
+		if (options.getMaximumBufferSize() == 0) {
+			return;
+		}
+
+		Socket socket = this.socketChannel.socket();
+		try {
+			int receiveBufferSize = socket.getReceiveBufferSize();
+			int wantedReceiveBufferSize = options.getAdaptiveBufferSize (receiveBufferSize, receiveRate);
+			if (wantedReceiveBufferSize > receiveBufferSize) {
+				socket.setReceiveBufferSize (wantedReceiveBufferSize);
+			}
+			int sendBufferSize = socket.getSendBufferSize();
+			int wantedSendBufferSize = options.getAdaptiveBufferSize (sendBufferSize, sendRate);
+			if (wantedSendBufferSize > sendBufferSize) {
+				socket.setSendBufferSize (wantedSendBufferSize);
+			}
+		} catch (SocketException e) {
+			// Options are advisory
+		}
+
+	}
+
+
+	/**
+	 * Schedules a task to be run on the timer wheel of the Connection's event loop once the given
+	 * delay has passed. The task is skipped if the Connection has been closed by then, and is never
+	 * run if the Connection has no event loop
+	 *
+	 * @param task The task to run
+	 * @param delay The delay in milliseconds
+	 */
+	public void schedule (final Runnable task, long delay) {
+
+		final EventLoop eventLoop = getTimerEventLoop();
+		if (eventLoop == null) {
+			return;
+		}
+
+		final long deadline = System.currentTimeMillis() + Math.max (delay, 0);
+		final Runnable guardedTask = new Runnable() {
+			public void run() {
+				if (isOpen()) {
+					task.run();
+				}
+			}
+		};
+
+		if (eventLoop.isEventLoopThread()) {
+			eventLoop.getTimerWheel().schedule (guardedTask, deadline);
+		} else {
+			eventLoop.execute (new Runnable() {
+				public void run() {
+					eventLoop.getTimerWheel().schedule (guardedTask, deadline);
+				}
+			});
+		}
+
+	}
+
+
 	/**
 	 * Sets whether the Connection wishes to write data
 	 *
@@ -206,6 +664,50 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	}
 
 
+	/**
+	 * Called by EventLoop when it needs to know whether writing is wanted
+	 * @return {@code true} if writing has been requested, otherwise {@code false}
+	 */
+	synchronized boolean isWriteEnabled() {
+
+		return this.writeEnabled;
+
+	}
+
+
+	/**
+	 * Called by EventLoop when the Connection is assigned to it
+	 * @param eventLoop The event loop that the Connection is pinned to
+	 */
+	void setEventLoop (EventLoop eventLoop) {
+
+		this.eventLoop = eventLoop;
+
+	}
+
+
+	/**
+	 * Called by ConnectionManager when it needs to find the Connection's event loop
+	 * @return The event loop that the Connection is pinned to, or {@code null}
+	 */
+	EventLoop getEventLoop() {
+
+		return this.eventLoop;
+
+	}
+
+
+	/**
+	 * Called to find the event loop whose timer wheel runs the Connection's scheduled tasks
+	 * @return The event loop to schedule tasks on, or {@code null}
+	 */
+	EventLoop getTimerEventLoop() {
+
+		return this.eventLoop;
+
+	}
+
+
 	/**
 	 * Called by ConnectionManager when it needs to find the SocketChannel
 	 * @return The Connection's SocketChannel
@@ -238,6 +740,16 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	}
 
 
+	/**
+	 * @return The listener that is informed when data may be read or written, or {@code null}
+	 */
+	ConnectionReadyListener getListener() {
+
+		return this.listener;
+
+	}
+
+
 	/**
 	 * Inform the Connection's listener, if any, that it is ready to be read
 	 * from and / or written to.<br>
@@ -274,6 +786,11 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 		this.connectionManager = connectionManager;
 		this.socketChannel = socketChannel;
 
+		if (connectionManager != null) {
+			this.readBucket = connectionManager.getReadBucket();
+			this.writeBucket = connectionManager.getWriteBucket();
+		}
+
 	}
 
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.connectionmanager;
+
+
+/**
+ * The models by which a {@link ConnectionManager} may serve its TCP connections. Listeners are
+ * informed in the same way, and never concurrently for the same connection, under every model
+ */
+public enum ConnectionBackend {
+
+	/**
+	 * Each connection's listener is informed on the thread of the event loop that the connection
+	 * is pinned to. A listener that blocks delays every other connection on its loop
+	 */
+	EVENT_LOOP,
+
+	/**
+	 * Each connection is served by three threads of its own using blocking I/O (see
+	 * {@link BlockingConnection})
+	 */
+	THREAD_PER_CONNECTION,
+
+	/**
+	 * The event loops select connections that are ready, and hand each to a shared pool of worker
+	 * threads, which inform the connection's listener and then return the connection to its loop
+	 * to be selected again. A listener that blocks occupies one worker, and delays only its own
+	 * connection
+	 */
+	WORKER_POOL
+
+}
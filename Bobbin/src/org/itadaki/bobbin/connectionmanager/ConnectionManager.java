@@ -7,277 +7,576 @@ package org.itadaki.bobbin.connectionmanager;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.itadaki.bobbin.util.TimerWheel;
 
 
 /**
  * A non-blocking network multiplexer
+ *
+ * <p>Sockets are distributed in turn across a fixed number of {@link EventLoop}s, each with its
+ * own selector and thread. A connection is pinned to one loop when it is accepted or opened, and
+ * its listener is always informed on that loop's thread.
+ *
+ * <p>Alternatively, a ConnectionManager may serve each TCP connection with threads of its own
+ * using blocking I/O (see {@link BlockingConnection}), in which case the event loops accept
+ * connections and carry uTP alone, or may inform the listeners of TCP connections from a pool of
+ * worker threads. Listeners are informed in the same way under every model (see
+ * {@link ConnectionBackend}).
+ *
+ * <p>Inbound TCP and uTP connections are pending until they are marked established, and the
+ * number of pending connections may be bounded through {@link AcceptLimits} so that a flood of
+ * connections that never complete a handshake cannot crowd out established ones.
  */
 public class ConnectionManager {
 
 	/**
-	 * The selection thread
+	 * The event loops
+	 */
+	private final EventLoop[] eventLoops;
+
+	/**
+	 * The index of the event loop to assign the next socket to, modulo the number of loops
 	 */
-	private final Thread selectionThread;
+	private final AtomicInteger nextEventLoop = new AtomicInteger (0);
 
 	/**
-	 * The selector for all monitored channels
+	 * The model by which TCP connections are served
 	 */
-	private final Selector selector;
+	private final ConnectionBackend backend;
 
 	/**
-	 * A list of changes waiting to be made to the selector environment. All
-	 * changes are executed from within the main selection loop in the running
-	 * manager thread
+	 * The threads that inform the listeners of TCP connections, or {@code null} unless the backend
+	 * is {@link ConnectionBackend#WORKER_POOL}
 	 */
-	private final List<Runnable> queuedTasks = new LinkedList<Runnable>();
+	private final ExecutorService workerPool;
 
 	/**
-	 * A map connecting a server socket channel to its designated InboundConnectionListener
+	 * The open connections served by threads of their own
 	 */
-	private final Map<ServerSocketChannel,InboundConnectionListener> inboundConnectionListeners = new HashMap<ServerSocketChannel,InboundConnectionListener>();
+	private final Set<Connection> blockingConnections = Collections.newSetFromMap (new ConcurrentHashMap<Connection,Boolean>());
 
 	/**
-	 * A map connecting a client socket channel to its designated OutboundConnectionListener
+	 * The bucket that limits the total rate of reading from all connections
 	 */
-	private final Map<SocketChannel,OutboundConnectionListener> outboundConnectionListeners = new HashMap<SocketChannel,OutboundConnectionListener>();
+	private final TokenBucket readBucket = new TokenBucket (null);
 
 	/**
-	 * A map of pending connections and their timeouts
+	 * The bucket that limits the total rate of writing to all connections
 	 */
-	private final Map<SocketChannel,Long> pendingConnections = new HashMap<SocketChannel,Long>();
+	private final TokenBucket writeBucket = new TokenBucket (null);
 
 	/**
-	 * If {@code true}, the connection manager is shut down and the selection thread will exit
+	 * The socket options applied to new TCP sockets
+	 */
+	private volatile ConnectionOptions connectionOptions = new ConnectionOptions();
+
+	/**
+	 * The metrics of the event loops and connections
+	 */
+	private final ConnectionManagerMetrics metrics = new ConnectionManagerMetrics();
+
+	/**
+	 * The limits applied to pending inbound connections
+	 */
+	private volatile AcceptLimits acceptLimits = new AcceptLimits();
+
+	/**
+	 * Inbound connections that have not yet been established
+	 */
+	private final Map<Connection,PendingConnection> pendingConnections = new HashMap<Connection,PendingConnection>();
+
+	/**
+	 * The number of pending inbound connections from each remote address. Guarded by
+	 * {@link #pendingConnections}
+	 */
+	private final Map<InetAddress,Integer> pendingConnectionsByAddress = new HashMap<InetAddress,Integer>();
+
+	/**
+	 * {@code true} if an event loop may have stopped accepting because the pending connections
+	 * were over their limit, and should be woken when they fall below it
+	 */
+	private volatile boolean acceptsPaused = false;
+
+	/**
+	 * The uTP socket used for outbound uTP connections, or {@code null} if none has been opened
+	 */
+	private UtpSocket defaultUtpSocket = null;
+
+	/**
+	 * If {@code true}, the connection manager is shut down
 	 */
 	private boolean closed = false;
 
+
 	/**
-	 * A Runnable for the selection loop thread
+	 * An inbound connection that has not yet been established. Guarded by
+	 * {@link ConnectionManager#pendingConnections}
 	 */
-	private final Runnable selectionRunnable = new Runnable() {
+	private static class PendingConnection {
 
-		/* (non-Javadoc)
-		 * @see java.lang.Runnable#run()
+		/**
+		 * The remote address of the connection
 		 */
-		public void run() {
+		final InetAddress address;
 
-			while (true) {
+		/**
+		 * The event loop whose timer wheel holds {@link #handshakeTimeout}
+		 */
+		EventLoop eventLoop = null;
 
-				synchronized (ConnectionManager.this) {
-					if (ConnectionManager.this.closed) {
-						for (SelectionKey key : ConnectionManager.this.selector.keys()) {
-							try {
-								key.channel().close();
-							} catch (IOException e) {
-								// Shouldn't happen and nothing much we can do
-							}
-						}
-						return;
-					}
-				}
+		/**
+		 * The timer that closes the connection at its handshake deadline, or {@code null} if none
+		 * has been scheduled
+		 */
+		TimerWheel.Timeout handshakeTimeout = null;
 
-				try {
-
-					// Evaluate pending connections for timeouts
-					long currentTime = System.currentTimeMillis();
-					for (Iterator<SocketChannel> iterator = ConnectionManager.this.pendingConnections.keySet().iterator(); iterator.hasNext();) {
-						SocketChannel socketChannel = iterator.next();
-						long deadline = ConnectionManager.this.pendingConnections.get (socketChannel);
-						if (currentTime > deadline) {
-							// Cancel the connection
-							iterator.remove();
-							SelectionKey key = socketChannel.keyFor (ConnectionManager.this.selector);
-							Connection connection = (Connection) key.attachment();
-							OutboundConnectionListener listener = ConnectionManager.this.outboundConnectionListeners.remove (socketChannel);
-							listener.rejected (connection);
-							socketChannel.close();
-							key.cancel();
-						}
-					}
 
-					// Execute any requested actions
-					synchronized (ConnectionManager.this.queuedTasks) {
-						for (Runnable change : ConnectionManager.this.queuedTasks) {
-							change.run();
-						}
-						ConnectionManager.this.queuedTasks.clear();
-					}
+		/**
+		 * @param address The remote address of the connection
+		 */
+		PendingConnection (InetAddress address) {
 
-					// Wait for some data to come calling, or an intentional wakeup
-					ConnectionManager.this.selector.select (1000);
-
-					// Respond to any incoming events
-					Set<Connection> readyConnections = new HashSet<Connection>();
-					Iterator<SelectionKey> selectedKeys = ConnectionManager.this.selector.selectedKeys().iterator();
-
-					while (selectedKeys.hasNext()) {
-						SelectionKey key = selectedKeys.next();
-						selectedKeys.remove();
-
-						if (key.isValid() && key.isAcceptable()) {
-							processAccept (key);
-						}
-						if (key.isValid() && key.isConnectable()) {
-							processConnect (key);
-						}
-						if (key.isValid() && key.isReadable()) {
-							Connection connection = (Connection) key.attachment();
-							connection.setReadable();
-							readyConnections.add (connection);
-						}
-						if (key.isValid() && key.isWritable()) {
-							Connection connection = (Connection) key.attachment();
-							connection.setWriteable();
-							readyConnections.add (connection);
-						}
-					}
+			this.address = address;
 
-					for (Connection connection : readyConnections) {
-						connection.informListener();
-					}
+		}
 
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+	}
 
+
+	/**
+	 * @return The event loop to assign the next socket to
+	 */
+	EventLoop nextEventLoop() {
+
+		return this.eventLoops[(this.nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % this.eventLoops.length];
+
+	}
+
+
+	/**
+	 * @return The threads that inform the listeners of TCP connections, or {@code null} if
+	 *         listeners are informed on the event loops' own threads
+	 */
+	ExecutorService getWorkerPool() {
+
+		return this.workerPool;
+
+	}
+
+
+	/**
+	 * Add or remove a Connection to the selection set for writing
+	 *
+	 * @param connection
+	 * @param enabled
+	 */
+	void setWriteEnabled (Connection connection, boolean enabled) {
+
+		connection.getEventLoop().setWriteEnabled (connection, enabled);
+
+	}
+
+
+	/**
+	 * Informs the ConnectionManager that a connection has closed. A Connection
+	 * calls this method with itself as an argument when
+	 * {@link Connection#close()} is called
+	 *
+	 * @param connection The Connection to close
+	 */
+	void connectionClosed (Connection connection) {
+
+		EventLoop eventLoop = connection.getEventLoop();
+		if (eventLoop != null) {
+			eventLoop.connectionClosed (connection);
+		}
+		this.blockingConnections.remove (connection);
+		connectionEstablished (connection);
+
+	}
+
+
+	/**
+	 * Removes a connection from the pending inbound connections, if it is one of them, cancels its
+	 * handshake timer, and wakes the event loops if accepting was paused and may resume. Called
+	 * when a Connection is established or closed
+	 *
+	 * @param connection The Connection
+	 */
+	void connectionEstablished (Connection connection) {
+
+		final TimerWheel.Timeout handshakeTimeout;
+		EventLoop timerEventLoop;
+		synchronized (this.pendingConnections) {
+			PendingConnection pendingConnection = this.pendingConnections.remove (connection);
+			if (pendingConnection == null) {
+				return;
+			}
+			int count = this.pendingConnectionsByAddress.get (pendingConnection.address);
+			if (count == 1) {
+				this.pendingConnectionsByAddress.remove (pendingConnection.address);
+			} else {
+				this.pendingConnectionsByAddress.put (pendingConnection.address, count - 1);
+			}
+			handshakeTimeout = pendingConnection.handshakeTimeout;
+			timerEventLoop = pendingConnection.eventLoop;
+		}
+
+		// The timer wheel may only be used from its own loop's thread
+		if (handshakeTimeout != null) {
+			if (timerEventLoop.isEventLoopThread()) {
+				handshakeTimeout.cancel();
+			} else {
+				timerEventLoop.execute (new Runnable() {
+					public void run() {
+						handshakeTimeout.cancel();
+					}
+				});
 			}
+		}
 
+		if (this.acceptsPaused && !isAcceptOverLimit()) {
+			this.acceptsPaused = false;
+			for (EventLoop eventLoop : this.eventLoops) {
+				eventLoop.wakeup();
+			}
 		}
 
-	};
+	}
 
 
 	/**
-	 * Accept a new incoming connection
-	 * 
-	 * @param key a ServerSocketChannel's selection key
-	 * @throws IOException
+	 * @return {@code true} if the number of pending inbound connections is at or over its limit
 	 */
-	private void processAccept (SelectionKey key) throws IOException {
+	boolean isAcceptOverLimit() {
 
-		// Accept the new socket and register it with the selector
-		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-		SocketChannel socketChannel = serverSocketChannel.accept();
-		socketChannel.configureBlocking (false);
+		int maximumPendingConnections = this.acceptLimits.getMaximumPendingConnections();
+		if (maximumPendingConnections == 0) {
+			return false;
+		}
+
+		synchronized (this.pendingConnections) {
+			return this.pendingConnections.size() >= maximumPendingConnections;
+		}
+
+	}
+
+
+	/**
+	 * Called by an event loop that is about to stop accepting because the pending connections are
+	 * over their limit. The loop should stop only if this method confirms the limit is still
+	 * exceeded, so that it cannot miss the wakeup that follows a pending connection being
+	 * established or closed
+	 *
+	 * @return {@code true} if the number of pending inbound connections is at or over its limit
+	 */
+	boolean pauseAccepts() {
 
-		// Set up and track the Connection
-		Connection connection = new Connection (this, socketChannel);
-		SelectionKey socketKey = socketChannel.register (this.selector, SelectionKey.OP_READ);
-		socketKey.attach (connection);
+		this.acceptsPaused = true;
 
-		// Notify the InboundConnectionListener of the socket's connection
-		InboundConnectionListener listener = this.inboundConnectionListeners.get (serverSocketChannel);
-		listener.accepted (connection);
+		return isAcceptOverLimit();
 
 	}
 
 
 	/**
-	 * Complete a new outgoing connection
-	 * 
-	 * @param key a ServerSocketChannel's selection key
+	 * Closes a connection that is still pending when its handshake deadline expires
+	 *
+	 * @param connection The Connection
 	 */
-	private void processConnect (SelectionKey key) {
+	void handshakeTimedOut (Connection connection) {
 
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		OutboundConnectionListener listener = this.outboundConnectionListeners.get (socketChannel);
-		Connection connection = (Connection) key.attachment();
-		if (socketChannel.isConnectionPending()) {
+		boolean pending;
+		synchronized (this.pendingConnections) {
+			pending = this.pendingConnections.containsKey (connection);
+		}
+
+		if (pending) {
 			try {
-				if (socketChannel.finishConnect()) {
-					key.interestOps (SelectionKey.OP_READ);
-					listener.connected (connection);
-					this.pendingConnections.remove (socketChannel);
-					this.outboundConnectionListeners.remove (socketChannel);
-				}
+				connection.abort();
 			} catch (IOException e) {
-				listener.rejected (connection);
-				try {
-					socketChannel.close();
-				} catch (IOException e1) {
-					// Shouldn't happen
-				}
-				key.cancel();
-				this.pendingConnections.remove (socketChannel);
-				this.outboundConnectionListeners.remove (socketChannel);
+				// Can't do anything and don't much care
 			}
 		}
 
-
 	}
 
 
 	/**
-	 * Add or remove a Connection to the selection set for writing
+	 * Schedules a pending connection to be closed if it has not been established by its handshake
+	 * deadline. The timer is kept with the connection's pending entry, so that it can be cancelled
+	 * when the connection is established or closed
 	 *
-	 * @param connection
-	 * @param enabled
+	 * @param connection The pending Connection
+	 * @param eventLoop The event loop on whose timer wheel to schedule the deadline
 	 */
-	void setWriteEnabled (final Connection connection, final boolean enabled) {
-
-		// Queue the action to be carried out before the next select cycle
-		synchronized (this.queuedTasks) {
-			this.queuedTasks.add (new Runnable() {
-				public void run() {
-					SelectionKey key = connection.getSocketChannel().keyFor (ConnectionManager.this.selector);
-					if ((key != null) && (key.isValid())) {
-						// We may have already closed the socket
-						if (enabled) {
-							key.interestOps (key.interestOps() | SelectionKey.OP_WRITE);
-						} else {
-							key.interestOps (key.interestOps() & ~SelectionKey.OP_WRITE);
-						}
+	void scheduleHandshakeTimeout (final Connection connection, final EventLoop eventLoop) {
+
+		int handshakeTimeout = this.acceptLimits.getHandshakeTimeout();
+		if (handshakeTimeout == 0) {
+			return;
+		}
+
+		final long deadline = System.currentTimeMillis() + (handshakeTimeout * 1000L);
+		eventLoop.execute (new Runnable() {
+			public void run() {
+				synchronized (ConnectionManager.this.pendingConnections) {
+					PendingConnection pendingConnection = ConnectionManager.this.pendingConnections.get (connection);
+					if (pendingConnection != null) {
+						pendingConnection.eventLoop = eventLoop;
+						pendingConnection.handshakeTimeout = eventLoop.getTimerWheel().schedule (new Runnable() {
+							public void run() {
+								handshakeTimedOut (connection);
+							}
+						}, deadline);
 					}
 				}
-			});
+			}
+		});
+
+	}
+
+
+	/**
+	 * Adds a newly accepted connection to the pending inbound connections, unless its remote
+	 * address already has its limit of pending connections
+	 *
+	 * @param connection The Connection
+	 * @param address The connection's remote address
+	 * @param limitTotal If {@code true}, the connection is also refused if the total number of
+	 *        pending connections is at its limit
+	 * @return {@code true} if the connection was added, or {@code false} if it was refused
+	 */
+	private boolean addPendingConnection (Connection connection, InetAddress address, boolean limitTotal) {
+
+		AcceptLimits acceptLimits = this.acceptLimits;
+		int maximumPending = acceptLimits.getMaximumPendingConnections();
+		int maximumPerAddress = acceptLimits.getMaximumPendingConnectionsPerAddress();
+
+		synchronized (this.pendingConnections) {
+			if (limitTotal && (maximumPending != 0) && (this.pendingConnections.size() >= maximumPending)) {
+				return false;
+			}
+			Integer count = this.pendingConnectionsByAddress.get (address);
+			if ((maximumPerAddress != 0) && (count != null) && (count >= maximumPerAddress)) {
+				return false;
+			}
+			this.pendingConnections.put (connection, new PendingConnection (address));
+			this.pendingConnectionsByAddress.put (address, (count == null) ? 1 : count + 1);
 		}
 
+		return true;
+
 	}
 
 
 	/**
-	 * Informs the ConnectionManager that a connection has closed. A Connection
-	 * calls this method with itself as an argument when
-	 * {@link Connection#close()} is called
+	 * Takes ownership of a newly accepted socket as a pending connection, and informs the given
+	 * listener of its Connection. If the socket's remote address already has its limit of pending
+	 * connections, the socket is closed instead. Called by the event loop that accepted the socket
 	 *
-	 * @param connection The Connection to close
+	 * @param socketChannel The accepted, non-blocking socket channel
+	 * @param listener The listener to inform
+	 * @return The pending Connection, or {@code null} if the socket was refused
+	 * @throws IOException If the socket could not be switched to blocking mode
 	 */
-	void connectionClosed (final Connection connection) {
-
-		// Queue the action to be carried out before the next select cycle
-		synchronized (this.queuedTasks) {
-			this.queuedTasks.add (new Runnable() {
-				public void run() {
-					SelectionKey key = connection.getSocketChannel().keyFor (ConnectionManager.this.selector);
-					if (key != null) {
-						key.cancel();
-						try {
-							key.channel().close();
-						} catch (IOException e) {
-							// Shouldn't happen and nothing much we can do
-							e.printStackTrace();
-						}
-					}
-				}
-			});
+	Connection accepted (SocketChannel socketChannel, InboundConnectionListener listener) throws IOException {
+
+		Connection connection;
+		if (this.backend == ConnectionBackend.THREAD_PER_CONNECTION) {
+			socketChannel.configureBlocking (true);
+			connection = new BlockingConnection (this, socketChannel);
+		} else {
+			connection = new Connection (this, socketChannel);
+		}
+
+		if (!addPendingConnection (connection, socketChannel.socket().getInetAddress(), false)) {
+			socketChannel.close();
+			return null;
+		}
+
+		EventLoop eventLoop = nextEventLoop();
+		if (this.backend == ConnectionBackend.THREAD_PER_CONNECTION) {
+			this.blockingConnections.add (connection);
+			((BlockingConnection) connection).accept (listener);
+		} else {
+			eventLoop.accepted (connection, listener);
+		}
+		scheduleHandshakeTimeout (connection, eventLoop);
+
+		return connection;
+
+	}
+
+
+	/**
+	 * Takes a newly requested inbound uTP connection as a pending connection. Unlike a TCP
+	 * socket, whose connection requests wait in the operating system's queue while accepting is
+	 * paused, a uTP connection request exists only as connection state, and is refused if either
+	 * the total or the per-address limit of pending connections has been reached. Called by the
+	 * connection's socket on its event loop's thread
+	 *
+	 * @param connection The Connection
+	 * @return {@code true} if the connection was accepted, or {@code false} if it was refused
+	 */
+	boolean acceptedUtp (UtpConnection connection) {
+
+		if (!addPendingConnection (connection, connection.getRemoteAddress(), true)) {
+			return false;
+		}
+		scheduleHandshakeTimeout (connection, connection.getSocket().getEventLoop());
+
+		return true;
+
+	}
+
+
+	/**
+	 * Opens a uTP socket and queues it for registration with one of the event loops
+	 *
+	 * @param socketAddress The address to bind to
+	 * @param listener The listener to inform of inbound connections, or {@code null} to refuse them
+	 * @return The socket
+	 * @throws IOException if the specified address or port could not be bound to
+	 */
+	private UtpSocket openUtpSocket (InetSocketAddress socketAddress, InboundConnectionListener listener) throws IOException {
+
+		DatagramChannel datagramChannel = DatagramChannel.open();
+		datagramChannel.configureBlocking (false);
+		datagramChannel.socket().bind (socketAddress);
+		EventLoop eventLoop = nextEventLoop();
+		UtpSocket utpSocket = new UtpSocket (this, eventLoop, datagramChannel, listener);
+		eventLoop.register (utpSocket);
+
+		return utpSocket;
+
+	}
+
+
+	/**
+	 * Returns the bucket that limits the total rate of reading from all connections. Connections
+	 * are created limited by this bucket alone; a bucket nested within it may be set through
+	 * {@link Connection#setRateLimiters(TokenBucket, TokenBucket)}
+	 *
+	 * @return The bucket that limits reading
+	 */
+	public TokenBucket getReadBucket() {
+
+		return this.readBucket;
+
+	}
+
+
+	/**
+	 * Returns the bucket that limits the total rate of writing to all connections. Connections
+	 * are created limited by this bucket alone; a bucket nested within it may be set through
+	 * {@link Connection#setRateLimiters(TokenBucket, TokenBucket)}
+	 *
+	 * @return The bucket that limits writing
+	 */
+	public TokenBucket getWriteBucket() {
+
+		return this.writeBucket;
+
+	}
+
+
+	/**
+	 * @return The model by which TCP connections are served
+	 */
+	public ConnectionBackend getBackend() {
+
+		return this.backend;
+
+	}
+
+
+	/**
+	 * @return The socket options applied to new TCP sockets
+	 */
+	public ConnectionOptions getConnectionOptions() {
+
+		return this.connectionOptions;
+
+	}
+
+
+	/**
+	 * Sets the socket options applied to TCP sockets subsequently listened on, accepted or opened.
+	 * Existing sockets are unaffected, except that their buffers may be grown within the new
+	 * maximum by {@link Connection#adjustBufferSizes(long, long)}
+	 *
+	 * @param connectionOptions The socket options
+	 * @throws IllegalArgumentException if the options are {@code null}
+	 */
+	public void setConnectionOptions (ConnectionOptions connectionOptions) {
+
+		if (connectionOptions == null) {
+			throw new IllegalArgumentException ("Invalid connection options");
+		}
+
+		this.connectionOptions = connectionOptions;
+
+	}
+
+
+	/**
+	 * @return The limits applied to pending inbound connections
+	 */
+	public AcceptLimits getAcceptLimits() {
+
+		return this.acceptLimits;
+
+	}
+
+
+	/**
+	 * Sets the limits applied to pending inbound connections. The handshake timeout applies to
+	 * connections subsequently accepted
+	 *
+	 * @param acceptLimits The limits
+	 * @throws IllegalArgumentException if the limits are {@code null}
+	 */
+	public void setAcceptLimits (AcceptLimits acceptLimits) {
+
+		if (acceptLimits == null) {
+			throw new IllegalArgumentException ("Invalid accept limits");
+		}
+
+		this.acceptLimits = acceptLimits;
+
+		// The limit may have been raised
+		this.acceptsPaused = false;
+		for (EventLoop eventLoop : this.eventLoops) {
+			eventLoop.wakeup();
 		}
 
 	}
 
 
+	/**
+	 * @return The metrics of the event loops and connections
+	 */
+	public ConnectionManagerMetrics getMetrics() {
+
+		return this.metrics;
+
+	}
+
+
 	/**
 	 * Binds to a given address and TCP port
 	 * 
@@ -297,29 +596,13 @@ public class ConnectionManager {
 		// Open a server channel and register it with the selector
 		final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
 		serverSocketChannel.configureBlocking (false);
+		this.connectionOptions.apply (serverSocketChannel.socket());
 		InetSocketAddress socketAddress = new InetSocketAddress (listenAddress, listenPort);
 		serverSocketChannel.socket().bind (socketAddress);
 		int boundPort = serverSocketChannel.socket().getLocalPort();
 
-		// Associate the server channel with the specified listener
-		this.inboundConnectionListeners.put (serverSocketChannel, listener);
-
-		// Queue the server socket for registration, asynchronously
-		synchronized (this.queuedTasks) {
-			this.queuedTasks.add (new Runnable() {
-				public void run() {
-					try {
-						serverSocketChannel.register (ConnectionManager.this.selector, SelectionKey.OP_ACCEPT);
-					} catch (ClosedChannelException e) {
-						// Nothing much we can do about this
-						e.printStackTrace();
-					}
-				}
-			});
-		}
-
-		// Kick the main loop to process the socket registration
-		this.selector.wakeup();
+		// Register the server channel with one of the event loops, asynchronously
+		nextEventLoop().listen (serverSocketChannel, listener);
 
 		// Return the actual port number we bound to
 		return boundPort;
@@ -337,8 +620,7 @@ public class ConnectionManager {
 	 * @return The Connection object for the new connection
 	 * @throws IOException if a socket could not be created or the manager is closed
 	 */
-	public synchronized Connection connect (final InetAddress remoteAddress, final int remotePort, final OutboundConnectionListener listener, 
-			final int connectTimeout) throws IOException
+	public synchronized Connection connect (InetAddress remoteAddress, int remotePort, OutboundConnectionListener listener, int connectTimeout) throws IOException
 	{
 
 		if (this.closed) {
@@ -346,33 +628,86 @@ public class ConnectionManager {
 		}
 
 		final SocketChannel socketChannel = SocketChannel.open();
+		this.connectionOptions.apply (socketChannel.socket());
+
+		if (this.backend == ConnectionBackend.THREAD_PER_CONNECTION) {
+			BlockingConnection connection = new BlockingConnection (this, socketChannel);
+			this.blockingConnections.add (connection);
+			connection.connect (new InetSocketAddress (remoteAddress, remotePort), listener, connectTimeout);
+			return connection;
+		}
+
 		socketChannel.configureBlocking (false);
 		final Connection connection = new Connection (this, socketChannel);
 
-		// Queue the connection to be opened
-		synchronized (this.queuedTasks) {
-			this.queuedTasks.add (new Runnable() {
-				public void run() {
-					try {
-						boolean completeConnection = socketChannel.connect (new InetSocketAddress (remoteAddress, remotePort));
-						SelectionKey key = socketChannel.register (ConnectionManager.this.selector, SelectionKey.OP_CONNECT);
-						key.attach (connection);
-						Long deadline = (connectTimeout == 0) ? Long.MAX_VALUE : System.currentTimeMillis() + (connectTimeout * 1000);
-						ConnectionManager.this.pendingConnections.put (socketChannel, deadline);
-						ConnectionManager.this.outboundConnectionListeners.put (socketChannel, listener);
-						if (completeConnection) {
-							processConnect (key);
-						}
-					} catch (IOException e) {
-						// Shouldn't happen and nothing much we can do
-						e.printStackTrace();
-					}
-				}
-			});
+		// Pin the connection to one of the event loops, and queue it to be opened there
+		nextEventLoop().connect (connection, new InetSocketAddress (remoteAddress, remotePort), listener, connectTimeout);
+
+		return connection;
+
+	}
+
+
+	/**
+	 * Binds to a given address and UDP port to accept uTP connections. The first socket bound is
+	 * also used for outbound uTP connections
+	 *
+	 * @param listenAddress The host address to bind to. If null, bind to the wildcard address
+	 * @param listenPort The port to bind to. If zero, bind to an ephemeral port
+	 * @param listener The listener to inform of connections to the given address and port
+	 * @return the actual port bound to
+	 * @throws IOException if the specified address or port could not be bound to, or if the manager
+	 *         is closed
+	 */
+	public synchronized int listenUtp (InetAddress listenAddress, int listenPort, InboundConnectionListener listener) throws IOException {
+
+		if (this.closed) {
+			throw new IOException ("ConnectionManager is closed");
+		}
+
+		UtpSocket utpSocket = openUtpSocket (new InetSocketAddress (listenAddress, listenPort), listener);
+		if (this.defaultUtpSocket == null) {
+			this.defaultUtpSocket = utpSocket;
 		}
 
-		// Kick the main loop to process the socket registration
-		this.selector.wakeup();
+		return utpSocket.getLocalPort();
+
+	}
+
+
+	/**
+	 * Asynchronously makes a uTP connection to a given address and UDP port. The connection is
+	 * made from the first socket bound through {@link #listenUtp(InetAddress, int, InboundConnectionListener)},
+	 * or from an ephemeral port if there is none
+	 *
+	 * @param remoteAddress The address to connect to
+	 * @param remotePort The port to connect to
+	 * @param listener The listener to inform of the connection's status
+	 * @param connectTimeout The number of seconds to wait before giving up trying to connect
+	 * @return The Connection object for the new connection
+	 * @throws IOException if a socket could not be created or the manager is closed
+	 */
+	public synchronized Connection connectUtp (InetAddress remoteAddress, int remotePort, final OutboundConnectionListener listener,
+			final int connectTimeout) throws IOException
+	{
+
+		if (this.closed) {
+			throw new IOException ("ConnectionManager is closed");
+		}
+
+		if (this.defaultUtpSocket == null) {
+			this.defaultUtpSocket = openUtpSocket (new InetSocketAddress (0), null);
+		}
+		final UtpSocket utpSocket = this.defaultUtpSocket;
+		final UtpConnection connection = new UtpConnection (this, utpSocket, new InetSocketAddress (remoteAddress, remotePort));
+
+		// Queue the connection to be opened on the socket's event loop
+		utpSocket.getEventLoop().execute (new Runnable() {
+			public void run() {
+				long deadline = (connectTimeout == 0) ? Long.MAX_VALUE : System.currentTimeMillis() + (connectTimeout * 1000);
+				utpSocket.connect (connection, listener, deadline);
+			}
+		});
 
 		return connection;
 
@@ -380,7 +715,7 @@ public class ConnectionManager {
 
 
 	/**
-	 * Shuts down the selection thread, closing all pending and open connections and open sockets.
+	 * Shuts down the event loops, closing all pending and open connections and open sockets.
 	 */
 	public void close() {
 
@@ -390,13 +725,20 @@ public class ConnectionManager {
 			}
 			this.closed = true;
 		}
-		this.selector.wakeup();
 
-		while (this.selectionThread.isAlive ()) {
+		for (EventLoop eventLoop : this.eventLoops) {
+			eventLoop.close();
+		}
+
+		if (this.workerPool != null) {
+			this.workerPool.shutdown();
+		}
+
+		for (Connection connection : this.blockingConnections) {
 			try {
-				this.selectionThread.join();
-			} catch (InterruptedException e) {
-				// Retry
+				connection.abort();
+			} catch (IOException e) {
+				// Can't do anything and don't much care
 			}
 		}
 
@@ -404,17 +746,90 @@ public class ConnectionManager {
 
 
 	/**
-	 * Creates a ConnectionManager
+	 * Creates a ConnectionManager with the given number of event loops, serving TCP connections
+	 * by the given model. A worker pool has one thread for each available processor, and at
+	 * least two
+	 *
+	 * @param eventLoopCount The number of event loops, each of which has its own selector and
+	 *        thread
+	 * @param backend The model by which TCP connections are served
+	 * @throws IOException If a selector could not be opened
+	 * @throws IllegalArgumentException If the number of event loops is less than 1, or the backend
+	 *         is {@code null}
+	 */
+	public ConnectionManager (int eventLoopCount, ConnectionBackend backend) throws IOException {
+
+		if (eventLoopCount < 1) {
+			throw new IllegalArgumentException ("Invalid number of event loops");
+		}
+		if (backend == null) {
+			throw new IllegalArgumentException ("Invalid backend");
+		}
+
+		this.backend = backend;
+
+		if (backend == ConnectionBackend.WORKER_POOL) {
+			this.workerPool = Executors.newFixedThreadPool (Math.max (2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+				private final AtomicInteger threadNumber = new AtomicInteger (0);
+				public Thread newThread (Runnable runnable) {
+					Thread thread = new Thread (runnable, "ConnectionManager worker " + this.threadNumber.getAndIncrement());
+					thread.setDaemon (true);
+					return thread;
+				}
+			});
+		} else {
+			this.workerPool = null;
+		}
+
+		this.eventLoops = new EventLoop[eventLoopCount];
+		for (int i = 0; i < eventLoopCount; i++) {
+			this.eventLoops[i] = new EventLoop (this, (eventLoopCount == 1) ? "ConnectionManager thread" : "ConnectionManager thread " + i);
+		}
+
+	}
+
+
+	/**
+	 * Creates a ConnectionManager with the given number of event loops, serving TCP connections
+	 * either from the event loops or with threads of their own
+	 *
+	 * @param eventLoopCount The number of event loops, each of which has its own selector and
+	 *        thread
+	 * @param threadPerConnection If {@code true}, each TCP connection is served by threads of its
+	 *        own using blocking I/O
+	 * @throws IOException If a selector could not be opened
+	 * @throws IllegalArgumentException If the number of event loops is less than 1
+	 */
+	public ConnectionManager (int eventLoopCount, boolean threadPerConnection) throws IOException {
+
+		this (eventLoopCount, threadPerConnection ? ConnectionBackend.THREAD_PER_CONNECTION : ConnectionBackend.EVENT_LOOP);
+
+	}
+
+
+	/**
+	 * Creates a ConnectionManager with the given number of event loops
+	 *
+	 * @param eventLoopCount The number of event loops, each of which has its own selector and
+	 *        thread
+	 * @throws IOException If a selector could not be opened
+	 * @throws IllegalArgumentException If the number of event loops is less than 1
+	 */
+	public ConnectionManager (int eventLoopCount) throws IOException {
+
+		this (eventLoopCount, ConnectionBackend.EVENT_LOOP);
+
+	}
+
+
+	/**
+	 * Creates a ConnectionManager with a single event loop
 	 * 
 	 * @throws IOException
 	 */
 	public ConnectionManager() throws IOException {
 
-		this.selector = SelectorProvider.provider().openSelector();
-
-		this.selectionThread = new Thread (this.selectionRunnable, "ConnectionManager thread");
-		this.selectionThread.setDaemon (true);
-		this.selectionThread.start();
+		this (1);
 
 	}
 
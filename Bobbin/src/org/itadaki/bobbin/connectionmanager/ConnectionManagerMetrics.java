@@ -0,0 +1,595 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.connectionmanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.itadaki.bobbin.util.counter.Period;
+import org.itadaki.bobbin.util.counter.ReadableStatisticCounter;
+import org.itadaki.bobbin.util.counter.StatisticCounter;
+
+
+/**
+ * Metrics describing the work of a {@link ConnectionManager}'s event loops and connections
+ *
+ * <p>Each event loop counts its own work in fields that only it writes, and folds the counts into
+ * the shared counters every {@value #PUBLISH_INTERVAL} milliseconds, so that instrumentation costs
+ * the selection thread a few clock reads per loop iteration and no locking. Reads and writes,
+ * which may be made on any thread, are counted in atomic counters kept for each loop.
+ *
+ * <p>Metrics may be polled at any time, or pushed to a {@link ConnectionManagerMetricsListener}
+ * each time they are published.
+ */
+public class ConnectionManagerMetrics {
+
+	/**
+	 * The interval in milliseconds at which event loops publish their counts
+	 */
+	public static final int PUBLISH_INTERVAL = 500;
+
+	/**
+	 * The number of slowest listener callbacks retained
+	 */
+	public static final int SLOW_CALLBACK_COUNT = 8;
+
+	/**
+	 * A period of two seconds measured in 500ms intervals, over which rates are calculated
+	 */
+	private static final Period TWO_SECOND_PERIOD = new Period (500, 4);
+
+
+	/**
+	 * A type identifier for tracked metrics
+	 */
+	public static enum Type {
+
+		/**
+		 * Iterations of the event loops
+		 */
+		LOOP_ITERATIONS,
+
+		/**
+		 * Time spent waiting in select, in nanoseconds
+		 */
+		SELECT_TIME,
+
+		/**
+		 * Time spent processing between selects, in nanoseconds
+		 */
+		PROCESSING_TIME,
+
+		/**
+		 * Selection keys found ready by select
+		 */
+		READY_KEYS,
+
+		/**
+		 * Calls made to ConnectionReadyListeners by the event loops
+		 */
+		LISTENER_CALLS,
+
+		/**
+		 * Inbound connections accepted
+		 */
+		ACCEPTS,
+
+		/**
+		 * Outbound connections completed
+		 */
+		CONNECTS,
+
+		/**
+		 * Reads from connections that returned data
+		 */
+		READS,
+
+		/**
+		 * Bytes read from connections
+		 */
+		BYTES_READ,
+
+		/**
+		 * Writes to connections that sent data
+		 */
+		WRITES,
+
+		/**
+		 * Bytes written to connections
+		 */
+		BYTES_WRITTEN;
+
+	}
+
+
+	/**
+	 * A slow call to a ConnectionReadyListener
+	 */
+	public static class SlowCallback {
+
+		/**
+		 * The duration of the call in nanoseconds
+		 */
+		private final long duration;
+
+		/**
+		 * The class of the listener
+		 */
+		private final Class<?> listenerType;
+
+
+		/**
+		 * @return The duration of the call in nanoseconds
+		 */
+		public long getDuration() {
+
+			return this.duration;
+
+		}
+
+
+		/**
+		 * @return The class of the listener
+		 */
+		public Class<?> getListenerType() {
+
+			return this.listenerType;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+
+			return this.listenerType.getName() + ": " + this.duration + "ns";
+
+		}
+
+
+		/**
+		 * @param duration The duration of the call in nanoseconds
+		 * @param listenerType The class of the listener
+		 */
+		SlowCallback (long duration, Class<?> listenerType) {
+
+			this.duration = duration;
+			this.listenerType = listenerType;
+
+		}
+
+	}
+
+
+	/**
+	 * Orders slow callbacks from slowest to fastest
+	 */
+	private static final Comparator<SlowCallback> SLOWEST_FIRST = new Comparator<SlowCallback>() {
+		public int compare (SlowCallback callback1, SlowCallback callback2) {
+			return (callback1.duration > callback2.duration) ? -1 : (callback1.duration < callback2.duration) ? 1 : 0;
+		}
+	};
+
+
+	/**
+	 * The counts of a single event loop between publications. Fields other than the atomic
+	 * counters are accessed only from the loop's own thread
+	 */
+	static class Recorder {
+
+		/**
+		 * Loop iterations
+		 */
+		private long loopIterations = 0;
+
+		/**
+		 * Time spent in select, in nanoseconds
+		 */
+		private long selectTime = 0;
+
+		/**
+		 * Time spent processing, in nanoseconds
+		 */
+		private long processingTime = 0;
+
+		/**
+		 * Ready selection keys
+		 */
+		private long readyKeys = 0;
+
+		/**
+		 * Listener calls
+		 */
+		private long listenerCalls = 0;
+
+		/**
+		 * The slowest listener calls, of which there are {@link #slowCallbackCount}
+		 */
+		private final SlowCallback[] slowCallbacks = new SlowCallback[SLOW_CALLBACK_COUNT];
+
+		/**
+		 * The number of slowest listener calls recorded
+		 */
+		private int slowCallbackCount = 0;
+
+		/**
+		 * The time of the last publication, in system milliseconds
+		 */
+		private long lastPublishTime = System.currentTimeMillis();
+
+		/**
+		 * Inbound connections accepted
+		 */
+		final AtomicLong accepts = new AtomicLong();
+
+		/**
+		 * Outbound connections completed
+		 */
+		final AtomicLong connects = new AtomicLong();
+
+		/**
+		 * Reads that returned data
+		 */
+		final AtomicLong reads = new AtomicLong();
+
+		/**
+		 * Bytes read
+		 */
+		final AtomicLong bytesRead = new AtomicLong();
+
+		/**
+		 * Writes that sent data
+		 */
+		final AtomicLong writes = new AtomicLong();
+
+		/**
+		 * Bytes written
+		 */
+		final AtomicLong bytesWritten = new AtomicLong();
+
+		/**
+		 * The number of tasks queued to the loop and not yet run
+		 */
+		final AtomicInteger queuedTasks = new AtomicInteger();
+
+		/**
+		 * The number of timers pending on the loop's timer wheel, as of the loop's last iteration
+		 */
+		final AtomicInteger pendingTimers = new AtomicInteger();
+
+
+		/**
+		 * Records a completed loop iteration. Called on the loop's thread
+		 *
+		 * @param selectTime The time spent in select, in nanoseconds
+		 * @param processingTime The time spent processing, in nanoseconds
+		 * @param readyKeys The number of ready selection keys
+		 */
+		void iterationCompleted (long selectTime, long processingTime, int readyKeys) {
+
+			this.loopIterations++;
+			this.selectTime += selectTime;
+			this.processingTime += processingTime;
+			this.readyKeys += readyKeys;
+
+		}
+
+
+		/**
+		 * Records a completed listener call. Called on the loop's thread
+		 *
+		 * @param duration The duration of the call in nanoseconds
+		 * @param listener The listener called
+		 */
+		void listenerCalled (long duration, ConnectionReadyListener listener) {
+
+			this.listenerCalls++;
+
+			if (listener == null) {
+				return;
+			}
+
+			// Replace the fastest of the retained calls, if this one was slower
+			int index = this.slowCallbackCount;
+			if (index == SLOW_CALLBACK_COUNT) {
+				index = 0;
+				for (int i = 1; i < SLOW_CALLBACK_COUNT; i++) {
+					if (this.slowCallbacks[i].duration < this.slowCallbacks[index].duration) {
+						index = i;
+					}
+				}
+				if (this.slowCallbacks[index].duration >= duration) {
+					return;
+				}
+			} else {
+				this.slowCallbackCount++;
+			}
+			this.slowCallbacks[index] = new SlowCallback (duration, listener.getClass());
+
+		}
+
+
+		/**
+		 * Records a completed read
+		 *
+		 * @param bytes The number of bytes read
+		 */
+		void readCompleted (long bytes) {
+
+			this.reads.incrementAndGet();
+			this.bytesRead.addAndGet (bytes);
+
+		}
+
+
+		/**
+		 * Records a completed write
+		 *
+		 * @param bytes The number of bytes written
+		 */
+		void writeCompleted (long bytes) {
+
+			this.writes.incrementAndGet();
+			this.bytesWritten.addAndGet (bytes);
+
+		}
+
+	}
+
+
+	/**
+	 * The shared counters
+	 */
+	private final Map<Type,StatisticCounter> counters = new EnumMap<Type,StatisticCounter> (Type.class);
+
+	/**
+	 * The recorders of the event loops
+	 */
+	private final List<Recorder> recorders = new CopyOnWriteArrayList<Recorder>();
+
+	/**
+	 * The recorder for connections that have no event loop, which is published by whichever loop
+	 * first finds it due
+	 */
+	private final Recorder sharedRecorder = new Recorder();
+
+	/**
+	 * The time of the shared recorder's last publication, in system milliseconds
+	 */
+	private final AtomicLong sharedPublishTime = new AtomicLong (System.currentTimeMillis());
+
+	/**
+	 * The slowest listener calls published since the last call to {@link #getSlowestCallbacks()}
+	 */
+	private final List<SlowCallback> slowCallbacks = new ArrayList<SlowCallback>();
+
+	/**
+	 * The listeners to inform when metrics are published
+	 */
+	private final List<ConnectionManagerMetricsListener> listeners = new CopyOnWriteArrayList<ConnectionManagerMetricsListener>();
+
+
+	/**
+	 * Folds the atomic counts of a recorder into the shared counters
+	 *
+	 * @param recorder The recorder
+	 */
+	private void publishAtomics (Recorder recorder) {
+
+		this.counters.get(Type.ACCEPTS).add (recorder.accepts.getAndSet (0));
+		this.counters.get(Type.CONNECTS).add (recorder.connects.getAndSet (0));
+		this.counters.get(Type.READS).add (recorder.reads.getAndSet (0));
+		this.counters.get(Type.BYTES_READ).add (recorder.bytesRead.getAndSet (0));
+		this.counters.get(Type.WRITES).add (recorder.writes.getAndSet (0));
+		this.counters.get(Type.BYTES_WRITTEN).add (recorder.bytesWritten.getAndSet (0));
+
+	}
+
+
+	/**
+	 * Creates a recorder for a new event loop
+	 *
+	 * @return The recorder
+	 */
+	Recorder createRecorder() {
+
+		Recorder recorder = new Recorder();
+		this.recorders.add (recorder);
+
+		return recorder;
+
+	}
+
+
+	/**
+	 * @return The recorder for connections that have no event loop
+	 */
+	Recorder getSharedRecorder() {
+
+		return this.sharedRecorder;
+
+	}
+
+
+	/**
+	 * Publishes an event loop's counts if they are due. Called on the loop's thread
+	 *
+	 * @param recorder The loop's recorder
+	 * @param now The current time in system milliseconds
+	 */
+	void publishIfDue (Recorder recorder, long now) {
+
+		if ((now - recorder.lastPublishTime) < PUBLISH_INTERVAL) {
+			return;
+		}
+		recorder.lastPublishTime = now;
+
+		this.counters.get(Type.LOOP_ITERATIONS).add (recorder.loopIterations);
+		this.counters.get(Type.SELECT_TIME).add (recorder.selectTime);
+		this.counters.get(Type.PROCESSING_TIME).add (recorder.processingTime);
+		this.counters.get(Type.READY_KEYS).add (recorder.readyKeys);
+		this.counters.get(Type.LISTENER_CALLS).add (recorder.listenerCalls);
+		recorder.loopIterations = 0;
+		recorder.selectTime = 0;
+		recorder.processingTime = 0;
+		recorder.readyKeys = 0;
+		recorder.listenerCalls = 0;
+		publishAtomics (recorder);
+
+		if (recorder.slowCallbackCount > 0) {
+			synchronized (this.slowCallbacks) {
+				for (int i = 0; i < recorder.slowCallbackCount; i++) {
+					this.slowCallbacks.add (recorder.slowCallbacks[i]);
+				}
+				Collections.sort (this.slowCallbacks, SLOWEST_FIRST);
+				while (this.slowCallbacks.size() > SLOW_CALLBACK_COUNT) {
+					this.slowCallbacks.remove (this.slowCallbacks.size() - 1);
+				}
+			}
+			recorder.slowCallbackCount = 0;
+		}
+
+		// The shared recorder is published, and listeners informed, once per interval by
+		// whichever loop first finds it due
+		long sharedTime = this.sharedPublishTime.get();
+		if (((now - sharedTime) >= PUBLISH_INTERVAL) && this.sharedPublishTime.compareAndSet (sharedTime, now)) {
+			publishAtomics (this.sharedRecorder);
+			for (ConnectionManagerMetricsListener listener : this.listeners) {
+				listener.metricsPublished (this);
+			}
+		}
+
+	}
+
+
+	/**
+	 * @param type The metric to return the counter for
+	 * @return The read-only counter
+	 */
+	public ReadableStatisticCounter getCounter (Type type) {
+
+		return this.counters.get (type);
+
+	}
+
+
+	/**
+	 * @param type The metric to return the total for
+	 * @return The total of the metric since the ConnectionManager was created, as last published
+	 */
+	public long getTotal (Type type) {
+
+		return this.counters.get(type).getTotal();
+
+	}
+
+
+	/**
+	 * @param type The metric to return the rate for
+	 * @return The rate of the metric per second over the last two seconds, as last published
+	 */
+	public long getPerSecond (Type type) {
+
+		return this.counters.get(type).getPeriodTotal (TWO_SECOND_PERIOD) / 2;
+
+	}
+
+
+	/**
+	 * @return The number of tasks currently queued to the event loops and not yet run
+	 */
+	public int getQueuedTasks() {
+
+		int queuedTasks = 0;
+		for (Recorder recorder : this.recorders) {
+			queuedTasks += recorder.queuedTasks.get();
+		}
+
+		return queuedTasks;
+
+	}
+
+
+	/**
+	 * @return The number of timers pending on the event loops' timer wheels, as of each loop's
+	 *         last iteration
+	 */
+	public int getPendingTimers() {
+
+		int pendingTimers = 0;
+		for (Recorder recorder : this.recorders) {
+			pendingTimers += recorder.pendingTimers.get();
+		}
+
+		return pendingTimers;
+
+	}
+
+
+	/**
+	 * Returns the slowest listener calls published since this method was last called, slowest
+	 * first
+	 *
+	 * @return The slowest listener calls, of which there are at most {@value #SLOW_CALLBACK_COUNT}
+	 */
+	public List<SlowCallback> getSlowestCallbacks() {
+
+		synchronized (this.slowCallbacks) {
+			List<SlowCallback> slowestCallbacks = new ArrayList<SlowCallback> (this.slowCallbacks);
+			this.slowCallbacks.clear();
+			return slowestCallbacks;
+		}
+
+	}
+
+
+	/**
+	 * Adds a listener to be informed each time metrics are published, which is approximately
+	 * every {@value #PUBLISH_INTERVAL} milliseconds while the ConnectionManager is running. The
+	 * listener is called on an event loop's thread, and should return promptly
+	 *
+	 * @param listener The listener to add
+	 */
+	public void addListener (ConnectionManagerMetricsListener listener) {
+
+		this.listeners.add (listener);
+
+	}
+
+
+	/**
+	 * @param listener The listener to remove
+	 */
+	public void removeListener (ConnectionManagerMetricsListener listener) {
+
+		this.listeners.remove (listener);
+
+	}
+
+
+	/**
+	 * Creates metrics with all counts at zero
+	 */
+	ConnectionManagerMetrics() {
+
+		for (Type type : Type.values()) {
+			StatisticCounter counter = new StatisticCounter();
+			counter.addCountedPeriod (TWO_SECOND_PERIOD);
+			this.counters.put (type, counter);
+		}
+
+	}
+
+
+}
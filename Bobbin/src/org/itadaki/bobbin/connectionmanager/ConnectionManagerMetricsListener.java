@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.connectionmanager;
+
+
+/**
+ * An interface to receive periodic notifications of a ConnectionManager's metrics
+ */
+public interface ConnectionManagerMetricsListener {
+
+	/**
+	 * Indicates that the event loops have published their latest counts
+	 *
+	 * @param metrics The updated metrics
+	 */
+	public void metricsPublished (ConnectionManagerMetrics metrics);
+
+
+}
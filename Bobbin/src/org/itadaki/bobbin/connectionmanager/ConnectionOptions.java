@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.connectionmanager;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+
+/**
+ * Socket options applied by a {@link ConnectionManager} to the TCP sockets it listens on, accepts
+ * and opens
+ *
+ * <p>Options are advisory: an option that the platform rejects is left at its default, and the
+ * operating system may round or cap buffer sizes. A buffer size or traffic class of zero leaves
+ * the system default in place.
+ *
+ * <p>If a maximum buffer size is given, the buffers of an established connection may be grown
+ * through {@link Connection#adjustBufferSizes(long, long)} to hold
+ * {@value #ADAPTIVE_BUFFER_INTERVAL} milliseconds of its measured throughput, so that a fast peer
+ * on a long round trip is not held back by the default window.
+ *
+ * <p>ConnectionOptions are immutable.
+ */
+public class ConnectionOptions {
+
+	/**
+	 * The time in milliseconds for which an adaptively sized buffer should hold data at the
+	 * connection's measured rate
+	 */
+	public static final int ADAPTIVE_BUFFER_INTERVAL = 500;
+
+	/**
+	 * If {@code true}, Nagle's algorithm is disabled (TCP_NODELAY)
+	 */
+	private final boolean tcpNoDelay;
+
+	/**
+	 * The initial send buffer size in bytes (SO_SNDBUF), or 0 for the system default
+	 */
+	private final int sendBufferSize;
+
+	/**
+	 * The initial receive buffer size in bytes (SO_RCVBUF), or 0 for the system default
+	 */
+	private final int receiveBufferSize;
+
+	/**
+	 * The IP traffic class (IP_TOS), or 0 for the system default
+	 */
+	private final int trafficClass;
+
+	/**
+	 * If {@code true}, listening sockets may bind to an address in use by connections in TIME_WAIT
+	 * (SO_REUSEADDR)
+	 */
+	private final boolean reuseAddress;
+
+	/**
+	 * The size in bytes up to which buffers may be grown for connections with high throughput, or
+	 * 0 to leave buffers at their initial size
+	 */
+	private final int maximumBufferSize;
+
+
+	/**
+	 * Applies the options to a listening socket. Must be called before the socket is bound, so
+	 * that the receive buffer size is inherited by accepted sockets and governs the window scale
+	 * they negotiate
+	 *
+	 * @param serverSocket The socket
+	 */
+	void apply (ServerSocket serverSocket) {
+
+		try {
+			serverSocket.setReuseAddress (this.reuseAddress);
+			if (this.receiveBufferSize != 0) {
+				serverSocket.setReceiveBufferSize (this.receiveBufferSize);
+			}
+		} catch (SocketException e) {
+			// Options are advisory
+		}
+
+	}
+
+
+	/**
+	 * Applies the options to an accepted or opening socket. For an outbound socket, should be
+	 * called before it connects
+	 *
+	 * @param socket The socket
+	 */
+	void apply (Socket socket) {
+
+		try {
+			socket.setTcpNoDelay (this.tcpNoDelay);
+			if (this.sendBufferSize != 0) {
+				socket.setSendBufferSize (this.sendBufferSize);
+			}
+			if (this.receiveBufferSize != 0) {
+				socket.setReceiveBufferSize (this.receiveBufferSize);
+			}
+			if (this.trafficClass != 0) {
+				socket.setTrafficClass (this.trafficClass);
+			}
+		} catch (SocketException e) {
+			// Options are advisory
+		}
+
+	}
+
+
+	/**
+	 * Calculates the size a connection's buffer should be grown to
+	 *
+	 * @param currentSize The current size of the buffer in bytes
+	 * @param rate The connection's measured throughput in the buffer's direction, in bytes per
+	 *        second
+	 * @return The size to grow the buffer to, which is never less than its current size
+	 */
+	public int getAdaptiveBufferSize (int currentSize, long rate) {
+
+		long wantedSize = Math.min (this.maximumBufferSize, rate * ADAPTIVE_BUFFER_INTERVAL / 1000);
+
+		return (int) Math.max (currentSize, wantedSize);
+
+	}
+
+
+	/**
+	 * @return {@code true} if Nagle's algorithm is disabled, otherwise {@code false}
+	 */
+	public boolean isTcpNoDelay() {
+
+		return this.tcpNoDelay;
+
+	}
+
+
+	/**
+	 * @return The initial send buffer size in bytes, or 0 for the system default
+	 */
+	public int getSendBufferSize() {
+
+		return this.sendBufferSize;
+
+	}
+
+
+	/**
+	 * @return The initial receive buffer size in bytes, or 0 for the system default
+	 */
+	public int getReceiveBufferSize() {
+
+		return this.receiveBufferSize;
+
+	}
+
+
+	/**
+	 * @return The IP traffic class, or 0 for the system default
+	 */
+	public int getTrafficClass() {
+
+		return this.trafficClass;
+
+	}
+
+
+	/**
+	 * @return {@code true} if listening sockets may reuse an address in TIME_WAIT, otherwise
+	 *         {@code false}
+	 */
+	public boolean isReuseAddress() {
+
+		return this.reuseAddress;
+
+	}
+
+
+	/**
+	 * @return The size in bytes up to which buffers may be grown, or 0 if buffers are not grown
+	 */
+	public int getMaximumBufferSize() {
+
+		return this.maximumBufferSize;
+
+	}
+
+
+	/**
+	 * @param tcpNoDelay If {@code true}, Nagle's algorithm is disabled
+	 * @param sendBufferSize The initial send buffer size in bytes, or 0 for the system default
+	 * @param receiveBufferSize The initial receive buffer size in bytes, or 0 for the system
+	 *        default
+	 * @param trafficClass The IP traffic class, or 0 for the system default
+	 * @param reuseAddress If {@code true}, listening sockets may reuse an address in TIME_WAIT
+	 * @param maximumBufferSize The size in bytes up to which buffers may be grown for connections
+	 *        with high throughput, or 0 to leave buffers at their initial size
+	 * @throws IllegalArgumentException if a buffer size is negative, or the traffic class is not
+	 *         between 0 and 255
+	 */
+	public ConnectionOptions (boolean tcpNoDelay, int sendBufferSize, int receiveBufferSize, int trafficClass, boolean reuseAddress, int maximumBufferSize) {
+
+		if ((sendBufferSize < 0) || (receiveBufferSize < 0) || (maximumBufferSize < 0)) {
+			throw new IllegalArgumentException ("Invalid buffer size");
+		}
+		if ((trafficClass < 0) || (trafficClass > 255)) {
+			throw new IllegalArgumentException ("Invalid traffic class");
+		}
+
+		this.tcpNoDelay = tcpNoDelay;
+		this.sendBufferSize = sendBufferSize;
+		this.receiveBufferSize = receiveBufferSize;
+		this.trafficClass = trafficClass;
+		this.reuseAddress = reuseAddress;
+		this.maximumBufferSize = maximumBufferSize;
+
+	}
+
+
+	/**
+	 * Creates options that leave every socket option at the usual default, with Nagle's algorithm
+	 * enabled and listening sockets permitted to reuse addresses, and do not grow buffers
+	 */
+	public ConnectionOptions() {
+
+		this (false, 0, 0, 0, true, 0);
+
+	}
+
+
+}
@@ -0,0 +1,733 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.connectionmanager;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.itadaki.bobbin.util.TimerWheel;
+
+
+/**
+ * A selector and the thread that services it
+ *
+ * <p>A {@link ConnectionManager} distributes its sockets across one or more event loops. A
+ * Connection stays on the loop it was first assigned to for its whole lifetime, so its listener
+ * is always informed on the same thread.
+ */
+public class EventLoop {
+
+	/**
+	 * The ConnectionManager that owns the loop
+	 */
+	private final ConnectionManager connectionManager;
+
+	/**
+	 * The selection thread
+	 */
+	private final Thread selectionThread;
+
+	/**
+	 * The selector for all channels monitored by the loop
+	 */
+	private final Selector selector;
+
+	/**
+	 * A queue of changes waiting to be made to the selector environment. All
+	 * changes are executed from within the main selection loop in the running
+	 * loop thread. The queue is lock free, so that other threads never contend
+	 * with the loop to add a task
+	 */
+	private final Queue<Runnable> queuedTasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * {@code true} if the selector has been woken since the loop last began to
+	 * run its queued tasks, and need not be woken again
+	 */
+	private final AtomicBoolean wakeupPending = new AtomicBoolean (false);
+
+	/**
+	 * A map connecting a server socket channel to its designated InboundConnectionListener
+	 */
+	private final Map<ServerSocketChannel,InboundConnectionListener> inboundConnectionListeners = new HashMap<ServerSocketChannel,InboundConnectionListener>();
+
+	/**
+	 * A map connecting a client socket channel to its designated OutboundConnectionListener
+	 */
+	private final Map<SocketChannel,OutboundConnectionListener> outboundConnectionListeners = new HashMap<SocketChannel,OutboundConnectionListener>();
+
+	/**
+	 * The duration of a tick of the timer wheel in milliseconds
+	 */
+	private static final int TIMER_TICK = 100;
+
+	/**
+	 * The number of buckets in the timer wheel
+	 */
+	private static final int TIMER_BUCKETS = 512;
+
+	/**
+	 * The loop's timers. Accessed only from the selection thread
+	 */
+	private final TimerWheel timerWheel = new TimerWheel (TIMER_TICK, TIMER_BUCKETS, System.currentTimeMillis());
+
+	/**
+	 * A map of pending connections and their connect timers
+	 */
+	private final Map<SocketChannel,TimerWheel.Timeout> pendingConnections = new HashMap<SocketChannel,TimerWheel.Timeout>();
+
+	/**
+	 * The uTP sockets registered with the selector. Accessed only from the selection thread
+	 */
+	private final List<UtpSocket> utpSockets = new ArrayList<UtpSocket>();
+
+	/**
+	 * The keys of server sockets that have stopped accepting because the pending connections were
+	 * over their limit. Accessed only from the selection thread
+	 */
+	private final List<SelectionKey> pausedAcceptKeys = new ArrayList<SelectionKey>();
+
+	/**
+	 * The loop's metrics recorder
+	 */
+	private final ConnectionManagerMetrics.Recorder recorder;
+
+	/**
+	 * If {@code true}, the loop is shut down and the selection thread will exit
+	 */
+	private boolean closed = false;
+
+	/**
+	 * A Runnable for the selection loop thread
+	 */
+	private final Runnable selectionRunnable = new Runnable() {
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+
+			while (true) {
+
+				synchronized (EventLoop.this) {
+					if (EventLoop.this.closed) {
+						for (SelectionKey key : EventLoop.this.selector.keys()) {
+							try {
+								key.channel().close();
+							} catch (IOException e) {
+								// Shouldn't happen and nothing much we can do
+							}
+						}
+						return;
+					}
+				}
+
+				try {
+
+					ConnectionManagerMetrics.Recorder recorder = EventLoop.this.recorder;
+					long startTime = System.nanoTime();
+
+					// Run expired timers
+					long currentTime = System.currentTimeMillis();
+					EventLoop.this.timerWheel.advance (currentTime);
+
+					// Execute any requested actions. A task queued from here on wakes the
+					// selector again, so is never left waiting for the select to time out
+					EventLoop.this.wakeupPending.set (false);
+					Runnable change;
+					while ((change = EventLoop.this.queuedTasks.poll()) != null) {
+						recorder.queuedTasks.decrementAndGet();
+						change.run();
+					}
+					recorder.pendingTimers.set (EventLoop.this.timerWheel.size());
+
+					// Resume accepting if the pending connections have fallen below their limit
+					if (!EventLoop.this.pausedAcceptKeys.isEmpty() && !EventLoop.this.connectionManager.isAcceptOverLimit()) {
+						for (SelectionKey key : EventLoop.this.pausedAcceptKeys) {
+							if (key.isValid()) {
+								key.interestOps (key.interestOps() | SelectionKey.OP_ACCEPT);
+							}
+						}
+						EventLoop.this.pausedAcceptKeys.clear();
+					}
+
+					// Wait for some data to come calling, a uTP timer, or an intentional wakeup
+					long timeout = Math.min (1000, EventLoop.this.timerWheel.getDelay (currentTime));
+					for (UtpSocket utpSocket : EventLoop.this.utpSockets) {
+						timeout = Math.min (timeout, utpSocket.getTimerDelay (currentTime));
+					}
+					long selectStartTime = System.nanoTime();
+					int readyKeys;
+					if (timeout > 0) {
+						readyKeys = EventLoop.this.selector.select (timeout);
+					} else {
+						readyKeys = EventLoop.this.selector.selectNow();
+					}
+					long selectEndTime = System.nanoTime();
+
+					// Respond to any incoming events
+					Set<Connection> readyConnections = new HashSet<Connection>();
+					Iterator<SelectionKey> selectedKeys = EventLoop.this.selector.selectedKeys().iterator();
+
+					while (selectedKeys.hasNext()) {
+						SelectionKey key = selectedKeys.next();
+						selectedKeys.remove();
+
+						if (key.attachment() instanceof UtpSocket) {
+							if (key.isValid() && key.isReadable()) {
+								((UtpSocket) key.attachment()).processReadable (System.currentTimeMillis());
+							}
+							continue;
+						}
+
+						if (key.isValid() && key.isAcceptable()) {
+							processAccept (key);
+						}
+						if (key.isValid() && key.isConnectable()) {
+							processConnect (key);
+						}
+						if (key.isValid() && key.isReadable()) {
+							Connection connection = (Connection) key.attachment();
+							connection.setReadable();
+							readyConnections.add (connection);
+						}
+						if (key.isValid() && key.isWritable()) {
+							Connection connection = (Connection) key.attachment();
+							connection.setWriteable();
+							readyConnections.add (connection);
+						}
+					}
+
+					// Run uTP timers, and collect ready uTP connections
+					long serviceTime = System.currentTimeMillis();
+					for (UtpSocket utpSocket : EventLoop.this.utpSockets) {
+						utpSocket.service (serviceTime, readyConnections);
+						utpSocket.dispatchEvents();
+					}
+
+					ExecutorService workerPool = EventLoop.this.connectionManager.getWorkerPool();
+					for (Connection connection : readyConnections) {
+						if ((workerPool != null) && (connection.getSocketChannel() != null)) {
+							dispatch (workerPool, connection);
+							continue;
+						}
+						ConnectionReadyListener listener = connection.getListener();
+						long callStartTime = System.nanoTime();
+						connection.informListener();
+						recorder.listenerCalled (System.nanoTime() - callStartTime, listener);
+					}
+
+					long endTime = System.nanoTime();
+					recorder.iterationCompleted (selectEndTime - selectStartTime, (selectStartTime - startTime) + (endTime - selectEndTime), readyKeys);
+					EventLoop.this.connectionManager.getMetrics().publishIfDue (recorder, System.currentTimeMillis());
+
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+
+			}
+
+		}
+
+	};
+
+
+	/**
+	 * Accept a new incoming connection, and hand it to the ConnectionManager. If the pending
+	 * connections are over their limit, the server socket instead stops accepting until they fall
+	 * below it, leaving new connections queued by the operating system
+	 *
+	 * @param key a ServerSocketChannel's selection key
+	 * @throws IOException
+	 */
+	private void processAccept (SelectionKey key) throws IOException {
+
+		if (this.connectionManager.isAcceptOverLimit() && this.connectionManager.pauseAccepts()) {
+			key.interestOps (key.interestOps() & ~SelectionKey.OP_ACCEPT);
+			this.pausedAcceptKeys.add (key);
+			return;
+		}
+
+		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+		SocketChannel socketChannel = serverSocketChannel.accept();
+		if (socketChannel == null) {
+			return;
+		}
+		this.recorder.accepts.incrementAndGet();
+		socketChannel.configureBlocking (false);
+		this.connectionManager.getConnectionOptions().apply (socketChannel.socket());
+
+		InboundConnectionListener listener = this.inboundConnectionListeners.get (serverSocketChannel);
+		this.connectionManager.accepted (socketChannel, listener);
+
+	}
+
+
+	/**
+	 * Complete a new outgoing connection
+	 *
+	 * @param key a ServerSocketChannel's selection key
+	 */
+	private void processConnect (SelectionKey key) {
+
+		SocketChannel socketChannel = (SocketChannel) key.channel();
+		OutboundConnectionListener listener = this.outboundConnectionListeners.get (socketChannel);
+		Connection connection = (Connection) key.attachment();
+		if (socketChannel.isConnectionPending()) {
+			try {
+				if (socketChannel.finishConnect()) {
+					key.interestOps (SelectionKey.OP_READ);
+					this.recorder.connects.incrementAndGet();
+					listener.connected (connection);
+					cancelConnectTimeout (socketChannel);
+					this.outboundConnectionListeners.remove (socketChannel);
+				}
+			} catch (IOException e) {
+				listener.rejected (connection);
+				try {
+					socketChannel.close();
+				} catch (IOException e1) {
+					// Shouldn't happen
+				}
+				key.cancel();
+				cancelConnectTimeout (socketChannel);
+				this.outboundConnectionListeners.remove (socketChannel);
+			}
+		}
+
+
+	}
+
+
+	/**
+	 * Hands a ready TCP Connection to a worker thread to inform its listener. The Connection is
+	 * not selected until the listener returns and the Connection is handed back to the loop, so
+	 * its listener is never informed concurrently
+	 *
+	 * @param workerPool The worker threads
+	 * @param connection The ready Connection
+	 */
+	private void dispatch (ExecutorService workerPool, final Connection connection) {
+
+		final SelectionKey key = connection.getSocketChannel().keyFor (this.selector);
+		if ((key == null) || !key.isValid()) {
+			return;
+		}
+
+		key.interestOps (0);
+		connection.dispatched = true;
+
+		try {
+			workerPool.execute (new Runnable() {
+				public void run() {
+					final ConnectionReadyListener listener = connection.getListener();
+					long callStartTime = System.nanoTime();
+					connection.informListener();
+					final long duration = System.nanoTime() - callStartTime;
+					execute (new Runnable() {
+						public void run() {
+							EventLoop.this.recorder.listenerCalled (duration, listener);
+							connection.dispatched = false;
+							restoreInterest (connection, key);
+						}
+					});
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The ConnectionManager is closing
+		}
+
+	}
+
+
+	/**
+	 * Selects a Connection again for the operations it currently wants and are not suspended by
+	 * rate limiting
+	 *
+	 * @param connection The Connection
+	 * @param key The Connection's selection key
+	 */
+	private void restoreInterest (Connection connection, SelectionKey key) {
+
+		if (!key.isValid()) {
+			return;
+		}
+
+		int interestOps = 0;
+		if ((connection.suspendedOperations & SelectionKey.OP_READ) == 0) {
+			interestOps |= SelectionKey.OP_READ;
+		}
+		if (connection.isWriteEnabled() && ((connection.suspendedOperations & SelectionKey.OP_WRITE) == 0)) {
+			interestOps |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps (interestOps);
+
+	}
+
+
+	/**
+	 * Cancels a pending connection's connect timer, if it has one
+	 *
+	 * @param socketChannel The connection's socket channel
+	 */
+	private void cancelConnectTimeout (SocketChannel socketChannel) {
+
+		TimerWheel.Timeout timeout = this.pendingConnections.remove (socketChannel);
+		if (timeout != null) {
+			timeout.cancel();
+		}
+
+	}
+
+
+	/**
+	 * Abandons a pending connection whose connect timer has expired
+	 *
+	 * @param socketChannel The connection's socket channel
+	 */
+	private void connectTimedOut (SocketChannel socketChannel) {
+
+		this.pendingConnections.remove (socketChannel);
+		SelectionKey key = socketChannel.keyFor (this.selector);
+		Connection connection = (Connection) key.attachment();
+		OutboundConnectionListener listener = this.outboundConnectionListeners.remove (socketChannel);
+		listener.rejected (connection);
+		try {
+			socketChannel.close();
+		} catch (IOException e) {
+			// Shouldn't happen and nothing much we can do
+		}
+		key.cancel();
+
+	}
+
+
+	/**
+	 * Queues a task to be run on the selection thread before the next select cycle, waking the
+	 * thread if it is waiting
+	 *
+	 * @param task The task to run
+	 */
+	void execute (Runnable task) {
+
+		this.recorder.queuedTasks.incrementAndGet();
+		this.queuedTasks.offer (task);
+		wakeup();
+
+	}
+
+
+	/**
+	 * @return The loop's timer wheel. Must only be used from the loop's own thread
+	 */
+	TimerWheel getTimerWheel() {
+
+		return this.timerWheel;
+
+	}
+
+
+	/**
+	 * @return {@code true} if the calling thread is the loop's own thread
+	 */
+	boolean isEventLoopThread() {
+
+		return Thread.currentThread() == this.selectionThread;
+
+	}
+
+
+	/**
+	 * @return The loop's metrics recorder
+	 */
+	ConnectionManagerMetrics.Recorder getRecorder() {
+
+		return this.recorder;
+
+	}
+
+
+	/**
+	 * Wakes the selection thread. Wakeups requested while one is already pending are coalesced,
+	 * since each costs a system call
+	 */
+	void wakeup() {
+
+		if (this.wakeupPending.compareAndSet (false, true)) {
+			this.selector.wakeup();
+		}
+
+	}
+
+
+	/**
+	 * Takes ownership of a newly accepted Connection, and informs the given listener of it from the
+	 * loop's own thread
+	 *
+	 * @param connection The Connection for the accepted, non-blocking socket channel
+	 * @param listener The listener to inform
+	 */
+	void accepted (final Connection connection, final InboundConnectionListener listener) {
+
+		final SocketChannel socketChannel = connection.getSocketChannel();
+		connection.setEventLoop (this);
+
+		execute (new Runnable() {
+			public void run() {
+				try {
+					SelectionKey socketKey = socketChannel.register (EventLoop.this.selector, SelectionKey.OP_READ);
+					socketKey.attach (connection);
+					listener.accepted (connection);
+				} catch (ClosedChannelException e) {
+					// Nothing much we can do about this
+					e.printStackTrace();
+				}
+			}
+		});
+
+	}
+
+
+	/**
+	 * Asynchronously registers a bound server socket to accept connections
+	 *
+	 * @param serverSocketChannel The bound, non-blocking server socket channel
+	 * @param listener The listener to inform of connections to the socket
+	 */
+	void listen (final ServerSocketChannel serverSocketChannel, final InboundConnectionListener listener) {
+
+		execute (new Runnable() {
+			public void run() {
+				try {
+					serverSocketChannel.register (EventLoop.this.selector, SelectionKey.OP_ACCEPT);
+					EventLoop.this.inboundConnectionListeners.put (serverSocketChannel, listener);
+				} catch (ClosedChannelException e) {
+					// Nothing much we can do about this
+					e.printStackTrace();
+				}
+			}
+		});
+
+	}
+
+
+	/**
+	 * Asynchronously makes a connection to a given address
+	 *
+	 * @param connection The Connection for the new connection
+	 * @param remoteAddress The address to connect to
+	 * @param listener The listener to inform of the connection's status
+	 * @param connectTimeout The number of seconds to wait before giving up trying to connect
+	 */
+	void connect (final Connection connection, final InetSocketAddress remoteAddress, final OutboundConnectionListener listener, final int connectTimeout) {
+
+		connection.setEventLoop (this);
+		final SocketChannel socketChannel = connection.getSocketChannel();
+
+		execute (new Runnable() {
+			public void run() {
+				try {
+					boolean completeConnection = socketChannel.connect (remoteAddress);
+					SelectionKey key = socketChannel.register (EventLoop.this.selector, SelectionKey.OP_CONNECT);
+					key.attach (connection);
+					if (connectTimeout != 0) {
+						TimerWheel.Timeout timeout = EventLoop.this.timerWheel.schedule (new Runnable() {
+							public void run() {
+								connectTimedOut (socketChannel);
+							}
+						}, System.currentTimeMillis() + (connectTimeout * 1000));
+						EventLoop.this.pendingConnections.put (socketChannel, timeout);
+					}
+					EventLoop.this.outboundConnectionListeners.put (socketChannel, listener);
+					if (completeConnection) {
+						processConnect (key);
+					}
+				} catch (IOException e) {
+					// Shouldn't happen and nothing much we can do
+					e.printStackTrace();
+				}
+			}
+		});
+
+	}
+
+
+	/**
+	 * Asynchronously registers a uTP socket
+	 *
+	 * @param utpSocket The socket to register
+	 */
+	void register (final UtpSocket utpSocket) {
+
+		execute (new Runnable() {
+			public void run() {
+				try {
+					utpSocket.getDatagramChannel().register (EventLoop.this.selector, SelectionKey.OP_READ, utpSocket);
+					EventLoop.this.utpSockets.add (utpSocket);
+				} catch (ClosedChannelException e) {
+					// Nothing much we can do about this
+					e.printStackTrace();
+				}
+			}
+		});
+
+	}
+
+
+	/**
+	 * Add or remove a Connection to the selection set for writing
+	 *
+	 * @param connection
+	 * @param enabled
+	 */
+	void setWriteEnabled (final Connection connection, final boolean enabled) {
+
+		// Queue the action to be carried out before the next select cycle
+		execute (new Runnable() {
+			public void run() {
+				SelectionKey key = connection.getSocketChannel().keyFor (EventLoop.this.selector);
+				if ((key != null) && (key.isValid())) {
+					// We may have already closed the socket. A write suspended by rate limiting
+					// is resumed by its timer, and a dispatched connection's interest is restored
+					// when it is handed back
+					if (connection.dispatched || (enabled && ((connection.suspendedOperations & SelectionKey.OP_WRITE) != 0))) {
+						return;
+					}
+					if (enabled) {
+						key.interestOps (key.interestOps() | SelectionKey.OP_WRITE);
+					} else {
+						key.interestOps (key.interestOps() & ~SelectionKey.OP_WRITE);
+					}
+				}
+			}
+		});
+
+	}
+
+
+	/**
+	 * Stops selecting a Connection for an operation for a time, because its rate limit has been
+	 * reached
+	 *
+	 * @param connection The Connection
+	 * @param operation The operation to suspend, {@link SelectionKey#OP_READ} or
+	 *        {@link SelectionKey#OP_WRITE}
+	 * @param delay The time to suspend for in milliseconds
+	 */
+	void suspend (final Connection connection, final int operation, final long delay) {
+
+		execute (new Runnable() {
+			public void run() {
+				final SelectionKey key = connection.getSocketChannel().keyFor (EventLoop.this.selector);
+				if ((key == null) || !key.isValid() || ((connection.suspendedOperations & operation) != 0)) {
+					return;
+				}
+
+				connection.suspendedOperations |= operation;
+				key.interestOps (key.interestOps() & ~operation);
+
+				EventLoop.this.timerWheel.schedule (new Runnable() {
+					public void run() {
+						connection.suspendedOperations &= ~operation;
+						if (key.isValid() && !connection.dispatched && ((operation == SelectionKey.OP_READ) || connection.isWriteEnabled())) {
+							key.interestOps (key.interestOps() | operation);
+						}
+					}
+				}, System.currentTimeMillis() + delay);
+			}
+		});
+
+	}
+
+
+	/**
+	 * Cancels a closed Connection's registration
+	 *
+	 * @param connection The Connection that has closed
+	 */
+	void connectionClosed (final Connection connection) {
+
+		// Queue the action to be carried out before the next select cycle
+		execute (new Runnable() {
+			public void run() {
+				SelectionKey key = connection.getSocketChannel().keyFor (EventLoop.this.selector);
+				if (key != null) {
+					key.cancel();
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+						// Shouldn't happen and nothing much we can do
+						e.printStackTrace();
+					}
+				}
+			}
+		});
+
+	}
+
+
+	/**
+	 * Shuts down the selection thread, closing all of the loop's channels, and waits for it to
+	 * exit
+	 */
+	void close() {
+
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+		}
+		this.selector.wakeup();
+
+		while (this.selectionThread.isAlive ()) {
+			try {
+				this.selectionThread.join();
+			} catch (InterruptedException e) {
+				// Retry
+			}
+		}
+
+	}
+
+
+	/**
+	 * @param connectionManager The ConnectionManager that owns the loop
+	 * @param name The name of the loop's thread
+	 * @throws IOException If the selector could not be opened
+	 */
+	EventLoop (ConnectionManager connectionManager, String name) throws IOException {
+
+		this.connectionManager = connectionManager;
+		this.recorder = connectionManager.getMetrics().createRecorder();
+		this.selector = SelectorProvider.provider().openSelector();
+
+		this.selectionThread = new Thread (this.selectionRunnable, name);
+		this.selectionThread.setDaemon (true);
+		this.selectionThread.start();
+
+	}
+
+
+}
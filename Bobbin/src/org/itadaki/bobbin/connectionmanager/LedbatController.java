@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.connectionmanager;
+
+
+/**
+ * A LEDBAT (Low Extra Delay Background Transport) congestion controller, as used by uTP
+ *
+ * <p>The congestion window grows while the one-way queuing delay measured by the remote peer is
+ * below a fixed target, and shrinks in proportion as the delay rises above it, so that a
+ * connection yields to other traffic sharing the same bottleneck before that traffic sees
+ * significant added latency. The queuing delay is the difference between the current one-way
+ * delay and the lowest delay seen over the last two minutes, which absorbs any offset between the
+ * two peers' clocks.
+ */
+public class LedbatController {
+
+	/**
+	 * The target queuing delay in microseconds
+	 */
+	public static final int TARGET_DELAY = 100000;
+
+	/**
+	 * The largest amount by which the window may grow in one round trip, in bytes
+	 */
+	public static final int MAXIMUM_WINDOW_INCREASE = 3000;
+
+	/**
+	 * The interval covered by each entry of the base delay history, in milliseconds
+	 */
+	private static final int BASE_DELAY_INTERVAL = 60000;
+
+	/**
+	 * The minimum window in bytes
+	 */
+	private final int minimumWindow;
+
+	/**
+	 * The maximum window in bytes
+	 */
+	private final int maximumWindow;
+
+	/**
+	 * The current window in bytes
+	 */
+	private int window;
+
+	/**
+	 * The lowest delay seen in the current and previous base delay intervals, in microseconds
+	 */
+	private final long[] baseDelays = new long[] { Long.MAX_VALUE, Long.MAX_VALUE };
+
+	/**
+	 * The base delay interval that {@code baseDelays[0]} covers, or -1 if no delay has been
+	 * sampled
+	 */
+	private long baseDelayInterval = -1;
+
+	/**
+	 * The most recently sampled delay in microseconds, or -1 if no delay has been sampled
+	 */
+	private long currentDelay = -1;
+
+
+	/**
+	 * Records a sample of the one-way delay from the local to the remote peer, as measured by the
+	 * remote peer
+	 *
+	 * @param delay The delay in microseconds. Only differences between samples are significant
+	 * @param time The current time in system milliseconds
+	 */
+	public void delaySample (long delay, long time) {
+
+		long interval = time / BASE_DELAY_INTERVAL;
+		if (interval != this.baseDelayInterval) {
+			this.baseDelays[1] = (interval == this.baseDelayInterval + 1) ? this.baseDelays[0] : Long.MAX_VALUE;
+			this.baseDelays[0] = Long.MAX_VALUE;
+			this.baseDelayInterval = interval;
+		}
+		this.baseDelays[0] = Math.min (this.baseDelays[0], delay);
+		this.currentDelay = delay;
+
+	}
+
+
+	/**
+	 * @return The current queuing delay in microseconds, or 0 if no delay has been sampled
+	 */
+	public long getQueuingDelay() {
+
+		if (this.currentDelay < 0) {
+			return 0;
+		}
+
+		return Math.max (0, this.currentDelay - Math.min (this.baseDelays[0], this.baseDelays[1]));
+
+	}
+
+
+	/**
+	 * Adjusts the window for newly acknowledged data
+	 *
+	 * @param bytesAcknowledged The number of bytes acknowledged
+	 * @param bytesInFlight The number of bytes still unacknowledged
+	 */
+	public void bytesAcknowledged (int bytesAcknowledged, int bytesInFlight) {
+
+		double offTarget = (TARGET_DELAY - getQueuingDelay()) / (double) TARGET_DELAY;
+
+		// Only grow a window that was full; a sender limited by its application learns nothing
+		// about the available capacity
+		if ((offTarget > 0) && ((bytesInFlight + bytesAcknowledged) * 2 < this.window)) {
+			return;
+		}
+
+		double windowFactor = Math.min (bytesAcknowledged, this.window) / (double) Math.max (bytesAcknowledged, this.window);
+		int change = (int) (MAXIMUM_WINDOW_INCREASE * offTarget * windowFactor);
+
+		this.window = Math.max (this.minimumWindow, Math.min (this.maximumWindow, this.window + change));
+
+	}
+
+
+	/**
+	 * Adjusts the window for a packet lost while others were delivered
+	 */
+	public void packetLost() {
+
+		this.window = Math.max (this.minimumWindow, this.window / 2);
+
+	}
+
+
+	/**
+	 * Adjusts the window for a retransmission timeout
+	 */
+	public void timedOut() {
+
+		this.window = this.minimumWindow;
+
+	}
+
+
+	/**
+	 * @return The current window in bytes
+	 */
+	public int getWindow() {
+
+		return this.window;
+
+	}
+
+
+	/**
+	 * @param minimumWindow The minimum window in bytes
+	 * @param initialWindow The initial window in bytes
+	 * @param maximumWindow The maximum window in bytes
+	 * @throws IllegalArgumentException if the minimum window is less than 1 or greater than the
+	 *         maximum window, or the initial window is outside the two
+	 */
+	public LedbatController (int minimumWindow, int initialWindow, int maximumWindow) {
+
+		if ((minimumWindow < 1) || (initialWindow < minimumWindow) || (maximumWindow < initialWindow)) {
+			throw new IllegalArgumentException ("Invalid window bounds");
+		}
+
+		this.minimumWindow = minimumWindow;
+		this.maximumWindow = maximumWindow;
+		this.window = initialWindow;
+
+	}
+
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.connectionmanager;
+
+
+/**
+ * A token bucket rate limiter, counting bytes
+ *
+ * <p>Tokens accumulate at the bucket's rate up to a capacity of a quarter of a second's worth,
+ * allowing short bursts. A bucket may be nested within a parent, in which case bytes are granted
+ * only as far as both the bucket and every ancestor have tokens; this allows, for instance, a
+ * limit for each torrent within a limit for the whole host. A bucket with a rate of zero is
+ * unlimited, and defers entirely to its ancestors.
+ *
+ * <p>Buckets are thread safe, and may be shared between connections on different threads.
+ */
+public class TokenBucket {
+
+	/**
+	 * The interval for which tokens may accumulate, in milliseconds
+	 */
+	private static final int BURST_INTERVAL = 250;
+
+	/**
+	 * The minimum capacity of a limited bucket, which is enough for one block of piece data
+	 */
+	private static final int MINIMUM_CAPACITY = 16384;
+
+	/**
+	 * The number of tokens a suspended reader or writer waits to accumulate before resuming
+	 */
+	private static final int RESUME_THRESHOLD = 4096;
+
+	/**
+	 * The parent bucket, or {@code null}
+	 */
+	private final TokenBucket parent;
+
+	/**
+	 * The rate in bytes per second, or 0 if unlimited. Volatile so that an unlimited bucket may be
+	 * passed through without taking its lock
+	 */
+	private volatile long rate = 0;
+
+	/**
+	 * The maximum number of tokens that may accumulate
+	 */
+	private long capacity = MINIMUM_CAPACITY;
+
+	/**
+	 * The number of tokens available
+	 */
+	private double tokens = 0;
+
+	/**
+	 * The time tokens were last added, in system milliseconds, or -1 if never
+	 */
+	private long lastRefillTime = -1;
+
+
+	/**
+	 * Adds the tokens accumulated since the last refill
+	 *
+	 * @param now The current time in system milliseconds
+	 */
+	private void refill (long now) {
+
+		if ((this.lastRefillTime != -1) && (now > this.lastRefillTime)) {
+			this.tokens = Math.min (this.capacity, this.tokens + ((now - this.lastRefillTime) * this.rate / 1000.0));
+		}
+		if (now > this.lastRefillTime) {
+			this.lastRefillTime = now;
+		}
+
+	}
+
+
+	/**
+	 * Takes tokens from this bucket alone
+	 *
+	 * @param requested The number of tokens requested
+	 * @param now The current time in system milliseconds
+	 * @return The number of tokens granted
+	 */
+	private int takeLocal (int requested, long now) {
+
+		if (this.rate == 0) {
+			return requested;
+		}
+
+		synchronized (this) {
+			refill (now);
+			int granted = (int) Math.min (requested, (long) this.tokens);
+			this.tokens -= granted;
+			return granted;
+		}
+
+	}
+
+
+	/**
+	 * Returns tokens to this bucket alone
+	 *
+	 * @param count The number of tokens to return
+	 */
+	private void giveLocal (int count) {
+
+		if (this.rate != 0) {
+			synchronized (this) {
+				this.tokens = Math.min (this.capacity, this.tokens + count);
+			}
+		}
+
+	}
+
+
+	/**
+	 * @param now The current time in system milliseconds
+	 * @return The time in milliseconds until this bucket alone has enough tokens to resume
+	 */
+	private long getLocalDelay (long now) {
+
+		if (this.rate == 0) {
+			return 0;
+		}
+
+		synchronized (this) {
+			refill (now);
+			double needed = Math.min (this.capacity, RESUME_THRESHOLD) - this.tokens;
+			if ((needed <= 0) || (this.rate == 0)) {
+				return 0;
+			}
+			return (long) Math.ceil (needed * 1000 / this.rate);
+		}
+
+	}
+
+
+	/**
+	 * Takes up to the requested number of tokens from this bucket and its ancestors
+	 *
+	 * @param requested The number of tokens requested
+	 * @param now The current time in system milliseconds
+	 * @return The number of tokens granted, which may be zero
+	 */
+	public int take (int requested, long now) {
+
+		int granted = takeLocal (requested, now);
+
+		if ((granted > 0) && (this.parent != null)) {
+			int parentGranted = this.parent.take (granted, now);
+			if (parentGranted < granted) {
+				giveLocal (granted - parentGranted);
+			}
+			granted = parentGranted;
+		}
+
+		return granted;
+
+	}
+
+
+	/**
+	 * Returns unused tokens, previously granted by {@link #take(int, long)}, to this bucket and
+	 * its ancestors
+	 *
+	 * @param count The number of tokens to return
+	 */
+	public void give (int count) {
+
+		giveLocal (count);
+		if (this.parent != null) {
+			this.parent.give (count);
+		}
+
+	}
+
+
+	/**
+	 * @param now The current time in system milliseconds
+	 * @return The time in milliseconds until this bucket and its ancestors have enough tokens for
+	 *         a suspended reader or writer to resume
+	 */
+	public long getDelay (long now) {
+
+		long delay = getLocalDelay (now);
+		if (this.parent != null) {
+			delay = Math.max (delay, this.parent.getDelay (now));
+		}
+
+		return delay;
+
+	}
+
+
+	/**
+	 * @return The rate in bytes per second, or 0 if unlimited
+	 */
+	public long getRate() {
+
+		return this.rate;
+
+	}
+
+
+	/**
+	 * Sets the rate. The change takes effect immediately for all connections using the bucket. A
+	 * bucket that was unlimited starts full
+	 *
+	 * @param rate The rate in bytes per second, or 0 for unlimited
+	 * @throws IllegalArgumentException if the rate is negative
+	 */
+	public synchronized void setRate (long rate) {
+
+		if (rate < 0) {
+			throw new IllegalArgumentException ("Invalid rate");
+		}
+
+		long previousRate = this.rate;
+		this.rate = rate;
+		this.capacity = Math.max (MINIMUM_CAPACITY, rate * BURST_INTERVAL / 1000);
+		if (previousRate == 0) {
+			this.tokens = this.capacity;
+			this.lastRefillTime = -1;
+		} else {
+			this.tokens = Math.min (this.tokens, this.capacity);
+		}
+
+	}
+
+
+	/**
+	 * Creates an unlimited bucket
+	 *
+	 * @param parent The parent bucket, or {@code null}
+	 */
+	public TokenBucket (TokenBucket parent) {
+
+		this.parent = parent;
+
+	}
+
+
+}
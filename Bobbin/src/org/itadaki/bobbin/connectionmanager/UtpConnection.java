@@ -0,0 +1,1475 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.connectionmanager;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+
+
+/**
+ * A Connection carried by the uTP (Micro Transport Protocol, BEP 29) over a shared
+ * {@link UtpSocket}
+ *
+ * <p>Data written to the connection is buffered, split into packets and sent as far as the
+ * congestion window allows. The window is governed by a {@link LedbatController}, and packets are
+ * resent after three duplicate or selective acknowledgements, or when the retransmission timer
+ * expires. Received packets are reassembled in order, with packets that arrive early held until
+ * the gap before them is filled, and are acknowledged with a selective acknowledgement of any
+ * such packets.
+ *
+ * <p>All state is guarded by the lock of the connection's {@code UtpSocket}, so that the
+ * connection may be read, written and closed from any thread while the socket processes received
+ * packets on the selection thread.
+ */
+public class UtpConnection extends Connection {
+
+	/**
+	 * Packet type: data
+	 */
+	static final int TYPE_DATA = 0;
+
+	/**
+	 * Packet type: finish
+	 */
+	static final int TYPE_FIN = 1;
+
+	/**
+	 * Packet type: state (acknowledgement only)
+	 */
+	static final int TYPE_STATE = 2;
+
+	/**
+	 * Packet type: reset
+	 */
+	static final int TYPE_RESET = 3;
+
+	/**
+	 * Packet type: synchronise (connection request)
+	 */
+	static final int TYPE_SYN = 4;
+
+	/**
+	 * The protocol version
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * The length of a packet header
+	 */
+	static final int HEADER_LENGTH = 20;
+
+	/**
+	 * The extension identifier of a selective acknowledgement
+	 */
+	static final int EXTENSION_SELECTIVE_ACK = 1;
+
+	/**
+	 * The maximum length of a packet including its header, chosen to fit within a typical path
+	 * MTU without fragmentation
+	 */
+	public static final int PACKET_LENGTH = 1400;
+
+	/**
+	 * The maximum payload of a data packet
+	 */
+	private static final int MAXIMUM_PAYLOAD = PACKET_LENGTH - HEADER_LENGTH;
+
+	/**
+	 * The length of the buffer of written data not yet sent
+	 */
+	public static final int SEND_BUFFER_LENGTH = 65536;
+
+	/**
+	 * The length of the buffer of received data not yet read, which bounds the advertised receive
+	 * window
+	 */
+	public static final int RECEIVE_BUFFER_LENGTH = 262144;
+
+	/**
+	 * The maximum congestion window in bytes
+	 */
+	private static final int MAXIMUM_WINDOW = 1048576;
+
+	/**
+	 * The number of sequence numbers beyond the oldest unacknowledged or first missing packet
+	 * that are tracked when sending or receiving. Must be a power of two
+	 */
+	private static final int SEQUENCE_WINDOW = 1024;
+
+	/**
+	 * The initial retransmission timeout in milliseconds
+	 */
+	private static final int INITIAL_TIMEOUT = 1000;
+
+	/**
+	 * The minimum retransmission timeout in milliseconds
+	 */
+	private static final int MINIMUM_TIMEOUT = 500;
+
+	/**
+	 * The maximum retransmission timeout in milliseconds
+	 */
+	private static final int MAXIMUM_TIMEOUT = 30000;
+
+	/**
+	 * The number of consecutive retransmission timeouts after which the connection fails
+	 */
+	private static final int MAXIMUM_RETRANSMISSIONS = 6;
+
+	/**
+	 * The number of duplicate or selective acknowledgements after which the oldest
+	 * unacknowledged packet is presumed lost
+	 */
+	private static final int DUPLICATE_ACK_THRESHOLD = 3;
+
+	/**
+	 * The maximum length in bytes of a sent selective acknowledgement bitmask
+	 */
+	private static final int MAXIMUM_SELECTIVE_ACK_LENGTH = 32;
+
+
+	/**
+	 * The states of a connection
+	 */
+	private static enum State {
+
+		/**
+		 * A connection request has been sent but not acknowledged
+		 */
+		SYN_SENT,
+
+		/**
+		 * The connection is established
+		 */
+		CONNECTED,
+
+		/**
+		 * The connection has been closed locally, and its final packet sent
+		 */
+		FIN_SENT,
+
+		/**
+		 * The connection is finished and no longer known to its socket
+		 */
+		CLOSED
+
+	}
+
+
+	/**
+	 * A sent packet awaiting acknowledgement
+	 */
+	private static class Packet {
+
+		/**
+		 * The complete datagram, whose header is refreshed before each transmission
+		 */
+		public final byte[] datagram;
+
+		/**
+		 * The length of the packet's payload
+		 */
+		public final int payloadLength;
+
+		/**
+		 * The time the packet was last sent, in system milliseconds
+		 */
+		public long sentTime;
+
+		/**
+		 * The number of times the packet has been sent
+		 */
+		public int transmissions = 0;
+
+		/**
+		 * {@code true} if the packet is presumed lost and should be sent again, otherwise
+		 * {@code false}. A packet awaiting resending is not counted as in flight
+		 */
+		public boolean needsResend = false;
+
+		/**
+		 * @param datagram The complete datagram
+		 * @param payloadLength The length of the packet's payload
+		 */
+		public Packet (byte[] datagram, int payloadLength) {
+
+			this.datagram = datagram;
+			this.payloadLength = payloadLength;
+
+		}
+
+	}
+
+
+	/**
+	 * The socket that carries the connection
+	 */
+	private final UtpSocket socket;
+
+	/**
+	 * The remote peer's address
+	 */
+	private final InetSocketAddress remoteAddress;
+
+	/**
+	 * The congestion controller
+	 */
+	private final LedbatController controller = new LedbatController (PACKET_LENGTH, 2 * PACKET_LENGTH, MAXIMUM_WINDOW);
+
+	/**
+	 * The current state
+	 */
+	private State state;
+
+	/**
+	 * The connection ID of packets received on the connection
+	 */
+	private int receiveId;
+
+	/**
+	 * The connection ID of packets sent on the connection
+	 */
+	private int sendId;
+
+	/**
+	 * The listener to inform when an outbound connection completes or fails
+	 */
+	private OutboundConnectionListener outboundListener;
+
+	/**
+	 * The time by which an outbound connection must be established, in system milliseconds
+	 */
+	private long connectDeadline;
+
+	/**
+	 * The sequence number of the first packet sent by an accepted connection
+	 */
+	private int initialSequenceNumber;
+
+	/**
+	 * The sequence number of the next packet to be sent
+	 */
+	private int sequenceNumber;
+
+	/**
+	 * The sequence number of the oldest unacknowledged packet
+	 */
+	private int oldestUnacknowledged;
+
+	/**
+	 * Sent packets awaiting acknowledgement, indexed by sequence number modulo
+	 * {@link #SEQUENCE_WINDOW}, or {@code null} until the first packet is sent. Packets
+	 * acknowledged selectively are removed ahead of older ones
+	 */
+	private Packet[] outstandingPackets = null;
+
+	/**
+	 * The total payload of sent packets that are neither acknowledged nor presumed lost
+	 */
+	private int bytesInFlight = 0;
+
+	/**
+	 * The remote peer's advertised receive window in bytes
+	 */
+	private int remoteWindow = PACKET_LENGTH;
+
+	/**
+	 * Written data not yet sent, or {@code null} until data is first written
+	 */
+	private ByteBuffer sendBuffer = null;
+
+	/**
+	 * The sequence number of the last packet received in order
+	 */
+	private int ackNumber;
+
+	/**
+	 * Payloads received ahead of a missing packet, indexed by sequence number modulo
+	 * {@link #SEQUENCE_WINDOW}, or {@code null} until a packet is first received out of order
+	 */
+	private byte[][] reorderBuffer = null;
+
+	/**
+	 * The number of payloads held in the reorder buffer
+	 */
+	private int reorderCount = 0;
+
+	/**
+	 * The total length of the payloads held in the reorder buffer
+	 */
+	private int reorderBytes = 0;
+
+	/**
+	 * Received data not yet read, or {@code null} until data is first received. The buffers are
+	 * allocated only when needed, so that a connection request that carries no data costs little
+	 */
+	private ByteBuffer receiveBuffer = null;
+
+	/**
+	 * The sequence number of the remote peer's finish packet, or -1 if none has been received
+	 */
+	private int finSequenceNumber = -1;
+
+	/**
+	 * {@code true} if all data up to the remote peer's finish packet has been received, otherwise
+	 * {@code false}
+	 */
+	private boolean endOfStream = false;
+
+	/**
+	 * {@code true} if the connection failed or was reset by the remote peer, otherwise
+	 * {@code false}
+	 */
+	private boolean failed = false;
+
+	/**
+	 * {@code true} once the end of stream or failure has been reported to a reader, otherwise
+	 * {@code false}
+	 */
+	private boolean endReported = false;
+
+	/**
+	 * {@code true} if the connection has been closed locally, otherwise {@code false}
+	 */
+	private boolean closedLocally = false;
+
+	/**
+	 * {@code true} if writing has been requested, otherwise {@code false}
+	 */
+	private boolean writeEnabled = false;
+
+	/**
+	 * The time until which reading is suspended by rate limiting, in system milliseconds
+	 */
+	private long readSuspendedUntil = 0;
+
+	/**
+	 * The time until which writing is suspended by rate limiting, in system milliseconds
+	 */
+	private long writeSuspendedUntil = 0;
+
+	/**
+	 * {@code true} if received packets have not yet been acknowledged, otherwise {@code false}
+	 */
+	private boolean ackPending = false;
+
+	/**
+	 * The difference between the local clock and the remote peer's timestamp on its most recent
+	 * packet, in microseconds, which is returned to the peer as its delay sample
+	 */
+	private int replyMicroseconds = 0;
+
+	/**
+	 * The number of consecutive acknowledgements that did not advance
+	 */
+	private int duplicateAcks = 0;
+
+	/**
+	 * Packets before this sequence number were sent before the most recent loss was detected, and
+	 * their loss does not reduce the window again
+	 */
+	private int lossRecoverySequenceNumber;
+
+	/**
+	 * The smoothed round trip time in milliseconds, or -1 if not yet measured
+	 */
+	private long roundTripTime = -1;
+
+	/**
+	 * The round trip time variance in milliseconds
+	 */
+	private long roundTripTimeVariance = 0;
+
+	/**
+	 * The retransmission timeout in milliseconds
+	 */
+	private long timeout = INITIAL_TIMEOUT;
+
+	/**
+	 * The time at which the oldest unacknowledged packet will be presumed lost, in system
+	 * milliseconds, or 0 if no packet is outstanding
+	 */
+	private long retransmitDeadline = 0;
+
+	/**
+	 * The number of consecutive retransmission timeouts
+	 */
+	private int retransmissions = 0;
+
+
+	/**
+	 * @return The current time as a wrapping microsecond timestamp
+	 */
+	private static int microseconds() {
+
+		return (int) (System.nanoTime() / 1000);
+
+	}
+
+
+	/**
+	 * @param from The earlier sequence number
+	 * @param to The later sequence number
+	 * @return The forward distance between two sequence numbers, allowing for wrapping
+	 */
+	private static int distance (int from, int to) {
+
+		return (to - from) & 0xffff;
+
+	}
+
+
+	/**
+	 * @return The number of bytes of written data not yet sent
+	 */
+	private int getSendBufferedBytes() {
+
+		return (this.sendBuffer == null) ? 0 : this.sendBuffer.position();
+
+	}
+
+
+	/**
+	 * @return The number of bytes of received data not yet read
+	 */
+	private int getReceiveBufferedBytes() {
+
+		return (this.receiveBuffer == null) ? 0 : this.receiveBuffer.position();
+
+	}
+
+
+	/**
+	 * Writes a packet header. The timestamp, timestamp difference, window and acknowledgement
+	 * fields are left to be filled on transmission
+	 *
+	 * @param buffer The buffer to write to
+	 * @param type The packet type
+	 * @param extension The type of the first extension, or 0
+	 * @param connectionId The connection ID
+	 * @param sequenceNumber The sequence number
+	 */
+	private static void putHeader (ByteBuffer buffer, int type, int extension, int connectionId, int sequenceNumber) {
+
+		buffer.put ((byte) ((type << 4) | VERSION));
+		buffer.put ((byte) extension);
+		buffer.putShort ((short) connectionId);
+		buffer.putInt (0);
+		buffer.putInt (0);
+		buffer.putInt (0);
+		buffer.putShort ((short) sequenceNumber);
+		buffer.putShort ((short) 0);
+
+	}
+
+
+	/**
+	 * Builds a reset packet in reply to a packet for an unknown connection
+	 *
+	 * @param connectionId The connection ID of the unknown packet
+	 * @param sequenceNumber The sequence number to send
+	 * @param ackNumber The sequence number of the unknown packet
+	 * @return The reset packet
+	 */
+	static ByteBuffer resetPacket (int connectionId, int sequenceNumber, int ackNumber) {
+
+		ByteBuffer buffer = ByteBuffer.allocate (HEADER_LENGTH);
+		putHeader (buffer, TYPE_RESET, 0, connectionId, sequenceNumber);
+		buffer.putInt (4, microseconds());
+		buffer.putShort (18, (short) ackNumber);
+		buffer.flip();
+
+		return buffer;
+
+	}
+
+
+	/**
+	 * @return The receive window to advertise, in bytes
+	 */
+	private int getReceiveWindow() {
+
+		return Math.max (0, RECEIVE_BUFFER_LENGTH - getReceiveBufferedBytes() - this.reorderBytes);
+
+	}
+
+
+	/**
+	 * @return The number of packets sent and not yet cumulatively acknowledged
+	 */
+	private int getOutstandingCount() {
+
+		return distance (this.oldestUnacknowledged, this.sequenceNumber);
+
+	}
+
+
+	/**
+	 * Fills the variable header fields of a datagram and sends it
+	 *
+	 * @param datagram The datagram
+	 */
+	private void transmit (byte[] datagram) {
+
+		ByteBuffer buffer = ByteBuffer.wrap (datagram);
+		buffer.putInt (4, microseconds());
+		buffer.putInt (8, this.replyMicroseconds);
+		buffer.putInt (12, getReceiveWindow());
+		buffer.putShort (18, (short) this.ackNumber);
+		this.socket.send (buffer, this.remoteAddress);
+
+		this.ackPending = false;
+
+	}
+
+
+	/**
+	 * Sends or resends a packet
+	 *
+	 * @param packet The packet
+	 * @param now The current time in system milliseconds
+	 */
+	private void transmit (Packet packet, long now) {
+
+		transmit (packet.datagram);
+		packet.sentTime = now;
+		packet.transmissions++;
+		this.bytesInFlight += packet.payloadLength;
+		if (this.retransmitDeadline == 0) {
+			this.retransmitDeadline = now + this.timeout;
+		}
+
+	}
+
+
+	/**
+	 * Records a new packet as awaiting acknowledgement under the next sequence number
+	 *
+	 * @param packet The packet
+	 */
+	private void addOutstandingPacket (Packet packet) {
+
+		if (this.outstandingPackets == null) {
+			this.outstandingPackets = new Packet[SEQUENCE_WINDOW];
+		}
+		this.outstandingPackets[this.sequenceNumber & (SEQUENCE_WINDOW - 1)] = packet;
+		this.sequenceNumber = (this.sequenceNumber + 1) & 0xffff;
+
+	}
+
+
+	/**
+	 * Sends a new packet, taking its payload from the send buffer
+	 *
+	 * @param type The packet type
+	 * @param payloadLength The length of the payload
+	 * @param now The current time in system milliseconds
+	 */
+	private void sendNewPacket (int type, int payloadLength, long now) {
+
+		ByteBuffer buffer = ByteBuffer.allocate (HEADER_LENGTH + payloadLength);
+		putHeader (buffer, type, 0, this.sendId, this.sequenceNumber);
+		if (payloadLength > 0) {
+			this.sendBuffer.flip();
+			int limit = this.sendBuffer.limit();
+			this.sendBuffer.limit (payloadLength);
+			buffer.put (this.sendBuffer);
+			this.sendBuffer.limit (limit);
+			this.sendBuffer.compact();
+		}
+
+		Packet packet = new Packet (buffer.array(), payloadLength);
+		addOutstandingPacket (packet);
+		transmit (packet, now);
+
+	}
+
+
+	/**
+	 * Sends an acknowledgement, including a selective acknowledgement of any packets received
+	 * ahead of a missing packet
+	 *
+	 * @param stateSequenceNumber The sequence number to send
+	 */
+	private void sendState (int stateSequenceNumber) {
+
+		byte[] selectiveAck = null;
+		if (this.reorderCount > 0) {
+			// Bit i acknowledges sequence number ackNumber + 2 + i
+			int highestBit = 0;
+			for (int i = 0; i < SEQUENCE_WINDOW - 2; i++) {
+				if (this.reorderBuffer[(this.ackNumber + 2 + i) & (SEQUENCE_WINDOW - 1)] != null) {
+					highestBit = i;
+				}
+			}
+			selectiveAck = new byte[Math.min (MAXIMUM_SELECTIVE_ACK_LENGTH, ((highestBit / 32) + 1) * 4)];
+			for (int i = 0; i < selectiveAck.length * 8; i++) {
+				if (this.reorderBuffer[(this.ackNumber + 2 + i) & (SEQUENCE_WINDOW - 1)] != null) {
+					selectiveAck[i / 8] |= 1 << (i % 8);
+				}
+			}
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate (HEADER_LENGTH + ((selectiveAck == null) ? 0 : 2 + selectiveAck.length));
+		putHeader (buffer, TYPE_STATE, (selectiveAck == null) ? 0 : EXTENSION_SELECTIVE_ACK, this.sendId, stateSequenceNumber);
+		if (selectiveAck != null) {
+			buffer.put ((byte) 0);
+			buffer.put ((byte) selectiveAck.length);
+			buffer.put (selectiveAck);
+		}
+
+		transmit (buffer.array());
+
+	}
+
+
+	/**
+	 * Sends whatever the congestion and receive windows allow: first any packets presumed lost,
+	 * then new data from the send buffer, then the finish packet once a locally closed
+	 * connection's data has all been sent
+	 *
+	 * @param now The current time in system milliseconds
+	 */
+	private void flush (long now) {
+
+		int window = Math.min (this.controller.getWindow(), this.remoteWindow);
+
+		// One packet may always be sent with nothing in flight, so that a closed window is probed
+		int outstandingCount = getOutstandingCount();
+		for (int i = 0; i < outstandingCount; i++) {
+			Packet packet = this.outstandingPackets[(this.oldestUnacknowledged + i) & (SEQUENCE_WINDOW - 1)];
+			if ((packet != null) && packet.needsResend) {
+				if ((this.bytesInFlight > 0) && (this.bytesInFlight + packet.payloadLength > window)) {
+					return;
+				}
+				packet.needsResend = false;
+				transmit (packet, now);
+			}
+		}
+
+		if (this.state != State.CONNECTED) {
+			return;
+		}
+
+		while ((getSendBufferedBytes() > 0) && (getOutstandingCount() < SEQUENCE_WINDOW - 1)) {
+			int payloadLength = Math.min (MAXIMUM_PAYLOAD, getSendBufferedBytes());
+			if ((this.bytesInFlight > 0) && (this.bytesInFlight + payloadLength > window)) {
+				return;
+			}
+			sendNewPacket (TYPE_DATA, payloadLength, now);
+		}
+
+		if (this.closedLocally && (getSendBufferedBytes() == 0) && (getOutstandingCount() < SEQUENCE_WINDOW - 1)) {
+			sendNewPacket (TYPE_FIN, 0, now);
+			this.state = State.FIN_SENT;
+		}
+
+	}
+
+
+	/**
+	 * Updates the round trip time and retransmission timeout from a sample
+	 *
+	 * @param sample The measured round trip time in milliseconds
+	 */
+	private void updateRoundTripTime (long sample) {
+
+		if (this.roundTripTime < 0) {
+			this.roundTripTime = sample;
+			this.roundTripTimeVariance = sample / 2;
+		} else {
+			this.roundTripTimeVariance += (Math.abs (this.roundTripTime - sample) - this.roundTripTimeVariance) / 4;
+			this.roundTripTime += (sample - this.roundTripTime) / 8;
+		}
+
+		this.timeout = Math.max (MINIMUM_TIMEOUT, this.roundTripTime + (4 * this.roundTripTimeVariance));
+
+	}
+
+
+	/**
+	 * Removes an acknowledged packet
+	 *
+	 * @param index The index of the packet in the outstanding packets
+	 * @param now The current time in system milliseconds
+	 * @return The packet's payload length, or 0 if the packet was already acknowledged
+	 */
+	private int acknowledgePacket (int index, long now) {
+
+		Packet packet = this.outstandingPackets[index];
+		if (packet == null) {
+			return 0;
+		}
+
+		this.outstandingPackets[index] = null;
+		if (!packet.needsResend) {
+			this.bytesInFlight -= packet.payloadLength;
+		}
+
+		// A retransmitted packet's acknowledgement could belong to any transmission
+		if (packet.transmissions == 1) {
+			updateRoundTripTime (now - packet.sentTime);
+		}
+
+		return packet.payloadLength;
+
+	}
+
+
+	/**
+	 * Processes the acknowledgement fields of a received packet
+	 *
+	 * @param packetAckNumber The packet's acknowledgement number
+	 * @param selectiveAck The packet's selective acknowledgement bitmask, or {@code null}
+	 * @param timestampDifference The packet's timestamp difference
+	 * @param pureAck {@code true} if the packet carries no data, otherwise {@code false}
+	 * @param now The current time in system milliseconds
+	 */
+	private void processAck (int packetAckNumber, ByteBuffer selectiveAck, int timestampDifference, boolean pureAck, long now) {
+
+		int outstandingCount = getOutstandingCount();
+		int ackedCount = distance (this.oldestUnacknowledged, (packetAckNumber + 1) & 0xffff);
+		if (ackedCount > outstandingCount) {
+			// Acknowledges nothing that was sent
+			return;
+		}
+
+		int bytesAcknowledged = 0;
+		for (int i = 0; i < ackedCount; i++) {
+			bytesAcknowledged += acknowledgePacket ((this.oldestUnacknowledged + i) & (SEQUENCE_WINDOW - 1), now);
+		}
+		this.oldestUnacknowledged = (this.oldestUnacknowledged + ackedCount) & 0xffff;
+		outstandingCount -= ackedCount;
+
+		if (ackedCount > 0) {
+			this.duplicateAcks = 0;
+			this.retransmissions = 0;
+			this.retransmitDeadline = (outstandingCount > 0) ? now + this.timeout : 0;
+		} else if (pureAck && (outstandingCount > 0)) {
+			this.duplicateAcks++;
+		}
+
+		// Bit i of the selective acknowledgement acknowledges packetAckNumber + 2 + i, which is
+		// i + 1 packets beyond the oldest unacknowledged packet
+		int selectivelyAcked = 0;
+		if (selectiveAck != null) {
+			for (int i = 0; (i < selectiveAck.remaining() * 8) && (i + 1 < outstandingCount); i++) {
+				if ((selectiveAck.get (selectiveAck.position() + (i / 8)) & (1 << (i % 8))) != 0) {
+					bytesAcknowledged += acknowledgePacket ((this.oldestUnacknowledged + i + 1) & (SEQUENCE_WINDOW - 1), now);
+					selectivelyAcked++;
+				}
+			}
+		}
+
+		// Presume the oldest packet lost if enough later packets have arrived without it
+		if (
+				   ((this.duplicateAcks >= DUPLICATE_ACK_THRESHOLD) || (selectivelyAcked >= DUPLICATE_ACK_THRESHOLD))
+				&& (outstandingCount > 0)
+		   )
+		{
+			Packet packet = this.outstandingPackets[this.oldestUnacknowledged & (SEQUENCE_WINDOW - 1)];
+			if ((packet != null) && !packet.needsResend) {
+				if (distance (this.lossRecoverySequenceNumber, this.oldestUnacknowledged) < 0x8000) {
+					this.controller.packetLost();
+					this.lossRecoverySequenceNumber = this.sequenceNumber;
+				}
+				// Resent at once whatever the window, which the halving may have closed behind the
+				// later packets still counted in flight
+				this.bytesInFlight -= packet.payloadLength;
+				transmit (packet, now);
+			}
+			this.duplicateAcks = 0;
+		}
+
+		if (timestampDifference != 0) {
+			this.controller.delaySample (timestampDifference & 0xffffffffL, now);
+		}
+		if (bytesAcknowledged > 0) {
+			this.controller.bytesAcknowledged (bytesAcknowledged, this.bytesInFlight);
+		}
+
+	}
+
+
+	/**
+	 * Appends a received payload to the data available for reading
+	 *
+	 * @param payload The payload
+	 * @return {@code true} if the payload was accepted, or {@code false} if there is no room for
+	 *         it
+	 */
+	private boolean deliver (ByteBuffer payload) {
+
+		// Data arriving after a local close is acknowledged but discarded
+		if (this.closedLocally) {
+			return true;
+		}
+
+		if (payload.remaining() > RECEIVE_BUFFER_LENGTH - getReceiveBufferedBytes()) {
+			return false;
+		}
+		if (this.receiveBuffer == null) {
+			this.receiveBuffer = ByteBuffer.allocate (RECEIVE_BUFFER_LENGTH);
+		}
+		this.receiveBuffer.put (payload);
+
+		return true;
+
+	}
+
+
+	/**
+	 * Delivers any held payloads that follow the last packet received in order
+	 */
+	private void drainReorderBuffer() {
+
+		while (this.reorderCount > 0) {
+			int next = (this.ackNumber + 1) & 0xffff;
+			int index = next & (SEQUENCE_WINDOW - 1);
+			byte[] payload = this.reorderBuffer[index];
+			if ((payload == null) || !deliver (ByteBuffer.wrap (payload))) {
+				break;
+			}
+			this.reorderBuffer[index] = null;
+			this.reorderCount--;
+			this.reorderBytes -= payload.length;
+			this.ackNumber = next;
+		}
+
+		if ((this.finSequenceNumber != -1) && (this.ackNumber == this.finSequenceNumber)) {
+			this.endOfStream = true;
+		}
+
+	}
+
+
+	/**
+	 * Processes a received data or finish packet
+	 *
+	 * @param type The packet type
+	 * @param packetSequenceNumber The packet's sequence number
+	 * @param payload The packet's payload
+	 */
+	private void dataReceived (int type, int packetSequenceNumber, ByteBuffer payload) {
+
+		this.ackPending = true;
+
+		int offset = distance ((this.ackNumber + 1) & 0xffff, packetSequenceNumber);
+		if (offset >= SEQUENCE_WINDOW) {
+			// A duplicate of a packet already received, or too far ahead to hold
+			return;
+		}
+
+		if (type == TYPE_FIN) {
+			this.finSequenceNumber = packetSequenceNumber;
+		}
+
+		if (offset == 0) {
+			if (deliver (payload)) {
+				this.ackNumber = packetSequenceNumber;
+				drainReorderBuffer();
+			}
+		} else {
+			if (this.reorderBuffer == null) {
+				this.reorderBuffer = new byte[SEQUENCE_WINDOW][];
+			}
+			int index = packetSequenceNumber & (SEQUENCE_WINDOW - 1);
+			if ((this.reorderBuffer[index] == null) && (payload.remaining() <= getReceiveWindow())) {
+				byte[] held = new byte[payload.remaining()];
+				payload.get (held);
+				this.reorderBuffer[index] = held;
+				this.reorderCount++;
+				this.reorderBytes += held.length;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Fails the connection. A pending outbound connection is rejected; an established connection
+	 * reports the failure to its next reader
+	 */
+	private void fail() {
+
+		if (this.state == State.SYN_SENT) {
+			final OutboundConnectionListener listener = this.outboundListener;
+			this.socket.addEvent (new Runnable() {
+				public void run() {
+					listener.rejected (UtpConnection.this);
+				}
+			});
+		} else {
+			this.failed = true;
+		}
+
+		this.state = State.CLOSED;
+		this.socket.remove (this, this.failed && !this.closedLocally);
+
+	}
+
+
+	/**
+	 * Opens an outbound connection by sending a connection request. Called by the socket
+	 *
+	 * @param receiveId The connection ID of packets to be received
+	 * @param initialSequenceNumber The first sequence number to send
+	 * @param listener The listener to inform when the connection completes or fails
+	 * @param deadline The time by which the connection must complete, in system milliseconds
+	 * @param now The current time in system milliseconds
+	 */
+	void connect (int receiveId, int initialSequenceNumber, OutboundConnectionListener listener, long deadline, long now) {
+
+		this.state = State.SYN_SENT;
+		this.receiveId = receiveId;
+		this.sendId = (receiveId + 1) & 0xffff;
+		this.sequenceNumber = initialSequenceNumber;
+		this.oldestUnacknowledged = initialSequenceNumber;
+		this.lossRecoverySequenceNumber = initialSequenceNumber;
+		this.outboundListener = listener;
+		this.connectDeadline = deadline;
+
+		// The connection request carries the receive ID rather than the send ID
+		ByteBuffer buffer = ByteBuffer.allocate (HEADER_LENGTH);
+		putHeader (buffer, TYPE_SYN, 0, this.receiveId, this.sequenceNumber);
+		Packet packet = new Packet (buffer.array(), 0);
+		addOutstandingPacket (packet);
+		transmit (packet, now);
+
+	}
+
+
+	/**
+	 * Accepts an inbound connection request. Called by the socket
+	 *
+	 * @param receiveId The connection ID of packets to be received
+	 * @param initialSequenceNumber The first sequence number to send
+	 * @param synSequenceNumber The sequence number of the connection request
+	 * @param timestamp The timestamp of the connection request
+	 * @param windowSize The receive window advertised by the connection request
+	 */
+	void accept (int receiveId, int initialSequenceNumber, int synSequenceNumber, int timestamp, long windowSize) {
+
+		this.state = State.CONNECTED;
+		this.receiveId = receiveId;
+		this.sendId = (receiveId - 1) & 0xffff;
+		this.sequenceNumber = initialSequenceNumber;
+		this.oldestUnacknowledged = initialSequenceNumber;
+		this.lossRecoverySequenceNumber = initialSequenceNumber;
+		this.initialSequenceNumber = initialSequenceNumber;
+		this.ackNumber = synSequenceNumber;
+		this.replyMicroseconds = microseconds() - timestamp;
+		this.remoteWindow = (int) Math.min (windowSize, Integer.MAX_VALUE);
+
+		// The acknowledgement carries the first sequence number to be sent, however much data is
+		// sent before the remote peer receives it
+		sendState (initialSequenceNumber);
+
+	}
+
+
+	/**
+	 * Processes a received packet. Called by the socket
+	 *
+	 * @param type The packet type
+	 * @param timestamp The packet's timestamp
+	 * @param timestampDifference The packet's timestamp difference
+	 * @param windowSize The packet's advertised receive window
+	 * @param packetSequenceNumber The packet's sequence number
+	 * @param packetAckNumber The packet's acknowledgement number
+	 * @param selectiveAck The packet's selective acknowledgement bitmask, or {@code null}
+	 * @param payload The packet's payload
+	 * @param now The current time in system milliseconds
+	 */
+	void packetReceived (int type, int timestamp, int timestampDifference, long windowSize, int packetSequenceNumber, int packetAckNumber,
+			ByteBuffer selectiveAck, ByteBuffer payload, long now)
+	{
+
+		if (this.state == State.CLOSED) {
+			return;
+		}
+
+		if (type == TYPE_RESET) {
+			fail();
+			return;
+		}
+
+		this.replyMicroseconds = microseconds() - timestamp;
+		this.remoteWindow = (int) Math.min (windowSize, Integer.MAX_VALUE);
+
+		if (type == TYPE_SYN) {
+			// A repeated connection request; acknowledge it again
+			sendState (this.initialSequenceNumber);
+			return;
+		}
+
+		if (this.state == State.SYN_SENT) {
+			// The acknowledgement carries the sequence number of the remote peer's first packet.
+			// If that peer has already sent data, its first data packet may arrive first instead
+			this.ackNumber = (packetSequenceNumber - 1) & 0xffff;
+			this.state = State.CONNECTED;
+			final OutboundConnectionListener listener = this.outboundListener;
+			this.socket.addEvent (new Runnable() {
+				public void run() {
+					listener.connected (UtpConnection.this);
+				}
+			});
+		}
+
+		processAck (packetAckNumber, selectiveAck, timestampDifference, (type == TYPE_STATE), now);
+
+		if ((type == TYPE_DATA) || (type == TYPE_FIN)) {
+			dataReceived (type, packetSequenceNumber, payload);
+		}
+
+		if ((this.state == State.FIN_SENT) && (getOutstandingCount() == 0)) {
+			this.state = State.CLOSED;
+			this.socket.remove (this, false);
+			return;
+		}
+
+		flush (now);
+
+	}
+
+
+	/**
+	 * Handles expired timers and sends any pending acknowledgement. Called by the socket
+	 *
+	 * @param now The current time in system milliseconds
+	 */
+	void processTimers (long now) {
+
+		if ((this.state == State.SYN_SENT) && (now >= this.connectDeadline)) {
+			fail();
+			return;
+		}
+
+		if ((this.retransmitDeadline != 0) && (now >= this.retransmitDeadline)) {
+			if (++this.retransmissions > MAXIMUM_RETRANSMISSIONS) {
+				fail();
+				return;
+			}
+			this.timeout = Math.min (MAXIMUM_TIMEOUT, this.timeout * 2);
+			this.controller.timedOut();
+			this.lossRecoverySequenceNumber = this.sequenceNumber;
+
+			// Presume everything outstanding lost
+			int outstandingCount = getOutstandingCount();
+			for (int i = 0; i < outstandingCount; i++) {
+				Packet packet = this.outstandingPackets[(this.oldestUnacknowledged + i) & (SEQUENCE_WINDOW - 1)];
+				if (packet != null) {
+					packet.needsResend = true;
+				}
+			}
+			this.bytesInFlight = 0;
+			this.retransmitDeadline = 0;
+			flush (now);
+		}
+
+		if (this.ackPending && (this.state != State.SYN_SENT)) {
+			sendState (this.sequenceNumber);
+		}
+
+	}
+
+
+	/**
+	 * @param now The current time in system milliseconds
+	 * @return The time in milliseconds until the connection next needs attention, or 0 if it
+	 *         needs attention now. Called by the socket
+	 */
+	long getTimerDelay (long now) {
+
+		if (this.ackPending || isReadable (now) || isWriteable (now)) {
+			return 0;
+		}
+
+		long delay = Long.MAX_VALUE;
+		if (this.readSuspendedUntil > now) {
+			delay = this.readSuspendedUntil - now;
+		}
+		if (this.writeSuspendedUntil > now) {
+			delay = Math.min (delay, this.writeSuspendedUntil - now);
+		}
+		if (this.retransmitDeadline != 0) {
+			delay = Math.min (delay, this.retransmitDeadline - now);
+		}
+		if (this.state == State.SYN_SENT) {
+			delay = Math.min (delay, this.connectDeadline - now);
+		}
+
+		return Math.max (0, delay);
+
+	}
+
+
+	/**
+	 * @param now The current time in system milliseconds
+	 * @return {@code true} if the connection has data, an end of stream or a failure to report to
+	 *         a reader and reading is not suspended, otherwise {@code false}. Called by the socket
+	 */
+	boolean isReadable (long now) {
+
+		return !this.closedLocally && (now >= this.readSuspendedUntil) && ((getReceiveBufferedBytes() > 0) || ((this.endOfStream || this.failed) && !this.endReported));
+
+	}
+
+
+	/**
+	 * @param now The current time in system milliseconds
+	 * @return {@code true} if writing is enabled and not suspended, and there is room in the send
+	 *         buffer, otherwise {@code false}. Called by the socket
+	 */
+	boolean isWriteable (long now) {
+
+		return this.writeEnabled && (now >= this.writeSuspendedUntil) && !this.closedLocally && (this.state == State.CONNECTED) && (getSendBufferedBytes() < SEND_BUFFER_LENGTH);
+
+	}
+
+
+	/**
+	 * @return The connection ID of packets received on the connection
+	 */
+	int getReceiveId() {
+
+		return this.receiveId;
+
+	}
+
+
+	// Transport
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#suspend(int, long)
+	 */
+	@Override
+	void suspend (int operation, long delay) {
+
+		synchronized (this.socket) {
+			long until = System.currentTimeMillis() + delay;
+			if (operation == SelectionKey.OP_READ) {
+				this.readSuspendedUntil = until;
+			} else {
+				this.writeSuspendedUntil = until;
+			}
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#transportRead(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	long transportRead (ByteBuffer[] buffers, int offset, int length) throws IOException {
+
+		synchronized (this.socket) {
+
+			long bytesRead = 0;
+			for (int i = offset; i < offset + length; i++) {
+				int bufferBytesRead = transportRead (buffers[i]);
+				if (bufferBytesRead == -1) {
+					return (bytesRead == 0) ? -1 : bytesRead;
+				}
+				bytesRead += bufferBytesRead;
+				if (buffers[i].hasRemaining()) {
+					break;
+				}
+			}
+
+			return bytesRead;
+
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#transportRead(java.nio.ByteBuffer)
+	 */
+	@Override
+	int transportRead (ByteBuffer buffer) throws IOException {
+
+		synchronized (this.socket) {
+
+			if (this.closedLocally) {
+				throw new ClosedChannelException();
+			}
+
+			if (getReceiveBufferedBytes() == 0) {
+				if (this.failed) {
+					this.endReported = true;
+					throw new IOException ("Connection reset");
+				}
+				if (this.endOfStream) {
+					this.endReported = true;
+					return -1;
+				}
+				return 0;
+			}
+
+			boolean windowWasClosing = (getReceiveWindow() < 4 * PACKET_LENGTH);
+
+			this.receiveBuffer.flip();
+			int bytesRead = Math.min (buffer.remaining(), this.receiveBuffer.remaining());
+			int limit = this.receiveBuffer.limit();
+			this.receiveBuffer.limit (bytesRead);
+			buffer.put (this.receiveBuffer);
+			this.receiveBuffer.limit (limit);
+			this.receiveBuffer.compact();
+
+			drainReorderBuffer();
+
+			// Tell the remote peer promptly that its window has reopened
+			if (windowWasClosing) {
+				this.ackPending = true;
+				this.socket.wakeup();
+			}
+
+			return bytesRead;
+
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#transportWrite(java.nio.ByteBuffer[], int, int)
+	 */
+	@Override
+	long transportWrite (ByteBuffer[] buffers, int offset, int length) throws IOException {
+
+		synchronized (this.socket) {
+
+			long bytesWritten = 0;
+			for (int i = offset; i < offset + length; i++) {
+				bytesWritten += transportWrite (buffers[i]);
+				if (buffers[i].hasRemaining()) {
+					break;
+				}
+			}
+
+			return bytesWritten;
+
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#transportWrite(java.nio.ByteBuffer)
+	 */
+	@Override
+	int transportWrite (ByteBuffer buffer) throws IOException {
+
+		synchronized (this.socket) {
+
+			if (this.closedLocally) {
+				throw new ClosedChannelException();
+			}
+			if (this.failed) {
+				throw new IOException ("Connection reset");
+			}
+
+			if (this.sendBuffer == null) {
+				this.sendBuffer = ByteBuffer.allocate (SEND_BUFFER_LENGTH);
+			}
+			int bytesWritten = Math.min (buffer.remaining(), this.sendBuffer.remaining());
+			int limit = buffer.limit();
+			buffer.limit (buffer.position() + bytesWritten);
+			this.sendBuffer.put (buffer);
+			buffer.limit (limit);
+
+			flush (System.currentTimeMillis());
+
+			return bytesWritten;
+
+		}
+
+	}
+
+
+	// Channel interface
+
+	/**
+	 * Closes the connection. Data already written continues to be sent, followed by a finish
+	 * packet; data received after the close is discarded
+	 */
+	@Override
+	public void close() throws IOException {
+
+		synchronized (this.socket) {
+
+			if (this.closedLocally) {
+				return;
+			}
+
+			this.closedLocally = true;
+			this.writeEnabled = false;
+			this.receiveBuffer = null;
+
+			if ((this.state == State.SYN_SENT) || (this.state == State.CLOSED)) {
+				this.state = State.CLOSED;
+				this.socket.remove (this, false);
+			} else {
+				this.socket.connectionClosed (this);
+				flush (System.currentTimeMillis());
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Closes the connection at once with a reset packet, discarding any data not yet sent
+	 * rather than retransmitting it
+	 *
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#abort()
+	 */
+	@Override
+	void abort() throws IOException {
+
+		synchronized (this.socket) {
+
+			if (this.state == State.CLOSED) {
+				this.closedLocally = true;
+				return;
+			}
+
+			this.closedLocally = true;
+			this.writeEnabled = false;
+			this.sendBuffer = null;
+			this.receiveBuffer = null;
+			this.reorderBuffer = null;
+			this.outstandingPackets = null;
+
+			if (this.state != State.SYN_SENT) {
+				this.socket.send (resetPacket (this.sendId, this.sequenceNumber, this.ackNumber), this.remoteAddress);
+			}
+			this.state = State.CLOSED;
+			this.socket.remove (this, false);
+
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+
+		synchronized (this.socket) {
+			return !this.closedLocally;
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#getRemoteSocketAddress()
+	 */
+	@Override
+	public InetSocketAddress getRemoteSocketAddress() {
+
+		return this.remoteAddress;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#getRemoteAddress()
+	 */
+	@Override
+	public InetAddress getRemoteAddress() {
+
+		return this.remoteAddress.getAddress();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#getRemotePort()
+	 */
+	@Override
+	public int getRemotePort() {
+
+		return this.remoteAddress.getPort();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#adjustBufferSizes(long, long)
+	 */
+	@Override
+	public void adjustBufferSizes (long receiveRate, long sendRate) {
+
+		// The connection's buffers are its own, and its window is governed by congestion control
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#setWriteEnabled(boolean)
+	 */
+	@Override
+	public void setWriteEnabled (boolean enabled) {
+
+		synchronized (this.socket) {
+			this.writeEnabled = enabled;
+		}
+
+		if (enabled) {
+			this.socket.wakeup();
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#getTimerEventLoop()
+	 */
+	@Override
+	EventLoop getTimerEventLoop() {
+
+		return this.socket.getEventLoop();
+
+	}
+
+
+	/**
+	 * @return The socket that carries the connection
+	 */
+	UtpSocket getSocket() {
+
+		return this.socket;
+
+	}
+
+
+	/**
+	 * @param connectionManager The ConnectionManager that manages the connection's socket
+	 * @param socket The socket that carries the connection
+	 * @param remoteAddress The remote peer's address
+	 */
+	UtpConnection (ConnectionManager connectionManager, UtpSocket socket, InetSocketAddress remoteAddress) {
+
+		super (connectionManager, null);
+
+		this.socket = socket;
+		this.remoteAddress = remoteAddress;
+
+	}
+
+
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.connectionmanager;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+
+/**
+ * A UDP socket carrying any number of {@link UtpConnection}s, which are distinguished by their
+ * remote address and connection ID
+ *
+ * <p>The socket's datagram channel is registered with the selector of a single event loop, and
+ * all of the socket's methods except {@link #send(ByteBuffer, InetSocketAddress)} are called from
+ * that loop's thread. Listener callbacks arising from received packets are queued, and made by
+ * {@link #dispatchEvents()} outside the socket's lock.
+ */
+public class UtpSocket {
+
+	/**
+	 * The length of the buffer that datagrams are received into
+	 */
+	private static final int DATAGRAM_BUFFER_LENGTH = 65536;
+
+
+	/**
+	 * A key identifying a connection within the socket
+	 */
+	private static class Key {
+
+		/**
+		 * The remote peer's address
+		 */
+		private final InetSocketAddress address;
+
+		/**
+		 * The connection ID of packets received on the connection
+		 */
+		private final int connectionId;
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+
+			return (31 * this.address.hashCode()) + this.connectionId;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals (Object other) {
+
+			if (!(other instanceof Key)) {
+				return false;
+			}
+
+			Key otherKey = (Key) other;
+			return this.address.equals (otherKey.address) && (this.connectionId == otherKey.connectionId);
+
+		}
+
+
+		/**
+		 * @param address The remote peer's address
+		 * @param connectionId The connection ID of packets received on the connection
+		 */
+		public Key (InetSocketAddress address, int connectionId) {
+
+			this.address = address;
+			this.connectionId = connectionId;
+
+		}
+
+	}
+
+
+	/**
+	 * The ConnectionManager that manages the socket
+	 */
+	private final ConnectionManager connectionManager;
+
+	/**
+	 * The event loop that services the socket and all of its connections
+	 */
+	private final EventLoop eventLoop;
+
+	/**
+	 * The datagram channel
+	 */
+	private final DatagramChannel datagramChannel;
+
+	/**
+	 * The listener to inform of inbound connections, or {@code null} to refuse them
+	 */
+	private final InboundConnectionListener inboundListener;
+
+	/**
+	 * The socket's connections
+	 */
+	private final Map<Key,UtpConnection> connections = new HashMap<Key,UtpConnection>();
+
+	/**
+	 * Failed connections that have been removed, and must be reported readable once more so that
+	 * their listeners learn of the failure
+	 */
+	private final List<UtpConnection> failedConnections = new ArrayList<UtpConnection>();
+
+	/**
+	 * Listener callbacks waiting to be made
+	 */
+	private final List<Runnable> events = new ArrayList<Runnable>();
+
+	/**
+	 * The buffer that datagrams are received into
+	 */
+	private final ByteBuffer datagramBuffer = ByteBuffer.allocate (DATAGRAM_BUFFER_LENGTH);
+
+	/**
+	 * The source of connection IDs and initial sequence numbers
+	 */
+	private final Random random = new Random();
+
+
+	/**
+	 * Processes a received datagram
+	 *
+	 * @param address The sender's address
+	 * @param datagram The datagram
+	 * @param now The current time in system milliseconds
+	 */
+	private void processDatagram (InetSocketAddress address, ByteBuffer datagram, long now) {
+
+		if (datagram.remaining() < UtpConnection.HEADER_LENGTH) {
+			return;
+		}
+
+		int typeVersion = datagram.get() & 0xff;
+		int type = typeVersion >> 4;
+		if (((typeVersion & 0x0f) != UtpConnection.VERSION) || (type > UtpConnection.TYPE_SYN)) {
+			return;
+		}
+		int extension = datagram.get() & 0xff;
+		int connectionId = datagram.getShort() & 0xffff;
+		int timestamp = datagram.getInt();
+		int timestampDifference = datagram.getInt();
+		long windowSize = datagram.getInt() & 0xffffffffL;
+		int sequenceNumber = datagram.getShort() & 0xffff;
+		int ackNumber = datagram.getShort() & 0xffff;
+
+		ByteBuffer selectiveAck = null;
+		while (extension != 0) {
+			if (datagram.remaining() < 2) {
+				return;
+			}
+			int nextExtension = datagram.get() & 0xff;
+			int length = datagram.get() & 0xff;
+			if (datagram.remaining() < length) {
+				return;
+			}
+			if (extension == UtpConnection.EXTENSION_SELECTIVE_ACK) {
+				selectiveAck = datagram.slice();
+				selectiveAck.limit (length);
+			}
+			datagram.position (datagram.position() + length);
+			extension = nextExtension;
+		}
+
+		if (type == UtpConnection.TYPE_SYN) {
+			// The connection request carries the initiator's receive ID; ours is one greater
+			int receiveId = (connectionId + 1) & 0xffff;
+			Key key = new Key (address, receiveId);
+			UtpConnection connection = this.connections.get (key);
+			if (connection != null) {
+				connection.packetReceived (type, timestamp, timestampDifference, windowSize, sequenceNumber, ackNumber, selectiveAck, datagram, now);
+			} else if (this.inboundListener != null) {
+				// A request over the pending connection limits is dropped, and the remote peer
+				// may try again
+				final UtpConnection newConnection = new UtpConnection (this.connectionManager, this, address);
+				if (!this.connectionManager.acceptedUtp (newConnection)) {
+					return;
+				}
+				newConnection.accept (receiveId, this.random.nextInt() & 0xffff, sequenceNumber, timestamp, windowSize);
+				this.connections.put (key, newConnection);
+				final InboundConnectionListener listener = this.inboundListener;
+				addEvent (new Runnable() {
+					public void run() {
+						listener.accepted (newConnection);
+					}
+				});
+			}
+			return;
+		}
+
+		UtpConnection connection = this.connections.get (new Key (address, connectionId));
+		if (connection != null) {
+			connection.packetReceived (type, timestamp, timestampDifference, windowSize, sequenceNumber, ackNumber, selectiveAck, datagram, now);
+		} else if ((type == UtpConnection.TYPE_DATA) || (type == UtpConnection.TYPE_FIN)) {
+			send (UtpConnection.resetPacket (connectionId, this.random.nextInt() & 0xffff, sequenceNumber), address);
+		}
+
+	}
+
+
+	/**
+	 * Sends a datagram. A datagram that cannot be sent is treated as lost in transit
+	 *
+	 * @param datagram The datagram to send
+	 * @param address The address to send to
+	 */
+	void send (ByteBuffer datagram, InetSocketAddress address) {
+
+		try {
+			this.datagramChannel.send (datagram, address);
+		} catch (IOException e) {
+			// Recovered from by retransmission, as for any other lost packet
+		}
+
+	}
+
+
+	/**
+	 * Queues a listener callback to be made by {@link #dispatchEvents()}
+	 *
+	 * @param event The callback
+	 */
+	void addEvent (Runnable event) {
+
+		this.events.add (event);
+
+	}
+
+
+	/**
+	 * Removes a finished connection
+	 *
+	 * @param connection The connection to remove
+	 * @param notify If {@code true}, the connection is reported readable once more so that its
+	 *        listener learns of its failure
+	 */
+	void remove (UtpConnection connection, boolean notify) {
+
+		this.connections.remove (new Key (connection.getRemoteSocketAddress(), connection.getReceiveId()));
+		if (notify) {
+			this.failedConnections.add (connection);
+		}
+		connectionClosed (connection);
+
+	}
+
+
+	/**
+	 * Informs the ConnectionManager that a connection has been closed or has failed, so that it is
+	 * no longer pending
+	 *
+	 * @param connection The connection
+	 */
+	void connectionClosed (UtpConnection connection) {
+
+		this.connectionManager.connectionEstablished (connection);
+
+	}
+
+
+	/**
+	 * Wakes the selection thread, so that newly enabled writes or pending acknowledgements are
+	 * seen promptly
+	 */
+	void wakeup() {
+
+		this.eventLoop.wakeup();
+
+	}
+
+
+	/**
+	 * Receives and processes all waiting datagrams. Called by the ConnectionManager when the
+	 * socket's channel is readable
+	 *
+	 * @param now The current time in system milliseconds
+	 * @throws IOException On any I/O error receiving from the channel
+	 */
+	synchronized void processReadable (long now) throws IOException {
+
+		while (true) {
+			this.datagramBuffer.clear();
+			SocketAddress address = this.datagramChannel.receive (this.datagramBuffer);
+			if (address == null) {
+				break;
+			}
+			this.datagramBuffer.flip();
+			processDatagram ((InetSocketAddress) address, this.datagramBuffer, now);
+		}
+
+	}
+
+
+	/**
+	 * Opens an outbound connection
+	 *
+	 * @param connection The connection to open
+	 * @param listener The listener to inform when the connection completes or fails
+	 * @param deadline The time by which the connection must complete, in system milliseconds
+	 */
+	synchronized void connect (UtpConnection connection, OutboundConnectionListener listener, long deadline) {
+
+		int receiveId;
+		do {
+			receiveId = this.random.nextInt() & 0xffff;
+		} while (this.connections.containsKey (new Key (connection.getRemoteSocketAddress(), receiveId)));
+
+		connection.connect (receiveId, this.random.nextInt() & 0xffff, listener, deadline, System.currentTimeMillis());
+		this.connections.put (new Key (connection.getRemoteSocketAddress(), receiveId), connection);
+
+	}
+
+
+	/**
+	 * Handles the connections' expired timers and pending acknowledgements, and collects those
+	 * connections that are ready to be read or written
+	 *
+	 * @param now The current time in system milliseconds
+	 * @param readyConnections A set to add ready connections to
+	 */
+	synchronized void service (long now, Set<Connection> readyConnections) {
+
+		for (UtpConnection connection : new ArrayList<UtpConnection> (this.connections.values())) {
+			connection.processTimers (now);
+		}
+
+		for (UtpConnection connection : this.connections.values()) {
+			if (connection.isReadable (now)) {
+				connection.setReadable();
+				readyConnections.add (connection);
+			}
+			if (connection.isWriteable (now)) {
+				connection.setWriteable();
+				readyConnections.add (connection);
+			}
+		}
+
+		for (UtpConnection connection : this.failedConnections) {
+			connection.setReadable();
+			readyConnections.add (connection);
+		}
+		this.failedConnections.clear();
+
+	}
+
+
+	/**
+	 * Makes any queued listener callbacks. Called by the ConnectionManager without holding the
+	 * socket's lock
+	 */
+	void dispatchEvents() {
+
+		List<Runnable> pendingEvents;
+		synchronized (this) {
+			if (this.events.isEmpty()) {
+				return;
+			}
+			pendingEvents = new ArrayList<Runnable> (this.events);
+			this.events.clear();
+		}
+
+		for (Runnable event : pendingEvents) {
+			event.run();
+		}
+
+	}
+
+
+	/**
+	 * @param now The current time in system milliseconds
+	 * @return The time in milliseconds until a connection next needs attention, 0 if one needs
+	 *         attention now, or {@code Long.MAX_VALUE} if none has a timer running
+	 */
+	synchronized long getTimerDelay (long now) {
+
+		if (!this.events.isEmpty() || !this.failedConnections.isEmpty()) {
+			return 0;
+		}
+
+		long delay = Long.MAX_VALUE;
+		for (UtpConnection connection : this.connections.values()) {
+			delay = Math.min (delay, connection.getTimerDelay (now));
+		}
+
+		return delay;
+
+	}
+
+
+	/**
+	 * @return The event loop that services the socket
+	 */
+	EventLoop getEventLoop() {
+
+		return this.eventLoop;
+
+	}
+
+
+	/**
+	 * @return The socket's datagram channel
+	 */
+	DatagramChannel getDatagramChannel() {
+
+		return this.datagramChannel;
+
+	}
+
+
+	/**
+	 * @return The local port the socket is bound to
+	 */
+	public int getLocalPort() {
+
+		return this.datagramChannel.socket().getLocalPort();
+
+	}
+
+
+	/**
+	 * @param connectionManager The ConnectionManager that manages the socket
+	 * @param eventLoop The event loop that services the socket
+	 * @param datagramChannel The bound, non-blocking datagram channel
+	 * @param inboundListener The listener to inform of inbound connections, or {@code null} to
+	 *        refuse them
+	 */
+	UtpSocket (ConnectionManager connectionManager, EventLoop eventLoop, DatagramChannel datagramChannel, InboundConnectionListener inboundListener) {
+
+		this.connectionManager = connectionManager;
+		this.eventLoop = eventLoop;
+		this.datagramChannel = datagramChannel;
+		this.inboundListener = inboundListener;
+
+	}
+
+
+}
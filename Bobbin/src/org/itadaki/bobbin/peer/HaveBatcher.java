@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.peer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.itadaki.bobbin.util.BitField;
+
+
+/**
+ * Collects the piece numbers of newly completed pieces over a short window, so that the have
+ * messages for all of them can be sent to each peer together rather than one by one as each
+ * piece completes
+ *
+ * <p>The batcher does not schedule its own flushes; its owner is expected to call
+ * {@link #flush(Collection)} once the window has elapsed after {@link #add(int)} first reports
+ * a new batch.
+ */
+public class HaveBatcher {
+
+	/**
+	 * The default window over which completed pieces are collected, in milliseconds
+	 */
+	public static final int DEFAULT_WINDOW = 200;
+
+	/**
+	 * The window over which completed pieces are collected, in milliseconds
+	 */
+	private int window = DEFAULT_WINDOW;
+
+	/**
+	 * The piece numbers collected in the current batch, in order of completion
+	 */
+	private final List<Integer> pendingPieces = new ArrayList<Integer>();
+
+
+	/**
+	 * Adds a completed piece to the current batch
+	 *
+	 * @param pieceNumber The number of the completed piece
+	 * @return {@code true} if the piece begins a new batch, which should be flushed once the
+	 *         window has elapsed, otherwise {@code false}
+	 */
+	public boolean add (int pieceNumber) {
+
+		this.pendingPieces.add (pieceNumber);
+
+		return (this.pendingPieces.size() == 1);
+
+	}
+
+
+	/**
+	 * @return {@code true} if no pieces are waiting to be announced, otherwise {@code false}
+	 */
+	public boolean isEmpty() {
+
+		return this.pendingPieces.isEmpty();
+
+	}
+
+
+	/**
+	 * Announces the pieces in the current batch to a set of peers, and begins a new batch. Each
+	 * peer is sent only those pieces that it does not already have
+	 *
+	 * @param peers The peers to announce the pieces to
+	 */
+	public void flush (Collection<? extends ManageablePeer> peers) {
+
+		for (ManageablePeer peer : peers) {
+			BitField remoteBitField = peer.getRemoteBitField();
+			List<Integer> pieceNumbers = new ArrayList<Integer> (this.pendingPieces.size());
+			for (Integer pieceNumber : this.pendingPieces) {
+				if ((pieceNumber >= remoteBitField.length()) || !remoteBitField.get (pieceNumber)) {
+					pieceNumbers.add (pieceNumber);
+				}
+			}
+			if (!pieceNumbers.isEmpty()) {
+				peer.sendHavePieces (pieceNumbers);
+			}
+		}
+
+		this.pendingPieces.clear();
+
+	}
+
+
+	/**
+	 * @return The window over which completed pieces are collected, in milliseconds
+	 */
+	public int getWindow() {
+
+		return this.window;
+
+	}
+
+
+	/**
+	 * Sets the window over which completed pieces are collected. A window of zero indicates that
+	 * each piece should be announced as soon as it is completed
+	 *
+	 * @param window The window in milliseconds
+	 */
+	public void setWindow (int window) {
+
+		if (window < 0) {
+			throw new IllegalArgumentException ("Invalid window");
+		}
+
+		this.window = window;
+
+	}
+
+
+}
@@ -68,11 +68,49 @@ public interface ManageablePeer extends ExtensiblePeer {
 	 */
 	public void sendHavePiece (int pieceNumber);
 
+	/**
+	 * Informs the peer that we have a number of pieces. The peer may announce them either
+	 * individually or, where the protocol allows and it is shorter, through a new bitfield
+	 *
+	 * @param pieceNumbers The numbers of the pieces that we have
+	 */
+	public void sendHavePieces (List<Integer> pieceNumbers);
+
 	/**
 	 * Sends a keepalive to the peer if we are idle, or closes the connection if they are idle
 	 */
 	public void sendKeepaliveOrClose();
 
+	/**
+	 * Grows the connection's socket buffers if the peer's measured throughput calls for it
+	 */
+	public void adjustBufferSizes();
+
+	/**
+	 * Sets the maximum number of requests the remote peer may have pending before further
+	 * requests are ignored, advertising the new limit to the peer if it has changed
+	 *
+	 * @param inboundRequestLimit The maximum number of pending requests
+	 */
+	public void setInboundRequestLimit (int inboundRequestLimit);
+
+	/**
+	 * Sets the bounds within which the number of requests to keep outstanding to the remote peer
+	 * is adapted
+	 *
+	 * @param minimumDepth The minimum number of outstanding requests
+	 * @param maximumDepth The maximum number of outstanding requests
+	 */
+	public void setRequestDepthBounds (int minimumDepth, int maximumDepth);
+
+	/**
+	 * Sets the number of bytes of queued messages after which no further message is gathered into
+	 * a single write to the remote peer
+	 *
+	 * @param sendBatchLength The send batch length in bytes
+	 */
+	public void setSendBatchLength (int sendBatchLength);
+
 	/**
 	 * Sends a ViewSignature to the peer
 	 *
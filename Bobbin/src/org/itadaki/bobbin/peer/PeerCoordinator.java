@@ -23,10 +23,12 @@ import java.util.concurrent.locks.ReentrantLock;
 import org.itadaki.bobbin.connectionmanager.Connection;
 import org.itadaki.bobbin.connectionmanager.ConnectionManager;
 import org.itadaki.bobbin.connectionmanager.OutboundConnectionListener;
+import org.itadaki.bobbin.connectionmanager.TokenBucket;
 import org.itadaki.bobbin.peer.chokingmanager.ChokingManager;
 import org.itadaki.bobbin.peer.chokingmanager.DefaultChokingManager;
 import org.itadaki.bobbin.peer.extensionmanager.ExtensionManager;
 import org.itadaki.bobbin.peer.protocol.PeerConnectionListener;
+import org.itadaki.bobbin.peer.protocol.PeerProtocolConstants;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolNegotiator;
 import org.itadaki.bobbin.peer.requestmanager.DefaultRequestManager;
 import org.itadaki.bobbin.peer.requestmanager.RequestManagerListener;
@@ -77,6 +79,16 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	 */
 	private final ConnectionManager connectionManager;
 
+	/**
+	 * The rate limiter for data received from the peer set, nested within the ConnectionManager's
+	 */
+	private final TokenBucket downloadBucket;
+
+	/**
+	 * The rate limiter for data sent to the peer set, nested within the ConnectionManager's
+	 */
+	private final TokenBucket uploadBucket;
+
 	/**
 	 * The PeerSetContext for the managed torrent
 	 */
@@ -87,6 +99,33 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	 */
 	private final ChokingManager chokingManager;
 
+	/**
+	 * The maximum number of requests each remote peer may have pending, derived from the number
+	 * of upload slots
+	 */
+	private int inboundRequestLimit;
+
+	/**
+	 * The minimum number of requests to keep outstanding to each remote peer
+	 */
+	private int minimumRequestDepth = PeerProtocolConstants.MINIMUM_OUTBOUND_REQUESTS;
+
+	/**
+	 * The maximum number of requests to keep outstanding to each remote peer
+	 */
+	private int maximumRequestDepth = PeerProtocolConstants.MAXIMUM_OUTBOUND_REQUESTS;
+
+	/**
+	 * The number of bytes of queued messages after which no further message is gathered into a
+	 * single write to each remote peer
+	 */
+	private int sendBatchLength = PeerProtocolConstants.SEND_BATCH_LENGTH;
+
+	/**
+	 * Collects newly completed pieces to be announced to the peer set together
+	 */
+	private final HaveBatcher haveBatcher = new HaveBatcher();
+
 	/**
 	 * The local peer's ID
 	 */
@@ -190,9 +229,10 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 					// Perform the regular choke adjustment
 					adjustChoking (false);
 
-					// Send keepalives to any peers that need it
+					// Grow the buffers of fast peers. Keepalive and idle deadlines are kept by each
+					// peer on its connection's timer wheel
 					for (ManageablePeer peer : getConnectedPeers()) {
-						peer.sendKeepaliveOrClose();
+						peer.adjustBufferSizes();
 					}
 
 					// Clean unneeded views from the piece database
@@ -205,6 +245,21 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	};
 
 
+	/**
+	 * A task to announce the current batch of completed pieces to the peer set
+	 */
+	private final Runnable haveBatchRunnable = new Runnable() {
+		public void run() {
+			lock();
+			try {
+				PeerCoordinator.this.haveBatcher.flush (PeerCoordinator.this.connectedPeers);
+			} finally {
+				unlock();
+			}
+		}
+	};
+
+
 	/* PeerConnectionListener interface */
 
 	/* (non-Javadoc)
@@ -212,6 +267,18 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	 */
 	public void peerConnectionComplete (Connection connection, PeerID remotePeerID, boolean fastExtensionEnabled, boolean extensionProtocolEnabled) {
 
+		peerConnectionComplete (connection, remotePeerID, fastExtensionEnabled, extensionProtocolEnabled, null);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.protocol.PeerConnectionListener#peerConnectionComplete(org.itadaki.bobbin.connectionmanager.Connection, org.itadaki.bobbin.peer.PeerID, boolean, boolean, java.nio.ByteBuffer)
+	 */
+	public void peerConnectionComplete (Connection connection, PeerID remotePeerID, boolean fastExtensionEnabled, boolean extensionProtocolEnabled,
+			ByteBuffer handshake)
+	{
+
 		this.unconnectedPeers.remove (connection);
 
 		Info info = this.peerSetContext.pieceDatabase.getInfo();
@@ -243,7 +310,11 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 			}
 
 			// Register the peer
-			PeerHandler peer = new PeerHandler (this.peerSetContext, connection, remotePeerID, this.peerSetStatistics, fastExtensionEnabled, extensionProtocolEnabled);
+			PeerHandler peer = new PeerHandler (this.peerSetContext, connection, remotePeerID, this.peerSetStatistics, fastExtensionEnabled, extensionProtocolEnabled,
+					handshake);
+			connection.setRateLimiters (this.downloadBucket, this.uploadBucket);
+			peer.setRequestDepthBounds (this.minimumRequestDepth, this.maximumRequestDepth);
+			peer.setSendBatchLength (this.sendBatchLength);
 			this.connectedPeers.add (peer);
 			this.connectedPeerIDs.add (remotePeerID);
 			for (PeerCoordinatorListener listener : this.listeners) {
@@ -420,6 +491,13 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 		try {
 			if (this.peerSetContext.pieceDatabase.writePiece (piece)) {
 				this.peerSetContext.requestManager.setPieceNotNeeded (piece.getPieceNumber());
+				if (this.haveBatcher.add (piece.getPieceNumber())) {
+					if (this.haveBatcher.getWindow() == 0) {
+						this.haveBatcher.flush (this.connectedPeers);
+					} else {
+						this.workQueue.schedule (this.haveBatchRunnable, this.haveBatcher.getWindow(), TimeUnit.MILLISECONDS);
+					}
+				}
 			}
 			if ((this.peerSetContext.requestManager.getNeededPieceCount() == 0) && (this.peerSetContext.pieceDatabase.getInfo().getPieceStyle() != PieceStyle.ELASTIC)) {
 				for (PeerCoordinatorListener listener : this.listeners) {
@@ -648,6 +726,230 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	}
 
 
+	/**
+	 * Gets the maximum number of peers that will be unchoked at any one time
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @return The maximum number of unchoked peers
+	 */
+	public int getUploadSlots() {
+
+		lock();
+		try {
+			return this.chokingManager.getUploadSlots();
+		} finally {
+			unlock();
+		}
+
+	}
+
+
+	/**
+	 * Sets the maximum number of peers that will be unchoked at any one time. The number of
+	 * requests each remote peer may have pending is recalculated to share the inbound request
+	 * buffer between the new number of slots, and connected peers are informed of any change
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @param uploadSlots The maximum number of unchoked peers
+	 */
+	public void setUploadSlots (int uploadSlots) {
+
+		if (uploadSlots < 1) {
+			throw new IllegalArgumentException();
+		}
+
+		lock();
+		try {
+			this.chokingManager.setUploadSlots (uploadSlots);
+			updateInboundRequestLimit();
+		} finally {
+			unlock();
+		}
+
+	}
+
+
+	/**
+	 * Gets the maximum number of requests each remote peer may have pending before further
+	 * requests are ignored
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @return The maximum number of pending requests
+	 */
+	public int getInboundRequestLimit() {
+
+		lock();
+		try {
+			return this.inboundRequestLimit;
+		} finally {
+			unlock();
+		}
+
+	}
+
+
+	/**
+	 * Gets the window over which newly completed pieces are collected before being announced to
+	 * the peer set
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @return The window in milliseconds
+	 */
+	public int getHaveBatchWindow() {
+
+		lock();
+		try {
+			return this.haveBatcher.getWindow();
+		} finally {
+			unlock();
+		}
+
+	}
+
+
+	/**
+	 * Sets the window over which newly completed pieces are collected before being announced to
+	 * the peer set. A window of zero announces each piece as soon as it is completed
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @param haveBatchWindow The window in milliseconds
+	 */
+	public void setHaveBatchWindow (int haveBatchWindow) {
+
+		if (haveBatchWindow < 0) {
+			throw new IllegalArgumentException();
+		}
+
+		lock();
+		this.haveBatcher.setWindow (haveBatchWindow);
+		unlock();
+
+	}
+
+
+	/**
+	 * Gets the minimum number of requests to keep outstanding to each remote peer
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @return The minimum number of outstanding requests
+	 */
+	public int getMinimumRequestDepth() {
+
+		lock();
+		try {
+			return this.minimumRequestDepth;
+		} finally {
+			unlock();
+		}
+
+	}
+
+
+	/**
+	 * Gets the maximum number of requests to keep outstanding to each remote peer
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @return The maximum number of outstanding requests
+	 */
+	public int getMaximumRequestDepth() {
+
+		lock();
+		try {
+			return this.maximumRequestDepth;
+		} finally {
+			unlock();
+		}
+
+	}
+
+
+	/**
+	 * Sets the bounds within which the number of requests to keep outstanding to each remote peer
+	 * is adapted to the peer's measured rate and latency, for the connected peers and any that
+	 * connect later
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @param minimumDepth The minimum number of outstanding requests
+	 * @param maximumDepth The maximum number of outstanding requests
+	 * @throws IllegalArgumentException if the minimum is less than 1 or greater than the maximum
+	 */
+	public void setRequestDepthBounds (int minimumDepth, int maximumDepth) {
+
+		if ((minimumDepth < 1) || (maximumDepth < minimumDepth)) {
+			throw new IllegalArgumentException ("Invalid depth bounds");
+		}
+
+		lock();
+		try {
+			this.minimumRequestDepth = minimumDepth;
+			this.maximumRequestDepth = maximumDepth;
+			for (ManageablePeer peer : this.connectedPeers) {
+				peer.setRequestDepthBounds (minimumDepth, maximumDepth);
+			}
+		} finally {
+			unlock();
+		}
+
+	}
+
+
+	/**
+	 * Gets the number of bytes of queued messages after which no further message is gathered into
+	 * a single write to each remote peer
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @return The send batch length in bytes
+	 */
+	public int getSendBatchLength() {
+
+		lock();
+		try {
+			return this.sendBatchLength;
+		} finally {
+			unlock();
+		}
+
+	}
+
+
+	/**
+	 * Sets the number of bytes of queued messages after which no further message is gathered into
+	 * a single write to each remote peer, for the connected peers and any that connect later. A
+	 * write may exceed this by up to one message
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @param sendBatchLength The send batch length in bytes
+	 * @throws IllegalArgumentException if the length is less than 1
+	 */
+	public void setSendBatchLength (int sendBatchLength) {
+
+		if (sendBatchLength < 1) {
+			throw new IllegalArgumentException ("Invalid send batch length");
+		}
+
+		lock();
+		try {
+			this.sendBatchLength = sendBatchLength;
+			for (ManageablePeer peer : this.connectedPeers) {
+				peer.setSendBatchLength (sendBatchLength);
+			}
+		} finally {
+			unlock();
+		}
+
+	}
+
+
 	/**
 	 * Gets the maximum number of peer connections that this TorrentManager may be connected to
 	 *
@@ -715,6 +1017,62 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	}
 
 
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The limit on the rate of data received from the peer set in bytes per second, or 0
+	 *         if unlimited
+	 */
+	public long getDownloadRateLimit() {
+
+		return this.downloadBucket.getRate();
+
+	}
+
+
+	/**
+	 * Sets the limit on the rate of data received from the peer set. The limit applies in
+	 * addition to any global limit set on the ConnectionManager
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param rate The limit in bytes per second, or 0 for unlimited
+	 */
+	public void setDownloadRateLimit (long rate) {
+
+		this.downloadBucket.setRate (rate);
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The limit on the rate of data sent to the peer set in bytes per second, or 0 if
+	 *         unlimited
+	 */
+	public long getUploadRateLimit() {
+
+		return this.uploadBucket.getRate();
+
+	}
+
+
+	/**
+	 * Sets the limit on the rate of data sent to the peer set. The limit applies in addition to
+	 * any global limit set on the ConnectionManager
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param rate The limit in bytes per second, or 0 for unlimited
+	 */
+	public void setUploadRateLimit (long rate) {
+
+		this.uploadBucket.setRate (rate);
+
+	}
+
+
 	/**
 	 * Extends the piece database with additional bytes, notifying peers as appropriate
 	 *
@@ -870,6 +1228,27 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	}
 
 
+	/**
+	 * Recalculates the maximum number of requests each remote peer may have pending by sharing
+	 * the inbound request buffer between the choking manager's upload slots, and passes any
+	 * change on to the extension manager and the connected peers
+	 */
+	private void updateInboundRequestLimit() {
+
+		int bufferedRequests = PeerProtocolConstants.INBOUND_REQUEST_BUFFER_LENGTH / (this.chokingManager.getUploadSlots() * PeerProtocolConstants.BLOCK_LENGTH);
+		int inboundRequestLimit = Math.max (PeerProtocolConstants.MINIMUM_INBOUND_REQUESTS, Math.min (PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS, bufferedRequests));
+
+		if (inboundRequestLimit != this.inboundRequestLimit) {
+			this.inboundRequestLimit = inboundRequestLimit;
+			this.peerSetContext.extensionManager.setInboundRequestLimit (inboundRequestLimit);
+			for (ManageablePeer peer : this.connectedPeers) {
+				peer.setInboundRequestLimit (inboundRequestLimit);
+			}
+		}
+
+	}
+
+
 	/**
 	 * @param localPeerID The local peer's ID
 	 * @param connectionManager The ConnectionManager for the managed torrent
@@ -888,8 +1267,11 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 
 		this.localPeerID = localPeerID;
 		this.connectionManager = connectionManager;
+		this.downloadBucket = new TokenBucket ((connectionManager == null) ? null : connectionManager.getReadBucket());
+		this.uploadBucket = new TokenBucket ((connectionManager == null) ? null : connectionManager.getWriteBucket());
 		this.wantedPieces = new BitField (pieceDatabase.getPiecesetDescriptor().getNumberOfPieces());
 		this.chokingManager = new DefaultChokingManager();
+		updateInboundRequestLimit();
 		this.listeners.add (this.chokingManager);
 		this.listeners.add (this.peerSetContext.requestManager);
 		this.listeners.add (this.peerSetContext.extensionManager);
@@ -16,7 +16,6 @@ import java.util.Map;
 import java.util.Set;
 
 import org.itadaki.bobbin.bencode.BDictionary;
-import org.itadaki.bobbin.bencode.BEncoder;
 import org.itadaki.bobbin.connectionmanager.Connection;
 import org.itadaki.bobbin.connectionmanager.ConnectionManager;
 import org.itadaki.bobbin.connectionmanager.ConnectionReadyListener;
@@ -67,6 +66,11 @@ import org.itadaki.bobbin.util.elastictree.HashChain;
  */
 public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, ConnectionReadyListener {
 
+	/**
+	 * The minimum delay in milliseconds before the keepalive task is run again
+	 */
+	private static final long MINIMUM_KEEPALIVE_DELAY = 1000;
+
 	/**
 	 * The connection to the remote peer
 	 */
@@ -97,6 +101,29 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 	 */
 	private PeerState state = new PeerState();
 
+	/**
+	 * A task, run on the connection's timer wheel, that sends a keepalive if we are idle or closes
+	 * the connection if the remote peer is idle, then reschedules itself for the next deadline
+	 */
+	private final Runnable keepaliveTask = new Runnable() {
+		public void run() {
+			PeerServices peerServices = PeerHandler.this.peerSetContext.peerServices;
+			if (peerServices != null) {
+				peerServices.lock();
+			}
+			try {
+				sendKeepaliveOrClose();
+				if (PeerHandler.this.connection.isOpen()) {
+					scheduleKeepalive();
+				}
+			} finally {
+				if (peerServices != null) {
+					peerServices.unlock();
+				}
+			}
+		}
+	};
+
 
 	/* Peer interface */
 
@@ -231,6 +258,28 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.ManageablePeer#sendHavePieces(java.util.List)
+	 */
+	public void sendHavePieces (List<Integer> pieceNumbers) {
+
+		// A bitfield may only be resent through the Elastic extension
+		if (this.outboundQueue.isExtensionEnabled (PeerProtocolConstants.EXTENSION_ELASTIC)) {
+			BitField presentPieces = this.peerSetContext.pieceDatabase.getPresentPieces();
+			int bitfieldLength = PeerProtocolConstants.ELASTIC_BITFIELD_MESSAGE_OVERHEAD + presentPieces.byteLength();
+			if (bitfieldLength < pieceNumbers.size() * PeerProtocolConstants.HAVE_MESSAGE_LENGTH) {
+				this.outboundQueue.sendElasticBitfieldMessage (presentPieces);
+				return;
+			}
+		}
+
+		for (Integer pieceNumber : pieceNumbers) {
+			this.outboundQueue.sendHaveMessage (pieceNumber);
+		}
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.peer.ManageablePeer#sendKeepaliveOrClose()
 	 */
@@ -245,6 +294,56 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.ManageablePeer#adjustBufferSizes()
+	 */
+	public void adjustBufferSizes() {
+
+		this.connection.adjustBufferSizes (
+				this.peerStatistics.getPerSecond (PeerStatistics.Type.PROTOCOL_BYTES_RECEIVED),
+				this.peerStatistics.getPerSecond (PeerStatistics.Type.PROTOCOL_BYTES_SENT)
+		);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.ManageablePeer#setInboundRequestLimit(int)
+	 */
+	public void setInboundRequestLimit (int inboundRequestLimit) {
+
+		if (inboundRequestLimit != this.outboundQueue.getInboundRequestLimit()) {
+			this.outboundQueue.setInboundRequestLimit (inboundRequestLimit);
+			if (this.state.extensionProtocolEnabled) {
+				BDictionary extra = new BDictionary();
+				extra.put ("reqq", inboundRequestLimit);
+				this.outboundQueue.sendExtensionHandshake (null, null, extra);
+			}
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.ManageablePeer#setRequestDepthBounds(int, int)
+	 */
+	public void setRequestDepthBounds (int minimumDepth, int maximumDepth) {
+
+		this.outboundQueue.setRequestDepthBounds (minimumDepth, maximumDepth);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.ManageablePeer#setSendBatchLength(int)
+	 */
+	public void setSendBatchLength (int sendBatchLength) {
+
+		this.outboundQueue.setSendBatchLength (sendBatchLength);
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.peer.ManageablePeer#sendViewSignature(org.itadaki.bobbin.peer.ViewSignature)
 	 */
@@ -367,10 +466,10 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 
 
 	/* (non-Javadoc)
-	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#bitfieldMessage(org.itadaki.bobbin.torrentdb.ResourceType, byte[])
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#bitfieldMessage(org.itadaki.bobbin.torrentdb.ResourceType, java.nio.ByteBuffer)
 	 */
 	@Override
-	public void bitfieldMessage (ResourceType resource, byte[] bitField) throws IOException {
+	public void bitfieldMessage (ResourceType resource, ByteBuffer bitField) throws IOException {
 
 		// Validate the bitfield
 		try {
@@ -655,15 +754,14 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 	@Override
 	public void peerMetadataRequestMessage (int pieceNumber) throws IOException {
 
-		BDictionary infoDictionary = this.peerSetContext.pieceDatabase.getInfo().getDictionary();
-		byte[] infoBytes = BEncoder.encode (infoDictionary);
-		int start = pieceNumber * 16384;
-		if (start >= infoBytes.length) {
+		ByteBuffer infoBytes = this.peerSetContext.pieceDatabase.getInfo().getEncodedDictionary();
+		long start = (long)pieceNumber * PeerProtocolConstants.PEER_METADATA_PIECE_LENGTH;
+		if ((pieceNumber < 0) || (start >= infoBytes.capacity())) {
 			this.outboundQueue.sendPeerMetadataRejectMessage (pieceNumber);
 		} else {
-			int length = Math.min (16384, infoBytes.length - start);
-			ByteBuffer piece = ByteBuffer.wrap (infoBytes, start, length);
-			this.outboundQueue.sendPeerMetadataDataMessage (pieceNumber, infoBytes.length, piece);
+			int length = Math.min (PeerProtocolConstants.PEER_METADATA_PIECE_LENGTH, infoBytes.capacity() - (int)start);
+			infoBytes.position ((int)start).limit ((int)start + length);
+			this.outboundQueue.sendPeerMetadataDataMessage (pieceNumber, infoBytes.capacity(), infoBytes.slice());
 		}
 
 	}
@@ -698,10 +796,10 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 
 
 	/* (non-Javadoc)
-	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#elasticBitfieldMessage(byte[])
+	 * @see org.itadaki.bobbin.peer.protocol.PeerProtocolConsumer#elasticBitfieldMessage(java.nio.ByteBuffer)
 	 */
 	@Override
-	public void elasticBitfieldMessage (byte[] bitField) throws IOException {
+	public void elasticBitfieldMessage (ByteBuffer bitField) throws IOException {
 
 		// TODO Temporary - to be replaced when new Elastic Bitfield format is decided
 		bitfieldMessage (null, bitField);
@@ -784,6 +882,22 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 	}
 
 
+	/**
+	 * Schedules the keepalive task for the earlier of the time a keepalive falls due to be sent
+	 * and the time the remote peer becomes idle. A keepalive that is already due but not yet
+	 * written is checked again no sooner than {@link #MINIMUM_KEEPALIVE_DELAY} later
+	 */
+	private void scheduleKeepalive() {
+
+		long keepaliveTime = this.outboundQueue.getLastDataSentTime() + (PeerProtocolConstants.KEEPALIVE_INTERVAL * 1000L);
+		long idleTime = this.state.lastDataReceivedTime + (PeerProtocolConstants.IDLE_INTERVAL * 1000L);
+		long delay = Math.min (keepaliveTime, idleTime) - System.currentTimeMillis() + 1;
+
+		this.connection.schedule (this.keepaliveTask, Math.max (delay, MINIMUM_KEEPALIVE_DELAY));
+
+	}
+
+
 	/**
 	 * Determines whether a block descriptor points to a valid region of the PieceDatabase and is no
 	 * larger than the maximum allowed request
@@ -899,6 +1013,25 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 			boolean extensionProtocolEnabled)
 	{
 
+		this (peerSetContext, connection, remotePeerID, parentStatistics, fastExtensionEnabled, extensionProtocolEnabled, null);
+
+	}
+
+
+	/**
+	 * @param peerSetContext The peer set context
+	 * @param connection The connection through which to send and receive messages
+	 * @param remotePeerID The remote peer ID
+	 * @param parentStatistics The parent aggregate PeerStatistics for the whole peer set
+	 * @param fastExtensionEnabled {@code true} if the fast extension is enabled
+	 * @param extensionProtocolEnabled {@code true} if the extension protocol is enabled
+	 * @param handshake The local base protocol handshake if it has not yet been sent, to be sent
+	 *        together with the initial messages, or {@code null}
+	 */
+	public PeerHandler (PeerSetContext peerSetContext, Connection connection, PeerID remotePeerID, PeerStatistics parentStatistics, boolean fastExtensionEnabled,
+			boolean extensionProtocolEnabled, ByteBuffer handshake)
+	{
+
 		this.peerSetContext = peerSetContext;
 		this.connection = connection;
 		this.state.remotePeerID = remotePeerID;
@@ -918,6 +1051,12 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 			this.state.remoteView = null;
 		}
 		this.outboundQueue = new PeerOutboundQueue (this.connection, this.peerSetContext.pieceDatabase, this.peerStatistics.blockBytesSent);
+		if (this.peerSetContext.extensionManager != null) {
+			this.outboundQueue.setInboundRequestLimit (this.peerSetContext.extensionManager.getInboundRequestLimit());
+		}
+		if (handshake != null) {
+			this.outboundQueue.sendHandshake (handshake);
+		}
 
 		// Send bitfield
 		BitField bitField = this.peerSetContext.pieceDatabase.getPresentPieces();
@@ -947,7 +1086,7 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 		BDictionary extra = new BDictionary();
 		extensions.put (PeerProtocolConstants.EXTENSION_PEER_METADATA, (int)PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_PEER_METADATA);
 		if (info != null) {
-			extra.put ("metadata_size", BEncoder.encode(info.getDictionary()).length);
+			extra.put ("metadata_size", info.getEncodedDictionaryLength());
 		}
 		switch (pieceStyle) {
 			case ELASTIC:
@@ -964,6 +1103,10 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 			this.peerSetContext.extensionManager.offerExtensionsToPeer (this);
 		}
 
+		// Keepalive and idle deadlines
+		this.state.lastDataReceivedTime = System.currentTimeMillis();
+		this.connection.schedule (this.keepaliveTask, PeerProtocolConstants.KEEPALIVE_INTERVAL * 1000L);
+
 	}
 
 
@@ -5,14 +5,15 @@
 package org.itadaki.bobbin.peer;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
@@ -20,6 +21,8 @@ import java.util.Set;
 import java.util.TreeSet;
 
 import org.itadaki.bobbin.bencode.BDictionary;
+import org.itadaki.bobbin.bencode.BInteger;
+import org.itadaki.bobbin.bencode.BValue;
 import org.itadaki.bobbin.connectionmanager.Connection;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolBuilder;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolConstants;
@@ -71,28 +74,60 @@ public class PeerOutboundQueue {
 	/**
 	 * A list of queued piece messages to send to the remote peer
 	 */
-	private LinkedList<BlockDescriptor> queuedPieces = new LinkedList<BlockDescriptor>();
+	private ArrayDeque<BlockDescriptor> queuedPieces = new ArrayDeque<BlockDescriptor>();
 
 	/**
-	 * A list of queued have messages to send to the remote peer
+	 * The maximum number of piece messages that may be queued for the remote peer. Further
+	 * requests are ignored
 	 */
-	private LinkedList<Integer> queuedHaves = new LinkedList<Integer>();
+	private int inboundRequestLimit = PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS;
+
+	/**
+	 * The piece numbers of queued have messages to send to the remote peer, held as a circular
+	 * buffer starting at {@link #queuedHavesStart}
+	 */
+	private int[] queuedHaves = new int[16];
+
+	/**
+	 * The index within {@link #queuedHaves} of the first queued have message
+	 */
+	private int queuedHavesStart = 0;
+
+	/**
+	 * The number of queued have messages
+	 */
+	private int queuedHavesCount = 0;
 
 	/**
 	 * A list of queued request messages to send to the remote peer
 	 */
-	private LinkedList<BlockDescriptor> queuedRequests = new LinkedList<BlockDescriptor>();
+	private ArrayDeque<BlockDescriptor> queuedRequests = new ArrayDeque<BlockDescriptor>();
 
 	/**
 	 * A list of queued cancel messages to send to the remote peer
 	 */
-	private LinkedList<BlockDescriptor> queuedCancels = new LinkedList<BlockDescriptor>();
+	private ArrayDeque<BlockDescriptor> queuedCancels = new ArrayDeque<BlockDescriptor>();
 
 	/**
 	 * A set of requests that have been sent but not yet received
 	 */
 	private Set<BlockDescriptor> sentRequests = new LinkedHashSet<BlockDescriptor>();
 
+	/**
+	 * Determines the number of requests to keep outstanding to the remote peer
+	 */
+	private RequestPipeline requestPipeline = new RequestPipeline (
+			PeerProtocolConstants.MINIMUM_OUTBOUND_REQUESTS,
+			PeerProtocolConstants.INITIAL_OUTBOUND_REQUESTS,
+			PeerProtocolConstants.MAXIMUM_OUTBOUND_REQUESTS
+	);
+
+	/**
+	 * The maximum number of requests the remote peer will queue, as advertised in its extension
+	 * handshake
+	 */
+	private int remoteRequestLimit = Integer.MAX_VALUE;
+
 	/**
 	 * A set of requests that have been cancelled, but not yet completed by the receipt of either
 	 * a piece or a reject. Only used when the Fast extension is enabled
@@ -127,15 +162,50 @@ public class PeerOutboundQueue {
 	 * A list of extension protocol messages to send to the remote peer encoded as pairs of
 	 * ByteBuffers
 	 */
-	private LinkedList<ByteBuffer[]> extensionMessageQueue = new LinkedList<ByteBuffer[]>();
+	private ArrayDeque<ByteBuffer[]> extensionMessageQueue = new ArrayDeque<ByteBuffer[]>();
+
+	/**
+	 * A direct buffer into which fixed length messages are encoded in place. The bytes between
+	 * {@link #outputStart} and the buffer's position have been encoded but not yet written, and
+	 * are always written before any buffers in the send queue. Fixed length messages are therefore
+	 * only encoded while the send queue is empty
+	 */
+	private final ByteBuffer outputBuffer = ByteBuffer.allocateDirect (PeerProtocolConstants.OUTPUT_BUFFER_LENGTH);
+
+	/**
+	 * A view onto the output buffer through which its unwritten bytes are written
+	 */
+	private final ByteBuffer outputView = this.outputBuffer.duplicate();
+
+	/**
+	 * The index within the output buffer of the first unwritten byte
+	 */
+	private int outputStart = 0;
 
 	/**
-	 * A list of ByteBuffers to send to the remote peer. When the peer is writeable, messages are
-	 * added to the send queue one by one in order of importance and a write attempted until no
-	 * more data can be written. When the network write capacity is full, therefore, one or more
-	 * ByteBuffers may be left here to be completed when the peer becomes writeable again.
+	 * A list of ByteBuffers to send to the remote peer after the unwritten content of the output
+	 * buffer. Messages that are not encoded into the output buffer, such as bitfields, extension
+	 * messages and pieces, are spilled here in order of importance. When the network write
+	 * capacity is full, one or more ByteBuffers may be left here to be completed when the peer
+	 * becomes writeable again.
 	 */
-	private LinkedList<ByteBuffer> sendQueue = new LinkedList<ByteBuffer>();
+	private ArrayDeque<ByteBuffer> sendQueue = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * The buffers passed to the connection's gathering write
+	 */
+	private ByteBuffer[] gatherBuffers = new ByteBuffer[16];
+
+	/**
+	 * The number of bytes of queued messages gathered into a single write, after which no further
+	 * message is added
+	 */
+	private int sendBatchLength = PeerProtocolConstants.SEND_BATCH_LENGTH;
+
+	/**
+	 * The number of bytes spilled to the send queue while filling the current batch
+	 */
+	private int spilledBatchBytes = 0;
 
 	/**
 	 * The style of pieces to send to the remote peer
@@ -183,6 +253,20 @@ public class PeerOutboundQueue {
 	}
 
 
+	/**
+	 * Sends the local base protocol handshake, where it was not sent during negotiation. Only
+	 * valid before any other message is sent
+	 *
+	 * @param handshake The handshake to send
+	 */
+	public void sendHandshake (ByteBuffer handshake) {
+
+		this.sendQueue.addFirst (handshake);
+		this.connection.setWriteEnabled (true);
+
+	}
+
+
 	/**
 	 * Sends a bitfield message. Only valid as the first message that is sent after the initial
 	 * handshake
@@ -220,7 +304,15 @@ public class PeerOutboundQueue {
 			}
 		}
 
-		this.sendQueue.add (choke ? PeerProtocolBuilder.chokeMessage() : PeerProtocolBuilder.unchokeMessage());
+		if (prepareOutputBuffer()) {
+			if (choke) {
+				PeerProtocolBuilder.putChokeMessage (this.outputBuffer);
+			} else {
+				PeerProtocolBuilder.putUnchokeMessage (this.outputBuffer);
+			}
+		} else {
+			this.sendQueue.add (choke ? PeerProtocolBuilder.chokeMessage() : PeerProtocolBuilder.unchokeMessage());
+		}
 		this.connection.setWriteEnabled (true);
 
 		return dequeuedPieces;
@@ -254,7 +346,7 @@ public class PeerOutboundQueue {
 	 */
 	public void sendPieceMessage (BlockDescriptor descriptor) {
 
-		if (this.queuedPieces.size () < PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS) {
+		if (this.queuedPieces.size () < this.inboundRequestLimit) {
 			this.queuedPieces.add (descriptor);
 			this.connection.setWriteEnabled (true);
 		}
@@ -300,6 +392,7 @@ public class PeerOutboundQueue {
 	public void sendCancelMessage (BlockDescriptor request, boolean trackCancelled) {
 
 		if (this.sentRequests.remove (request)) {
+			this.requestPipeline.requestAbandoned (request);
 			this.queuedCancels.add (request);
 			if (trackCancelled) {
 				this.outstandingCancels.add (request);
@@ -318,7 +411,16 @@ public class PeerOutboundQueue {
 	 */
 	public void sendHaveMessage (int pieceNumber) {
 
-		this.queuedHaves.add (pieceNumber);
+		if (this.queuedHavesCount == this.queuedHaves.length) {
+			int[] queuedHaves = new int[this.queuedHaves.length * 2];
+			for (int i = 0; i < this.queuedHavesCount; i++) {
+				queuedHaves[i] = this.queuedHaves[(this.queuedHavesStart + i) % this.queuedHaves.length];
+			}
+			this.queuedHaves = queuedHaves;
+			this.queuedHavesStart = 0;
+		}
+		this.queuedHaves[(this.queuedHavesStart + this.queuedHavesCount) % this.queuedHaves.length] = pieceNumber;
+		this.queuedHavesCount++;
 		this.connection.setWriteEnabled (true);
 
 	}
@@ -513,6 +615,7 @@ public class PeerOutboundQueue {
 	public boolean requestReceived (BlockDescriptor request) {
 
 		if (this.sentRequests.remove (request)) {
+			this.requestPipeline.blockReceived (request, System.currentTimeMillis());
 			return true;
 		} else if (this.outstandingCancels.remove (request)) {
 			this.queuedCancels.remove (request);
@@ -535,6 +638,8 @@ public class PeerOutboundQueue {
 	public boolean rejectReceived (BlockDescriptor requestDescriptor) {
 
 		if (this.sentRequests.remove (requestDescriptor)) {
+			this.requestPipeline.requestAbandoned (requestDescriptor);
+
 			// If the remote peer dishonours an Allowed Fast request (for instance because we now
 			// have enough pieces), we should avoid spamming them with the same request
 			this.allowedFastRequestNumbers.remove (new Integer (requestDescriptor.getPieceNumber()));
@@ -558,6 +663,7 @@ public class PeerOutboundQueue {
 
 		this.queuedRequests.addAll (this.sentRequests);
 		this.sentRequests.clear();
+		this.requestPipeline.allRequestsAbandoned();
 
 	}
 
@@ -620,13 +726,40 @@ public class PeerOutboundQueue {
 
 
 	/**
-	 * Returns the number of requests that can be made to the remote peer
+	 * Returns the number of requests that can be made to the remote peer. The total number of
+	 * requests to keep outstanding is adapted to the remote peer's measured block receive rate and
+	 * request latency, and never exceeds the number the remote peer has advertised it will queue
 	 *
 	 * @return The number of requests that can be made to the remote peer
 	 */
 	public int getRequestsNeeded() {
 
-		return Math.max (0, PeerProtocolConstants.MAXIMUM_OUTBOUND_REQUESTS - this.sentRequests.size() - this.queuedRequests.size());
+		return Math.max (0, getRequestDepth() - this.sentRequests.size() - this.queuedRequests.size());
+
+	}
+
+
+	/**
+	 * @return The number of requests currently kept outstanding to the remote peer
+	 */
+	public int getRequestDepth() {
+
+		return Math.min (this.requestPipeline.getDepth(), this.remoteRequestLimit);
+
+	}
+
+
+	/**
+	 * Sets the bounds within which the number of requests to keep outstanding to the remote peer
+	 * is adapted
+	 *
+	 * @param minimumDepth The minimum number of outstanding requests
+	 * @param maximumDepth The maximum number of outstanding requests
+	 * @throws IllegalArgumentException if the minimum is less than 1 or greater than the maximum
+	 */
+	public void setRequestDepthBounds (int minimumDepth, int maximumDepth) {
+
+		this.requestPipeline.setBounds (minimumDepth, maximumDepth);
 
 	}
 
@@ -660,6 +793,17 @@ public class PeerOutboundQueue {
 			this.extensionIdentifiers.keySet().removeAll (extensionsDisabled);
 		}
 
+		if (extra != null) {
+			BValue reqqValue = extra.get ("reqq");
+			if (reqqValue instanceof BInteger) {
+				Number value = ((BInteger)reqqValue).value();
+				BigInteger reqq = (value instanceof BigInteger) ? (BigInteger)value : BigInteger.valueOf (value.longValue());
+				if (reqq.signum() > 0) {
+					this.remoteRequestLimit = reqq.min (BigInteger.valueOf (Integer.MAX_VALUE)).intValue();
+				}
+			}
+		}
+
 	}
 
 
@@ -743,129 +887,287 @@ public class PeerOutboundQueue {
 
 
 	/**
-	 * Sends as much queued data as possible
-	 * @return The number of bytes written, possibly zero
-	 * @throws IOException If the connection is closed or on any other I/O error
+	 * @return The last time any data was successfully written to the connection, in system
+	 *         milliseconds, or 0 if none has been
 	 */
-	public int sendData() throws IOException {
+	public long getLastDataSentTime() {
 
-		int bytesSent = 0;
+		return this.lastDataSentTime;
 
-		try {
+	}
 
-			// Try to write any buffers waiting in the send queue
-			while (!this.sendQueue.isEmpty()) {
-				ByteBuffer buffer = this.sendQueue.peek();
-				bytesSent += this.connection.write (buffer);
-				if (buffer.remaining() == 0) {
-					this.sendQueue.remove();
-				} else {
-					return bytesSent;
-				}
-			}
 
-			// Try to write extension messages, if any
-			while (!this.extensionMessageQueue.isEmpty ()) {
-				ByteBuffer[] buffers = this.extensionMessageQueue.poll();
-				bytesSent += this.connection.write (buffers);
-				if (buffers[1].hasRemaining()) {
-					this.sendQueue.add (buffers[0]);
-					this.sendQueue.add (buffers[1]);
-					return bytesSent;
-				}
-			}
+	/**
+	 * @return The maximum number of piece messages that may be queued for the remote peer
+	 */
+	public int getInboundRequestLimit() {
 
-			// Try to write an interested message, if any
-			if (this.queuedInterested != null) {
-				ByteBuffer buffer = (this.queuedInterested ? PeerProtocolBuilder.interestedMessage() : PeerProtocolBuilder.notInterestedMessage());
-				this.queuedInterested = null;
+		return this.inboundRequestLimit;
 
-				bytesSent += this.connection.write (buffer);
-				if (buffer.remaining() > 0) {
-					this.sendQueue.add (buffer);
-					return bytesSent;
-				}
-			}
+	}
 
-			// Try to write cancel messages, if any
-			while (!this.queuedCancels.isEmpty()) {
-				BlockDescriptor descriptor = this.queuedCancels.poll();
-				ByteBuffer buffer = PeerProtocolBuilder.cancelMessage (descriptor);
 
-				bytesSent += this.connection.write (buffer);
-				if (buffer.remaining() > 0) {
-					this.sendQueue.add (buffer);
-					return bytesSent;
-				}
+	/**
+	 * Sets the maximum number of piece messages that may be queued for the remote peer. Requests
+	 * received beyond this number are ignored
+	 *
+	 * @param inboundRequestLimit The maximum number of queued piece messages
+	 */
+	public void setInboundRequestLimit (int inboundRequestLimit) {
+
+		if (inboundRequestLimit < 1) {
+			throw new IllegalArgumentException ("Invalid request limit");
+		}
+
+		this.inboundRequestLimit = inboundRequestLimit;
+
+	}
+
+
+	/**
+	 * Sets the number of bytes of queued messages to gather into a single write. This is a
+	 * threshold rather than a maximum: messages are added whole until the batch reaches it, so a
+	 * batch may exceed it by up to one message, and a single message larger than it is still
+	 * written whole
+	 *
+	 * @param sendBatchLength The number of bytes after which no further message is added to a
+	 *        write
+	 * @throws IllegalArgumentException if the length is less than 1
+	 */
+	public void setSendBatchLength (int sendBatchLength) {
+
+		if (sendBatchLength < 1) {
+			throw new IllegalArgumentException ("Invalid batch length");
+		}
+
+		this.sendBatchLength = sendBatchLength;
+
+	}
+
+
+	/**
+	 * Prepares the output buffer to have a fixed length message encoded into it. Messages may only
+	 * be encoded while the send queue is empty, as the output buffer is always written first
+	 *
+	 * @return {@code true} if a fixed length message may be encoded into the output buffer,
+	 *         otherwise {@code false}
+	 */
+	private boolean prepareOutputBuffer() {
+
+		if (!this.sendQueue.isEmpty()) {
+			return false;
+		}
+
+		// Move any unwritten bytes to the start of the buffer to make room
+		if ((this.outputBuffer.remaining() < PeerProtocolConstants.MAXIMUM_FIXED_MESSAGE_LENGTH) && (this.outputStart > 0)) {
+			this.outputBuffer.limit (this.outputBuffer.position());
+			this.outputBuffer.position (this.outputStart);
+			this.outputBuffer.compact();
+			this.outputStart = 0;
+		}
+
+		return this.outputBuffer.remaining() >= PeerProtocolConstants.MAXIMUM_FIXED_MESSAGE_LENGTH;
+
+	}
+
+
+	/**
+	 * Adds the buffers of a message to the send queue
+	 *
+	 * @param buffers The buffers to add
+	 */
+	private void spill (ByteBuffer... buffers) {
+
+		for (ByteBuffer buffer : buffers) {
+			this.sendQueue.add (buffer);
+			this.spilledBatchBytes += buffer.remaining();
+		}
+
+	}
+
+
+	/**
+	 * @return {@code true} if no more messages should be added to the batch to be written,
+	 *         otherwise {@code false}
+	 */
+	private boolean isBatchFull() {
+
+		return (this.outputBuffer.position() - this.outputStart + this.spilledBatchBytes) >= this.sendBatchLength;
+
+	}
+
+
+	/**
+	 * @return {@code true} if there are unwritten bytes in either the output buffer or the send
+	 *         queue, otherwise {@code false}
+	 */
+	private boolean hasUnwrittenData() {
+
+		return (this.outputBuffer.position() > this.outputStart) || !this.sendQueue.isEmpty();
+
+	}
+
+
+	/**
+	 * Gathers queued messages into the batch to be written, in order of importance, until either
+	 * there are no more messages, the batch is full, or a fixed length message cannot be encoded
+	 * because messages have been spilled to the send queue ahead of it
+	 *
+	 * @throws IOException On any I/O error reading piece data
+	 */
+	private void fillBatch() throws IOException {
+
+		this.spilledBatchBytes = 0;
+
+		// Extension messages, if any
+		while (!this.extensionMessageQueue.isEmpty() && !isBatchFull()) {
+			spill (this.extensionMessageQueue.poll());
+		}
+
+		// An interested message, if any
+		if ((this.queuedInterested != null) && !isBatchFull() && prepareOutputBuffer()) {
+			if (this.queuedInterested) {
+				PeerProtocolBuilder.putInterestedMessage (this.outputBuffer);
+			} else {
+				PeerProtocolBuilder.putNotInterestedMessage (this.outputBuffer);
 			}
+			this.queuedInterested = null;
+		}
+
+		// Cancel messages, if any
+		while (!this.queuedCancels.isEmpty() && !isBatchFull() && prepareOutputBuffer()) {
+			PeerProtocolBuilder.putCancelMessage (this.outputBuffer, this.queuedCancels.poll());
+		}
 
-			// Try to write request messages, if any
-			for (Iterator<BlockDescriptor> iterator = this.queuedRequests.iterator(); iterator.hasNext(); ) {
+		// Request messages, if any
+		if (!this.queuedRequests.isEmpty()) {
+			long now = System.currentTimeMillis();
+			for (Iterator<BlockDescriptor> iterator = this.queuedRequests.iterator(); iterator.hasNext() && !isBatchFull() && prepareOutputBuffer(); ) {
 				BlockDescriptor descriptor = iterator.next();
 				if (!this.requestsPlugged || this.allowedFastRequestNumbers.contains (descriptor.getPieceNumber())) {
 					iterator.remove();
+					this.requestPipeline.requestSent (descriptor, this.sentRequests.size(), now);
 					this.sentRequests.add (descriptor);
-					ByteBuffer buffer = PeerProtocolBuilder.requestMessage (descriptor);
+					PeerProtocolBuilder.putRequestMessage (this.outputBuffer, descriptor);
+				}
+			}
+		}
 
-					bytesSent += this.connection.write (buffer);
-					if (buffer.remaining() > 0) {
-						this.sendQueue.add (buffer);
-						return bytesSent;
+		// Have messages, if any
+		while ((this.queuedHavesCount > 0) && !isBatchFull() && prepareOutputBuffer()) {
+			PeerProtocolBuilder.putHaveMessage (this.outputBuffer, this.queuedHaves[this.queuedHavesStart]);
+			this.queuedHavesStart = (this.queuedHavesStart + 1) % this.queuedHaves.length;
+			this.queuedHavesCount--;
+		}
+
+		// Piece messages, if any
+		while (!this.queuedPieces.isEmpty() && !isBatchFull()) {
+			BlockDescriptor request = this.queuedPieces.poll();
+			this.blockBytesSentCounter.add (request.getLength());
+			Piece piece = this.pieceDatabase.readPiece (request.getPieceNumber());
+			ByteBuffer block = piece.getBlock (request);
+
+			switch (this.pieceStyle) {
+				case PLAIN:
+					spill (PeerProtocolBuilder.pieceMessage (request, block));
+					break;
+				case MERKLE:
+					ByteBuffer merkleHashChain = (request.getOffset() == 0) ? piece.getHashChain().getHashes() : null;
+					spill (PeerProtocolBuilder.merklePieceMessage (PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_MERKLE, request, merkleHashChain, block));
+					break;
+				case ELASTIC:
+					long viewLength = piece.getHashChain().getViewLength();
+					if (!this.remotePeerViews.contains (viewLength) && (viewLength > this.pieceDatabase.getInfo().getPiecesetDescriptor().getLength())) {
+						ViewSignature viewSignature = this.pieceDatabase.getViewSignature (viewLength);
+						spill (PeerProtocolBuilder.elasticSignatureMessage (PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_ELASTIC, viewSignature));
+						if (this.remotePeerViews.size() > 1) {
+							this.remotePeerViews.pollFirst();
+						}
+						this.remotePeerViews.add (viewLength);
 					}
-				}
+					ByteBuffer elasticHashChain = (request.getOffset() == 0) ? piece.getHashChain().getHashes() : null;
+					spill (PeerProtocolBuilder.elasticPieceMessage (PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_ELASTIC, request, viewLength, elasticHashChain, block));
+					break;
+				default:
+					// Can't happen
+					throw new InternalError();
 			}
+		}
 
-			// Try to write have messages, if any
-			while (!this.queuedHaves.isEmpty()) {
-				Integer pieceNumber = this.queuedHaves.poll();
-				ByteBuffer buffer = PeerProtocolBuilder.haveMessage (pieceNumber);
+	}
 
-				bytesSent += this.connection.write (buffer);
-				if (buffer.hasRemaining()) {
-					this.sendQueue.add (buffer);
-					return bytesSent;
-				}
+
+	/**
+	 * Writes the unwritten bytes of the output buffer, followed by the buffers of the send queue,
+	 * with a single gathering write
+	 *
+	 * @return The number of bytes written
+	 * @throws IOException If the connection is closed or on any other I/O error
+	 */
+	private int writeBatch() throws IOException {
+
+		int gatherCount = 0;
+
+		boolean outputBufferWritten = (this.outputBuffer.position() > this.outputStart);
+		if (outputBufferWritten) {
+			this.outputView.limit (this.outputBuffer.position());
+			this.outputView.position (this.outputStart);
+			this.gatherBuffers[gatherCount++] = this.outputView;
+		}
+
+		if (!this.sendQueue.isEmpty()) {
+			if (this.gatherBuffers.length < (this.sendQueue.size() + 1)) {
+				this.gatherBuffers = new ByteBuffer[(this.sendQueue.size() + 1) * 2];
+			}
+			for (ByteBuffer buffer : this.sendQueue) {
+				this.gatherBuffers[gatherCount++] = buffer;
 			}
+		}
+
+		int bytesWritten = (int) this.connection.write (this.gatherBuffers, 0, gatherCount);
+		Arrays.fill (this.gatherBuffers, 0, gatherCount, null);
+
+		if (outputBufferWritten) {
+			this.outputStart = this.outputView.position();
+			if (this.outputStart == this.outputBuffer.position()) {
+				this.outputBuffer.clear();
+				this.outputStart = 0;
+			}
+		}
+
+		while (!this.sendQueue.isEmpty() && !this.sendQueue.peek().hasRemaining()) {
+			this.sendQueue.poll();
+		}
+
+		return bytesWritten;
+
+	}
 
-			// Try to write piece messages, if any
-			while (!this.queuedPieces.isEmpty()) {
-				BlockDescriptor request = this.queuedPieces.poll();
-				this.blockBytesSentCounter.add (request.getLength());
-				Piece piece = this.pieceDatabase.readPiece (request.getPieceNumber());
-				ByteBuffer block = piece.getBlock (request);
-
-				ByteBuffer[] buffers = null;
-				switch (this.pieceStyle) {
-					case PLAIN:
-						buffers = PeerProtocolBuilder.pieceMessage (request, block);
-						break;
-					case MERKLE:
-						ByteBuffer merkleHashChain = (request.getOffset() == 0) ? piece.getHashChain().getHashes() : null;
-						buffers = PeerProtocolBuilder.merklePieceMessage (PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_MERKLE, request, merkleHashChain, block);
-						break;
-					case ELASTIC:
-						long viewLength = piece.getHashChain().getViewLength();
-						ArrayList<ByteBuffer> bufferList = new ArrayList<ByteBuffer>();
-						if (!this.remotePeerViews.contains (viewLength) && (viewLength > this.pieceDatabase.getInfo().getPiecesetDescriptor().getLength())) {
-							ViewSignature viewSignature = this.pieceDatabase.getViewSignature (viewLength);
-							bufferList.addAll (Arrays.asList (PeerProtocolBuilder.elasticSignatureMessage (PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_ELASTIC, viewSignature)));
-							if (this.remotePeerViews.size() > 1) {
-								this.remotePeerViews.pollFirst();
-							}
-							this.remotePeerViews.add (viewLength);
-						}
-						ByteBuffer elasticHashChain = (request.getOffset() == 0) ? piece.getHashChain().getHashes() : null;
-						bufferList.addAll (Arrays.asList (PeerProtocolBuilder.elasticPieceMessage (PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_ELASTIC, request, viewLength, elasticHashChain, block)));
-						buffers = bufferList.toArray (new ByteBuffer[0]);
-						break;
-					default:
-						// Can't happen
-						throw new InternalError();
-				}
 
-				bytesSent += this.connection.write (buffers);
-				if (buffers[buffers.length - 1].hasRemaining()) {
-					this.sendQueue.addAll (Arrays.asList (buffers));
+	/**
+	 * Sends as much queued data as possible. Queued messages are gathered into batches that are
+	 * closed once they reach the send batch length, each of which is written to the connection
+	 * with a single gathering write. Fixed length messages are encoded directly into the
+	 * connection's output buffer without allocation; other messages are spilled to the send queue
+	 * behind them. Anything that could not be written is completed by the next call before further
+	 * messages are sent
+	 *
+	 * @return The number of bytes written, possibly zero
+	 * @throws IOException If the connection is closed or on any other I/O error
+	 */
+	public int sendData() throws IOException {
+
+		int bytesSent = 0;
+
+		try {
+
+			while (true) {
+				fillBatch();
+				if (!hasUnwrittenData()) {
+					break;
+				}
+				bytesSent += writeBatch();
+				if (hasUnwrittenData()) {
 					return bytesSent;
 				}
 			}
@@ -876,10 +1178,9 @@ public class PeerOutboundQueue {
 					&& ((System.currentTimeMillis() - this.lastDataSentTime) > (PeerProtocolConstants.KEEPALIVE_INTERVAL * 1000))
 			   )
 			{
-				ByteBuffer buffer = PeerProtocolBuilder.keepaliveMessage();
-				bytesSent += this.connection.write (buffer);
-				if (buffer.hasRemaining()) {
-					this.sendQueue.add (buffer);
+				PeerProtocolBuilder.putKeepaliveMessage (this.outputBuffer);
+				bytesSent += writeBatch();
+				if (hasUnwrittenData()) {
 					return bytesSent;
 				}
 			}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.peer;
+
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+
+
+/**
+ * Estimates the number of block requests that should be kept outstanding to a remote peer, from
+ * the peer's measured block receive rate and the observed latency between sending a request and
+ * receiving its block
+ *
+ * <p>The depth is twice the estimated bandwidth-delay product of the connection in blocks,
+ * bounded by a configurable minimum and maximum. While the remote peer is limited by the depth
+ * rather than by its bandwidth, the headroom allows the depth to double on each measurement of
+ * the receive rate.
+ *
+ * <p>Latency is only sampled from requests that were sent while no other request was
+ * outstanding. Any other request may have waited behind earlier requests in the remote peer's
+ * queue, and a latency measured from it would grow with the depth itself. So that the estimate
+ * still follows the connection while the depth keeps requests outstanding, the depth is dropped
+ * to a single request once every {@link #SAMPLE_INTERVAL}, until the outstanding requests have
+ * drained and a request can be sampled.
+ */
+public class RequestPipeline {
+
+	/**
+	 * The interval over which each measurement of the block receive rate is made, in
+	 * milliseconds
+	 */
+	public static final int RATE_INTERVAL = 1000;
+
+	/**
+	 * The interval after which the outstanding requests are drained so that latency can be
+	 * sampled again, in milliseconds
+	 */
+	public static final int SAMPLE_INTERVAL = 10000;
+
+	/**
+	 * The minimum depth
+	 */
+	private int minimumDepth;
+
+	/**
+	 * The maximum depth
+	 */
+	private int maximumDepth;
+
+	/**
+	 * The current depth
+	 */
+	private int depth;
+
+	/**
+	 * The request whose latency is being sampled, or {@code null}
+	 */
+	private BlockDescriptor probe = null;
+
+	/**
+	 * The time at which the sampled request was sent, in system milliseconds
+	 */
+	private long probeSentTime;
+
+	/**
+	 * The time after which the outstanding requests are drained to sample latency again, in
+	 * system milliseconds
+	 */
+	private long nextSampleTime;
+
+	/**
+	 * {@code true} while the outstanding requests are being drained to sample latency
+	 */
+	private boolean draining = false;
+
+	/**
+	 * The smoothed request-to-block latency in milliseconds, or -1 if it has not yet been sampled
+	 */
+	private long latency = -1;
+
+	/**
+	 * The smoothed block receive rate in blocks per second, or -1 if it has not yet been measured
+	 */
+	private double rate = -1;
+
+	/**
+	 * The start of the current rate measurement interval in system milliseconds, or -1 if no
+	 * interval has been started
+	 */
+	private long rateIntervalStart = -1;
+
+	/**
+	 * The number of blocks received in the current rate measurement interval
+	 */
+	private int rateIntervalBlocks = 0;
+
+
+	/**
+	 * Updates the depth from the current rate and latency estimates, if both are available
+	 */
+	private void updateDepth() {
+
+		if ((this.rate >= 0) && (this.latency >= 0)) {
+			double bandwidthDelayProduct = this.rate * this.latency / 1000;
+			this.depth = (int) Math.max (this.minimumDepth, Math.min (this.maximumDepth, Math.ceil (2 * bandwidthDelayProduct)));
+		}
+
+	}
+
+
+	/**
+	 * Indicates that a request has been sent to the remote peer
+	 *
+	 * @param request The request that was sent
+	 * @param outstandingRequests The number of other requests that were outstanding when the
+	 *        request was sent
+	 * @param time The current time in system milliseconds
+	 */
+	public void requestSent (BlockDescriptor request, int outstandingRequests, long time) {
+
+		if (outstandingRequests == 0) {
+			this.probe = request;
+			this.probeSentTime = time;
+			this.nextSampleTime = time + SAMPLE_INTERVAL;
+			this.draining = false;
+
+			// The connection has been idle; time before now does not reflect the remote peer's rate
+			this.rateIntervalStart = time;
+			this.rateIntervalBlocks = 0;
+		}
+
+	}
+
+
+	/**
+	 * Indicates that a requested block has been received from the remote peer
+	 *
+	 * @param block The block that was received
+	 * @param time The current time in system milliseconds
+	 */
+	public void blockReceived (BlockDescriptor block, long time) {
+
+		boolean updated = false;
+
+		if (this.rateIntervalStart >= 0) {
+			this.rateIntervalBlocks++;
+			long elapsed = time - this.rateIntervalStart;
+			if (elapsed >= RATE_INTERVAL) {
+				double sample = (this.rateIntervalBlocks * 1000.0) / elapsed;
+				this.rate = (this.rate < 0) ? sample : (this.rate + sample) / 2;
+				this.rateIntervalStart = time;
+				this.rateIntervalBlocks = 0;
+				updated = true;
+			}
+		}
+
+		if (block.equals (this.probe)) {
+			long sample = Math.max (1, time - this.probeSentTime);
+			this.latency = (this.latency < 0) ? sample : (3 * this.latency + sample) / 4;
+			this.probe = null;
+			updated = true;
+		}
+
+		if (updated) {
+			updateDepth();
+		}
+
+		// Requests that are never idle are drained periodically, so that latency is sampled
+		// again. Blocks received while draining do not reflect the remote peer's rate
+		if (!this.draining && (this.rate >= 0) && (time >= this.nextSampleTime)) {
+			this.draining = true;
+			this.rateIntervalStart = -1;
+		}
+
+	}
+
+
+	/**
+	 * Indicates that a request will not be fulfilled, because it has been cancelled, rejected or
+	 * requeued
+	 *
+	 * @param request The request that will not be fulfilled
+	 */
+	public void requestAbandoned (BlockDescriptor request) {
+
+		if (request.equals (this.probe)) {
+			this.probe = null;
+		}
+
+	}
+
+
+	/**
+	 * Indicates that no outstanding request will be fulfilled
+	 */
+	public void allRequestsAbandoned() {
+
+		this.probe = null;
+
+	}
+
+
+	/**
+	 * @return The number of requests that should be kept outstanding to the remote peer. This is
+	 *         1 while the outstanding requests are being drained to sample latency
+	 */
+	public int getDepth() {
+
+		return this.draining ? 1 : this.depth;
+
+	}
+
+
+	/**
+	 * Sets the bounds of the depth
+	 *
+	 * @param minimumDepth The minimum depth
+	 * @param maximumDepth The maximum depth
+	 * @throws IllegalArgumentException if the minimum depth is less than 1 or greater than the
+	 *         maximum depth
+	 */
+	public void setBounds (int minimumDepth, int maximumDepth) {
+
+		if ((minimumDepth < 1) || (maximumDepth < minimumDepth)) {
+			throw new IllegalArgumentException ("Invalid depth bounds");
+		}
+
+		this.minimumDepth = minimumDepth;
+		this.maximumDepth = maximumDepth;
+		this.depth = Math.max (minimumDepth, Math.min (maximumDepth, this.depth));
+		updateDepth();
+
+	}
+
+
+	/**
+	 * @param minimumDepth The minimum depth
+	 * @param initialDepth The depth to use until the rate and latency have been measured
+	 * @param maximumDepth The maximum depth
+	 * @throws IllegalArgumentException if the minimum depth is less than 1 or greater than the
+	 *         maximum depth
+	 */
+	public RequestPipeline (int minimumDepth, int initialDepth, int maximumDepth) {
+
+		this.depth = initialDepth;
+		setBounds (minimumDepth, maximumDepth);
+
+	}
+
+
+}
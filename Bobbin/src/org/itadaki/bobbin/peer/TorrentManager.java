@@ -718,6 +718,161 @@ public class TorrentManager {
 	}
 
 
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The window in milliseconds over which newly completed pieces are collected before
+	 *         being announced to the peer set
+	 */
+	public int getHaveBatchWindow() {
+
+		return this.peerCoordinator.getHaveBatchWindow();
+
+	}
+
+
+	/**
+	 * Sets the window over which newly completed pieces are collected before being announced to
+	 * the peer set. A window of zero announces each piece as soon as it is completed
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param haveBatchWindow The window in milliseconds
+	 * @throws IllegalArgumentException if the window is negative
+	 */
+	public void setHaveBatchWindow (int haveBatchWindow) {
+
+		this.peerCoordinator.setHaveBatchWindow (haveBatchWindow);
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The minimum number of requests to keep outstanding to each remote peer
+	 */
+	public int getMinimumRequestDepth() {
+
+		return this.peerCoordinator.getMinimumRequestDepth();
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The maximum number of requests to keep outstanding to each remote peer
+	 */
+	public int getMaximumRequestDepth() {
+
+		return this.peerCoordinator.getMaximumRequestDepth();
+
+	}
+
+
+	/**
+	 * Sets the bounds within which the number of requests to keep outstanding to each remote peer
+	 * is adapted to the peer's measured rate and latency
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param minimumDepth The minimum number of outstanding requests
+	 * @param maximumDepth The maximum number of outstanding requests
+	 * @throws IllegalArgumentException if the minimum is less than 1 or greater than the maximum
+	 */
+	public void setRequestDepthBounds (int minimumDepth, int maximumDepth) {
+
+		this.peerCoordinator.setRequestDepthBounds (minimumDepth, maximumDepth);
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of bytes of queued messages after which no further message is gathered
+	 *         into a single write to each remote peer
+	 */
+	public int getSendBatchLength() {
+
+		return this.peerCoordinator.getSendBatchLength();
+
+	}
+
+
+	/**
+	 * Sets the number of bytes of queued messages after which no further message is gathered into
+	 * a single write to each remote peer. A write may exceed this by up to one message
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param sendBatchLength The send batch length in bytes
+	 * @throws IllegalArgumentException if the length is less than 1
+	 */
+	public void setSendBatchLength (int sendBatchLength) {
+
+		this.peerCoordinator.setSendBatchLength (sendBatchLength);
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The limit on the rate of data received for this torrent in bytes per second, or 0
+	 *         if unlimited
+	 */
+	public long getDownloadRateLimit() {
+
+		return this.peerCoordinator.getDownloadRateLimit();
+
+	}
+
+
+	/**
+	 * Sets the limit on the rate of data received for this torrent. The limit applies in addition
+	 * to any limit set for all torrents
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param rate The limit in bytes per second, or 0 for unlimited
+	 */
+	public void setDownloadRateLimit (long rate) {
+
+		this.peerCoordinator.setDownloadRateLimit (rate);
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The limit on the rate of data sent for this torrent in bytes per second, or 0 if
+	 *         unlimited
+	 */
+	public long getUploadRateLimit() {
+
+		return this.peerCoordinator.getUploadRateLimit();
+
+	}
+
+
+	/**
+	 * Sets the limit on the rate of data sent for this torrent. The limit applies in addition to
+	 * any limit set for all torrents
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param rate The limit in bytes per second, or 0 for unlimited
+	 */
+	public void setUploadRateLimit (long rate) {
+
+		this.peerCoordinator.setUploadRateLimit (rate);
+
+	}
+
+
 	/**
 	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
@@ -19,8 +19,11 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.itadaki.bobbin.bencode.BDecoder;
 import org.itadaki.bobbin.bencode.InvalidEncodingException;
+import org.itadaki.bobbin.connectionmanager.AcceptLimits;
 import org.itadaki.bobbin.connectionmanager.Connection;
+import org.itadaki.bobbin.connectionmanager.ConnectionBackend;
 import org.itadaki.bobbin.connectionmanager.ConnectionManager;
+import org.itadaki.bobbin.connectionmanager.ConnectionOptions;
 import org.itadaki.bobbin.connectionmanager.InboundConnectionListener;
 import org.itadaki.bobbin.peer.protocol.PeerConnectionListener;
 import org.itadaki.bobbin.peer.protocol.PeerConnectionListenerProvider;
@@ -55,6 +58,13 @@ public class TorrentSetController {
 	 */
 	private static final byte[] localPeerIDPrefix = "-AN0001-".getBytes (CharsetUtil.ASCII);
 
+	/**
+	 * The limits applied to inbound peer connections that have not completed the protocol
+	 * handshake: at most 64 in total and 8 from any one address, each closed if its handshake does
+	 * not complete within 30 seconds
+	 */
+	private static final AcceptLimits peerAcceptLimits = new AcceptLimits (64, 8, 30);
+
 	/**
 	 * The transition table for a {@code TorrentSetController}'s state machine
 	 */
@@ -127,7 +137,7 @@ public class TorrentSetController {
 			synchronized (TorrentSetController.this.stateMachine) {
 				switch (TorrentSetController.this.stateMachine.getState()) {
 					case RUNNING:
-						new PeerProtocolNegotiator (connection, TorrentSetController.this.peerConnectionListenerProvider, TorrentSetController.this.localPeerID);
+						new PeerProtocolNegotiator (connection, TorrentSetController.this.peerConnectionListenerProvider, TorrentSetController.this.localPeerID, true);
 						break;
 				}
 			}
@@ -338,6 +348,54 @@ public class TorrentSetController {
 	}
 
 
+	/**
+	 * @return The limit on the rate of data received for all torrents in bytes per second, or 0
+	 *         if unlimited
+	 */
+	public long getDownloadRateLimit() {
+
+		return this.connectionManager.getReadBucket().getRate();
+
+	}
+
+
+	/**
+	 * Sets the limit on the rate of data received for all torrents. Each torrent may additionally
+	 * be limited through {@link TorrentManager#setDownloadRateLimit(long)}
+	 *
+	 * @param rate The limit in bytes per second, or 0 for unlimited
+	 */
+	public void setDownloadRateLimit (long rate) {
+
+		this.connectionManager.getReadBucket().setRate (rate);
+
+	}
+
+
+	/**
+	 * @return The limit on the rate of data sent for all torrents in bytes per second, or 0 if
+	 *         unlimited
+	 */
+	public long getUploadRateLimit() {
+
+		return this.connectionManager.getWriteBucket().getRate();
+
+	}
+
+
+	/**
+	 * Sets the limit on the rate of data sent for all torrents. Each torrent may additionally be
+	 * limited through {@link TorrentManager#setUploadRateLimit(long)}
+	 *
+	 * @param rate The limit in bytes per second, or 0 for unlimited
+	 */
+	public void setUploadRateLimit (long rate) {
+
+		this.connectionManager.getWriteBucket().setRate (rate);
+
+	}
+
+
 	/**
 	 * @param infoHash An info hash to get a {@link TorrentManager} for
 	 * @return The registered {@code TorrentManager} for the given info hash, if any, or
@@ -655,21 +713,39 @@ public class TorrentSetController {
 
 	/**
 	 * Constructs a {@code TorrentSetController} that stores torrent resume metadata using
-	 * {@code Metadata} instances created by the supplied {@code MetadataProvider}
+	 * {@code Metadata} instances created by the supplied {@code MetadataProvider}, and serves its
+	 * peer connections by the supplied model with the supplied socket options, spread across the
+	 * given number of event loops
 	 * 
 	 * @param metadataProvider The {@code MetadataProvider} that will supply {@code Metadata}
 	 *        instances for the managed torrents
+	 * @param connectionOptions The socket options to apply to peer connections
+	 * @param backend The model by which peer connections are served
+	 * @param eventLoopCount The number of event loops, each of which has its own selector and
+	 *        thread
 	 * @throws IOException If a server socket to accept incoming connections could not be opened
+	 * @throws IllegalArgumentException If the number of event loops is less than 1
 	 */
-	public TorrentSetController (MetadataProvider metadataProvider) throws IOException {
+	public TorrentSetController (MetadataProvider metadataProvider, ConnectionOptions connectionOptions, ConnectionBackend backend, int eventLoopCount)
+			throws IOException
+	{
 
 		byte[] localPeerIDBytes = new byte[20];
 		new Random().nextBytes (localPeerIDBytes);
 		System.arraycopy (localPeerIDPrefix, 0, localPeerIDBytes, 0, localPeerIDPrefix.length);
 		this.localPeerID = new PeerID (localPeerIDBytes);
 
-		this.connectionManager = new ConnectionManager();
+		this.connectionManager = new ConnectionManager (eventLoopCount, backend);
+		this.connectionManager.setConnectionOptions (connectionOptions);
+		this.connectionManager.setAcceptLimits (peerAcceptLimits);
 		this.localPort = this.connectionManager.listen (null, 0, this.inboundListener);
+		try {
+			// Accept uTP connections on the same port number where it is free. Peers reaching us
+			// by TCP alone are unaffected if it is not
+			this.connectionManager.listenUtp (null, this.localPort, this.inboundListener);
+		} catch (IOException e) {
+			// Continue without uTP
+		}
 
 		this.metadataProvider = metadataProvider;
 
@@ -678,6 +754,57 @@ public class TorrentSetController {
 	}
 
 
+	/**
+	 * Constructs a {@code TorrentSetController} that stores torrent resume metadata using
+	 * {@code Metadata} instances created by the supplied {@code MetadataProvider}, and serves its
+	 * peer connections by the supplied model with the supplied socket options from a single event
+	 * loop
+	 * 
+	 * @param metadataProvider The {@code MetadataProvider} that will supply {@code Metadata}
+	 *        instances for the managed torrents
+	 * @param connectionOptions The socket options to apply to peer connections
+	 * @param backend The model by which peer connections are served
+	 * @throws IOException If a server socket to accept incoming connections could not be opened
+	 */
+	public TorrentSetController (MetadataProvider metadataProvider, ConnectionOptions connectionOptions, ConnectionBackend backend) throws IOException {
+
+		this (metadataProvider, connectionOptions, backend, 1);
+
+	}
+
+
+	/**
+	 * Constructs a {@code TorrentSetController} that stores torrent resume metadata using
+	 * {@code Metadata} instances created by the supplied {@code MetadataProvider}, and applies
+	 * the supplied socket options to its peer connections
+	 * 
+	 * @param metadataProvider The {@code MetadataProvider} that will supply {@code Metadata}
+	 *        instances for the managed torrents
+	 * @param connectionOptions The socket options to apply to peer connections
+	 * @throws IOException If a server socket to accept incoming connections could not be opened
+	 */
+	public TorrentSetController (MetadataProvider metadataProvider, ConnectionOptions connectionOptions) throws IOException {
+
+		this (metadataProvider, connectionOptions, ConnectionBackend.EVENT_LOOP);
+
+	}
+
+
+	/**
+	 * Constructs a {@code TorrentSetController} that stores torrent resume metadata using
+	 * {@code Metadata} instances created by the supplied {@code MetadataProvider}
+	 * 
+	 * @param metadataProvider The {@code MetadataProvider} that will supply {@code Metadata}
+	 *        instances for the managed torrents
+	 * @throws IOException If a server socket to accept incoming connections could not be opened
+	 */
+	public TorrentSetController (MetadataProvider metadataProvider) throws IOException {
+
+		this (metadataProvider, new ConnectionOptions());
+
+	}
+
+
 	/**
 	 * Constructs a {@code TorrentSetController} that stores torrent resume metadata beneath the
 	 * supplied directory
@@ -20,4 +20,18 @@ public interface ChokingManager extends PeerCoordinatorListener {
 	 */
 	public void chokePeers (boolean seeding);
 
+	/**
+	 * @return The maximum number of peers that will be unchoked at any one time
+	 */
+	public int getUploadSlots();
+
+	/**
+	 * Sets the maximum number of peers that will be unchoked at any one time, taking effect from
+	 * the next call to {@link #chokePeers(boolean)}
+	 *
+	 * @param uploadSlots The maximum number of unchoked peers
+	 * @throws IllegalArgumentException if {@code uploadSlots} is less than 1
+	 */
+	public void setUploadSlots (int uploadSlots);
+
 }
\ No newline at end of file
@@ -35,6 +35,11 @@ import org.itadaki.bobbin.util.counter.Period;
  */
 public class DefaultChokingManager implements ChokingManager {
 
+	/**
+	 * The default maximum number of peers that are unchoked at any one time
+	 */
+	public static final int UPLOAD_SLOTS = 4;
+
 	/**
 	 * A 20 second period used for peer block statistics
 	 */
@@ -113,6 +118,11 @@ public class DefaultChokingManager implements ChokingManager {
 	 */
 	private ManageablePeer optimisticUnchokePeer;
 
+	/**
+	 * The maximum number of peers that are unchoked at any one time
+	 */
+	private int uploadSlots = UPLOAD_SLOTS;
+
 	/**
 	 * The choking algorithm state for a given peer
 	 */
@@ -203,7 +213,7 @@ public class DefaultChokingManager implements ChokingManager {
 		List<PeerState> interestedChokedPeers = new ArrayList<PeerState>();
 
 		Set<PeerState> previouslyUnchokedPeers = new HashSet<PeerState>();
-		List<PeerState> newUnchokedPeers = new ArrayList<PeerState>(4);
+		List<PeerState> newUnchokedPeers = new ArrayList<PeerState>(this.uploadSlots);
 
 		long currentTime =  System.currentTimeMillis();
 
@@ -249,7 +259,7 @@ public class DefaultChokingManager implements ChokingManager {
 		// Select the peers to unchoke
 
 		// In rounds 0 and 1, try to choose one peer to unchoke at random from the interested, choked peer set
-		int wantedEligiblePeers = (this.roundNumber == 2) ? 4 : 3;
+		int wantedEligiblePeers = (this.roundNumber == 2) ? this.uploadSlots : this.uploadSlots - 1;
 		int wantedRandomPeers = (this.roundNumber == 2) ? 0 : 1;
 		int availableEligiblePeers = eligibleUnchokedPeers.size();
 		int availableRandomPeers = interestedChokedPeers.size();
@@ -259,8 +269,8 @@ public class DefaultChokingManager implements ChokingManager {
 		// If there are too few eligible peers, try to top up with random peers
 		// Finally, if there are no eligible or random peers left to use, add any remaining ineligible peers back in
 		int actualEligiblePeersToUnchoke = Math.min (availableEligiblePeers, wantedEligiblePeers + Math.max (0, wantedRandomPeers - availableRandomPeers));
-		int actualRandomPeersToUnchoke = Math.min (4 - actualEligiblePeersToUnchoke, availableRandomPeers);
-		int ineligiblePeersToUnchoke = Math.min (4 - actualEligiblePeersToUnchoke - actualRandomPeersToUnchoke, ineligibleUnchokedPeers.size());
+		int actualRandomPeersToUnchoke = Math.min (this.uploadSlots - actualEligiblePeersToUnchoke, availableRandomPeers);
+		int ineligiblePeersToUnchoke = Math.min (this.uploadSlots - actualEligiblePeersToUnchoke - actualRandomPeersToUnchoke, ineligibleUnchokedPeers.size());
 
 		// Select peers to keep unchoked from the eligible unchoked peer set
 		for (int i = 0; i < actualEligiblePeersToUnchoke; i++) {
@@ -342,7 +352,7 @@ public class DefaultChokingManager implements ChokingManager {
 		// Select the peers to unchoke
 
 		// Select peers to unchoke or keep unchoked from the eligible peer set
-		int peersToUnchoke = Math.min (3, eligiblePeers.size());
+		int peersToUnchoke = Math.min (this.uploadSlots - 1, eligiblePeers.size());
 		for (int i = 0; i < peersToUnchoke; i++) {
 			PeerState peer = eligiblePeers.get(i);
 			newUnchokedPeers.add (peer);
@@ -373,7 +383,7 @@ public class DefaultChokingManager implements ChokingManager {
 
 		// If we do not have four unchoked peers, select new potential optimistically unchoked
 		// peers for unchoking at random until enough interested peers are unchoked
-		if (newUnchokedPeers.size() < 4) {
+		if (newUnchokedPeers.size() < this.uploadSlots) {
 			ArrayList<PeerState> randomPeers = new ArrayList<PeerState>(this.peerStates.values());
 			Collections.shuffle (randomPeers, this.random);
 			for (PeerState peerState : randomPeers) {
@@ -382,7 +392,7 @@ public class DefaultChokingManager implements ChokingManager {
 					previouslyUnchokedPeers.remove (peerState);
 					if (peerState.peer.getPeerState().getTheyAreInterested()) {
 						this.optimisticUnchokePeer = peerState.peer;
-						if (newUnchokedPeers.size() == 4)
+						if (newUnchokedPeers.size() == this.uploadSlots)
 							break;
 					}
 				}
@@ -427,6 +437,30 @@ public class DefaultChokingManager implements ChokingManager {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.chokingmanager.ChokingManager#getUploadSlots()
+	 */
+	public int getUploadSlots() {
+
+		return this.uploadSlots;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.chokingmanager.ChokingManager#setUploadSlots(int)
+	 */
+	public void setUploadSlots (int uploadSlots) {
+
+		if (uploadSlots < 1) {
+			throw new IllegalArgumentException ("Invalid upload slots");
+		}
+
+		this.uploadSlots = uploadSlots;
+
+	}
+
+
 	/**
 	 * Sets the recorded last choke time for a given peer.
 	 * This is primarily useful in testing, and not used in normal operation.
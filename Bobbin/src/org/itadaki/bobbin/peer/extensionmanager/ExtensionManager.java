@@ -27,6 +27,12 @@ public class ExtensionManager implements PeerCoordinatorListener {
 	 */
 	private final Map<String,ExtensionHandler> handlers = new HashMap<String,ExtensionHandler>();
 
+	/**
+	 * The maximum number of requests each remote peer may have pending, advertised to peers as
+	 * "reqq"
+	 */
+	private int inboundRequestLimit = PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS;
+
 
 	/* PeerCoordinatorLister interface */
 
@@ -66,6 +72,29 @@ public class ExtensionManager implements PeerCoordinatorListener {
 	}
 
 
+	/**
+	 * @return The maximum number of requests each remote peer may have pending
+	 */
+	public int getInboundRequestLimit() {
+
+		return this.inboundRequestLimit;
+
+	}
+
+
+	/**
+	 * Sets the maximum number of requests each remote peer may have pending, advertised to peers
+	 * that are subsequently offered extensions
+	 *
+	 * @param inboundRequestLimit The maximum number of pending requests
+	 */
+	public void setInboundRequestLimit (int inboundRequestLimit) {
+
+		this.inboundRequestLimit = inboundRequestLimit;
+
+	}
+
+
 	/**
 	 * Offers all available extensions to a peer
 	 *
@@ -80,7 +109,7 @@ public class ExtensionManager implements PeerCoordinatorListener {
 		}
 
 		BDictionary extra = new BDictionary();
-		extra.put ("reqq", PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS);
+		extra.put ("reqq", this.inboundRequestLimit);
 
 		peer.sendExtensionHandshake (enabledExtensions, new HashSet<String>(), extra);
 
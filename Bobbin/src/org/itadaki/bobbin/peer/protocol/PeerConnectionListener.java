@@ -1,5 +1,7 @@
 package org.itadaki.bobbin.peer.protocol;
 
+import java.nio.ByteBuffer;
+
 import org.itadaki.bobbin.connectionmanager.Connection;
 import org.itadaki.bobbin.peer.PeerID;
 
@@ -22,6 +24,24 @@ public interface PeerConnectionListener {
 	 */
 	public void peerConnectionComplete (Connection connection, PeerID remotePeerID, boolean fastExtensionEnabled, boolean extensionProtocolEnabled);
 
+	/**
+	 * Indicates that a new peer's connection has received the remote peer's complete handshake,
+	 * but the local handshake has not yet been sent. The local handshake must be sent before, and
+	 * may be written together with, the first messages of the peer protocol. A new listener must
+	 * be synchronously connected to the connection during this call
+	 *
+	 * @param connection The peer's connection, positioned after the last byte of the base protocol
+	 *        handshake
+	 * @param remotePeerID The peer's ID
+	 * @param fastExtensionEnabled {@code true} if the Fast extension was negotiated, otherwise
+	 *        {@code false}
+	 * @param extensionProtocolEnabled {@code true} if the extension protocol was negotiated,
+	 *        otherwise {@code false}
+	 * @param handshake The unsent local handshake
+	 */
+	public void peerConnectionComplete (Connection connection, PeerID remotePeerID, boolean fastExtensionEnabled, boolean extensionProtocolEnabled,
+			ByteBuffer handshake);
+
 	/**
 	 * Indicates that an outbound connection has failed to complete negotiation
 	 *
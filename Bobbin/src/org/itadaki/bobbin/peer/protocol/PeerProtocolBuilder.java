@@ -898,6 +898,205 @@ public class PeerProtocolBuilder {
 	}
 
 
+	/**
+	 * Encodes a message consisting of a type only into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 * @param messageType The message type
+	 */
+	private static void putMessage (ByteBuffer buffer, byte messageType) {
+
+		buffer.putInt (1);
+		buffer.put (messageType);
+
+	}
+
+
+	/**
+	 * Encodes a message consisting of a type and one integer into a ByteBuffer at its current
+	 * position
+	 *
+	 * @param buffer The buffer to encode into
+	 * @param messageType The message type
+	 * @param value The integer value
+	 */
+	private static void putMessage (ByteBuffer buffer, byte messageType, int value) {
+
+		buffer.putInt (5);
+		buffer.put (messageType);
+		buffer.putInt (value);
+
+	}
+
+
+	/**
+	 * Encodes a message consisting of a type and a block descriptor into a ByteBuffer at its
+	 * current position
+	 *
+	 * @param buffer The buffer to encode into
+	 * @param messageType The message type
+	 * @param descriptor The block descriptor
+	 */
+	private static void putMessage (ByteBuffer buffer, byte messageType, BlockDescriptor descriptor) {
+
+		buffer.putInt (13);
+		buffer.put (messageType);
+		buffer.putInt (descriptor.getPieceNumber());
+		buffer.putInt (descriptor.getOffset());
+		buffer.putInt (descriptor.getLength());
+
+	}
+
+
+	/**
+	 * Encodes a "keep-alive" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 */
+	public static void putKeepaliveMessage (ByteBuffer buffer) {
+
+		buffer.putInt (0);
+
+	}
+
+
+	/**
+	 * Encodes a "choke" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 */
+	public static void putChokeMessage (ByteBuffer buffer) {
+
+		putMessage (buffer, PeerProtocolConstants.MESSAGE_TYPE_CHOKE);
+
+	}
+
+
+	/**
+	 * Encodes an "unchoke" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 */
+	public static void putUnchokeMessage (ByteBuffer buffer) {
+
+		putMessage (buffer, PeerProtocolConstants.MESSAGE_TYPE_UNCHOKE);
+
+	}
+
+
+	/**
+	 * Encodes an "interested" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 */
+	public static void putInterestedMessage (ByteBuffer buffer) {
+
+		putMessage (buffer, PeerProtocolConstants.MESSAGE_TYPE_INTERESTED);
+
+	}
+
+
+	/**
+	 * Encodes a "not interested" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 */
+	public static void putNotInterestedMessage (ByteBuffer buffer) {
+
+		putMessage (buffer, PeerProtocolConstants.MESSAGE_TYPE_NOT_INTERESTED);
+
+	}
+
+
+	/**
+	 * Encodes a "have" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 * @param pieceNumber The piece number to send
+	 */
+	public static void putHaveMessage (ByteBuffer buffer, int pieceNumber) {
+
+		putMessage (buffer, PeerProtocolConstants.MESSAGE_TYPE_HAVE, pieceNumber);
+
+	}
+
+
+	/**
+	 * Encodes a "request" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 * @param descriptor The block to request
+	 */
+	public static void putRequestMessage (ByteBuffer buffer, BlockDescriptor descriptor) {
+
+		putMessage (buffer, PeerProtocolConstants.MESSAGE_TYPE_REQUEST, descriptor);
+
+	}
+
+
+	/**
+	 * Encodes a "cancel" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 * @param descriptor The block to cancel
+	 */
+	public static void putCancelMessage (ByteBuffer buffer, BlockDescriptor descriptor) {
+
+		putMessage (buffer, PeerProtocolConstants.MESSAGE_TYPE_CANCEL, descriptor);
+
+	}
+
+
+	/**
+	 * Encodes a "have all" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 */
+	public static void putHaveAllMessage (ByteBuffer buffer) {
+
+		putMessage (buffer, PeerProtocolConstants.MESSAGE_TYPE_HAVE_ALL);
+
+	}
+
+
+	/**
+	 * Encodes a "have none" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 */
+	public static void putHaveNoneMessage (ByteBuffer buffer) {
+
+		putMessage (buffer, PeerProtocolConstants.MESSAGE_TYPE_HAVE_NONE);
+
+	}
+
+
+	/**
+	 * Encodes a "reject request" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 * @param descriptor The descriptor of the rejected request
+	 */
+	public static void putRejectRequestMessage (ByteBuffer buffer, BlockDescriptor descriptor) {
+
+		putMessage (buffer, PeerProtocolConstants.MESSAGE_TYPE_REJECT_REQUEST, descriptor);
+
+	}
+
+
+	/**
+	 * Encodes an "allowed fast" message into a ByteBuffer at its current position
+	 *
+	 * @param buffer The buffer to encode into
+	 * @param pieceNumber The number of the piece that is allowed fast
+	 */
+	public static void putAllowedFastMessage (ByteBuffer buffer, int pieceNumber) {
+
+		putMessage (buffer, PeerProtocolConstants.MESSAGE_TYPE_ALLOWED_FAST, pieceNumber);
+
+	}
+
+
 	/**
 	 * Not instantiable
 	 */
@@ -21,20 +21,77 @@ public class PeerProtocolConstants {
 	 */
 	public static final int MAXIMUM_MESSAGE_LENGTH = MAXIMUM_PIECE_LENGTH + 9;
 
+	/**
+	 * The length of the buffer into which each connection's received bytes are read in bulk
+	 */
+	public static final int RECEIVE_BUFFER_LENGTH = 65536;
+
+	/**
+	 * The default number of bytes of queued messages gathered into a single write to a
+	 * connection, after which no further message is added
+	 */
+	public static final int SEND_BATCH_LENGTH = 65536;
+
+	/**
+	 * The length of the direct buffer into which each connection's fixed length outbound messages
+	 * are encoded
+	 */
+	public static final int OUTPUT_BUFFER_LENGTH = 16384;
+
+	/**
+	 * The maximum length of a fixed length message (choke, interested, have, request, cancel and
+	 * the like), including its length header
+	 */
+	public static final int MAXIMUM_FIXED_MESSAGE_LENGTH = 17;
+
 	/**
 	 * The length used when requesting piece blocks
 	 */
 	public static final int BLOCK_LENGTH = 16384;
 
+	/**
+	 * The length of a piece of info dictionary exchanged through the Peer Metadata extension
+	 */
+	public static final int PEER_METADATA_PIECE_LENGTH = 16384;
+
 	/**
 	 * The maximum length allowed for requests from remote peers
 	 */
 	public static final int MAXIMUM_BLOCK_LENGTH = 32768;
 
 	/**
-	 * The maximum number of pending requests to a single remote peer
+	 * The length of an encoded Have message
 	 */
-	public static final int MAXIMUM_OUTBOUND_REQUESTS = 30;
+	public static final int HAVE_MESSAGE_LENGTH = 9;
+
+	/**
+	 * The length of an encoded Elastic extension bitfield message, excluding the bitfield itself
+	 */
+	public static final int ELASTIC_BITFIELD_MESSAGE_OVERHEAD = 7;
+
+	/**
+	 * The minimum number of pending requests to a single remote peer, when adapted to its
+	 * measured rate and latency
+	 */
+	public static final int MINIMUM_OUTBOUND_REQUESTS = 2;
+
+	/**
+	 * The number of pending requests to a single remote peer before its rate and latency have
+	 * been measured
+	 */
+	public static final int INITIAL_OUTBOUND_REQUESTS = 30;
+
+	/**
+	 * The maximum number of pending requests to a single remote peer, when adapted to its
+	 * measured rate and latency
+	 */
+	public static final int MAXIMUM_OUTBOUND_REQUESTS = 500;
+
+	/**
+	 * The minimum number of pending requests a single remote peer may have before we start
+	 * ignoring some, when adapted to the number of upload slots
+	 */
+	public static final int MINIMUM_INBOUND_REQUESTS = 16;
 
 	/**
 	 * The maximum number of pending requests a single remote peer may have before we start
@@ -42,6 +99,12 @@ public class PeerProtocolConstants {
 	 */
 	public static final int MAXIMUM_INBOUND_REQUESTS = 250;
 
+	/**
+	 * The total length of requested blocks that may be pending for all unchoked remote peers of a
+	 * torrent. Each remote peer is allowed an equal share per upload slot
+	 */
+	public static final int INBOUND_REQUEST_BUFFER_LENGTH = 8 * 1024 * 1024;
+
 	/**
 	 * The number of seconds of outbound data inactivity after which a keepalive should be sent
 	 */
@@ -63,10 +63,11 @@ public interface PeerProtocolConsumer {
 	 * message ID 5)
 	 *
 	 * @param resource The resource that is the subject of the message, or {@code null}
-	 * @param bitField The bits of the received bitfield
+	 * @param bitField The bits of the received bitfield. The buffer is only valid for the duration
+	 *        of the call, and its content must be copied if it is to be retained
 	 * @throws IOException On any validation error
 	 */
-	public void bitfieldMessage (ResourceType resource, byte[] bitField) throws IOException;
+	public void bitfieldMessage (ResourceType resource, ByteBuffer bitField) throws IOException;
 
 	/**
 	 * Indicates that a "request" or "resource request" message has been received (basic protocol
@@ -190,10 +191,11 @@ public interface PeerProtocolConsumer {
 	 * Indicates that a "elastic bitfield" message has been received (extension protocol identifier
 	 * "bo_elastic", sub type 2)
 	 *
-	 * @param bitField The bits of the received bitfield
+	 * @param bitField The bits of the received bitfield. The buffer is only valid for the duration
+	 *        of the call, and its content must be copied if it is to be retained
 	 * @throws IOException On any validation error
 	 */
-	public void elasticBitfieldMessage (byte[] bitField) throws IOException;
+	public void elasticBitfieldMessage (ByteBuffer bitField) throws IOException;
 
 	/**
 	 * Indicates that a "resource directory" message has been received (extension protocol
@@ -103,6 +103,18 @@ public class PeerProtocolNegotiator implements ConnectionReadyListener {
 	 */
 	private int headerBytesExpected = streamHeaderBytes.length + 8;
 
+	/**
+	 * If {@code true}, for an incoming connection, the local handshake is held back until the
+	 * remote peer's handshake is complete so that it can be sent together with the first messages
+	 * of the peer protocol
+	 */
+	private final boolean pipelined;
+
+	/**
+	 * {@code true} while the local handshake has been prepared but is being held back
+	 */
+	private boolean handshakeDeferred = false;
+
 	/**
 	 * {@code true} if the Fast extension has been negotiated, otherwise {@code false}
 	 */
@@ -127,7 +139,7 @@ public class PeerProtocolNegotiator implements ConnectionReadyListener {
 				parseBytes (connection);
 			}
 
-			if (writeable) {
+			if (writeable && !this.handshakeDeferred && (this.state != State.COMPLETE)) {
 				connection.write (this.outputHeaderData);
 				if (!this.outputHeaderData.hasRemaining()) {
 					connection.setWriteEnabled (false);
@@ -136,6 +148,7 @@ public class PeerProtocolNegotiator implements ConnectionReadyListener {
 
 			if ((this.state == State.SENDING) && !this.outputHeaderData.hasRemaining()) {
 				this.state = State.COMPLETE;
+				connection.setEstablished();
 				this.listener.peerConnectionComplete (connection, this.remotePeerID, this.fastExtensionEnabled, this.extensionProtocolEnabled);
 			}
 
@@ -202,6 +215,12 @@ public class PeerProtocolNegotiator implements ConnectionReadyListener {
 			totalBytesRead += bytesRead;
 
 			if (bytesRead == 0) {
+				// If the remote peer's ID has not arrived along with its info hash, it may be waiting
+				// for our handshake before sending it
+				if (this.handshakeDeferred) {
+					this.handshakeDeferred = false;
+					this.connection.setWriteEnabled (true);
+				}
 				return totalBytesRead;
 			} else if (bytesRead == -1) {
 				throw new ClosedChannelException();
@@ -240,7 +259,12 @@ public class PeerProtocolNegotiator implements ConnectionReadyListener {
 						if (this.infoHash == null) {
 							this.listener = this.listenerProvider.getPeerConnectionListener (receivedInfoHash);
 							if (this.listener != null) {
-								sendHandshake (receivedInfoHash, this.localPeerID);
+								if (this.pipelined) {
+									this.outputHeaderData = PeerProtocolBuilder.handshake (true, true, receivedInfoHash, this.localPeerID);
+									this.handshakeDeferred = true;
+								} else {
+									sendHandshake (receivedInfoHash, this.localPeerID);
+								}
 								this.state = State.PEER_ID;
 							} else {
 								throw new IOException ("Unknown info hash");
@@ -259,7 +283,15 @@ public class PeerProtocolNegotiator implements ConnectionReadyListener {
 						byte[] peerIDBytes = new byte[20];
 						this.inputHeaderData.get (peerIDBytes);
 						this.remotePeerID = new PeerID (peerIDBytes);
-						this.state = State.SENDING;
+						if (this.handshakeDeferred) {
+							this.handshakeDeferred = false;
+							this.state = State.COMPLETE;
+							this.connection.setEstablished();
+							this.listener.peerConnectionComplete (this.connection, this.remotePeerID, this.fastExtensionEnabled, this.extensionProtocolEnabled,
+									this.outputHeaderData);
+						} else {
+							this.state = State.SENDING;
+						}
 						continue;
 
 					case SENDING:
@@ -284,11 +316,15 @@ public class PeerProtocolNegotiator implements ConnectionReadyListener {
 	 * @param listenerProvider The provider to ask for a PeerConnectionListener once the remote peer
 	 *        sends its info hash
 	 * @param localPeerID The peer ID to send to the remote peer
+	 * @param pipelined If {@code true}, and the remote peer's complete handshake is received
+	 *        before ours is sent, our handshake is passed unsent to the listener to be written
+	 *        together with the first messages of the peer protocol
 	 */
-	public PeerProtocolNegotiator (Connection connection, PeerConnectionListenerProvider listenerProvider, PeerID localPeerID) {
+	public PeerProtocolNegotiator (Connection connection, PeerConnectionListenerProvider listenerProvider, PeerID localPeerID, boolean pipelined) {
 
 		this.connection = connection;
 		this.infoHash = null;
+		this.pipelined = pipelined;
 
 		this.listenerProvider = listenerProvider;
 		this.localPeerID = localPeerID;
@@ -298,6 +334,20 @@ public class PeerProtocolNegotiator implements ConnectionReadyListener {
 	}
 
 
+	/**
+	 * Constructor for an incoming connection
+	 * @param connection The connection to the remote peer
+	 * @param listenerProvider The provider to ask for a PeerConnectionListener once the remote peer
+	 *        sends its info hash
+	 * @param localPeerID The peer ID to send to the remote peer
+	 */
+	public PeerProtocolNegotiator (Connection connection, PeerConnectionListenerProvider listenerProvider, PeerID localPeerID) {
+
+		this (connection, listenerProvider, localPeerID, false);
+
+	}
+
+
 	/**
 	 * Constructor for an outgoing connection
 	 * @param connection The connection to the remote peer
@@ -309,6 +359,7 @@ public class PeerProtocolNegotiator implements ConnectionReadyListener {
 
 		this.connection = connection;
 		this.infoHash = infoHash;
+		this.pipelined = false;
 
 		this.listener = listener;
 
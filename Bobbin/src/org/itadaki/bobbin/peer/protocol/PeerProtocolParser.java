@@ -34,6 +34,9 @@ import org.itadaki.bobbin.torrentdb.ViewSignature;
  * {@link #parseBytes(ReadableByteChannel)} will result in calls to methods of the supplied
  * {@link PeerProtocolConsumer}. If the stream is closed, or an error in the format of the stream is
  * detected, {@code IOException} will be thrown. 
+ * <p>Input is read in bulk into a reusable receive buffer, from which as many complete messages as
+ * it holds are parsed in place. Messages split across reads are completed by later reads, and
+ * messages too large for the receive buffer are assembled separately.
  * <p>The content of the message data is not validated by the parser. Members of
  * {@code PeerProtocolConsumer} may throw IOException to indicate that a content error has been
  * detected and further parsing should be aborted. The exception will be passed back to the caller
@@ -64,6 +67,11 @@ public class PeerProtocolParser {
 		 */
 		MESSAGE,
 
+		/**
+		 * Parser is reading the content of a message too large for the receive buffer
+		 */
+		LARGE_MESSAGE,
+
 		/**
 		 * Parser has encountered an error
 		 */
@@ -82,14 +90,25 @@ public class PeerProtocolParser {
 	private ParserState parserState = ParserState.MESSAGE_LENGTH;
 
 	/**
-	 * The message data currently being assembled from input
+	 * Bytes read from the input channel that have not yet been parsed. Between calls to
+	 * {@link #parseBytes(ReadableByteChannel)}, the buffer is ready to receive further bytes
 	 */
-	private ByteBuffer messageData = ByteBuffer.allocate (4);
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocate (PeerProtocolConstants.RECEIVE_BUFFER_LENGTH);
 
 	/**
-	 * The number of remaining bytes that are expected of the current message
+	 * A buffer in which a message too large for the receive buffer is assembled
 	 */
-	private int messageBytesExpected = 4;
+	private ByteBuffer largeMessageBuffer = null;
+
+	/**
+	 * The content of the message currently being parsed
+	 */
+	private ByteBuffer messageData = null;
+
+	/**
+	 * The length of the message currently being read
+	 */
+	private int messageLength = 0;
 
 	/**
 	 * {@code true} if the remote peer supports the Fast extension
@@ -112,23 +131,6 @@ public class PeerProtocolParser {
 	private boolean bitfieldReceived = false;
 
 
-	/**
-	 * Resets the messageData buffer ready to receive a given number of bytes
-	 *
-	 * @param numBytes The number of bytes to expect
-	 */
-	private void resetMessageBuffer (int numBytes) {
-
-		if (numBytes > this.messageData.capacity()) {
-			this.messageData = ByteBuffer.allocate (numBytes);
-		}
-		this.messageData.clear();
-		this.messageData.limit (numBytes);
-		this.messageBytesExpected = numBytes;
-
-	}
-
-
 	/**
 	 * Reads a big endian integer from the message data
 	 *
@@ -260,9 +262,7 @@ public class PeerProtocolParser {
 
 		if (!this.bitfieldReceived) {
 			this.bitfieldReceived = true;
-			byte[] bitFieldBytes = new byte[this.messageData.remaining()];
-			this.messageData.get (bitFieldBytes);
-			this.consumer.bitfieldMessage (resource, bitFieldBytes);
+			this.consumer.bitfieldMessage (resource, this.messageData);
 		} else {
 			this.parserState = ParserState.ERROR;
 			throw new IOException ("Invalid message sequence");
@@ -481,7 +481,7 @@ public class PeerProtocolParser {
 	 */
 	private void parsePeerMetadataMessage() throws IOException {
 
-		ByteArrayInputStream inputStream = new ByteArrayInputStream (this.messageData.array(), this.messageData.position(), this.messageData.remaining());
+		ByteArrayInputStream inputStream = new ByteArrayInputStream (this.messageData.array(), this.messageData.arrayOffset() + this.messageData.position(), this.messageData.remaining());
 		BDictionary dictionary = new BDecoder (inputStream).decodeDictionary();
 
 		BValue messageTypeValue = dictionary.get ("msg_type");
@@ -638,9 +638,7 @@ public class PeerProtocolParser {
 				break;
 
 			case PeerProtocolConstants.ELASTIC_MESSAGE_TYPE_BITFIELD:
-				byte[] bitFieldBytes = new byte[this.messageData.remaining()];
-				this.messageData.get (bitFieldBytes);
-				this.consumer.elasticBitfieldMessage (bitFieldBytes);
+				this.consumer.elasticBitfieldMessage (this.messageData);
 				break;
 
 			default:
@@ -754,6 +752,183 @@ public class PeerProtocolParser {
 	}
 
 
+	/**
+	 * Parses a complete message held in the message data buffer
+	 *
+	 * @throws IOException if a parse error occurs
+	 */
+	private void parseMessage() throws IOException {
+
+		byte messageType = this.messageData.get();
+
+		switch (messageType) {
+
+			case PeerProtocolConstants.MESSAGE_TYPE_CHOKE:
+				parseChokeMessage();
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_UNCHOKE:
+				parseUnchokeMessage();
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_INTERESTED:
+				parseInterestedMessage();
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_NOT_INTERESTED:
+				parseNotInterestedMessage();
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_HAVE:
+				parseHaveMessage (null);
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_BITFIELD:
+				parseBitfieldMessage (null);
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_REQUEST:
+				parseRequestMessage (null);
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_PIECE:
+				parsePieceMessage (null);
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_CANCEL:
+				parseCancelMessage (null);
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_SUGGEST_PIECE:
+				parseSuggestPieceMessage();
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_HAVE_ALL:
+				parseHaveAllMessage();
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_HAVE_NONE:
+				parseHaveNoneMessage();
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_REJECT_REQUEST:
+				parseRejectRequestMessage (null);
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_ALLOWED_FAST:
+				parseAllowedFastMessage();
+				break;
+
+			case PeerProtocolConstants.MESSAGE_TYPE_EXTENDED:
+				if (this.extensionProtocolEnabled && (this.messageData.remaining() >= 1)) {
+					int extensionID = this.messageData.get() & 0xff;
+					switch (extensionID) {
+						case 0:
+							parseExtensionHandshakeMessage();
+							break;
+						case PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_PEER_METADATA:
+							parsePeerMetadataMessage();
+							break;
+						case PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_MERKLE:
+							parseMerklePieceMessage();
+							break;
+						case PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_ELASTIC:
+							parseElasticMessage();
+							break;
+						case PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_RESOURCE:
+							parseResourceMessage();
+							break;
+						default:
+							byte[] extensionData = new byte[this.messageData.remaining()];
+							this.messageData.get (extensionData);
+							this.consumer.extensionMessage (extensionID, extensionData);
+							break;
+					}
+				} else {
+					this.parserState = ParserState.ERROR;
+					throw new IOException ("Extension protocol error");
+				}
+				break;
+
+			default:
+				byte[] unknownData = new byte[this.messageData.remaining()];
+				this.messageData.get (unknownData);
+				this.consumer.unknownMessage (messageType, unknownData);
+				break;
+
+		}
+
+	}
+
+
+	/**
+	 * Parses as many complete messages as are held in the receive buffer. If a message is found
+	 * that is too large for the receive buffer, the bytes received so far of it are transferred to
+	 * the large message buffer for assembly
+	 *
+	 * @param inputChannel The input channel that bytes were read from
+	 * @throws IOException if the input channel has been closed or a parse error occurred
+	 */
+	private void parseReceivedMessages (ReadableByteChannel inputChannel) throws IOException {
+
+		while (true) {
+
+			if (this.parserState == ParserState.MESSAGE_LENGTH) {
+
+				if (this.receiveBuffer.remaining() < 4) {
+					return;
+				}
+
+				int length = this.receiveBuffer.getInt();
+				if (length == 0) {
+					this.consumer.keepAliveMessage();
+				} else if ((length < 0) || (length > PeerProtocolConstants.MAXIMUM_MESSAGE_LENGTH)) {
+					this.parserState = ParserState.ERROR;
+					throw new IOException ("Message too large");
+				} else {
+					this.parserState = ParserState.MESSAGE;
+					this.messageLength = length;
+				}
+
+			} else if (this.receiveBuffer.remaining() >= this.messageLength) {
+
+				// The consumer may have closed the channel in response to an earlier message
+				if (!inputChannel.isOpen()) {
+					throw new ClosedChannelException();
+				}
+
+				int receiveLimit = this.receiveBuffer.limit();
+				int messageEnd = this.receiveBuffer.position() + this.messageLength;
+				this.receiveBuffer.limit (messageEnd);
+				this.messageData = this.receiveBuffer;
+				parseMessage();
+				this.messageData = null;
+				this.receiveBuffer.limit (receiveLimit);
+				this.receiveBuffer.position (messageEnd);
+				this.parserState = ParserState.MESSAGE_LENGTH;
+
+			} else if (this.messageLength > this.receiveBuffer.capacity()) {
+
+				if ((this.largeMessageBuffer == null) || (this.largeMessageBuffer.capacity() < this.messageLength)) {
+					this.largeMessageBuffer = ByteBuffer.allocate (this.messageLength);
+				}
+				this.largeMessageBuffer.clear();
+				this.largeMessageBuffer.limit (this.messageLength);
+				this.largeMessageBuffer.put (this.receiveBuffer);
+				this.parserState = ParserState.LARGE_MESSAGE;
+				return;
+
+			} else {
+
+				return;
+
+			}
+
+		}
+
+	}
+
+
 	/**
 	 * Parses input bytes of peer protocol, assembling them internally until one or more complete
 	 * messages have been received, and calling the relevant message methods on the registered
@@ -769,8 +944,9 @@ public class PeerProtocolParser {
 
 		while (this.parserState != ParserState.ERROR) {
 
-			int bytesRead = inputChannel.read (this.messageData);
-			totalBytesRead += bytesRead;
+			// A large message is read directly into its own buffer; all else is read in bulk
+			boolean largeMessage = (this.parserState == ParserState.LARGE_MESSAGE);
+			int bytesRead = inputChannel.read (largeMessage ? this.largeMessageBuffer : this.receiveBuffer);
 
 			if (bytesRead == 0) {
 				return totalBytesRead;
@@ -778,136 +954,20 @@ public class PeerProtocolParser {
 				throw new ClosedChannelException();
 			}
 
-			this.messageBytesExpected -= bytesRead;
-
-			if (this.messageBytesExpected == 0) {
-				this.messageData.rewind();
-				switch (this.parserState) {
-
-					case MESSAGE_LENGTH:
-						int length = readInt();
-						if (length == 0) {
-							this.consumer.keepAliveMessage();
-							resetMessageBuffer (4);
-						} else if (length > PeerProtocolConstants.MAXIMUM_MESSAGE_LENGTH) {
-							this.parserState = ParserState.ERROR;
-							throw new IOException ("Message too large");
-						} else {
-							this.parserState = ParserState.MESSAGE;
-							resetMessageBuffer (length);
-						}
-						continue;
-
-					case MESSAGE:
-						byte messageType = this.messageData.get();
-
-						switch (messageType) {
-
-							case PeerProtocolConstants.MESSAGE_TYPE_CHOKE:
-								parseChokeMessage();
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_UNCHOKE:
-								parseUnchokeMessage();
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_INTERESTED:
-								parseInterestedMessage();
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_NOT_INTERESTED:
-								parseNotInterestedMessage();
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_HAVE:
-								parseHaveMessage (null);
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_BITFIELD:
-								parseBitfieldMessage (null);
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_REQUEST:
-								parseRequestMessage (null);
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_PIECE:
-								parsePieceMessage (null);
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_CANCEL:
-								parseCancelMessage (null);
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_SUGGEST_PIECE:
-								parseSuggestPieceMessage();
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_HAVE_ALL:
-								parseHaveAllMessage();
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_HAVE_NONE:
-								parseHaveNoneMessage();
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_REJECT_REQUEST:
-								parseRejectRequestMessage (null);
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_ALLOWED_FAST:
-								parseAllowedFastMessage();
-								break;
-
-							case PeerProtocolConstants.MESSAGE_TYPE_EXTENDED:
-								if (this.extensionProtocolEnabled && (this.messageData.remaining() >= 1)) {
-									int extensionID = this.messageData.get() & 0xff;
-									switch (extensionID) {
-										case 0:
-											parseExtensionHandshakeMessage();
-											break;
-										case PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_PEER_METADATA:
-											parsePeerMetadataMessage();
-											break;
-										case PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_MERKLE:
-											parseMerklePieceMessage();
-											break;
-										case PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_ELASTIC:
-											parseElasticMessage();
-											break;
-										case PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_RESOURCE:
-											parseResourceMessage();
-											break;
-										default:
-											byte[] extensionData = new byte[this.messageData.remaining()];
-											this.messageData.get (extensionData);
-											this.consumer.extensionMessage (extensionID, extensionData);
-											break;
-									}
-								} else {
-									this.parserState = ParserState.ERROR;
-									throw new IOException ("Extension protocol error");
-								}
-								break;
-
-							default:
-								byte[] unknownData = new byte[this.messageData.remaining()];
-								this.messageData.get (unknownData);
-								this.consumer.unknownMessage (messageType, unknownData);
-								break;
-
-						}
-
-						this.parserState = ParserState.MESSAGE_LENGTH;
-						resetMessageBuffer (4);
-						continue;
-
-					case ERROR:
-						// Do nothing
-						break;
+			totalBytesRead += bytesRead;
 
+			if (largeMessage) {
+				if (!this.largeMessageBuffer.hasRemaining()) {
+					this.largeMessageBuffer.flip();
+					this.messageData = this.largeMessageBuffer;
+					parseMessage();
+					this.messageData = null;
+					this.parserState = ParserState.MESSAGE_LENGTH;
 				}
-
+			} else {
+				this.receiveBuffer.flip();
+				parseReceivedMessages (inputChannel);
+				this.receiveBuffer.compact();
 			}
 
 		}
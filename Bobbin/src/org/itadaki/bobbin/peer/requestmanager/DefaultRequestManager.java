@@ -346,8 +346,8 @@ public class DefaultRequestManager implements RequestManager {
 
 		// Subtract the peer's available pieces from the available piece counts
 		BitField bitField = peer.getRemoteBitField();
-		for (Integer pieceNumber : bitField) {
-			this.pieceAvailability[pieceNumber]--;
+		for (int i = bitField.nextSetBit (0); i >= 0; i = bitField.nextSetBit (i + 1)) {
+			this.pieceAvailability[i]--;
 		}
 
 		this.peerStates.remove (peer);
@@ -371,8 +371,8 @@ public class DefaultRequestManager implements RequestManager {
 	public boolean piecesAvailable (ManageablePeer peer) {
 
 		BitField bitField = peer.getRemoteBitField();
-		for (int i = 0; i < bitField.length(); i++) {
-			this.pieceAvailability[i] += bitField.get (i) ? 1 : 0;
+		for (int i = bitField.nextSetBit (0); i >= 0; i = bitField.nextSetBit (i + 1)) {
+			this.pieceAvailability[i]++;
 		}
 
 		if (bitField.intersects (this.neededPieces)) {
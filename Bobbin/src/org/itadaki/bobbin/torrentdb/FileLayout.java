@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.torrentdb;
+
+import java.io.File;
+import java.util.List;
+
+
+/**
+ * Immutably maps the linear byte address space of a torrent onto an ordered list of files of
+ * declared length
+ *
+ * <p>Linear addresses are resolved to files by binary search over a sorted array of file start
+ * offsets. A range of linear addresses is broken into per-file fragments through a reusable
+ * {@link Fragments} cursor, which allocates nothing per fragment.
+ *
+ * <p>Zero length files are included in the fragments of any range that begins at their start
+ * offset, in order that writes to that range will create them as a side effect.
+ */
+public final class FileLayout {
+
+	/**
+	 * The underlying files
+	 */
+	private final File[] files;
+
+	/**
+	 * The linear byte address of the start of each file
+	 */
+	private final long[] offsets;
+
+	/**
+	 * The declared length of each file. May be longer than the current, actual length of the file
+	 * in the filesystem
+	 */
+	private final long[] lengths;
+
+	/**
+	 * The total declared length of all files
+	 */
+	private final long totalLength;
+
+
+	/**
+	 * A cursor over the file fragments that make up a range of linear addresses. A single instance
+	 * may be reused for any number of ranges through {@link #reset(long, long)}
+	 */
+	public final class Fragments {
+
+		/**
+		 * The index of the current file
+		 */
+		private int fileIndex;
+
+		/**
+		 * The byte position within the current file of the start of the current fragment
+		 */
+		private long filePosition;
+
+		/**
+		 * The length of the current fragment
+		 */
+		private int length;
+
+		/**
+		 * The index of the next file to visit
+		 */
+		private int nextFileIndex;
+
+		/**
+		 * The byte position within the next file to visit
+		 */
+		private long nextFilePosition;
+
+		/**
+		 * The number of bytes in the range not yet covered by a returned fragment
+		 */
+		private long remaining;
+
+
+		/**
+		 * Positions the cursor before the first fragment of a given range
+		 *
+		 * @param start The linear byte address of the start of the range
+		 * @param rangeLength The length of the range
+		 * @return This cursor
+		 * @throws IndexOutOfBoundsException if the range is not contained within the layout
+		 */
+		public Fragments reset (long start, long rangeLength) {
+
+			if ((rangeLength < 0) || (start + rangeLength > FileLayout.this.totalLength)) {
+				throw new IndexOutOfBoundsException ("Invalid range " + start + " + " + rangeLength);
+			}
+
+			if (rangeLength > 0) {
+				this.nextFileIndex = FileLayout.this.getFileIndex (start);
+				this.nextFilePosition = start - FileLayout.this.offsets[this.nextFileIndex];
+			}
+			this.remaining = rangeLength;
+
+			return this;
+
+		}
+
+
+		/**
+		 * Advances to the next fragment of the range
+		 *
+		 * @return {@code true} if the cursor is positioned on a fragment, or {@code false} if the
+		 *         range is exhausted
+		 */
+		public boolean next() {
+
+			if (this.remaining == 0) {
+				return false;
+			}
+
+			this.fileIndex = this.nextFileIndex++;
+			long fileLength = FileLayout.this.lengths[this.fileIndex];
+
+			// A zero length file contributes an empty fragment and leaves the position within the
+			// following file unchanged
+			if (fileLength == 0) {
+				this.filePosition = 0;
+				this.length = 0;
+			} else {
+				this.filePosition = this.nextFilePosition;
+				this.length = (int) Math.min (this.remaining, fileLength - this.filePosition);
+				this.remaining -= this.length;
+				this.nextFilePosition = 0;
+			}
+
+			return true;
+
+		}
+
+
+		/**
+		 * @return The index of the file containing the current fragment
+		 */
+		public int getFileIndex() {
+
+			return this.fileIndex;
+
+		}
+
+
+		/**
+		 * @return The byte position within the current file of the start of the current fragment
+		 */
+		public long getFilePosition() {
+
+			return this.filePosition;
+
+		}
+
+
+		/**
+		 * @return The length of the current fragment. May be zero for a zero length file
+		 */
+		public int getLength() {
+
+			return this.length;
+
+		}
+
+	}
+
+
+	/**
+	 * @return The number of files in the layout
+	 */
+	public int getNumberOfFiles() {
+
+		return this.files.length;
+
+	}
+
+
+	/**
+	 * @param fileIndex The index of the file
+	 * @return The file with the given index
+	 */
+	public File getFile (int fileIndex) {
+
+		return this.files[fileIndex];
+
+	}
+
+
+	/**
+	 * @param fileIndex The index of the file
+	 * @return The linear byte address of the start of the file with the given index
+	 */
+	public long getFileOffset (int fileIndex) {
+
+		return this.offsets[fileIndex];
+
+	}
+
+
+	/**
+	 * @param fileIndex The index of the file
+	 * @return The declared length of the file with the given index
+	 */
+	public long getFileLength (int fileIndex) {
+
+		return this.lengths[fileIndex];
+
+	}
+
+
+	/**
+	 * @return The total declared length of all files
+	 */
+	public long getTotalLength() {
+
+		return this.totalLength;
+
+	}
+
+
+	/**
+	 * Finds the file containing a given linear byte address. Where the address is the start offset
+	 * of one or more zero length files, the first of those files is returned
+	 *
+	 * @param linearByteIndex The linear byte address
+	 * @return The index of the file
+	 * @throws IndexOutOfBoundsException if the address is beyond the end of the last file
+	 */
+	public int getFileIndex (long linearByteIndex) {
+
+		if ((linearByteIndex < 0) || (linearByteIndex >= this.totalLength)) {
+			throw new IndexOutOfBoundsException ("Invalid position " + linearByteIndex);
+		}
+
+		// Find the last file starting at or before the address
+		int low = 0;
+		int high = this.offsets.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (this.offsets[middle] <= linearByteIndex) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+
+		// Find the first file starting at the same offset
+		long offset = this.offsets[low];
+		high = low;
+		low = 0;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.offsets[middle] < offset) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+
+	}
+
+
+	/**
+	 * @return A new fragment cursor over this layout
+	 */
+	public Fragments fragments() {
+
+		return new Fragments();
+
+	}
+
+
+	/**
+	 * Creates a layout identical to this one, except that the last file is extended to give a
+	 * new total length
+	 *
+	 * @param length The new total length
+	 * @return The extended layout
+	 * @throws IllegalArgumentException if the new length is shorter than the current length
+	 */
+	public FileLayout extend (long length) {
+
+		if (length < this.totalLength) {
+			throw new IllegalArgumentException ("Cannot extend to shorter length");
+		}
+
+		long[] lengths = this.lengths.clone();
+		lengths[lengths.length - 1] += length - this.totalLength;
+
+		return new FileLayout (this.files, this.offsets, lengths, length);
+
+	}
+
+
+	/**
+	 * @param files The underlying files
+	 * @param offsets The linear byte address of the start of each file
+	 * @param lengths The declared length of each file
+	 * @param totalLength The total declared length of all files
+	 */
+	private FileLayout (File[] files, long[] offsets, long[] lengths, long totalLength) {
+
+		this.files = files;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.totalLength = totalLength;
+
+	}
+
+
+	/**
+	 * @param files The underlying files
+	 * @param filespecs The filespecs giving the declared length of each file
+	 * @throws IllegalArgumentException if the number of files and filespecs differ
+	 */
+	public FileLayout (List<File> files, List<Filespec> filespecs) {
+
+		if (files.size() != filespecs.size()) {
+			throw new IllegalArgumentException ("Mismatched files and filespecs");
+		}
+
+		this.files = files.toArray (new File[files.size()]);
+		this.offsets = new long[this.files.length];
+		this.lengths = new long[this.files.length];
+
+		long totalLength = 0;
+		for (int i = 0; i < this.files.length; i++) {
+			this.offsets[i] = totalLength;
+			this.lengths[i] = filespecs.get(i).getLength();
+			totalLength += this.lengths[i];
+		}
+		this.totalLength = totalLength;
+
+	}
+
+
+}
@@ -13,10 +13,11 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.NavigableMap;
-import java.util.TreeMap;
-import java.util.Map.Entry;
+import java.util.Map;
+import java.util.Set;
 
 import org.itadaki.bobbin.util.BitField;
 import org.itadaki.bobbin.util.CharsetUtil;
@@ -49,21 +50,9 @@ public class FileStorage implements Storage {
 	private static final byte[] VALIDATION_COOKIE_HEADER = "\0FileStorage\0".getBytes (CharsetUtil.UTF8);
 
 	/**
-	 * The underlying files
+	 * The layout of the underlying files within the linear address space
 	 */
-	private final List<File> files = new ArrayList<File>();
-
-	/**
-	 * The declared lengths of the underlying files. May be longer than the current, actual lengths
-	 * of the files in the filesystem.
-	 */
-	private final List<Long> fileLengths = new ArrayList<Long>();
-
-	/**
-	 * A navigable map linking linear addresses to file indices. The key is the linear byte address
-	 * of the start of each file
-	 */
-	private final NavigableMap<Long,Integer> fileIndexMap = new TreeMap<Long,Integer>();
+	private FileLayout layout = new FileLayout (new ArrayList<File>(), new ArrayList<Filespec>());
 
 	/**
 	 * The descriptor of the {@code Storage}'s piece set characteristics
@@ -84,7 +73,7 @@ public class FileStorage implements Storage {
 	 * An internal cache of RandomAccessFiles pointing to the underlying files
 	 * TODO Optimisation - make this a size limited LRU cache 
 	 */
-	private List<RandomAccessFile> randomAccessFiles = new ArrayList<RandomAccessFile>();
+	private RandomAccessFile[] randomAccessFiles = new RandomAccessFile[0];
 
 
 	/**
@@ -194,10 +183,11 @@ public class FileStorage implements Storage {
 	 */
 	private ByteBuffer buildValidationCookie() {
 
-		ByteBuffer cookieBuffer = ByteBuffer.allocate (VALIDATION_COOKIE_HEADER.length + (this.files.size() * 8 * 2));
+		ByteBuffer cookieBuffer = ByteBuffer.allocate (VALIDATION_COOKIE_HEADER.length + (this.layout.getNumberOfFiles() * 8 * 2));
 		cookieBuffer.put (VALIDATION_COOKIE_HEADER);
 		LongBuffer longBuffer = cookieBuffer.asLongBuffer();
-		for (File file : this.files) {
+		for (int i = 0; i < this.layout.getNumberOfFiles(); i++) {
+			File file = this.layout.getFile (i);
 			if (file.exists()) {
 				longBuffer.put (file.lastModified());
 				longBuffer.put (file.length());
@@ -223,15 +213,15 @@ public class FileStorage implements Storage {
 	 */
 	private RandomAccessFile getRandomAccessFileForIndex (int i) throws IOException {
 
-		RandomAccessFile randomAccessFile = this.randomAccessFiles.get (i);
+		RandomAccessFile randomAccessFile = this.randomAccessFiles[i];
 		if (randomAccessFile == null) {
-			File file = this.files.get (i);
+			File file = this.layout.getFile (i);
 			File parent = file.getParentFile();
 			if (!parent.exists()) {
 				parent.mkdirs();
 			}
 			randomAccessFile = new RandomAccessFile (file, "rw");
-			this.randomAccessFiles.set (i, randomAccessFile);
+			this.randomAccessFiles[i] = randomAccessFile;
 		}
 
 		return randomAccessFile;
@@ -240,26 +230,52 @@ public class FileStorage implements Storage {
 
 
 	/**
-	 * Finds the starting file / byte index for a given linear byte index
-	 *
-	 * <p>Note: The byte index returned is defined as <i>the number of bytes to advance starting at
-	 * the beginning of the returned file index</i>. This is in order that, when the passed byte
-	 * index starts on a sequence of one or more zero length files, writes to that index will create
-	 * all the intervening zero length files as a side effect.
+	 * Determines whether the file with a given index exists, without creating it
 	 *
-	 * @param linearByteIndex The linear byte index to search for
-	 * @return A two member array containing the file index and the number of bytes to advance
-	 * @throws IndexOutOfBoundsException if the linear byte index is beyond the
-	 *           end of the last file
+	 * @param i the file index
+	 * @return {@code true} if the file exists, otherwise {@code false}
 	 */
-	private long[] getFileByteIndexForLinearByteIndex (long linearByteIndex) {
+	private boolean fileExists (int i) {
+
+		return (this.randomAccessFiles[i] != null) || this.layout.getFile(i).exists();
 
-		if ((linearByteIndex >= 0) && (linearByteIndex < this.descriptor.getLength())) {
-			Entry<Long,Integer> entry = this.fileIndexMap.floorEntry (linearByteIndex);
-			return new long[] { entry.getValue(), linearByteIndex - entry.getKey() };
+	}
+
+
+	/**
+	 * Writes data to the files underlying a range of linear addresses. Any zero length files
+	 * within the range are created
+	 *
+	 * @param linearByteIndex The linear byte address of the start of the range
+	 * @param buffer The data to write
+	 * @param length The length of the range
+	 * @throws IOException on any I/O error
+	 */
+	private void writeRange (long linearByteIndex, ByteBuffer buffer, int length) throws IOException {
+
+		FileLayout.Fragments fragments = this.layout.fragments().reset (linearByteIndex, length);
+		int bufferLimit = buffer.limit();
+
+		while (fragments.next()) {
+			int fileIndex = fragments.getFileIndex();
+			if (this.layout.getFileLength (fileIndex) == 0) {
+				File file = this.layout.getFile (fileIndex);
+				File parent = file.getParentFile();
+				if (!parent.exists()) {
+					parent.mkdirs();
+				}
+				file.createNewFile();
+			} else {
+				FileChannel channel = getRandomAccessFileForIndex(fileIndex).getChannel();
+				channel.position (fragments.getFilePosition());
+				buffer.limit (buffer.position() + fragments.getLength());
+				while (buffer.hasRemaining()) {
+					channel.write (buffer);
+				}
+			}
 		}
 
-		throw new IndexOutOfBoundsException ("Invalid position " + linearByteIndex);
+		buffer.limit (bufferLimit);
 
 	}
 
@@ -276,6 +292,34 @@ public class FileStorage implements Storage {
 	}
 
 
+	/**
+	 * Reads the actual length of every file in the layout. Each distinct parent directory is
+	 * listed once, so that files which do not exist are identified without querying each of them
+	 * individually
+	 *
+	 * @return The actual length of each file, or -1 for each file that does not exist
+	 */
+	private long[] readActualFileLengths() {
+
+		long[] actualFileLengths = new long[this.layout.getNumberOfFiles()];
+		Map<File,Set<String>> directoryContents = new HashMap<File,Set<String>>();
+
+		for (int i = 0; i < actualFileLengths.length; i++) {
+			File file = this.layout.getFile (i);
+			File directory = file.getParentFile();
+			if (!directoryContents.containsKey (directory)) {
+				String[] names = directory.list();
+				directoryContents.put (directory, (names == null) ? null : new HashSet<String> (Arrays.asList (names)));
+			}
+			Set<String> names = directoryContents.get (directory);
+			actualFileLengths[i] = ((names != null) && names.contains (file.getName())) ? file.length() : -1;
+		}
+
+		return actualFileLengths;
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.torrentdb.Storage#getFileBackedPieces()
 	 */
@@ -286,35 +330,25 @@ public class FileStorage implements Storage {
 
 		if (numberOfPieces > 0) {
 
-			int fileIndex = 0;
-			long fileByteIndex = 0;
-			boolean currentFileExists = this.files.get(fileIndex).exists();
-			long currentActualFileLength = this.files.get(fileIndex).length();
-			long currentSpecifiedFileLength = this.fileLengths.get (fileIndex);
-			long fileBytesLeft = currentSpecifiedFileLength;
-
-			for (int i = 0; i < numberOfPieces; i++) {
-				boolean currentPiecePresent = true;
-				int bytesToRead = this.descriptor.getPieceLength (i);
-
-				while (bytesToRead > 0) {
-					int bytesRead = (int) Math.min (bytesToRead, fileBytesLeft);
-					if (!currentFileExists || (fileByteIndex + bytesRead) > currentActualFileLength) {
-						currentPiecePresent = false;
-					}
-					fileByteIndex += bytesRead;
-					bytesToRead -= bytesRead;
-					fileBytesLeft -= bytesRead;
-					if ((fileByteIndex == currentSpecifiedFileLength) && (fileIndex < (this.files.size() - 1))) {
-						fileIndex++;
-						fileByteIndex = 0;
-						currentFileExists = this.files.get(fileIndex).exists();
-						currentActualFileLength = this.files.get(fileIndex).length();
-						currentSpecifiedFileLength = this.fileLengths.get (fileIndex);
-						fileBytesLeft = currentSpecifiedFileLength;
+			fileBackedPieces.set (0, numberOfPieces);
+
+			// Every piece overlapping the part of a file that is beyond its actual length is not
+			// backed. A zero length file that does not exist affects the piece at its offset
+			long pieceSize = this.descriptor.getPieceSize();
+			long totalLength = this.layout.getTotalLength();
+			long[] actualFileLengths = readActualFileLengths();
+			for (int i = 0; i < actualFileLengths.length; i++) {
+				long fileOffset = this.layout.getFileOffset (i);
+				long fileLength = this.layout.getFileLength (i);
+				if (fileLength == 0) {
+					if ((actualFileLengths[i] == -1) && (fileOffset < totalLength)) {
+						fileBackedPieces.clear ((int)(fileOffset / pieceSize));
 					}
+				} else if (actualFileLengths[i] < fileLength) {
+					long missingStart = fileOffset + Math.max (actualFileLengths[i], 0);
+					long missingEnd = fileOffset + fileLength;
+					fileBackedPieces.clear ((int)(missingStart / pieceSize), (int)((missingEnd - 1) / pieceSize) + 1);
 				}
-				fileBackedPieces.set (i, currentPiecePresent);
 			}
 
 		}
@@ -362,20 +396,8 @@ public class FileStorage implements Storage {
 
 		this.fileset.setInfoFileset (infoFileset);
 		this.descriptor = new PiecesetDescriptor (pieceSize, totalLength);
-		this.randomAccessFiles.addAll (Arrays.asList (new RandomAccessFile[files.size()]));
-
-		long totalByteLength = 0;
-		for (int i = 0; i < infoFileset.getFiles().size(); i++) {
-			File file = files.get (i);
-			this.files.add (file);
-			long thisFileLength = infoFileset.getFiles().get (i).getLength();
-			this.fileLengths.add (thisFileLength);
-			if (!this.fileIndexMap.containsKey (totalByteLength)) {
-				this.fileIndexMap.put (totalByteLength, i);
-			}
-			totalByteLength += thisFileLength;
-		}
-
+		this.layout = new FileLayout (files, infoFileset.getFiles());
+		this.randomAccessFiles = new RandomAccessFile[files.size()];
 
 	}
 
@@ -403,8 +425,7 @@ public class FileStorage implements Storage {
 			throw new IllegalArgumentException ("Cannot extend to shorter length");
 		}
 
-		int lastFileIndex = this.files.size() - 1;
-		this.fileLengths.set (lastFileIndex, this.fileLengths.get (lastFileIndex) + (length - this.descriptor.getLength()));
+		this.layout = this.layout.extend (length);
 		this.descriptor = new PiecesetDescriptor (this.descriptor.getPieceSize(), length);
 
 	}
@@ -421,12 +442,11 @@ public class FileStorage implements Storage {
 
 		// Create validation cookie
 		ByteBuffer cookie = null;
-		if (this.files.size() > 0) {
+		if (this.layout.getNumberOfFiles() > 0) {
 			cookie = buildValidationCookie();
 		}
 
-		this.files.clear();
-		this.fileLengths.clear();
+		this.layout = new FileLayout (new ArrayList<File>(), new ArrayList<Filespec>());
 		this.randomAccessFiles = null;
 
 		return cookie;
@@ -443,34 +463,19 @@ public class FileStorage implements Storage {
 			throw new IndexOutOfBoundsException ("Invalid index " + pieceNumber);
 		}
 
-		// Find the file / byte index
-		long[] indices = getFileByteIndexForLinearByteIndex (((long)pieceNumber) * this.descriptor.getPieceSize());
-		int fileIndex = (int)indices[0];
-		long fileByteIndex = indices[1];
-
 		int bufferByteIndex = 0;
-		int bytesLeftToRead = this.descriptor.getPieceLength (pieceNumber);
-		byte[] buffer = new byte[bytesLeftToRead];
-
-		// Read fragments until complete
-		while (bytesLeftToRead > 0) {
-
-			long bytesInThisFragment = Math.max (0, this.fileLengths.get (fileIndex) - fileByteIndex);
-			int bytesToRead = Math.min (bytesLeftToRead, ((int) Math.min (Integer.MAX_VALUE, bytesInThisFragment)));
-
-			if (this.fileLengths.get (fileIndex) > 0) {
-				if (this.files.get (fileIndex).exists()) {
-					RandomAccessFile randomAccessFile = getRandomAccessFileForIndex (fileIndex);
-					randomAccessFile.seek (fileByteIndex);
-					randomAccessFile.read (buffer, bufferByteIndex, bytesToRead);
-				}
-				fileByteIndex = 0;
+		byte[] buffer = new byte[this.descriptor.getPieceLength (pieceNumber)];
+
+		// Read fragments until complete. Missing files or parts of files read as zero
+		FileLayout.Fragments fragments = this.layout.fragments().reset (((long)pieceNumber) * this.descriptor.getPieceSize(), buffer.length);
+		while (fragments.next()) {
+			int fileIndex = fragments.getFileIndex();
+			if ((fragments.getLength() > 0) && fileExists (fileIndex)) {
+				RandomAccessFile randomAccessFile = getRandomAccessFileForIndex (fileIndex);
+				randomAccessFile.seek (fragments.getFilePosition());
+				randomAccessFile.read (buffer, bufferByteIndex, fragments.getLength());
 			}
-
-			fileIndex++;
-			bufferByteIndex += bytesToRead;
-			bytesLeftToRead -= bytesToRead;
-
+			bufferByteIndex += fragments.getLength();
 		}
 
 		return ByteBuffer.wrap (buffer);
@@ -487,39 +492,7 @@ public class FileStorage implements Storage {
 			throw new IndexOutOfBoundsException ("Invalid index " + pieceNumber);
 		}
 
-		// Find the file / byte index
-		long[] indices = getFileByteIndexForLinearByteIndex (((long)pieceNumber) * this.descriptor.getPieceSize());
-		int fileIndex = (int)indices[0];
-		long fileByteIndex = indices[1];
-
-		int numFiles = this.files.size();
-
-		// Write fragments until complete
-		int bytesLeftToWrite = this.descriptor.getPieceLength (pieceNumber);
-		while (bytesLeftToWrite > 0) {
-
-			long bytesInThisFragment = Math.max (0, this.fileLengths.get (fileIndex) - fileByteIndex);
-			int bytesToWrite = Math.min (bytesLeftToWrite, ((int) Math.min (Integer.MAX_VALUE, bytesInThisFragment)));
-
-			FileChannel channel = getRandomAccessFileForIndex(fileIndex).getChannel();
-
-			if (this.fileLengths.get (fileIndex) == 0) {
-				this.files.get (fileIndex).createNewFile();
-			} else {
-				channel.position (fileByteIndex);
-				buffer.limit (buffer.position() + bytesToWrite);
-				channel.write (buffer);
-				fileByteIndex = 0;
-			}
-
-			fileIndex++;
-			if (fileIndex == numFiles) {
-				return;
-			}
-
-			bytesLeftToWrite -= bytesToWrite;
-
-		}
+		writeRange (((long)pieceNumber) * this.descriptor.getPieceSize(), buffer, this.descriptor.getPieceLength (pieceNumber));
 
 	}
 
@@ -531,14 +504,7 @@ public class FileStorage implements Storage {
 
 		WritableByteChannel channel = new WritableByteChannel() {
 
-			int fileIndex;
-			long fileByteIndex;
-
-			{
-				long[] indices = getFileByteIndexForLinearByteIndex ((pieceNumber * getPiecesetDescriptor().getPieceSize()) + offset);
-				this.fileIndex = (int)indices[0];
-				this.fileByteIndex = indices[1];
-			}
+			long linearByteIndex = ((long)pieceNumber * getPiecesetDescriptor().getPieceSize()) + offset;
 
 			public boolean isOpen() {
 				return true;
@@ -550,30 +516,8 @@ public class FileStorage implements Storage {
 			public int write (ByteBuffer src) throws IOException {
 
 				int bytesWritten = src.remaining();
-				int bytesLeftToWrite = src.remaining();
-				while (bytesLeftToWrite > 0) {
-
-					long bytesInThisFragment = Math.max (0, FileStorage.this.fileLengths.get (this.fileIndex) - this.fileByteIndex);
-					int bytesToWrite = Math.min (src.remaining(), ((int) Math.min (Integer.MAX_VALUE, bytesInThisFragment)));
-
-					FileChannel channel = getRandomAccessFileForIndex(this.fileIndex).getChannel();
-
-					if (FileStorage.this.fileLengths.get (this.fileIndex) == 0) {
-						FileStorage.this.files.get (this.fileIndex).createNewFile();
-					} else {
-						channel.position (this.fileByteIndex);
-						src.limit (src.position() + bytesToWrite);
-						channel.write (src);
-					}
-
-					if (channel.position() == FileStorage.this.fileLengths.get (this.fileIndex)) {
-						this.fileIndex++;
-						this.fileByteIndex = 0;
-					}
-
-					bytesLeftToWrite -= bytesToWrite;
-
-				}
+				writeRange (this.linearByteIndex, src, bytesWritten);
+				this.linearByteIndex += bytesWritten;
 
 				return bytesWritten;
 
@@ -4,6 +4,9 @@
  */
 package org.itadaki.bobbin.torrentdb;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -12,6 +15,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import org.itadaki.bobbin.bencode.BBinary;
+import org.itadaki.bobbin.bencode.BDecoder;
 import org.itadaki.bobbin.bencode.BDictionary;
 import org.itadaki.bobbin.bencode.BEncoder;
 import org.itadaki.bobbin.bencode.BInteger;
@@ -23,20 +27,40 @@ import org.itadaki.bobbin.bencode.InvalidEncodingException;
 /**
  * Contains and immutably represents the info dictionary of a torrent<br>
  * <br>
+ * The info dictionary is held only in its canonical bencoded form. The fileset and the full
+ * dictionary are decoded from it on demand, and piece hashes are compared in place within the
+ * encoded data<br>
+ * <br>
  * <b>Thread safety:</b> All public methods of this class are thread safe
  */
 public final class Info {
 
 	/**
-	 * The info dictionary
+	 * The "pieces" dictionary key
 	 */
-	private final BDictionary dictionary;
+	private static final BBinary PIECES_KEY = new BBinary ("pieces");
+
+	/**
+	 * The canonical bencoded form of the info dictionary
+	 */
+	private final byte[] encodedDictionary;
+
+	/**
+	 * The offset within the encoded dictionary of the concatenated piece hashes, or -1 if there
+	 * are none
+	 */
+	private final int pieceHashesOffset;
+
+	/**
+	 * The length of the concatenated piece hashes, or 0 if there are none
+	 */
+	private final int pieceHashesLength;
 
 	/**
 	 * Cached value calculated from the dictionary:<br>
-	 * The fileset
+	 * The piece size
 	 */
-	private final InfoFileset fileset;
+	private final int pieceSize;
 
 	/**
 	 * Cached value calculated from the dictionary:<br>
@@ -46,9 +70,15 @@ public final class Info {
 
 	/**
 	 * Cached value calculated from the dictionary:<br>
-	 * The piece hashes
+	 * The Merkle tree root hash, or {@code null}
+	 */
+	private final byte[] rootHash;
+
+	/**
+	 * Cached value calculated from the dictionary:<br>
+	 * The P1363 encoded root hash signature, or {@code null}
 	 */
-	private final byte[] pieceHashes;
+	private final byte[] rootSignature;
 
 	/**
 	 * Cached value calculated from the dictionary:<br>
@@ -80,6 +110,111 @@ public final class Info {
 	}
 
 
+	/**
+	 * Validates and extracts the fileset described by an info dictionary
+	 *
+	 * @param dictionary The info dictionary
+	 * @return The fileset
+	 * @throws InvalidEncodingException if the dictionary does not contain a valid fileset
+	 */
+	private static InfoFileset parseFileset (BDictionary dictionary) throws InvalidEncodingException {
+
+		BValue lengthValue = dictionary.get ("length");
+		BValue filesValue = dictionary.get ("files");
+
+		if (lengthValue != null) {
+
+			// Single file
+
+			// Check: '/info/length' must be present and a non-negative integer
+			assertTrue (lengthValue instanceof BInteger, "'length' of incorrect type");
+			assertTrue (((BInteger)lengthValue).value().longValue () >= 0, "'length' is negative");
+
+			// Check: '/info/files' must not be present
+			assertTrue (filesValue == null, "both 'length' and 'files' present");
+
+			List<String> file = new ArrayList<String>();
+			file.add (dictionary.getString ("name"));
+
+			return new InfoFileset (new Filespec (file, ((BInteger)lengthValue).value().longValue()));
+
+		}
+
+		// Multi-file
+
+		// Check: '/info/files' must be present and a non-empty list
+		assertTrue (filesValue instanceof BList, "'files' missing or of incorrect type");
+		BList filesList = (BList)filesValue;
+		assertTrue (filesList.size() != 0, "'files' empty");
+
+		List<Filespec> files = new ArrayList<Filespec> (filesList.size());
+
+		for (BValue filesListEntry : filesList) {
+
+			// Check: '/info/files/*' must be a dictionary
+			assertTrue (filesListEntry instanceof BDictionary, "'files' element of incorrect type");
+
+			BDictionary fileInfo = (BDictionary)filesListEntry;
+
+			// Check: '/info/files/*/length' must be a non-negative integer
+			BValue fileLengthValue = fileInfo.get ("length");
+			assertTrue (fileLengthValue instanceof BInteger, "'files' element with 'length' missing or of incorrect type");
+			assertTrue (((BInteger)fileLengthValue).value().longValue () >= 0, "'files' element with negative 'length'");
+
+			BValue filePathValue = fileInfo.get ("path");
+
+			// Check: '/info/files/*/path' must be present and a non-empty list
+			assertTrue (filePathValue instanceof BList, "'files' element with 'path' missing or of incorrect type");
+			BList filePath = (BList)filePathValue;
+			assertTrue (filePath.size () != 0, "'files' element with blank 'path'");
+
+			List<String> filePathStrings = new ArrayList<String>();
+			for (BValue pathElement : filePath) {
+				// Check: '/info/files/*/path' must contain only non-blank binary strings
+				assertTrue (pathElement instanceof BBinary, "'files' element with 'path' element of incorrect type");
+				assertTrue (((BBinary)pathElement).value().length != 0, "'files' element with blank 'path' element");
+				filePathStrings.add (((BBinary)pathElement).stringValue());
+			}
+
+			files.add (new Filespec (filePathStrings, ((BInteger)fileLengthValue).value().longValue()));
+
+		}
+
+		return new InfoFileset (dictionary.getString ("name"), files);
+
+	}
+
+
+	/**
+	 * Decodes the info dictionary from its encoded form
+	 *
+	 * @param includePieceHashes If {@code false}, the "pieces" entry is omitted from the decoded
+	 *        dictionary
+	 * @return The decoded dictionary
+	 */
+	private BDictionary decodeDictionary (boolean includePieceHashes) {
+
+		try {
+			if (includePieceHashes || (this.pieceHashesOffset == -1)) {
+				return (BDictionary) BDecoder.decode (this.encodedDictionary);
+			}
+
+			// Skip over the "pieces" key and value
+			int keyOffset = this.pieceHashesOffset - (BEncoder.encodeBinary ("pieces").length + Integer.toString (this.pieceHashesLength).length() + 1);
+			int valueEnd = this.pieceHashesOffset + this.pieceHashesLength;
+			SequenceInputStream input = new SequenceInputStream (
+					new ByteArrayInputStream (this.encodedDictionary, 0, keyOffset),
+					new ByteArrayInputStream (this.encodedDictionary, valueEnd, this.encodedDictionary.length - valueEnd)
+			);
+			return new BDecoder(input).decodeDictionary();
+		} catch (IOException e) {
+			// Shouldn't happen - the encoded form was created from a valid dictionary
+			throw new InternalError (e.toString());
+		}
+
+	}
+
+
 	/**
 	 * Constructs an Info dictionary
 	 *
@@ -138,24 +273,34 @@ public final class Info {
 
 
 	/**
-	 * Package local: Gets the info dictionary. Used by MetaInfo in order that it and Info may
-	 * share one (immutable) info dictionary
+	 * @return A copy of the info dictionary
+	 */
+	public BDictionary getDictionary() {
+
+		return decodeDictionary (true);
+
+	}
+
+
+	/**
+	 * Gets the canonical bencoded form of the info dictionary. The returned buffer is a read-only
+	 * view of data shared by all users of the Info, and so may be sliced and sent without copying
 	 *
-	 * @return The info dictionary
+	 * @return A read-only buffer containing the encoded info dictionary
 	 */
-	BDictionary getPrivateDictionary() {
+	public ByteBuffer getEncodedDictionary() {
 
-		return this.dictionary;
+		return ByteBuffer.wrap(this.encodedDictionary).asReadOnlyBuffer();
 
 	}
 
 
 	/**
-	 * @return A copy of the info dictionary
+	 * @return The length in bytes of the encoded info dictionary
 	 */
-	public BDictionary getDictionary() {
+	public int getEncodedDictionaryLength() {
 
-		return this.dictionary.clone();
+		return this.encodedDictionary.length;
 
 	}
 
@@ -165,7 +310,12 @@ public final class Info {
 	 */
 	public InfoFileset getFileset() {
 
-		return this.fileset;
+		try {
+			return parseFileset (decodeDictionary (false));
+		} catch (InvalidEncodingException e) {
+			// Shouldn't happen - the fileset was validated on construction
+			throw new InternalError (e.toString());
+		}
 
 	}
 
@@ -175,7 +325,7 @@ public final class Info {
 	 */
 	public int getPieceSize() {
 
-		return ((BInteger)this.dictionary.get("piece length")).value().intValue();
+		return this.pieceSize;
 
 	}
 
@@ -185,10 +335,8 @@ public final class Info {
 	 */
 	public byte[] getPieceHashes() {
 
-		BValue piecesValue = this.dictionary.get ("pieces");
-		if (piecesValue != null) {
-			byte[] pieces = ((BBinary)piecesValue).value();
-			return Arrays.copyOf (pieces, pieces.length);
+		if (this.pieceHashesOffset != -1) {
+			return Arrays.copyOfRange (this.encodedDictionary, this.pieceHashesOffset, this.pieceHashesOffset + this.pieceHashesLength);
 		}
 
 		return null;
@@ -201,13 +349,7 @@ public final class Info {
 	 */
 	public byte[] getRootHash() {
 
-		BValue rootHashValue = this.dictionary.get ("root hash");
-		if (rootHashValue != null) {
-			byte[] rootHash = ((BBinary)rootHashValue).value();
-			return Arrays.copyOf (rootHash, rootHash.length);
-		}
-
-		return null;
+		return (this.rootHash == null) ? null : this.rootHash.clone();
 
 	}
 
@@ -217,13 +359,7 @@ public final class Info {
 	 */
 	public byte[] getRootSignature() {
 
-		BValue rootSignatureValue = this.dictionary.get ("root signature");
-		if (rootSignatureValue != null) {
-			byte[] rootSignature = ((BBinary)rootSignatureValue).value();
-			return Arrays.copyOf (rootSignature, rootSignature.length);
-		}
-
-		return null;
+		return (this.rootSignature == null) ? null : this.rootSignature.clone();
 
 	}
 
@@ -264,11 +400,19 @@ public final class Info {
 	 * @param hash The hash to verify for the piece
 	 * @return {@code true} if the hashes were equal, otherwise {@code false}
 	 * @throws NullPointerException if this is not a plain piece Info
-	 * @throes IndexOutOfBoundsException if the piece number is invalid
+	 * @throws IndexOutOfBoundsException if the piece number is invalid
 	 */
 	public boolean comparePieceHash (int pieceNumber, byte[] hash) {
 
-		return ByteBuffer.wrap(this.pieceHashes, 20 * pieceNumber, 20).equals (ByteBuffer.wrap (hash));
+		if (this.pieceHashesOffset == -1) {
+			throw new NullPointerException();
+		}
+
+		if ((pieceNumber < 0) || (pieceNumber >= (this.pieceHashesLength / 20))) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		return ByteBuffer.wrap(this.encodedDictionary, this.pieceHashesOffset + (20 * pieceNumber), 20).equals (ByteBuffer.wrap (hash));
 
 	}
 
@@ -281,96 +425,24 @@ public final class Info {
 	 */
 	public Info (BDictionary dictionary) throws InvalidEncodingException {
 
-		this.dictionary = dictionary;
-
 		// Check: '/info/name' must be present and a non-blank binary string
-		BValue nameValue = this.dictionary.get ("name");
+		BValue nameValue = dictionary.get ("name");
 		assertTrue (nameValue instanceof BBinary, "'name' missing or of incorrect type");
 		assertTrue (((BBinary)nameValue).value().length != 0, "'name' blank");
 
 		// Check: '/info/piece length' must be present and a positive integer
-		assertTrue (this.dictionary.get ("piece length") instanceof BInteger, "'piece length' missing or of incorrect type");
-		long pieceLength = ((BInteger)this.dictionary.get ("piece length")).value().longValue (); 
+		assertTrue (dictionary.get ("piece length") instanceof BInteger, "'piece length' missing or of incorrect type");
+		long pieceLength = ((BInteger)dictionary.get ("piece length")).value().longValue (); 
 		assertTrue (pieceLength > 0, "'piece length' must be greater than zero");
 
 		// Check: '/info/pieces' or '/info/root hash' must be present (length is checked later)
-		BValue piecesValue = this.dictionary.get ("pieces");
-		BValue rootHashValue = this.dictionary.get ("root hash");
+		BValue piecesValue = dictionary.get ("pieces");
+		BValue rootHashValue = dictionary.get ("root hash");
 		assertTrue ((piecesValue instanceof BBinary) ^ (rootHashValue instanceof BBinary),
 				"'pieces' and/or 'root hash' missing or of incorrect type");
 
-
-		// Single file or multi-file ?
-
-		BValue lengthValue = this.dictionary.get ("length");
-		BValue filesValue = this.dictionary.get ("files");
-		String baseDirectoryName;
-		List<Filespec> files = new ArrayList<Filespec>();
-
-		if (lengthValue != null) {
-
-			// Single file
-
-			// Check: '/info/length' must be present and a non-negative integer
-			assertTrue (lengthValue instanceof BInteger, "'length' of incorrect type");
-			assertTrue (((BInteger)lengthValue).value().longValue () >= 0, "'length' is negative");
-
-			// Check: '/info/files' must not be present
-			assertTrue (filesValue == null, "both 'length' and 'files' present");
-
-			baseDirectoryName = null;
-			List<String> file = new ArrayList<String>();
-			file.add (this.dictionary.getString ("name"));
-			files.add (new Filespec (file, ((BInteger)lengthValue).value().longValue()));
-
-		} else {
-
-			// Multi-file
-
-			// Check: '/info/files' must be present and a non-empty list
-			assertTrue (filesValue instanceof BList, "'files' missing or of incorrect type");
-			BList filesList = (BList)filesValue;
-			assertTrue (filesList.size() != 0, "'files' empty");
-
-			baseDirectoryName = this.dictionary.getString ("name");
-
-			for (BValue filesListEntry : filesList) {
-
-				// Check: '/info/files/*' must be a dictionary
-				assertTrue (filesListEntry instanceof BDictionary, "'files' element of incorrect type");
-
-				BDictionary fileInfo = (BDictionary)filesListEntry;
-
-				// Check: '/info/files/*/length' must be a non-negative integer
-				BValue fileLengthValue = fileInfo.get ("length");
-				assertTrue (fileLengthValue instanceof BInteger, "'files' element with 'length' missing or of incorrect type");
-				assertTrue (((BInteger)fileLengthValue).value().longValue () >= 0, "'files' element with negative 'length'");
-
-				BValue filePathValue = fileInfo.get ("path");
-
-				// Check: '/info/files/*/path' must be present and a non-empty list
-				assertTrue (filePathValue instanceof BList, "'files' element with 'path' missing or of incorrect type");
-				BList filePath = (BList)filePathValue;
-				assertTrue (filePath.size () != 0, "'files' element with blank 'path'");
-
-				List<String> filePathStrings = new ArrayList<String>();
-				for (BValue pathElement : filePath) {
-					// Check: '/info/files/*/path' must contain only non-blank binary strings
-					assertTrue (pathElement instanceof BBinary, "'files' element with 'path' element of incorrect type");
-					assertTrue (((BBinary)pathElement).value().length != 0, "'files' element with blank 'path' element");
-					filePathStrings.add (((BBinary)pathElement).stringValue());
-				}
-
-				files.add (new Filespec (filePathStrings, ((BInteger)fileLengthValue).value().longValue()));
-
-			}
-
-		}
-
-		long totalLength = 0;
-		for (Filespec file : files) {
-			totalLength += file.getLength();
-		}
+		// Check: The single file or multi-file fileset must be valid
+		long totalLength = parseFileset(dictionary).getLength();
 
 		// Check: '/info/pieces' or '/info/root hash' must be of the correct length
 		if (piecesValue != null) {
@@ -385,7 +457,7 @@ public final class Info {
 		}
 
 		// Check: If '/info/root signature' is present it must be of the correct length
-		BValue rootSignatureValue = this.dictionary.get ("root signature");
+		BValue rootSignatureValue = dictionary.get ("root signature");
 		if (rootSignatureValue != null) {
 			assertTrue (rootSignatureValue instanceof BBinary, "'root signature' of incorrect type");
 			BBinary rootSignature = (BBinary)rootSignatureValue;
@@ -394,7 +466,7 @@ public final class Info {
 
 		// Check: If '/info/elastic' is present it must equal binary 0x01, and a root signature must
 		// also be present
-		BValue elasticValue = this.dictionary.get ("elastic");
+		BValue elasticValue = dictionary.get ("elastic");
 		if (elasticValue != null) {
 			assertTrue (elasticValue instanceof BBinary, "'elastic' of incorrect type");
 			byte[] elastic = ((BBinary)elasticValue).value();
@@ -402,20 +474,28 @@ public final class Info {
 			assertTrue (rootSignatureValue != null, "'root signature' missing");
 		}
 
-		this.pieceHashes = (piecesValue == null) ? null : ((BBinary)piecesValue).value();
+		this.encodedDictionary = BEncoder.encode (dictionary);
 
-		if (baseDirectoryName == null) {
-			this.fileset = new InfoFileset (files.get (0));
+		// Locate the piece hashes within the encoded dictionary. As the encoding is canonical, they
+		// are preceded by exactly the encoded entries whose keys sort before "pieces"
+		if (piecesValue != null) {
+			this.pieceHashesLength = ((BBinary)piecesValue).value().length;
+			int precedingLength = BEncoder.encode(new BDictionary (dictionary.value().headMap (PIECES_KEY))).length - 1;
+			this.pieceHashesOffset = precedingLength + BEncoder.encodeBinary ("pieces").length + Integer.toString (this.pieceHashesLength).length() + 1;
 		} else {
-			this.fileset = new InfoFileset (baseDirectoryName, files);
+			this.pieceHashesLength = 0;
+			this.pieceHashesOffset = -1;
 		}
 
+		this.pieceSize = (int)pieceLength;
 		this.totalLength = totalLength;
+		this.rootHash = (rootHashValue == null) ? null : ((BBinary)rootHashValue).value().clone();
+		this.rootSignature = (rootSignatureValue == null) ? null : ((BBinary)rootSignatureValue).value().clone();
 
 		// Calculate info hash
 		try {
 			MessageDigest digest = MessageDigest.getInstance ("SHA");
-			this.hash = new InfoHash (digest.digest (BEncoder.encode (this.dictionary)));
+			this.hash = new InfoHash (digest.digest (this.encodedDictionary));
 		} catch (NoSuchAlgorithmException e) {
 			// Shouldn't happen
 			throw new InternalError (e.toString());
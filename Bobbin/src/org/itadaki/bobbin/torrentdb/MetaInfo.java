@@ -32,7 +32,8 @@ import org.itadaki.bobbin.util.DSAUtil;
 public final class MetaInfo {
 
 	/**
-	 * The torrent file's dictionary
+	 * The torrent file's dictionary, excluding the info dictionary (which is held in encoded form
+	 * by {@link #info})
 	 */
 	private final BDictionary dictionary;
 
@@ -69,7 +70,10 @@ public final class MetaInfo {
 	 */
 	public BDictionary getDictionary() {
 
-		return this.dictionary.clone();
+		BDictionary dictionary = this.dictionary.clone();
+		dictionary.put ("info", this.info.getDictionary());
+
+		return dictionary;
 
 	}
 
@@ -160,7 +164,13 @@ public final class MetaInfo {
 	 */
 	public MetaInfo (BDictionary dictionary) throws InvalidEncodingException {
 
-		this.dictionary = dictionary.clone();
+		BDictionary outerDictionary = new BDictionary();
+		for (BBinary key : dictionary.keySet()) {
+			if (!"info".equals (key.stringValue())) {
+				outerDictionary.put (key, dictionary.get (key));
+			}
+		}
+		this.dictionary = outerDictionary.clone();
 
 		// Check: '/announce' must be present and a binary string
 		assertTrue (this.dictionary.get ("announce") instanceof BBinary, "'announce' missing or of incorrect type");
@@ -181,7 +191,7 @@ public final class MetaInfo {
 		}
 
 		// Check: '/info' must be present and a dictionary
-		BValue infoValue = this.dictionary.get ("info");
+		BValue infoValue = dictionary.get ("info");
 		assertTrue (infoValue instanceof BDictionary, "'info' missing or of incorrect type");
 
 		this.info = new Info ((BDictionary) infoValue);
@@ -252,7 +262,6 @@ public final class MetaInfo {
 		dictionary.put ("announce", firstAnnounceURL);
 		dictionary.put ("announce-list", announceList);
 		dictionary.put ("creation date", System.currentTimeMillis() / 1000);
-		dictionary.put ("info", info.getPrivateDictionary());
 
 		if (keyPair != null) {
 			Signature dsa;
@@ -93,6 +93,11 @@ public class PieceDatabase {
 
 	}
 
+	/**
+	 * The maximum number of verified view signatures to remember
+	 */
+	private static final int VIEW_SIGNATURE_CACHE_SIZE = 32;
+
 	/**
 	 * The set of states that can eventually result from Input.START
 	 */
@@ -155,6 +160,11 @@ public class PieceDatabase {
 	 */
 	private final Map<Long,ViewSignature> viewSignatures = new HashMap<Long,ViewSignature>();
 
+	/**
+	 * View signatures that have previously been verified against the DSA public key
+	 */
+	private final ViewSignatureCache verifiedViewSignatures = new ViewSignatureCache (VIEW_SIGNATURE_CACHE_SIZE);
+
 	/**
 	 * The {@code InfoHash} of the {@code Info} describing the database's content. This is always
 	 * known initially, even when the {@code Info} is not
@@ -850,7 +860,18 @@ public class PieceDatabase {
 
 
 	/**
-	 * Verifies a view signature against the torrent's DSA public key
+	 * @return The cache of previously verified view signatures
+	 */
+	public ViewSignatureCache getVerifiedViewSignatures() {
+
+		return this.verifiedViewSignatures;
+
+	}
+
+
+	/**
+	 * Verifies a view signature against the torrent's DSA public key. Signatures that have already
+	 * been verified once are accepted without repeating the DSA verification
 	 *
 	 * @param viewSignature The view signature
 	 * @return {@code true} if the signature verified correctly, otherwise {@code false}
@@ -863,6 +884,10 @@ public class PieceDatabase {
 				return true;
 			}
 
+			if (this.verifiedViewSignatures.contains (viewSignature)) {
+				return true;
+			}
+
 			byte[] token = new byte[48];
 			System.arraycopy (this.info.getHash().getBytes(), 0, token, 0, 20);
 			ByteBuffer viewLengthBuffer = ByteBuffer.allocate (8);
@@ -878,7 +903,11 @@ public class PieceDatabase {
 				if (derSignature == null) {
 					return false;
 				}
-				return verify.verify (derSignature.array());
+				if (verify.verify (derSignature.array())) {
+					this.verifiedViewSignatures.add (viewSignature);
+					return true;
+				}
+				return false;
 			} catch (GeneralSecurityException e) {
 				return false;
 			}
@@ -1023,6 +1052,7 @@ public class PieceDatabase {
 
 			ViewSignature signature = new ViewSignature (length, ByteBuffer.wrap (viewRootHash), ByteBuffer.wrap (DSAUtil.derSignatureToP1363Signature (derSignature)));
 			this.viewSignatures.put (length, signature);
+			this.verifiedViewSignatures.add (signature);
 
 			return signature;
 
@@ -1115,6 +1145,7 @@ public class PieceDatabase {
 
 			ViewSignature signature = new ViewSignature (length, ByteBuffer.wrap (viewRootHash), ByteBuffer.wrap (DSAUtil.derSignatureToP1363Signature (derSignature)));
 			this.viewSignatures.put (length, signature);
+			this.verifiedViewSignatures.add (signature);
 
 			garbageCollectViews();
 
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.torrentdb;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A bounded, least recently used cache of view signatures that have already been verified
+ * against a torrent's DSA public key. Entries are indexed by view length and view root hash; a
+ * signature is only considered verified if it is identical to the cached signature for its view.
+ *
+ * <p>Hit, miss and eviction counts are maintained for statistical purposes.
+ */
+public class ViewSignatureCache {
+
+	/**
+	 * The key of a cached signature
+	 */
+	private static final class Key {
+
+		/**
+		 * The length of the signed view
+		 */
+		private final long viewLength;
+
+		/**
+		 * The root hash of the signed view
+		 */
+		private final ByteBuffer viewRootHash;
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + (int) (this.viewLength ^ (this.viewLength >>> 32));
+			result = prime * result + this.viewRootHash.hashCode ();
+
+			return result;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals (Object other) {
+
+			if (this == other)
+				return true;
+			if ((other == null) || (getClass() != other.getClass()))
+				return false;
+
+			Key otherKey = (Key)other;
+
+			return (this.viewLength == otherKey.viewLength) && this.viewRootHash.equals (otherKey.viewRootHash);
+
+		}
+
+
+		/**
+		 * @param viewSignature The view signature to create a key for
+		 */
+		public Key (ViewSignature viewSignature) {
+
+			this.viewLength = viewSignature.getViewLength();
+			this.viewRootHash = viewSignature.getViewRootHash();
+
+		}
+
+	}
+
+
+	/**
+	 * The maximum number of signatures held
+	 */
+	private final int capacity;
+
+	/**
+	 * The verified signatures, in least recently used order
+	 */
+	private final Map<Key,ByteBuffer> signatures;
+
+	/**
+	 * The number of lookups that found an identical verified signature
+	 */
+	private long hits = 0;
+
+	/**
+	 * The number of lookups that did not find an identical verified signature
+	 */
+	private long misses = 0;
+
+	/**
+	 * The number of signatures discarded to remain within the cache's capacity
+	 */
+	private long evictions = 0;
+
+
+	/**
+	 * Determines whether an identical signature has previously been added to the cache
+	 *
+	 * @param viewSignature The view signature to look up
+	 * @return {@code true} if the signature is known to be valid, otherwise {@code false}
+	 */
+	public synchronized boolean contains (ViewSignature viewSignature) {
+
+		ByteBuffer signature = this.signatures.get (new Key (viewSignature));
+
+		if ((signature != null) && signature.equals (viewSignature.getSignature())) {
+			this.hits++;
+			return true;
+		}
+
+		this.misses++;
+		return false;
+
+	}
+
+
+	/**
+	 * Adds a verified signature to the cache, replacing any other signature for the same view
+	 *
+	 * @param viewSignature The verified view signature
+	 */
+	public synchronized void add (ViewSignature viewSignature) {
+
+		this.signatures.put (new Key (viewSignature), viewSignature.getSignature());
+
+	}
+
+
+	/**
+	 * @return The number of signatures currently held
+	 */
+	public synchronized int size() {
+
+		return this.signatures.size();
+
+	}
+
+
+	/**
+	 * @return The maximum number of signatures held
+	 */
+	public int getCapacity() {
+
+		return this.capacity;
+
+	}
+
+
+	/**
+	 * @return The number of lookups that found an identical verified signature
+	 */
+	public synchronized long getHits() {
+
+		return this.hits;
+
+	}
+
+
+	/**
+	 * @return The number of lookups that did not find an identical verified signature
+	 */
+	public synchronized long getMisses() {
+
+		return this.misses;
+
+	}
+
+
+	/**
+	 * @return The number of signatures discarded to remain within the cache's capacity
+	 */
+	public synchronized long getEvictions() {
+
+		return this.evictions;
+
+	}
+
+
+	/**
+	 * @param capacity The maximum number of signatures to hold
+	 */
+	public ViewSignatureCache (final int capacity) {
+
+		if (capacity < 1) {
+			throw new IllegalArgumentException ("Invalid capacity");
+		}
+
+		this.capacity = capacity;
+		this.signatures = new LinkedHashMap<Key,ByteBuffer> (16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<Key,ByteBuffer> eldest) {
+				if (size() > capacity) {
+					ViewSignatureCache.this.evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+
+	}
+
+
+}
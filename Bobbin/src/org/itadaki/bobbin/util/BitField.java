@@ -4,6 +4,7 @@
  */
 package org.itadaki.bobbin.util;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -106,14 +107,7 @@ public class BitField implements Cloneable, Iterable<Integer> {
 
 			private void findNext() {
 
-				for (int i = this.position + 1; i < BitField.this.length; i++) {
-					if (get (i)) {
-						this.nextPosition = i;
-						return;
-					}
-				}
-
-				this.nextPosition = -1;
+				this.nextPosition = nextSetBit (this.position + 1);
 
 			}
 
@@ -299,6 +293,38 @@ public class BitField implements Cloneable, Iterable<Integer> {
 	}
 
 
+	/**
+	 * Finds the first set bit at or after a given index, skipping unset bits a byte at a time
+	 *
+	 * @param fromIndex The index from which to search
+	 * @return The index of the first set bit at or after the given index, or -1 if there is no
+	 *         such bit
+	 */
+	public int nextSetBit (int fromIndex) {
+
+		if (fromIndex < 0) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		if (fromIndex >= this.length) {
+			return -1;
+		}
+
+		// Bits beyond the length are always 0, so the search may safely run to the end of the array
+		int byteIndex = fromIndex / 8;
+		int bits = this.bits[byteIndex] & (0xff >>> (fromIndex % 8));
+		while (bits == 0) {
+			if (++byteIndex == this.bits.length) {
+				return -1;
+			}
+			bits = this.bits[byteIndex] & 0xff;
+		}
+
+		return (byteIndex * 8) + Integer.numberOfLeadingZeros (bits) - 24;
+
+	}
+
+
 	/**
 	 * Sets one bit within the given bit field to true
 	 *
@@ -336,6 +362,56 @@ public class BitField implements Cloneable, Iterable<Integer> {
 	}
 
 
+	/**
+	 * Sets a range of bits within the bit field to the given value, a byte at a time
+	 *
+	 * @param fromIndex The index of the first bit to set
+	 * @param toIndex The index after the last bit to set
+	 * @param value The value to set the bits to
+	 */
+	private void setRange (int fromIndex, int toIndex, boolean value) {
+
+		if ((fromIndex < 0) || (fromIndex > toIndex) || (toIndex > this.length)) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		if (fromIndex == toIndex) {
+			return;
+		}
+
+		int firstByteIndex = fromIndex / 8;
+		int lastByteIndex = (toIndex - 1) / 8;
+
+		for (int i = firstByteIndex; i <= lastByteIndex; i++) {
+			int mask = 0xff;
+			if (i == firstByteIndex) {
+				mask &= 0xff >>> (fromIndex % 8);
+			}
+			if (i == lastByteIndex) {
+				mask &= 0xff << (7 - ((toIndex - 1) % 8));
+			}
+			int oldBits = this.bits[i] & 0xff;
+			int newBits = value ? (oldBits | mask) : (oldBits & ~mask);
+			this.cardinality += Integer.bitCount (newBits) - Integer.bitCount (oldBits);
+			this.bits[i] = (byte) newBits;
+		}
+
+	}
+
+
+	/**
+	 * Sets a range of bits within the bit field to true
+	 *
+	 * @param fromIndex The index of the first bit to set to true
+	 * @param toIndex The index after the last bit to set to true
+	 */
+	public void set (int fromIndex, int toIndex) {
+
+		setRange (fromIndex, toIndex, true);
+
+	}
+
+
 	/**
 	 * Sets all bits of the bit field to false
 	 */
@@ -368,6 +444,19 @@ public class BitField implements Cloneable, Iterable<Integer> {
 	}
 
 
+	/**
+	 * Sets a range of bits within the bit field to false
+	 *
+	 * @param fromIndex The index of the first bit to set to false
+	 * @param toIndex The index after the last bit to set to false
+	 */
+	public void clear (int fromIndex, int toIndex) {
+
+		setRange (fromIndex, toIndex, false);
+
+	}
+
+
 	/**
 	 * Extend the bit field to a new total length
 	 *
@@ -436,22 +525,23 @@ public class BitField implements Cloneable, Iterable<Integer> {
 
 
 	/**
-	 * Creates a bit field from the given byte array and length in bits<br>
-	 * 
+	 * Creates a bit field from the remaining bytes of the given buffer and length in bits. The
+	 * buffer's position is not changed
+	 *
 	 * @param data The bytes with which to initialise the bit field
 	 * @param length The length of the bit field in bits
 	 * @throws IllegalArgumentException if the length of the data does not match the number of bits,
 	 *           or if a bit is set in the data higher than the number of bits
 	 */
-	public BitField (byte[] data, int length) {
+	public BitField (ByteBuffer data, int length) {
 
 		this (length);
 
-		if (data.length != this.bits.length) {
+		if (data.remaining() != this.bits.length) {
 			throw new IllegalArgumentException ("Invalid data size");
 		}
 
-		System.arraycopy (data, 0, this.bits, 0, data.length);
+		data.duplicate().get (this.bits);
 
 		if ((length % 8) > 0) {
 			for (int i = length % 8; i < 8; i++) {
@@ -466,4 +556,19 @@ public class BitField implements Cloneable, Iterable<Integer> {
 	}
 
 
+	/**
+	 * Creates a bit field from the given byte array and length in bits<br>
+	 * 
+	 * @param data The bytes with which to initialise the bit field
+	 * @param length The length of the bit field in bits
+	 * @throws IllegalArgumentException if the length of the data does not match the number of bits,
+	 *           or if a bit is set in the data higher than the number of bits
+	 */
+	public BitField (byte[] data, int length) {
+
+		this (ByteBuffer.wrap (data), length);
+
+	}
+
+
 }
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A hashed timer wheel
+ *
+ * <p>Time is divided into ticks of a fixed duration, and each timer is kept in the bucket of the
+ * tick in which it falls due, modulo the number of buckets. Scheduling and cancelling a timer
+ * take constant time, and advancing the wheel visits only the buckets of the ticks that have
+ * passed, however many timers are outstanding. A timer fires no earlier than its deadline, and no
+ * later than one tick after it, provided the wheel is advanced promptly.
+ *
+ * <p>The wheel has no thread of its own. Its owner calls {@link #advance(long)} periodically,
+ * typically waiting between calls for the time given by {@link #getDelay(long)}, and expired
+ * tasks run on the calling thread. A wheel must only be used from a single thread.
+ */
+public class TimerWheel {
+
+	/**
+	 * A timer scheduled on a TimerWheel
+	 */
+	public class Timeout {
+
+		/**
+		 * The task to run when the timer expires
+		 */
+		private final Runnable task;
+
+		/**
+		 * The number of further revolutions of the wheel before the timer expires
+		 */
+		private long rounds;
+
+		/**
+		 * The index of the bucket containing the timer, or -1 if the timer has expired or been
+		 * cancelled
+		 */
+		private int bucket;
+
+		/**
+		 * The previous timer in the same bucket
+		 */
+		private Timeout previous = null;
+
+		/**
+		 * The next timer in the same bucket
+		 */
+		private Timeout next = null;
+
+
+		/**
+		 * Cancels the timer
+		 *
+		 * @return {@code true} if the timer was cancelled, or {@code false} if it had already
+		 *         expired or been cancelled
+		 */
+		public boolean cancel() {
+
+			if (this.bucket == -1) {
+				return false;
+			}
+
+			unlink (this);
+
+			return true;
+
+		}
+
+
+		/**
+		 * @return {@code true} if the timer is waiting to expire, otherwise {@code false}
+		 */
+		public boolean isPending() {
+
+			return (this.bucket != -1);
+
+		}
+
+
+		/**
+		 * @param task The task to run when the timer expires
+		 * @param rounds The number of further revolutions of the wheel before the timer expires
+		 * @param bucket The index of the bucket containing the timer
+		 */
+		private Timeout (Runnable task, long rounds, int bucket) {
+
+			this.task = task;
+			this.rounds = rounds;
+			this.bucket = bucket;
+
+		}
+
+	}
+
+
+	/**
+	 * The duration of a tick in milliseconds
+	 */
+	private final long tickDuration;
+
+	/**
+	 * The time from which ticks are counted, in system milliseconds
+	 */
+	private final long startTime;
+
+	/**
+	 * The first timer in each bucket
+	 */
+	private final Timeout[] buckets;
+
+	/**
+	 * The number of buckets minus one
+	 */
+	private final int mask;
+
+	/**
+	 * The next tick to be processed
+	 */
+	private long tick = 0;
+
+	/**
+	 * The number of pending timers
+	 */
+	private int size = 0;
+
+	/**
+	 * A tick no later than the earliest at which a pending timer expires, or -1 if it is to be
+	 * found again. Cancelling a timer leaves it in place, which costs at most one early wakeup
+	 */
+	private long nextExpiryTick = -1;
+
+
+	/**
+	 * Removes a timer from its bucket
+	 *
+	 * @param timeout The timer to remove
+	 */
+	private void unlink (Timeout timeout) {
+
+		if (timeout.previous == null) {
+			this.buckets[timeout.bucket] = timeout.next;
+		} else {
+			timeout.previous.next = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+		this.size--;
+
+	}
+
+
+	/**
+	 * Schedules a task to run at a given time
+	 *
+	 * @param task The task to run
+	 * @param deadline The time at which to run the task, in system milliseconds. A deadline that
+	 *        has passed expires at the next tick
+	 * @return A Timeout through which the timer may be cancelled
+	 */
+	public Timeout schedule (Runnable task, long deadline) {
+
+		// Round up, so that the timer never expires early
+		long deadlineTick = Math.max (this.tick, (deadline - this.startTime + this.tickDuration - 1) / this.tickDuration);
+		int bucket = (int) (deadlineTick & this.mask);
+
+		Timeout timeout = new Timeout (task, (deadlineTick - this.tick) / this.buckets.length, bucket);
+		timeout.next = this.buckets[bucket];
+		if (timeout.next != null) {
+			timeout.next.previous = timeout;
+		}
+		this.buckets[bucket] = timeout;
+		this.size++;
+
+		if (this.nextExpiryTick >= this.tick) {
+			this.nextExpiryTick = Math.min (this.nextExpiryTick, deadlineTick);
+		}
+
+		return timeout;
+
+	}
+
+
+	/**
+	 * Advances the wheel to the given time, running the tasks of all timers that have expired
+	 *
+	 * @param now The current time in system milliseconds
+	 */
+	public void advance (long now) {
+
+		long targetTick = (now - this.startTime) / this.tickDuration;
+
+		List<Timeout> expired = null;
+
+		while (this.tick <= targetTick) {
+
+			if (this.size == 0) {
+				this.tick = targetTick + 1;
+				break;
+			}
+
+			int bucket = (int) (this.tick & this.mask);
+			this.tick++;
+
+			Timeout timeout = this.buckets[bucket];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.rounds == 0) {
+					unlink (timeout);
+					if (expired == null) {
+						expired = new ArrayList<Timeout>();
+					}
+					expired.add (timeout);
+				} else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+
+		}
+
+		// Run the tasks only once the wheel is consistent, as they may schedule or cancel timers
+		if (expired != null) {
+			for (Timeout timeout : expired) {
+				timeout.task.run();
+			}
+		}
+
+	}
+
+
+	/**
+	 * @param now The current time in system milliseconds
+	 * @return The time in milliseconds until {@link #advance(long)} next needs to be called to
+	 *         expire a timer, 0 if it needs to be called now, or {@code Long.MAX_VALUE} if no
+	 *         timer is pending. No pending timer expires sooner
+	 */
+	public long getDelay (long now) {
+
+		if (this.size == 0) {
+			return Long.MAX_VALUE;
+		}
+
+		if (this.nextExpiryTick < this.tick) {
+			this.nextExpiryTick = findNextExpiryTick();
+		}
+
+		return Math.max (0, this.startTime + (this.nextExpiryTick * this.tickDuration) - now);
+
+	}
+
+
+	/**
+	 * Finds the first tick within one revolution of the wheel at which a pending timer expires
+	 *
+	 * @return The first tick at which a timer expires, or the tick one revolution on if none
+	 *         expires before then
+	 */
+	private long findNextExpiryTick() {
+
+		for (long tick = this.tick; tick < this.tick + this.buckets.length; tick++) {
+			for (Timeout timeout = this.buckets[(int) (tick & this.mask)]; timeout != null; timeout = timeout.next) {
+				if (timeout.rounds == 0) {
+					return tick;
+				}
+			}
+		}
+
+		return this.tick + this.buckets.length;
+
+	}
+
+
+	/**
+	 * @return The number of pending timers
+	 */
+	public int size() {
+
+		return this.size;
+
+	}
+
+
+	/**
+	 * @param tickDuration The duration of a tick in milliseconds
+	 * @param bucketCount The number of buckets. Must be a power of two
+	 * @param startTime The current time in system milliseconds
+	 * @throws IllegalArgumentException if the tick duration is less than 1 or the number of
+	 *         buckets is not a positive power of two
+	 */
+	public TimerWheel (long tickDuration, int bucketCount, long startTime) {
+
+		if ((tickDuration < 1) || (bucketCount < 1) || (Integer.bitCount (bucketCount) != 1)) {
+			throw new IllegalArgumentException ("Invalid timer wheel parameters");
+		}
+
+		this.tickDuration = tickDuration;
+		this.startTime = startTime;
+		this.buckets = new Timeout[bucketCount];
+		this.mask = bucketCount - 1;
+
+	}
+
+
+}
@@ -15,11 +15,21 @@ import test.bencode.TestBInteger;
 import test.bencode.TestBList;
 import test.bencode.TestBDictionary;
 import test.bencode.TestBValue;
+import test.connectionmanager.TestAcceptLimits;
+import test.connectionmanager.TestBlockingConnection;
 import test.connectionmanager.TestConnectionManager;
+import test.connectionmanager.TestConnectionManagerMetrics;
+import test.connectionmanager.TestConnectionOptions;
+import test.connectionmanager.TestLedbatController;
+import test.connectionmanager.TestTokenBucket;
+import test.connectionmanager.TestUtpConnection;
+import test.connectionmanager.TestWorkerPool;
+import test.peer.TestHaveBatcher;
 import test.peer.TestPeerCoordinator;
 import test.peer.TestPeerHandler;
 import test.peer.TestPeerID;
 import test.peer.TestPeerOutboundQueue;
+import test.peer.TestRequestPipeline;
 import test.peer.TestTorrentManager;
 import test.peer.TestTorrentSetController;
 import test.peer.chokingmanager.TestDefaultChokingManager;
@@ -32,6 +42,7 @@ import test.statemachine.TestStateMachine;
 import test.torrentdb.TestBlockDescriptor;
 import test.torrentdb.TestFileMetadata;
 import test.torrentdb.TestFileMetadataProvider;
+import test.torrentdb.TestFileLayout;
 import test.torrentdb.TestFileStorage;
 import test.torrentdb.TestFilesetDelta;
 import test.torrentdb.TestFilespec;
@@ -43,6 +54,7 @@ import test.torrentdb.TestPieceDatabase;
 import test.torrentdb.TestInfoHash;
 import test.torrentdb.TestMetaInfo;
 import test.torrentdb.TestStorageDescriptor;
+import test.torrentdb.TestViewSignatureCache;
 import test.tracker.TestHTTPTracker;
 import test.tracker.TestHTTPRequestParser;
 import test.tracker.TestTracker;
@@ -52,6 +64,7 @@ import test.trackerclient.TestTrackerClient;
 import test.util.TestBitField;
 import test.util.TestCharsetUtil;
 import test.util.TestDSAUtil;
+import test.util.TestTimerWheel;
 import test.util.counter.TestPeriod;
 import test.util.counter.TestPeriodicCounter;
 import test.util.counter.TestStatisticCounter;
@@ -84,9 +97,19 @@ import test.util.elastictree.TestElasticTree;
 	TestTorrentManager.class,
 	TestDefaultChokingManager.class,
 	TestConnectionManager.class,
+	TestLedbatController.class,
+	TestUtpConnection.class,
+	TestTokenBucket.class,
+	TestConnectionOptions.class,
+	TestBlockingConnection.class,
+	TestConnectionManagerMetrics.class,
+	TestAcceptLimits.class,
+	TestWorkerPool.class,
 	TestPiece.class,
 	TestDefaultRequestManager.class,
 	TestPeerOutboundQueue.class,
+	TestRequestPipeline.class,
+	TestHaveBatcher.class,
 	TestHTTPResponseParser.class,
 	TestHTTPRequestHandler.class,
 	TestTrackerClient.class,
@@ -108,11 +131,14 @@ import test.util.elastictree.TestElasticTree;
 	TestExtensionManager.class,
 	TestElasticTree.class,
 	TestDSAUtil.class,
+	TestTimerWheel.class,
 	TestStorageDescriptor.class,
 	TestPeerProtocolNegotiator.class,
 	TestFilespec.class,
 	TestFilesetDelta.class,
-	TestMutableFileset.class
+	TestMutableFileset.class,
+	TestViewSignatureCache.class,
+	TestFileLayout.class
 })
 public class AllTests {
 	// This space left blank
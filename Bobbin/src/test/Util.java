@@ -335,4 +335,36 @@ public class Util {
 
 	}
 
+
+	/**
+	 * Creates a ReadableByteChannel for a given list of ByteBuffers that returns no more than a
+	 * given number of bytes from each read, and does not report the end of the stream
+	 *
+	 * @param chunkLength The maximum number of bytes to return from each read
+	 * @param buffers The buffers to read from
+	 * @return The created ReadableByteChannel
+	 */
+	public static ReadableByteChannel chunkedReadableByteChannelFor (final int chunkLength, ByteBuffer... buffers) {
+
+		final ReadableByteChannel byteChannel = infiniteReadableByteChannelFor (buffers);
+
+		ReadableByteChannel wrappedChannel = new ReadableByteChannel() {
+			public int read (ByteBuffer dst) throws IOException {
+				int limit = dst.limit();
+				dst.limit (Math.min (limit, dst.position() + chunkLength));
+				int bytesRead = byteChannel.read (dst);
+				dst.limit (limit);
+				return bytesRead;
+			}
+			public void close() throws IOException { }
+			public boolean isOpen() {
+				return true;
+			}
+		};
+
+		return wrappedChannel;
+
+	}
+
+
 }
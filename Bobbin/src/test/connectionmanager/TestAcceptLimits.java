@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.connectionmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.itadaki.bobbin.connectionmanager.AcceptLimits;
+import org.itadaki.bobbin.connectionmanager.Connection;
+import org.itadaki.bobbin.connectionmanager.ConnectionManager;
+import org.itadaki.bobbin.connectionmanager.InboundConnectionListener;
+import org.junit.Test;
+
+
+/**
+ * Tests AcceptLimits, and their application by ConnectionManager
+ */
+public class TestAcceptLimits {
+
+	/**
+	 * An InboundConnectionListener that records the connections it accepts
+	 */
+	private static class RecordingListener implements InboundConnectionListener {
+
+		/**
+		 * The connections accepted
+		 */
+		public final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+
+		/**
+		 * Released once for each connection accepted
+		 */
+		public final Semaphore semaphore = new Semaphore (0);
+
+		/**
+		 * If {@code true}, connections are established as soon as they are accepted
+		 */
+		private final boolean establish;
+
+
+		/* (non-Javadoc)
+		 * @see org.itadaki.bobbin.connectionmanager.InboundConnectionListener#accepted(org.itadaki.bobbin.connectionmanager.Connection)
+		 */
+		public void accepted (Connection connection) {
+
+			if (this.establish) {
+				connection.setEstablished();
+			}
+			this.connections.add (connection);
+			this.semaphore.release();
+
+		}
+
+
+		/**
+		 * @param establish If {@code true}, connections are established as soon as they are
+		 *        accepted
+		 */
+		public RecordingListener (boolean establish) {
+
+			this.establish = establish;
+
+		}
+
+	}
+
+
+	/**
+	 * Tests the default limits
+	 */
+	@Test
+	public void testDefaults() {
+
+		AcceptLimits limits = new AcceptLimits();
+
+		assertEquals (0, limits.getMaximumPendingConnections());
+		assertEquals (0, limits.getMaximumPendingConnectionsPerAddress());
+		assertEquals (0, limits.getHandshakeTimeout());
+
+	}
+
+
+	/**
+	 * Tests that a negative limit is rejected
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidLimit() {
+
+		new AcceptLimits (-1, 0, 0);
+
+	}
+
+
+	/**
+	 * Tests that a negative handshake timeout is rejected
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidHandshakeTimeout() {
+
+		new AcceptLimits (0, 0, -1);
+
+	}
+
+
+	/**
+	 * Tests that a ConnectionManager rejects null limits
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testNullLimits() throws Exception {
+
+		ConnectionManager connectionManager = new ConnectionManager();
+		try {
+			connectionManager.setAcceptLimits (null);
+		} finally {
+			connectionManager.close();
+		}
+
+	}
+
+
+	/**
+	 * Tests that a connection from an address over its pending limit is closed
+	 * @throws Exception
+	 */
+	@Test
+	public void testPerAddressLimit() throws Exception {
+
+		RecordingListener listener = new RecordingListener (false);
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setAcceptLimits (new AcceptLimits (0, 1, 0));
+		int port = connectionManager.listen (null, 0, listener);
+
+		Socket socket1 = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+
+		Socket socket2 = new Socket (InetAddress.getLocalHost(), port);
+		socket2.setSoTimeout (5000);
+		assertEquals (-1, socket2.getInputStream().read());
+		assertEquals (1, listener.connections.size());
+
+		// Once the first connection is established, another is accepted
+		listener.connections.get(0).setEstablished();
+		Socket socket3 = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+
+		socket1.close();
+		socket2.close();
+		socket3.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that accepting pauses while the pending connections are at their limit, and resumes
+	 * when one is established
+	 * @throws Exception
+	 */
+	@Test
+	public void testPendingLimitEstablished() throws Exception {
+
+		RecordingListener listener = new RecordingListener (false);
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setAcceptLimits (new AcceptLimits (1, 0, 0));
+		int port = connectionManager.listen (null, 0, listener);
+
+		Socket socket1 = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+
+		Socket socket2 = new Socket (InetAddress.getLocalHost(), port);
+		assertFalse (listener.semaphore.tryAcquire (500, TimeUnit.MILLISECONDS));
+
+		listener.connections.get(0).setEstablished();
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+		assertEquals (2, listener.connections.size());
+
+		socket1.close();
+		socket2.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that accepting pauses while the pending connections are at their limit, and resumes
+	 * when one is closed
+	 * @throws Exception
+	 */
+	@Test
+	public void testPendingLimitClosed() throws Exception {
+
+		RecordingListener listener = new RecordingListener (false);
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setAcceptLimits (new AcceptLimits (1, 0, 0));
+		int port = connectionManager.listen (null, 0, listener);
+
+		Socket socket1 = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+
+		Socket socket2 = new Socket (InetAddress.getLocalHost(), port);
+		assertFalse (listener.semaphore.tryAcquire (500, TimeUnit.MILLISECONDS));
+
+		listener.connections.get(0).close();
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+
+		socket1.close();
+		socket2.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that a pending connection is closed at its handshake deadline
+	 * @throws Exception
+	 */
+	@Test
+	public void testHandshakeTimeout() throws Exception {
+
+		RecordingListener listener = new RecordingListener (false);
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setAcceptLimits (new AcceptLimits (0, 0, 1));
+		int port = connectionManager.listen (null, 0, listener);
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		socket.setSoTimeout (5000);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+		assertEquals (-1, socket.getInputStream().read());
+		assertFalse (listener.connections.get(0).isOpen());
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that an established connection is not closed at its handshake deadline
+	 * @throws Exception
+	 */
+	@Test
+	public void testHandshakeTimeoutEstablished() throws Exception {
+
+		RecordingListener listener = new RecordingListener (true);
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setAcceptLimits (new AcceptLimits (0, 0, 1));
+		int port = connectionManager.listen (null, 0, listener);
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		socket.setSoTimeout (2000);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+		try {
+			socket.getInputStream().read();
+			fail();
+		} catch (SocketTimeoutException e) {
+			// Expected
+		}
+		assertTrue (listener.connections.get(0).isOpen());
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Waits for the number of timers pending on a ConnectionManager's event loops to reach a given
+	 * number
+	 *
+	 * @param connectionManager The ConnectionManager
+	 * @param pendingTimers The number of pending timers to wait for
+	 * @return {@code true} if the number was reached within five seconds, otherwise {@code false}
+	 * @throws InterruptedException
+	 */
+	private static boolean awaitPendingTimers (ConnectionManager connectionManager, int pendingTimers) throws InterruptedException {
+
+		for (int i = 0; i < 500; i++) {
+			if (connectionManager.getMetrics().getPendingTimers() == pendingTimers) {
+				return true;
+			}
+			Thread.sleep (10);
+		}
+
+		return false;
+
+	}
+
+
+	/**
+	 * Tests that a connection's handshake timer is cancelled when it is established
+	 * @throws Exception
+	 */
+	@Test
+	public void testHandshakeTimerCancelledEstablished() throws Exception {
+
+		RecordingListener listener = new RecordingListener (false);
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setAcceptLimits (new AcceptLimits (0, 0, 30));
+		int port = connectionManager.listen (null, 0, listener);
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+		assertTrue (awaitPendingTimers (connectionManager, 1));
+
+		listener.connections.get(0).setEstablished();
+		assertTrue (awaitPendingTimers (connectionManager, 0));
+		assertTrue (listener.connections.get(0).isOpen());
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that a connection's handshake timer is cancelled when it is closed
+	 * @throws Exception
+	 */
+	@Test
+	public void testHandshakeTimerCancelledClosed() throws Exception {
+
+		RecordingListener listener = new RecordingListener (false);
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setAcceptLimits (new AcceptLimits (0, 0, 30));
+		int port = connectionManager.listen (null, 0, listener);
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+		assertTrue (awaitPendingTimers (connectionManager, 1));
+
+		listener.connections.get(0).close();
+		assertTrue (awaitPendingTimers (connectionManager, 0));
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that no handshake timer is left behind for a connection established as it is
+	 * accepted
+	 * @throws Exception
+	 */
+	@Test
+	public void testHandshakeTimerEstablishedOnAccept() throws Exception {
+
+		RecordingListener listener = new RecordingListener (true);
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setAcceptLimits (new AcceptLimits (0, 0, 30));
+		int port = connectionManager.listen (null, 0, listener);
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+		Thread.sleep (100);
+		assertTrue (awaitPendingTimers (connectionManager, 0));
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that limits apply to a thread per connection ConnectionManager
+	 * @throws Exception
+	 */
+	@Test
+	public void testPendingLimitThreadPerConnection() throws Exception {
+
+		RecordingListener listener = new RecordingListener (false);
+		ConnectionManager connectionManager = new ConnectionManager (1, true);
+		connectionManager.setAcceptLimits (new AcceptLimits (1, 0, 0));
+		int port = connectionManager.listen (null, 0, listener);
+
+		Socket socket1 = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+
+		Socket socket2 = new Socket (InetAddress.getLocalHost(), port);
+		assertFalse (listener.semaphore.tryAcquire (500, TimeUnit.MILLISECONDS));
+
+		listener.connections.get(0).setEstablished();
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+
+		socket1.close();
+		socket2.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Sends a uTP connection request
+	 *
+	 * @param socket The socket to send from
+	 * @param port The local port to send to
+	 * @param connectionId The connection ID of the request
+	 * @throws IOException
+	 */
+	private static void sendUtpSyn (DatagramSocket socket, int port, int connectionId) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate (20);
+		buffer.put ((byte) 0x41);
+		buffer.put ((byte) 0);
+		buffer.putShort ((short) connectionId);
+		buffer.putInt (0);
+		buffer.putInt (0);
+		buffer.putInt (1048576);
+		buffer.putShort ((short) 1);
+		buffer.putShort ((short) 0);
+		socket.send (new DatagramPacket (buffer.array(), buffer.capacity(), InetAddress.getByName ("127.0.0.1"), port));
+
+	}
+
+
+	/**
+	 * Tests that uTP connection requests from an address over its pending limit are dropped
+	 * @throws Exception
+	 */
+	@Test
+	public void testUtpPerAddressLimit() throws Exception {
+
+		RecordingListener listener = new RecordingListener (false);
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setAcceptLimits (new AcceptLimits (0, 2, 0));
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, listener);
+
+		DatagramSocket socket = new DatagramSocket (0, InetAddress.getByName ("127.0.0.1"));
+		for (int i = 0; i < 10; i++) {
+			sendUtpSyn (socket, port, i * 2);
+		}
+
+		assertTrue (listener.semaphore.tryAcquire (2, 5, TimeUnit.SECONDS));
+		assertFalse (listener.semaphore.tryAcquire (500, TimeUnit.MILLISECONDS));
+		assertEquals (2, listener.connections.size());
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that uTP connection requests over the total pending limit are dropped
+	 * @throws Exception
+	 */
+	@Test
+	public void testUtpPendingLimit() throws Exception {
+
+		RecordingListener listener = new RecordingListener (false);
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setAcceptLimits (new AcceptLimits (3, 0, 0));
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, listener);
+
+		DatagramSocket socket = new DatagramSocket (0, InetAddress.getByName ("127.0.0.1"));
+		for (int i = 0; i < 10; i++) {
+			sendUtpSyn (socket, port, i * 2);
+		}
+
+		assertTrue (listener.semaphore.tryAcquire (3, 5, TimeUnit.SECONDS));
+		assertFalse (listener.semaphore.tryAcquire (500, TimeUnit.MILLISECONDS));
+
+		// Once a connection is established, another request is accepted
+		listener.connections.get(0).setEstablished();
+		sendUtpSyn (socket, port, 100);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+		assertEquals (4, listener.connections.size());
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that a pending uTP connection is reset at its handshake deadline, and no longer counts
+	 * against the limits
+	 * @throws Exception
+	 */
+	@Test
+	public void testUtpHandshakeTimeout() throws Exception {
+
+		RecordingListener listener = new RecordingListener (false);
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setAcceptLimits (new AcceptLimits (0, 1, 1));
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, listener);
+
+		DatagramSocket socket = new DatagramSocket (0, InetAddress.getByName ("127.0.0.1"));
+		socket.setSoTimeout (5000);
+		sendUtpSyn (socket, port, 10);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+		sendUtpSyn (socket, port, 20);
+		assertFalse (listener.semaphore.tryAcquire (200, TimeUnit.MILLISECONDS));
+
+		// The accepted connection is reset, and its timer cancelled
+		DatagramPacket packet = new DatagramPacket (new byte[1500], 1500);
+		do {
+			socket.receive (packet);
+		} while ((packet.getData()[0] & 0xff) >> 4 != 3);
+		assertFalse (listener.connections.get(0).isOpen());
+		assertTrue (awaitPendingTimers (connectionManager, 0));
+
+		sendUtpSyn (socket, port, 30);
+		assertTrue (listener.semaphore.tryAcquire (5, TimeUnit.SECONDS));
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.connectionmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.itadaki.bobbin.connectionmanager.Connection;
+import org.itadaki.bobbin.connectionmanager.ConnectionManager;
+import org.itadaki.bobbin.connectionmanager.ConnectionReadyListener;
+import org.itadaki.bobbin.connectionmanager.InboundConnectionListener;
+import org.itadaki.bobbin.connectionmanager.OutboundConnectionListener;
+import org.junit.Test;
+
+
+/**
+ * Tests BlockingConnection through a thread per connection ConnectionManager
+ */
+public class TestBlockingConnection {
+
+	/**
+	 * A listener that writes data in blocks of 16 KiB while reading everything the remote peer
+	 * sends
+	 */
+	private static class BulkTransferListener implements ConnectionReadyListener {
+
+		/**
+		 * The length of each write
+		 */
+		private static final int WRITE_LENGTH = 16384;
+
+		/**
+		 * The data to send
+		 */
+		private final ByteBuffer sendBuffer;
+
+		/**
+		 * The data received
+		 */
+		public final ByteBuffer received;
+
+		/**
+		 * Counted down when all data has been sent and received
+		 */
+		private final CountDownLatch latch;
+
+		/**
+		 * The first error raised, if any
+		 */
+		private final AtomicReference<Throwable> error;
+
+
+		/* (non-Javadoc)
+		 * @see org.itadaki.bobbin.connectionmanager.ConnectionReadyListener#connectionReady(org.itadaki.bobbin.connectionmanager.Connection, boolean, boolean)
+		 */
+		public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+
+			try {
+				int bytesRead;
+				while ((bytesRead = connection.read (this.received)) > 0);
+				if (bytesRead == -1) {
+					throw new IOException ("Unexpected end of stream");
+				}
+				if (writeable && this.sendBuffer.hasRemaining()) {
+					int limit = this.sendBuffer.limit();
+					this.sendBuffer.limit (Math.min (limit, this.sendBuffer.position() + WRITE_LENGTH));
+					connection.write (this.sendBuffer);
+					this.sendBuffer.limit (limit);
+					if (!this.sendBuffer.hasRemaining()) {
+						connection.setWriteEnabled (false);
+					}
+				}
+				if (!this.sendBuffer.hasRemaining() && !this.received.hasRemaining()) {
+					this.latch.countDown();
+				}
+			} catch (Throwable t) {
+				this.error.compareAndSet (null, t);
+				this.latch.countDown();
+			}
+
+		}
+
+
+		/**
+		 * @param sendData The data to send
+		 * @param receiveLength The length of the data to receive
+		 * @param latch Counted down when all data has been sent and received
+		 * @param error Set to the first error raised
+		 */
+		public BulkTransferListener (byte[] sendData, int receiveLength, CountDownLatch latch, AtomicReference<Throwable> error) {
+
+			this.sendBuffer = ByteBuffer.wrap (sendData);
+			this.received = ByteBuffer.allocate (receiveLength);
+			this.latch = latch;
+			this.error = error;
+
+		}
+
+	}
+
+
+	/**
+	 * Tests that an outbound connection is accepted and connected
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnect() throws Exception {
+
+		final CountDownLatch acceptedLatch = new CountDownLatch (1);
+		final CountDownLatch connectedLatch = new CountDownLatch (1);
+
+		ConnectionManager connectionManager = new ConnectionManager (1, true);
+		int port = connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				acceptedLatch.countDown();
+			}
+		});
+
+		ConnectionManager clientManager = new ConnectionManager (1, true);
+		Connection connection = clientManager.connect (InetAddress.getLocalHost(), port, new OutboundConnectionListener() {
+			public void connected (Connection connection) {
+				connectedLatch.countDown();
+			}
+			public void rejected (Connection connection) {
+				fail();
+			}
+		}, 5);
+
+		assertTrue (acceptedLatch.await (5, TimeUnit.SECONDS));
+		assertTrue (connectedLatch.await (5, TimeUnit.SECONDS));
+		assertEquals (port, connection.getRemotePort());
+		assertTrue (connection.isOpen());
+
+		connection.close();
+		assertFalse (connection.isOpen());
+
+		clientManager.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that a connection to a port that is not listening is rejected
+	 * @throws Exception
+	 */
+	@Test
+	public void testRejected() throws Exception {
+
+		final CountDownLatch rejectedLatch = new CountDownLatch (1);
+
+		ServerSocket serverSocket = new ServerSocket (0);
+		int port = serverSocket.getLocalPort();
+		serverSocket.close();
+
+		ConnectionManager clientManager = new ConnectionManager (1, true);
+		clientManager.connect (InetAddress.getLocalHost(), port, new OutboundConnectionListener() {
+			public void connected (Connection connection) {
+				fail();
+			}
+			public void rejected (Connection connection) {
+				rejectedLatch.countDown();
+			}
+		}, 5);
+
+		assertTrue (rejectedLatch.await (5, TimeUnit.SECONDS));
+
+		clientManager.close();
+
+	}
+
+
+	/**
+	 * Tests that data written by a selector based connection is read intact by a blocking one,
+	 * followed by the end of stream when the writer closes, and that the reading listener is
+	 * never called concurrently
+	 * @throws Exception
+	 */
+	@Test
+	public void testTransfer() throws Exception {
+
+		final byte[] data = new byte[1048576];
+		new Random (0).nextBytes (data);
+		final ByteBuffer received = ByteBuffer.allocate (data.length);
+		final CountDownLatch endLatch = new CountDownLatch (1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicInteger callers = new AtomicInteger (0);
+		final AtomicBoolean concurrent = new AtomicBoolean (false);
+
+		final ConnectionReadyListener readListener = new ConnectionReadyListener() {
+			public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+				if (callers.incrementAndGet() > 1) {
+					concurrent.set (true);
+				}
+				try {
+					// Also ask to be told of writes, to exercise the writer thread
+					connection.setWriteEnabled (true);
+					int bytesRead;
+					while ((bytesRead = connection.read (received)) > 0);
+					if (bytesRead == -1) {
+						connection.close();
+						endLatch.countDown();
+					}
+				} catch (Throwable t) {
+					error.set (t);
+					endLatch.countDown();
+				}
+				callers.decrementAndGet();
+			}
+		};
+
+		ConnectionManager connectionManager = new ConnectionManager (1, true);
+		int port = connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				connection.setListener (readListener);
+			}
+		});
+
+		final ByteBuffer sendBuffer = ByteBuffer.wrap (data);
+		final ConnectionReadyListener writeListener = new ConnectionReadyListener() {
+			public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+				try {
+					if (writeable) {
+						connection.write (sendBuffer);
+						if (!sendBuffer.hasRemaining()) {
+							connection.setWriteEnabled (false);
+							connection.close();
+						}
+					}
+				} catch (IOException e) {
+					error.set (e);
+				}
+			}
+		};
+
+		ConnectionManager clientManager = new ConnectionManager();
+		clientManager.connect (InetAddress.getLocalHost(), port, new OutboundConnectionListener() {
+			public void connected (Connection connection) {
+				connection.setListener (writeListener);
+				connection.setWriteEnabled (true);
+			}
+			public void rejected (Connection connection) {
+				fail();
+			}
+		}, 5);
+
+		assertTrue (endLatch.await (30, TimeUnit.SECONDS));
+		assertNull (error.get());
+		assertFalse (concurrent.get());
+		assertArrayEquals (data, received.array());
+
+		clientManager.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that received data the listener leaves unread is not reported again until more data
+	 * arrives
+	 * @throws Exception
+	 */
+	@Test
+	public void testUnreadDataNotReportedAgain() throws Exception {
+
+		final AtomicInteger calls = new AtomicInteger (0);
+		final ByteBuffer received = ByteBuffer.allocate (20);
+		final CountDownLatch firstLatch = new CountDownLatch (1);
+		final CountDownLatch readLatch = new CountDownLatch (1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+		final ConnectionReadyListener listener = new ConnectionReadyListener() {
+			public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+				// The first report is ignored
+				if (calls.incrementAndGet() == 1) {
+					firstLatch.countDown();
+					return;
+				}
+				try {
+					while (connection.read (received) > 0);
+					if (!received.hasRemaining()) {
+						readLatch.countDown();
+					}
+				} catch (Throwable t) {
+					error.set (t);
+				}
+			}
+		};
+
+		ConnectionManager connectionManager = new ConnectionManager (1, true);
+		int port = connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				connection.setListener (listener);
+			}
+		});
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		socket.getOutputStream().write (new byte[10]);
+		assertTrue (firstLatch.await (5, TimeUnit.SECONDS));
+		Thread.sleep (300);
+		assertEquals (1, calls.get());
+
+		socket.getOutputStream().write (new byte[10]);
+		assertTrue (readLatch.await (5, TimeUnit.SECONDS));
+		assertNull (error.get());
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that data written to a blocking connection immediately before it is closed is
+	 * delivered, followed by the end of stream
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteThenClose() throws Exception {
+
+		final byte[] data = new byte[1048576];
+		new Random (0).nextBytes (data);
+		// One byte spare, so that a read can see the end of stream
+		final ByteBuffer received = ByteBuffer.allocate (data.length + 1);
+		final CountDownLatch endLatch = new CountDownLatch (1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+		final ConnectionReadyListener readListener = new ConnectionReadyListener() {
+			public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+				try {
+					int bytesRead;
+					while ((bytesRead = connection.read (received)) > 0);
+					if (bytesRead == -1) {
+						connection.close();
+						endLatch.countDown();
+					}
+				} catch (Throwable t) {
+					error.set (t);
+					endLatch.countDown();
+				}
+			}
+		};
+
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				connection.setListener (readListener);
+			}
+		});
+
+		final ByteBuffer sendBuffer = ByteBuffer.wrap (data);
+		final ConnectionReadyListener writeListener = new ConnectionReadyListener() {
+			public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+				try {
+					if (writeable) {
+						connection.write (sendBuffer);
+						if (!sendBuffer.hasRemaining()) {
+							connection.close();
+						}
+					}
+				} catch (IOException e) {
+					error.set (e);
+				}
+			}
+		};
+
+		ConnectionManager clientManager = new ConnectionManager (1, true);
+		clientManager.connect (InetAddress.getLocalHost(), port, new OutboundConnectionListener() {
+			public void connected (Connection connection) {
+				connection.setListener (writeListener);
+				connection.setWriteEnabled (true);
+			}
+			public void rejected (Connection connection) {
+				fail();
+			}
+		}, 5);
+
+		assertTrue (endLatch.await (30, TimeUnit.SECONDS));
+		assertNull (error.get());
+		assertEquals (data.length, received.position());
+		assertArrayEquals (data, Arrays.copyOf (received.array(), data.length));
+
+		clientManager.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that closing the ConnectionManager closes its blocking connections
+	 * @throws Exception
+	 */
+	@Test
+	public void testCloseManager() throws Exception {
+
+		final AtomicReference<Connection> acceptedConnection = new AtomicReference<Connection>();
+		final CountDownLatch acceptedLatch = new CountDownLatch (1);
+
+		ConnectionManager connectionManager = new ConnectionManager (1, true);
+		int port = connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				acceptedConnection.set (connection);
+				acceptedLatch.countDown();
+			}
+		});
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (acceptedLatch.await (5, TimeUnit.SECONDS));
+		assertTrue (acceptedConnection.get().isOpen());
+
+		connectionManager.close();
+		assertFalse (acceptedConnection.get().isOpen());
+
+		socket.close();
+
+	}
+
+
+	/**
+	 * Tests that two blocking connections each writing a large amount of data to the other at
+	 * once both complete, rather than each waiting for the other to read
+	 * @throws Exception
+	 */
+	@Test
+	public void testBidirectionalTransfer() throws Exception {
+
+		byte[] serverData = new byte[33554432];
+		byte[] clientData = new byte[33554432];
+		new Random (0).nextBytes (serverData);
+		new Random (1).nextBytes (clientData);
+		CountDownLatch latch = new CountDownLatch (2);
+		AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+		final BulkTransferListener serverListener = new BulkTransferListener (serverData, clientData.length, latch, error);
+		ConnectionManager connectionManager = new ConnectionManager (1, true);
+		int port = connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				connection.setListener (serverListener);
+				connection.setWriteEnabled (true);
+			}
+		});
+
+		final BulkTransferListener clientListener = new BulkTransferListener (clientData, serverData.length, latch, error);
+		ConnectionManager clientManager = new ConnectionManager (1, true);
+		clientManager.connect (InetAddress.getLocalHost(), port, new OutboundConnectionListener() {
+			public void connected (Connection connection) {
+				connection.setListener (clientListener);
+				connection.setWriteEnabled (true);
+			}
+			public void rejected (Connection connection) {
+				fail();
+			}
+		}, 5);
+
+		assertTrue (latch.await (30, TimeUnit.SECONDS));
+		assertNull (error.get());
+		assertArrayEquals (clientData, serverListener.received.array());
+		assertArrayEquals (serverData, clientListener.received.array());
+
+		clientManager.close();
+		connectionManager.close();
+
+	}
+
+
+}
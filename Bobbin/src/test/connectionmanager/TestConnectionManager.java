@@ -11,9 +11,19 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.itadaki.bobbin.connectionmanager.Connection;
 import org.itadaki.bobbin.connectionmanager.ConnectionManager;
@@ -388,4 +398,207 @@ public class TestConnectionManager {
 
 	}
 
+
+	// Event loops
+
+	/**
+	 * Tests that inbound connections are distributed across several event loops, and that each
+	 * connection's listener is always informed on the same thread
+	 * @throws Exception
+	 */
+	@Test
+	public void testEventLoops() throws Exception {
+
+		final int connectionCount = 8;
+		final int messageCount = 4;
+		final CountDownLatch latch = new CountDownLatch (connectionCount * messageCount);
+		final Map<Connection,Set<Thread>> connectionThreads = new ConcurrentHashMap<Connection,Set<Thread>>();
+
+		ConnectionManager connectionManager = new ConnectionManager (4);
+		InboundConnectionListener connectionManagerListener = new InboundConnectionListener() {
+
+			public void accepted (final Connection connection) {
+				final Set<Thread> threads = Collections.synchronizedSet (new HashSet<Thread>());
+				threads.add (Thread.currentThread());
+				connectionThreads.put (connection, threads);
+				connection.setListener (new ConnectionReadyListener() {
+
+					public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+						threads.add (Thread.currentThread());
+						ByteBuffer buffer = ByteBuffer.allocate (1);
+						try {
+							while (connection.read (buffer) > 0) {
+								latch.countDown();
+								buffer.clear();
+							}
+						} catch (Exception e) {
+							// Do nothing
+						}
+					}
+
+				});
+			}
+
+		};
+		int port = connectionManager.listen (null, 0, connectionManagerListener);
+
+		List<Socket> sockets = new ArrayList<Socket>();
+		for (int i = 0; i < connectionCount; i++) {
+			sockets.add (new Socket (InetAddress.getLocalHost(), port));
+		}
+		for (int i = 0; i < messageCount; i++) {
+			for (Socket socket : sockets) {
+				socket.getOutputStream().write (1);
+			}
+			Thread.sleep (10);
+		}
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+
+		Set<Thread> allThreads = new HashSet<Thread>();
+		for (Set<Thread> threads : connectionThreads.values()) {
+			assertEquals (1, threads.size());
+			allThreads.addAll (threads);
+		}
+		assertEquals (connectionCount, connectionThreads.size());
+		assertEquals (4, allThreads.size());
+
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that a ConnectionManager cannot be created without an event loop
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testNoEventLoops() throws Exception {
+
+		new ConnectionManager (0);
+
+	}
+
+
+	/**
+	 * Tests that enabling writes from another thread is dispatched in under a millisecond (at the
+	 * median), rather than waiting for the selector to time out
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteEnabledLatency() throws Exception {
+
+		final int trials = 50;
+		final AtomicReference<CountDownLatch> writeableLatch = new AtomicReference<CountDownLatch>();
+		final AtomicLong writeableTime = new AtomicLong();
+		final CountDownLatch acceptedLatch = new CountDownLatch (1);
+		final AtomicReference<Connection> acceptedConnection = new AtomicReference<Connection>();
+
+		ConnectionManager connectionManager = new ConnectionManager();
+		InboundConnectionListener connectionManagerListener = new InboundConnectionListener() {
+
+			public void accepted (Connection connection) {
+				connection.setListener (new ConnectionReadyListener() {
+
+					public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+						if (writeable) {
+							writeableTime.set (System.nanoTime());
+							connection.setWriteEnabled (false);
+							writeableLatch.get().countDown();
+						}
+					}
+
+				});
+				acceptedConnection.set (connection);
+				acceptedLatch.countDown();
+			}
+
+		};
+		int port = connectionManager.listen (null, 0, connectionManagerListener);
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (acceptedLatch.await (5, TimeUnit.SECONDS));
+		Connection connection = acceptedConnection.get();
+
+		long[] delays = new long[trials];
+		for (int i = 0; i < trials; i++) {
+			// Let the selector settle into a blocking select
+			Thread.sleep (5);
+			writeableLatch.set (new CountDownLatch (1));
+			long startTime = System.nanoTime();
+			connection.setWriteEnabled (true);
+			assertTrue (writeableLatch.get().await (5, TimeUnit.SECONDS));
+			delays[i] = writeableTime.get() - startTime;
+		}
+
+		Arrays.sort (delays);
+		assertTrue (delays[trials / 2] < TimeUnit.MILLISECONDS.toNanos (1));
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+	// Rate limiting
+
+	/**
+	 * Tests that reading is held to the ConnectionManager's global rate limit, and that every
+	 * byte is eventually read
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadRateLimit() throws Exception {
+
+		final int rate = 65536;
+		final int length = 98304;
+		final AtomicLong bytesRead = new AtomicLong();
+		final CountDownLatch latch = new CountDownLatch (1);
+
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.getReadBucket().setRate (rate);
+		InboundConnectionListener connectionManagerListener = new InboundConnectionListener() {
+
+			public void accepted (Connection connection) {
+				connection.setListener (new ConnectionReadyListener() {
+
+					public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+						ByteBuffer buffer = ByteBuffer.allocate (4096);
+						try {
+							int count;
+							while ((count = connection.read (buffer)) > 0) {
+								if (bytesRead.addAndGet (count) == length) {
+									latch.countDown();
+								}
+								buffer.clear();
+							}
+						} catch (IOException e) {
+							// Do nothing
+						}
+					}
+
+				});
+			}
+
+		};
+		int port = connectionManager.listen (null, 0, connectionManagerListener);
+
+		long startTime = System.currentTimeMillis();
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		socket.getOutputStream().write (new byte[length]);
+
+		assertTrue (latch.await (10, TimeUnit.SECONDS));
+		long elapsed = System.currentTimeMillis() - startTime;
+
+		// The initial burst of 16384 bytes is free; the remainder takes 1.25 seconds
+		assertTrue (elapsed >= 1000);
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
 }
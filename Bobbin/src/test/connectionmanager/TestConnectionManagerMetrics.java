@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.connectionmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.itadaki.bobbin.connectionmanager.Connection;
+import org.itadaki.bobbin.connectionmanager.ConnectionManager;
+import org.itadaki.bobbin.connectionmanager.ConnectionManagerMetrics;
+import org.itadaki.bobbin.connectionmanager.ConnectionManagerMetricsListener;
+import org.itadaki.bobbin.connectionmanager.ConnectionReadyListener;
+import org.itadaki.bobbin.connectionmanager.InboundConnectionListener;
+import org.junit.Test;
+
+
+/**
+ * Tests ConnectionManagerMetrics
+ */
+public class TestConnectionManagerMetrics {
+
+	/**
+	 * A listener that reads and discards everything, pausing on each call for a given time
+	 */
+	private static class SlowReadListener implements ConnectionReadyListener {
+
+		/**
+		 * The time to pause for on each call in milliseconds
+		 */
+		private final int pause;
+
+		/**
+		 * The total number of bytes read
+		 */
+		private int bytesRead = 0;
+
+
+		/**
+		 * @return The total number of bytes read
+		 */
+		public synchronized int getBytesRead() {
+
+			return this.bytesRead;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see org.itadaki.bobbin.connectionmanager.ConnectionReadyListener#connectionReady(org.itadaki.bobbin.connectionmanager.Connection, boolean, boolean)
+		 */
+		public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+
+			try {
+				Thread.sleep (this.pause);
+				ByteBuffer buffer = ByteBuffer.allocate (4096);
+				int count;
+				while ((count = connection.read (buffer)) > 0) {
+					synchronized (this) {
+						this.bytesRead += count;
+					}
+					buffer.clear();
+				}
+				if (count == -1) {
+					connection.close();
+				}
+			} catch (IOException e) {
+				// Ignore
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+
+		}
+
+
+		/**
+		 * @param pause The time to pause for on each call in milliseconds
+		 */
+		public SlowReadListener (int pause) {
+
+			this.pause = pause;
+
+		}
+
+	}
+
+
+	/**
+	 * Waits until the metrics have been published with a total at least a given value
+	 *
+	 * @param metrics The metrics
+	 * @param type The metric to wait for
+	 * @param total The total to wait for
+	 * @throws InterruptedException
+	 */
+	private static void awaitTotal (ConnectionManagerMetrics metrics, ConnectionManagerMetrics.Type type, long total) throws InterruptedException {
+
+		long endTime = System.currentTimeMillis() + 5000;
+		while ((metrics.getTotal (type) < total) && (System.currentTimeMillis() < endTime)) {
+			Thread.sleep (50);
+		}
+
+	}
+
+
+	/**
+	 * Tests that accepts, reads and bytes read are counted
+	 * @throws Exception
+	 */
+	@Test
+	public void testTransferCounted() throws Exception {
+
+		final SlowReadListener listener = new SlowReadListener (0);
+		final CountDownLatch latch = new CountDownLatch (1);
+
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				connection.setListener (listener);
+				latch.countDown();
+			}
+		});
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		OutputStream output = socket.getOutputStream();
+		output.write (new byte[100000]);
+		output.flush();
+
+		ConnectionManagerMetrics metrics = connectionManager.getMetrics();
+		awaitTotal (metrics, ConnectionManagerMetrics.Type.BYTES_READ, 100000);
+
+		assertEquals (100000, listener.getBytesRead());
+		assertEquals (100000, metrics.getTotal (ConnectionManagerMetrics.Type.BYTES_READ));
+		assertTrue (metrics.getTotal (ConnectionManagerMetrics.Type.READS) > 0);
+		assertEquals (1, metrics.getTotal (ConnectionManagerMetrics.Type.ACCEPTS));
+		assertTrue (metrics.getTotal (ConnectionManagerMetrics.Type.LOOP_ITERATIONS) > 0);
+		assertTrue (metrics.getTotal (ConnectionManagerMetrics.Type.LISTENER_CALLS) > 0);
+		assertEquals (0, metrics.getTotal (ConnectionManagerMetrics.Type.BYTES_WRITTEN));
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that the slowest listener calls are reported, and cleared once read
+	 * @throws Exception
+	 */
+	@Test
+	public void testSlowestCallbacks() throws Exception {
+
+		final SlowReadListener listener = new SlowReadListener (50);
+
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				connection.setListener (listener);
+			}
+		});
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		socket.getOutputStream().write (new byte[1000]);
+
+		ConnectionManagerMetrics metrics = connectionManager.getMetrics();
+		awaitTotal (metrics, ConnectionManagerMetrics.Type.BYTES_READ, 1000);
+
+		List<ConnectionManagerMetrics.SlowCallback> slowestCallbacks = metrics.getSlowestCallbacks();
+		assertTrue (slowestCallbacks.size() > 0);
+		assertTrue (slowestCallbacks.size() <= ConnectionManagerMetrics.SLOW_CALLBACK_COUNT);
+		assertEquals (SlowReadListener.class, slowestCallbacks.get(0).getListenerType());
+		assertTrue (slowestCallbacks.get(0).getDuration() >= TimeUnit.MILLISECONDS.toNanos (50));
+		for (int i = 1; i < slowestCallbacks.size(); i++) {
+			assertTrue (slowestCallbacks.get(i - 1).getDuration() >= slowestCallbacks.get(i).getDuration());
+		}
+
+		socket.close();
+		connectionManager.close();
+
+		assertEquals (0, metrics.getSlowestCallbacks().size());
+
+	}
+
+
+	/**
+	 * Tests that a metrics listener is informed of publication
+	 * @throws Exception
+	 */
+	@Test
+	public void testListener() throws Exception {
+
+		final CountDownLatch latch = new CountDownLatch (2);
+
+		ConnectionManager connectionManager = new ConnectionManager (2);
+		connectionManager.getMetrics().addListener (new ConnectionManagerMetricsListener() {
+			public void metricsPublished (ConnectionManagerMetrics metrics) {
+				latch.countDown();
+			}
+		});
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		assertTrue (connectionManager.getMetrics().getTotal (ConnectionManagerMetrics.Type.LOOP_ITERATIONS) > 0);
+
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that an idle ConnectionManager has no queued tasks
+	 * @throws Exception
+	 */
+	@Test
+	public void testQueuedTasksIdle() throws Exception {
+
+		ConnectionManager connectionManager = new ConnectionManager (2);
+		connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) { }
+		});
+
+		long endTime = System.currentTimeMillis() + 5000;
+		while ((connectionManager.getMetrics().getQueuedTasks() > 0) && (System.currentTimeMillis() < endTime)) {
+			Thread.sleep (50);
+		}
+		assertEquals (0, connectionManager.getMetrics().getQueuedTasks());
+
+		connectionManager.close();
+
+	}
+
+
+}
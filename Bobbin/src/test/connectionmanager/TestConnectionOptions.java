@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.connectionmanager;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.itadaki.bobbin.connectionmanager.Connection;
+import org.itadaki.bobbin.connectionmanager.ConnectionManager;
+import org.itadaki.bobbin.connectionmanager.ConnectionOptions;
+import org.itadaki.bobbin.connectionmanager.InboundConnectionListener;
+import org.junit.Test;
+
+
+/**
+ * Tests ConnectionOptions
+ */
+public class TestConnectionOptions {
+
+	/**
+	 * Tests the default options
+	 */
+	@Test
+	public void testDefaults() {
+
+		ConnectionOptions options = new ConnectionOptions();
+
+		assertFalse (options.isTcpNoDelay());
+		assertEquals (0, options.getSendBufferSize());
+		assertEquals (0, options.getReceiveBufferSize());
+		assertEquals (0, options.getTrafficClass());
+		assertTrue (options.isReuseAddress());
+		assertEquals (0, options.getMaximumBufferSize());
+
+	}
+
+
+	/**
+	 * Tests that buffers are not grown when no maximum is set
+	 */
+	@Test
+	public void testAdaptiveBufferSizeDisabled() {
+
+		ConnectionOptions options = new ConnectionOptions();
+
+		assertEquals (65536, options.getAdaptiveBufferSize (65536, 100000000));
+
+	}
+
+
+	/**
+	 * Tests that a buffer is grown to hold the measured throughput, within the maximum
+	 */
+	@Test
+	public void testAdaptiveBufferSize() {
+
+		ConnectionOptions options = new ConnectionOptions (true, 0, 0, 0, true, 4194304);
+
+		assertEquals (65536, options.getAdaptiveBufferSize (65536, 65536));
+		assertEquals (1048576, options.getAdaptiveBufferSize (65536, 2097152));
+		assertEquals (4194304, options.getAdaptiveBufferSize (65536, 100000000));
+
+	}
+
+
+	/**
+	 * Tests that a buffer is never shrunk
+	 */
+	@Test
+	public void testAdaptiveBufferSizeNoShrink() {
+
+		ConnectionOptions options = new ConnectionOptions (true, 0, 0, 0, true, 4194304);
+
+		assertEquals (2097152, options.getAdaptiveBufferSize (2097152, 0));
+		assertEquals (8388608, options.getAdaptiveBufferSize (8388608, 100000000));
+
+	}
+
+
+	/**
+	 * Tests that a negative buffer size is rejected
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidBufferSize() {
+
+		new ConnectionOptions (false, -1, 0, 0, true, 0);
+
+	}
+
+
+	/**
+	 * Tests that an out of range traffic class is rejected
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidTrafficClass() {
+
+		new ConnectionOptions (false, 0, 0, 256, true, 0);
+
+	}
+
+
+	/**
+	 * Tests that a ConnectionManager rejects null options
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testNullOptions() throws Exception {
+
+		ConnectionManager connectionManager = new ConnectionManager();
+		try {
+			connectionManager.setConnectionOptions (null);
+		} finally {
+			connectionManager.close();
+		}
+
+	}
+
+
+	/**
+	 * Tests that connections are accepted and their buffers adjusted under non-default options
+	 * @throws Exception
+	 */
+	@Test
+	public void testAcceptWithOptions() throws Exception {
+
+		final CountDownLatch latch = new CountDownLatch (1);
+
+		ConnectionManager connectionManager = new ConnectionManager();
+		connectionManager.setConnectionOptions (new ConnectionOptions (true, 32768, 32768, 0x10, true, 1048576));
+		InboundConnectionListener connectionManagerListener = new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				connection.adjustBufferSizes (10000000, 10000000);
+				latch.countDown();
+			}
+		};
+		int port = connectionManager.listen (null, 0, connectionManagerListener);
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+}
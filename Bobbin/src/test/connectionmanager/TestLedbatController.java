@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.connectionmanager;
+
+import static org.junit.Assert.*;
+
+import org.itadaki.bobbin.connectionmanager.LedbatController;
+import org.junit.Test;
+
+
+/**
+ * Tests LedbatController
+ */
+public class TestLedbatController {
+
+	/**
+	 * Tests the initial window
+	 */
+	@Test
+	public void testInitialWindow() {
+
+		LedbatController controller = new LedbatController (1000, 2000, 100000);
+
+		assertEquals (2000, controller.getWindow());
+		assertEquals (0, controller.getQueuingDelay());
+
+	}
+
+
+	/**
+	 * Tests that the window grows when the queuing delay is below target and the window is full
+	 */
+	@Test
+	public void testGrowBelowTarget() {
+
+		LedbatController controller = new LedbatController (1000, 2000, 100000);
+		controller.delaySample (50000, 0);
+		controller.bytesAcknowledged (2000, 0);
+
+		assertEquals (2000 + LedbatController.MAXIMUM_WINDOW_INCREASE, controller.getWindow());
+
+	}
+
+
+	/**
+	 * Tests that the window does not grow when the sender is not using it
+	 */
+	@Test
+	public void testNoGrowthWhenApplicationLimited() {
+
+		LedbatController controller = new LedbatController (1000, 20000, 100000);
+		controller.delaySample (50000, 0);
+		controller.bytesAcknowledged (1000, 0);
+
+		assertEquals (20000, controller.getWindow());
+
+	}
+
+
+	/**
+	 * Tests that the window shrinks when the queuing delay is above target
+	 */
+	@Test
+	public void testShrinkAboveTarget() {
+
+		LedbatController controller = new LedbatController (1000, 20000, 100000);
+		controller.delaySample (50000, 0);
+		controller.delaySample (50000 + (2 * LedbatController.TARGET_DELAY), 1);
+		controller.bytesAcknowledged (20000, 0);
+
+		assertEquals (2 * LedbatController.TARGET_DELAY, controller.getQueuingDelay());
+		assertEquals (20000 - LedbatController.MAXIMUM_WINDOW_INCREASE, controller.getWindow());
+
+	}
+
+
+	/**
+	 * Tests that the window is bounded by the maximum and minimum
+	 */
+	@Test
+	public void testBounds() {
+
+		LedbatController controller = new LedbatController (1000, 2000, 3000);
+		controller.bytesAcknowledged (2000, 0);
+		assertEquals (3000, controller.getWindow());
+
+		controller.delaySample (0, 0);
+		controller.delaySample (10 * LedbatController.TARGET_DELAY, 1);
+		controller.bytesAcknowledged (3000, 0);
+		controller.bytesAcknowledged (3000, 0);
+		assertEquals (1000, controller.getWindow());
+
+	}
+
+
+	/**
+	 * Tests that a lost packet halves the window
+	 */
+	@Test
+	public void testPacketLost() {
+
+		LedbatController controller = new LedbatController (1000, 8000, 100000);
+		controller.packetLost();
+
+		assertEquals (4000, controller.getWindow());
+
+	}
+
+
+	/**
+	 * Tests that a timeout collapses the window to the minimum
+	 */
+	@Test
+	public void testTimedOut() {
+
+		LedbatController controller = new LedbatController (1000, 8000, 100000);
+		controller.timedOut();
+
+		assertEquals (1000, controller.getWindow());
+
+	}
+
+
+	/**
+	 * Tests that the base delay is forgotten after two intervals
+	 */
+	@Test
+	public void testBaseDelayExpiry() {
+
+		LedbatController controller = new LedbatController (1000, 2000, 100000);
+		controller.delaySample (10000, 0);
+		controller.delaySample (30000, 60000);
+		assertEquals (20000, controller.getQueuingDelay());
+
+		controller.delaySample (30000, 120000);
+		assertEquals (0, controller.getQueuingDelay());
+
+	}
+
+
+	/**
+	 * Tests invalid window bounds
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidBounds() {
+
+		new LedbatController (2000, 1000, 100000);
+
+	}
+
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.connectionmanager;
+
+import static org.junit.Assert.*;
+
+import org.itadaki.bobbin.connectionmanager.TokenBucket;
+import org.junit.Test;
+
+
+/**
+ * Tests TokenBucket
+ */
+public class TestTokenBucket {
+
+	/**
+	 * Tests that an unlimited bucket grants every request
+	 */
+	@Test
+	public void testUnlimited() {
+
+		TokenBucket bucket = new TokenBucket (null);
+
+		assertEquals (0, bucket.getRate());
+		assertEquals (1000000, bucket.take (1000000, 0));
+		assertEquals (1000000, bucket.take (1000000, 0));
+		assertEquals (0, bucket.getDelay (0));
+
+	}
+
+
+	/**
+	 * Tests that a newly limited bucket grants a quarter of a second's worth of tokens at once
+	 */
+	@Test
+	public void testInitialBurst() {
+
+		TokenBucket bucket = new TokenBucket (null);
+		bucket.setRate (100000);
+
+		assertEquals (100000, bucket.getRate());
+		assertEquals (25000, bucket.take (1000000, 1000));
+		assertEquals (0, bucket.take (1, 1000));
+
+	}
+
+
+	/**
+	 * Tests that a small rate still allows a whole block to be granted at once
+	 */
+	@Test
+	public void testMinimumCapacity() {
+
+		TokenBucket bucket = new TokenBucket (null);
+		bucket.setRate (1000);
+
+		assertEquals (16384, bucket.take (1000000, 0));
+
+	}
+
+
+	/**
+	 * Tests that tokens accumulate at the bucket's rate
+	 */
+	@Test
+	public void testRefill() {
+
+		TokenBucket bucket = new TokenBucket (null);
+		bucket.setRate (100000);
+		bucket.take (1000000, 1000);
+
+		assertEquals (10000, bucket.take (1000000, 1100));
+		assertEquals (25000, bucket.take (1000000, 5000));
+
+	}
+
+
+	/**
+	 * Tests that returned tokens may be taken again
+	 */
+	@Test
+	public void testGive() {
+
+		TokenBucket bucket = new TokenBucket (null);
+		bucket.setRate (100000);
+		bucket.take (1000000, 1000);
+		bucket.give (500);
+
+		assertEquals (500, bucket.take (1000000, 1000));
+
+	}
+
+
+	/**
+	 * Tests that a child bucket is limited by its parent, and keeps the tokens its parent could
+	 * not match
+	 */
+	@Test
+	public void testParentLimits() {
+
+		TokenBucket parent = new TokenBucket (null);
+		parent.setRate (100000);
+		TokenBucket child = new TokenBucket (parent);
+		child.setRate (1000000);
+
+		assertEquals (25000, child.take (1000000, 0));
+		assertEquals (0, child.take (1000000, 0));
+
+		parent.setRate (0);
+
+		assertEquals (225000, child.take (1000000, 0));
+
+	}
+
+
+	/**
+	 * Tests that an unlimited child defers to its parent
+	 */
+	@Test
+	public void testUnlimitedChild() {
+
+		TokenBucket parent = new TokenBucket (null);
+		parent.setRate (100000);
+		TokenBucket child = new TokenBucket (parent);
+
+		assertEquals (25000, child.take (1000000, 0));
+		assertEquals (0, child.take (1000000, 0));
+
+	}
+
+
+	/**
+	 * Tests the delay until an exhausted bucket may resume
+	 */
+	@Test
+	public void testDelay() {
+
+		TokenBucket bucket = new TokenBucket (null);
+		bucket.setRate (16384);
+		bucket.take (1000000, 0);
+
+		assertEquals (250, bucket.getDelay (0));
+		assertEquals (0, bucket.getDelay (250));
+
+	}
+
+
+	/**
+	 * Tests that the delay of a child accounts for its parent
+	 */
+	@Test
+	public void testParentDelay() {
+
+		TokenBucket parent = new TokenBucket (null);
+		parent.setRate (8192);
+		TokenBucket child = new TokenBucket (parent);
+		child.take (1000000, 0);
+
+		assertEquals (500, child.getDelay (0));
+
+	}
+
+
+	/**
+	 * Tests that a negative rate is rejected
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidRate() {
+
+		new TokenBucket (null).setRate (-1);
+
+	}
+
+
+}
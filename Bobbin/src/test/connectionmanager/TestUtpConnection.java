@@ -0,0 +1,954 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.connectionmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.itadaki.bobbin.connectionmanager.Connection;
+import org.itadaki.bobbin.connectionmanager.ConnectionManager;
+import org.itadaki.bobbin.connectionmanager.ConnectionReadyListener;
+import org.itadaki.bobbin.connectionmanager.InboundConnectionListener;
+import org.itadaki.bobbin.connectionmanager.OutboundConnectionListener;
+import org.itadaki.bobbin.connectionmanager.UtpConnection;
+import org.junit.Test;
+
+
+/**
+ * Tests UtpConnection through ConnectionManager. Protocol behaviour is tested against a
+ * {@link RawPeer} that speaks uTP at the datagram level, so that packets can be lost, reordered
+ * and acknowledged as a test requires
+ */
+public class TestUtpConnection {
+
+	/**
+	 * Data packet type
+	 */
+	private static final int TYPE_DATA = 0;
+
+	/**
+	 * Finish packet type
+	 */
+	private static final int TYPE_FIN = 1;
+
+	/**
+	 * State (acknowledgement) packet type
+	 */
+	private static final int TYPE_STATE = 2;
+
+	/**
+	 * Reset packet type
+	 */
+	private static final int TYPE_RESET = 3;
+
+	/**
+	 * Connection request packet type
+	 */
+	private static final int TYPE_SYN = 4;
+
+	/**
+	 * The payload length of a full data packet
+	 */
+	private static final int PAYLOAD_LENGTH = UtpConnection.PACKET_LENGTH - 20;
+
+
+	/**
+	 * A uTP packet received by a {@link RawPeer}
+	 */
+	private static class RawPacket {
+
+		/**
+		 * The packet type
+		 */
+		public int type;
+
+		/**
+		 * The connection ID
+		 */
+		public int connectionId;
+
+		/**
+		 * The advertised receive window
+		 */
+		public long window;
+
+		/**
+		 * The sequence number
+		 */
+		public int sequenceNumber;
+
+		/**
+		 * The acknowledgement number
+		 */
+		public int ackNumber;
+
+		/**
+		 * The selective acknowledgement bitmask, or {@code null}
+		 */
+		public byte[] selectiveAck;
+
+		/**
+		 * The payload
+		 */
+		public byte[] payload;
+
+		/**
+		 * The time the packet was received, in system milliseconds
+		 */
+		public long time;
+
+	}
+
+
+	/**
+	 * The remote end of a uTP connection, driven packet by packet from a test
+	 */
+	private static class RawPeer {
+
+		/**
+		 * The socket to send and receive through
+		 */
+		private final DatagramSocket socket;
+
+		/**
+		 * The local port of the connection's listening socket
+		 */
+		private final int port;
+
+		/**
+		 * The connection ID of the connection request. The connection under test sends with this
+		 * ID, and receives with one greater
+		 */
+		private final int connectionId;
+
+
+		/**
+		 * Sends a packet
+		 *
+		 * @param type The packet type
+		 * @param sequenceNumber The sequence number
+		 * @param ackNumber The acknowledgement number
+		 * @param window The receive window to advertise
+		 * @param selectiveAck The selective acknowledgement bitmask, or {@code null}
+		 * @param payload The payload, or {@code null}
+		 * @throws IOException
+		 */
+		public void send (int type, int sequenceNumber, int ackNumber, int window, byte[] selectiveAck, byte[] payload) throws IOException {
+
+			int length = 20 + ((selectiveAck == null) ? 0 : 2 + selectiveAck.length) + ((payload == null) ? 0 : payload.length);
+			ByteBuffer buffer = ByteBuffer.allocate (length);
+			buffer.put ((byte) ((type << 4) | 1));
+			buffer.put ((byte) ((selectiveAck == null) ? 0 : 1));
+			buffer.putShort ((short) ((type == TYPE_SYN) ? this.connectionId : this.connectionId + 1));
+			buffer.putInt ((int) (System.nanoTime() / 1000));
+			buffer.putInt (0);
+			buffer.putInt (window);
+			buffer.putShort ((short) sequenceNumber);
+			buffer.putShort ((short) ackNumber);
+			if (selectiveAck != null) {
+				buffer.put ((byte) 0);
+				buffer.put ((byte) selectiveAck.length);
+				buffer.put (selectiveAck);
+			}
+			if (payload != null) {
+				buffer.put (payload);
+			}
+			this.socket.send (new DatagramPacket (buffer.array(), length, InetAddress.getByName ("127.0.0.1"), this.port));
+
+		}
+
+
+		/**
+		 * Receives the next packet of a given type, discarding any others
+		 *
+		 * @param type The packet type
+		 * @param timeout The time to wait in milliseconds
+		 * @return The packet, or {@code null} if none arrived in time
+		 * @throws IOException
+		 */
+		public RawPacket receive (int type, int timeout) throws IOException {
+
+			long deadline = System.currentTimeMillis() + timeout;
+			DatagramPacket datagram = new DatagramPacket (new byte[2048], 2048);
+			long remaining;
+			while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+				this.socket.setSoTimeout ((int) remaining);
+				try {
+					this.socket.receive (datagram);
+				} catch (SocketTimeoutException e) {
+					return null;
+				}
+				ByteBuffer buffer = ByteBuffer.wrap (datagram.getData(), 0, datagram.getLength());
+				RawPacket packet = new RawPacket();
+				packet.time = System.currentTimeMillis();
+				packet.type = (buffer.get() & 0xff) >> 4;
+				int extension = buffer.get() & 0xff;
+				packet.connectionId = buffer.getShort() & 0xffff;
+				buffer.getInt();
+				buffer.getInt();
+				packet.window = buffer.getInt() & 0xffffffffL;
+				packet.sequenceNumber = buffer.getShort() & 0xffff;
+				packet.ackNumber = buffer.getShort() & 0xffff;
+				while (extension != 0) {
+					int nextExtension = buffer.get() & 0xff;
+					byte[] data = new byte[buffer.get() & 0xff];
+					buffer.get (data);
+					if (extension == 1) {
+						packet.selectiveAck = data;
+					}
+					extension = nextExtension;
+				}
+				packet.payload = new byte[buffer.remaining()];
+				buffer.get (packet.payload);
+				if (packet.type == type) {
+					assertEquals (this.connectionId, packet.connectionId);
+					return packet;
+				}
+			}
+
+			return null;
+
+		}
+
+
+		/**
+		 * Sends a connection request and receives its acknowledgement
+		 *
+		 * @param sequenceNumber The sequence number of the request
+		 * @param window The receive window to advertise
+		 * @return The acknowledgement
+		 * @throws IOException
+		 */
+		public RawPacket connect (int sequenceNumber, int window) throws IOException {
+
+			send (TYPE_SYN, sequenceNumber, 0, window, null, null);
+			RawPacket packet = receive (TYPE_STATE, 5000);
+			assertNotNull (packet);
+			assertEquals (sequenceNumber, packet.ackNumber);
+
+			return packet;
+
+		}
+
+
+		/**
+		 * Closes the peer's socket
+		 */
+		public void close() {
+
+			this.socket.close();
+
+		}
+
+
+		/**
+		 * @param port The local port of the connection's listening socket
+		 * @param connectionId The connection ID of the connection request
+		 * @throws IOException
+		 */
+		public RawPeer (int port, int connectionId) throws IOException {
+
+			this.socket = new DatagramSocket (0, InetAddress.getByName ("127.0.0.1"));
+			this.port = port;
+			this.connectionId = connectionId;
+
+		}
+
+	}
+
+
+	/**
+	 * The local end of a uTP connection. Accepts a single connection, records the data read
+	 * from it, and optionally writes data to it
+	 */
+	private static class LocalEnd implements InboundConnectionListener, ConnectionReadyListener {
+
+		/**
+		 * Counted down when the connection is accepted
+		 */
+		public final CountDownLatch acceptedLatch = new CountDownLatch (1);
+
+		/**
+		 * Counted down when the end of stream or a failure is read
+		 */
+		public final CountDownLatch endLatch = new CountDownLatch (1);
+
+		/**
+		 * The error read from the connection, if any
+		 */
+		public final AtomicReference<IOException> error = new AtomicReference<IOException>();
+
+		/**
+		 * The data read from the connection
+		 */
+		private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+		/**
+		 * The data to write to the connection, or {@code null}
+		 */
+		private final ByteBuffer sendBuffer;
+
+
+		/**
+		 * @return The data read from the connection so far
+		 */
+		public synchronized byte[] getReceived() {
+
+			return this.received.toByteArray();
+
+		}
+
+
+		/**
+		 * Waits for a given amount of data to be read
+		 *
+		 * @param length The amount of data in bytes
+		 * @return {@code true} if the data was read within five seconds, otherwise {@code false}
+		 * @throws InterruptedException
+		 */
+		public boolean awaitReceived (int length) throws InterruptedException {
+
+			for (int i = 0; i < 500; i++) {
+				if (getReceived().length >= length) {
+					return true;
+				}
+				Thread.sleep (10);
+			}
+
+			return false;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see org.itadaki.bobbin.connectionmanager.InboundConnectionListener#accepted(org.itadaki.bobbin.connectionmanager.Connection)
+		 */
+		public void accepted (Connection connection) {
+
+			connection.setListener (this);
+			if (this.sendBuffer != null) {
+				connection.setWriteEnabled (true);
+			}
+			this.acceptedLatch.countDown();
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see org.itadaki.bobbin.connectionmanager.ConnectionReadyListener#connectionReady(org.itadaki.bobbin.connectionmanager.Connection, boolean, boolean)
+		 */
+		public synchronized void connectionReady (Connection connection, boolean readable, boolean writeable) {
+
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate (65536);
+				int bytesRead;
+				while ((bytesRead = connection.read (buffer)) > 0) {
+					this.received.write (buffer.array(), 0, bytesRead);
+					buffer.clear();
+				}
+				if (bytesRead == -1) {
+					this.endLatch.countDown();
+				}
+				if (writeable && (this.sendBuffer != null)) {
+					connection.write (this.sendBuffer);
+					if (!this.sendBuffer.hasRemaining()) {
+						connection.setWriteEnabled (false);
+					}
+				}
+			} catch (IOException e) {
+				this.error.set (e);
+				this.endLatch.countDown();
+			}
+
+		}
+
+
+		/**
+		 * @param sendData The data to write to the connection, or {@code null}
+		 */
+		public LocalEnd (byte[] sendData) {
+
+			this.sendBuffer = (sendData == null) ? null : ByteBuffer.wrap (sendData);
+
+		}
+
+	}
+
+
+	/**
+	 * Creates a sequence of distinct payloads
+	 *
+	 * @param count The number of payloads
+	 * @param length The length of each payload
+	 * @return The payloads
+	 */
+	private static byte[][] payloads (int count, int length) {
+
+		Random random = new Random (count);
+		byte[][] payloads = new byte[count][length];
+		for (int i = 0; i < count; i++) {
+			random.nextBytes (payloads[i]);
+		}
+
+		return payloads;
+
+	}
+
+
+	/**
+	 * Concatenates payloads
+	 *
+	 * @param payloads The payloads
+	 * @return The concatenated payloads
+	 */
+	private static byte[] concatenate (byte[][] payloads) {
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (byte[] payload : payloads) {
+			output.write (payload, 0, payload.length);
+		}
+
+		return output.toByteArray();
+
+	}
+
+
+	/**
+	 * Tests that an outbound uTP connection is accepted and connected
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnect() throws Exception {
+
+		final CountDownLatch acceptedLatch = new CountDownLatch (1);
+		final CountDownLatch connectedLatch = new CountDownLatch (1);
+
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				acceptedLatch.countDown();
+			}
+		});
+
+		ConnectionManager clientManager = new ConnectionManager();
+		Connection connection = clientManager.connectUtp (InetAddress.getByName ("127.0.0.1"), port, new OutboundConnectionListener() {
+			public void connected (Connection connection) {
+				connectedLatch.countDown();
+			}
+			public void rejected (Connection connection) {
+				fail();
+			}
+		}, 5);
+
+		assertTrue (acceptedLatch.await (5, TimeUnit.SECONDS));
+		assertTrue (connectedLatch.await (5, TimeUnit.SECONDS));
+		assertEquals (port, connection.getRemotePort());
+		assertTrue (connection.isOpen());
+
+		connection.close();
+		assertFalse (connection.isOpen());
+
+		clientManager.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that data written to one end of a uTP connection is read intact from the other,
+	 * followed by the end of stream when the writer closes
+	 * @throws Exception
+	 */
+	@Test
+	public void testTransfer() throws Exception {
+
+		final byte[] data = new byte[1048576];
+		new Random (0).nextBytes (data);
+		final ByteBuffer received = ByteBuffer.allocate (data.length);
+		final CountDownLatch endLatch = new CountDownLatch (1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+		final ConnectionReadyListener readListener = new ConnectionReadyListener() {
+			public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+				try {
+					int bytesRead;
+					while ((bytesRead = connection.read (received)) > 0);
+					if (bytesRead == -1) {
+						endLatch.countDown();
+					}
+				} catch (Throwable t) {
+					error.set (t);
+					endLatch.countDown();
+				}
+			}
+		};
+
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				connection.setListener (readListener);
+			}
+		});
+
+		final ByteBuffer sendBuffer = ByteBuffer.wrap (data);
+		final ConnectionReadyListener writeListener = new ConnectionReadyListener() {
+			public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+				try {
+					if (writeable) {
+						connection.write (sendBuffer);
+						if (!sendBuffer.hasRemaining()) {
+							connection.setWriteEnabled (false);
+							connection.close();
+						}
+					}
+				} catch (IOException e) {
+					error.set (e);
+				}
+			}
+		};
+
+		ConnectionManager clientManager = new ConnectionManager();
+		clientManager.connectUtp (InetAddress.getByName ("127.0.0.1"), port, new OutboundConnectionListener() {
+			public void connected (Connection connection) {
+				connection.setListener (writeListener);
+				connection.setWriteEnabled (true);
+			}
+			public void rejected (Connection connection) {
+				fail();
+			}
+		}, 5);
+
+		assertTrue (endLatch.await (30, TimeUnit.SECONDS));
+		assertNull (error.get());
+		assertArrayEquals (data, received.array());
+
+		clientManager.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that a uTP connection to a port that does not respond is rejected after its timeout
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectTimeout() throws Exception {
+
+		final CountDownLatch rejectedLatch = new CountDownLatch (1);
+
+		DatagramSocket silentSocket = new DatagramSocket (0, InetAddress.getByName ("127.0.0.1"));
+
+		ConnectionManager clientManager = new ConnectionManager();
+		clientManager.connectUtp (InetAddress.getByName ("127.0.0.1"), silentSocket.getLocalPort(), new OutboundConnectionListener() {
+			public void connected (Connection connection) {
+				fail();
+			}
+			public void rejected (Connection connection) {
+				rejectedLatch.countDown();
+			}
+		}, 1);
+
+		assertTrue (rejectedLatch.await (5, TimeUnit.SECONDS));
+
+		clientManager.close();
+		silentSocket.close();
+
+	}
+
+
+	/**
+	 * Tests that packets received ahead of a missing packet are selectively acknowledged and held
+	 * out of the receive window, then delivered in order once the missing packets arrive
+	 * @throws Exception
+	 */
+	@Test
+	public void testSelectiveAckGenerated() throws Exception {
+
+		LocalEnd localEnd = new LocalEnd (null);
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, localEnd);
+		RawPeer peer = new RawPeer (port, 1000);
+
+		RawPacket synAck = peer.connect (100, 1048576);
+		assertTrue (localEnd.acceptedLatch.await (5, TimeUnit.SECONDS));
+		int ackNumber = (synAck.sequenceNumber - 1) & 0xffff;
+		byte[][] payloads = payloads (5, 1000);
+
+		// Bit i acknowledges sequence number 102 + i
+		peer.send (TYPE_DATA, 103, ackNumber, 1048576, null, payloads[2]);
+		peer.send (TYPE_DATA, 105, ackNumber, 1048576, null, payloads[4]);
+		RawPacket state;
+		do {
+			state = peer.receive (TYPE_STATE, 5000);
+			assertNotNull (state);
+			assertEquals (100, state.ackNumber);
+		} while ((state.selectiveAck == null) || (state.selectiveAck[0] != 0x0a));
+		assertArrayEquals (new byte[] { 0x0a, 0, 0, 0 }, state.selectiveAck);
+		assertEquals (UtpConnection.RECEIVE_BUFFER_LENGTH - 2000, state.window);
+		assertEquals (0, localEnd.getReceived().length);
+
+		peer.send (TYPE_DATA, 101, ackNumber, 1048576, null, payloads[0]);
+		peer.send (TYPE_DATA, 104, ackNumber, 1048576, null, payloads[3]);
+		peer.send (TYPE_DATA, 102, ackNumber, 1048576, null, payloads[1]);
+		do {
+			state = peer.receive (TYPE_STATE, 5000);
+			assertNotNull (state);
+		} while (state.ackNumber != 105);
+		assertNull (state.selectiveAck);
+
+		assertTrue (localEnd.awaitReceived (5000));
+		assertArrayEquals (concatenate (payloads), localEnd.getReceived());
+
+		peer.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that packets received in a random order are delivered in sequence order
+	 * @throws Exception
+	 */
+	@Test
+	public void testReorderDelivery() throws Exception {
+
+		LocalEnd localEnd = new LocalEnd (null);
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, localEnd);
+		RawPeer peer = new RawPeer (port, 2000);
+
+		RawPacket synAck = peer.connect (0x2000, 1048576);
+		assertTrue (localEnd.acceptedLatch.await (5, TimeUnit.SECONDS));
+		int ackNumber = (synAck.sequenceNumber - 1) & 0xffff;
+		byte[][] payloads = payloads (64, 500);
+
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < payloads.length; i++) {
+			order.add (i);
+		}
+		Collections.shuffle (order, new Random (0));
+		for (int i : order) {
+			peer.send (TYPE_DATA, 0x2001 + i, ackNumber, 1048576, null, payloads[i]);
+		}
+
+		RawPacket state;
+		do {
+			state = peer.receive (TYPE_STATE, 5000);
+			assertNotNull (state);
+		} while (state.ackNumber != 0x2000 + payloads.length);
+
+		assertTrue (localEnd.awaitReceived (64 * 500));
+		assertArrayEquals (concatenate (payloads), localEnd.getReceived());
+
+		peer.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that sequence numbers wrap from 0xffff to 0, both for delivery and for selective
+	 * acknowledgement
+	 * @throws Exception
+	 */
+	@Test
+	public void testSequenceWraparound() throws Exception {
+
+		LocalEnd localEnd = new LocalEnd (null);
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, localEnd);
+		RawPeer peer = new RawPeer (port, 3000);
+
+		RawPacket synAck = peer.connect (0xfffc, 1048576);
+		assertTrue (localEnd.acceptedLatch.await (5, TimeUnit.SECONDS));
+		int ackNumber = (synAck.sequenceNumber - 1) & 0xffff;
+		byte[][] payloads = payloads (5, 700);
+
+		// Sequence number 0 is three beyond the next expected, 0xfffd
+		peer.send (TYPE_DATA, 0x0000, ackNumber, 1048576, null, payloads[3]);
+		RawPacket state;
+		do {
+			state = peer.receive (TYPE_STATE, 5000);
+			assertNotNull (state);
+		} while (state.selectiveAck == null);
+		assertEquals (0xfffc, state.ackNumber);
+		assertArrayEquals (new byte[] { 0x04, 0, 0, 0 }, state.selectiveAck);
+
+		peer.send (TYPE_DATA, 0xfffe, ackNumber, 1048576, null, payloads[1]);
+		peer.send (TYPE_DATA, 0x0001, ackNumber, 1048576, null, payloads[4]);
+		peer.send (TYPE_DATA, 0xffff, ackNumber, 1048576, null, payloads[2]);
+		peer.send (TYPE_DATA, 0xfffd, ackNumber, 1048576, null, payloads[0]);
+		do {
+			state = peer.receive (TYPE_STATE, 5000);
+			assertNotNull (state);
+		} while (state.ackNumber != 0x0001);
+
+		assertTrue (localEnd.awaitReceived (5 * 700));
+		assertArrayEquals (concatenate (payloads), localEnd.getReceived());
+
+		peer.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that a finish packet received ahead of data ends the stream only after the data is
+	 * delivered
+	 * @throws Exception
+	 */
+	@Test
+	public void testFinOutOfOrder() throws Exception {
+
+		LocalEnd localEnd = new LocalEnd (null);
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, localEnd);
+		RawPeer peer = new RawPeer (port, 4000);
+
+		RawPacket synAck = peer.connect (100, 1048576);
+		assertTrue (localEnd.acceptedLatch.await (5, TimeUnit.SECONDS));
+		int ackNumber = (synAck.sequenceNumber - 1) & 0xffff;
+		byte[][] payloads = payloads (2, 1000);
+
+		peer.send (TYPE_FIN, 103, ackNumber, 1048576, null, null);
+		assertFalse (localEnd.endLatch.await (300, TimeUnit.MILLISECONDS));
+
+		peer.send (TYPE_DATA, 102, ackNumber, 1048576, null, payloads[1]);
+		assertFalse (localEnd.endLatch.await (300, TimeUnit.MILLISECONDS));
+		assertEquals (0, localEnd.getReceived().length);
+
+		peer.send (TYPE_DATA, 101, ackNumber, 1048576, null, payloads[0]);
+		assertTrue (localEnd.endLatch.await (5, TimeUnit.SECONDS));
+		assertNull (localEnd.error.get());
+		assertArrayEquals (concatenate (payloads), localEnd.getReceived());
+
+		peer.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that a reset packet fails the connection
+	 * @throws Exception
+	 */
+	@Test
+	public void testReset() throws Exception {
+
+		LocalEnd localEnd = new LocalEnd (null);
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, localEnd);
+		RawPeer peer = new RawPeer (port, 5000);
+
+		RawPacket synAck = peer.connect (100, 1048576);
+		assertTrue (localEnd.acceptedLatch.await (5, TimeUnit.SECONDS));
+
+		peer.send (TYPE_RESET, 101, (synAck.sequenceNumber - 1) & 0xffff, 1048576, null, null);
+		assertTrue (localEnd.endLatch.await (5, TimeUnit.SECONDS));
+		assertNotNull (localEnd.error.get());
+
+		peer.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that the remote peer's advertised window bounds the data in flight, and that a
+	 * selectively acknowledged packet is removed from flight and not retransmitted
+	 * @throws Exception
+	 */
+	@Test
+	public void testSelectiveAckParsed() throws Exception {
+
+		LocalEnd localEnd = new LocalEnd (new byte[65536]);
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, localEnd);
+		RawPeer peer = new RawPeer (port, 6000);
+
+		// A window of two full packets
+		int window = 2 * PAYLOAD_LENGTH;
+		RawPacket synAck = peer.connect (100, window);
+		int first = synAck.sequenceNumber;
+
+		RawPacket packet = peer.receive (TYPE_DATA, 5000);
+		assertEquals (first, packet.sequenceNumber);
+		assertEquals (PAYLOAD_LENGTH, packet.payload.length);
+		packet = peer.receive (TYPE_DATA, 5000);
+		assertEquals ((first + 1) & 0xffff, packet.sequenceNumber);
+		assertNull (peer.receive (TYPE_DATA, 200));
+
+		// Selectively acknowledging the second packet takes it out of flight
+		peer.send (TYPE_STATE, 101, (first - 1) & 0xffff, window, new byte[] { 0x01, 0, 0, 0 }, null);
+		packet = peer.receive (TYPE_DATA, 500);
+		assertNotNull (packet);
+		assertEquals ((first + 2) & 0xffff, packet.sequenceNumber);
+		assertNull (peer.receive (TYPE_DATA, 200));
+
+		// The first packet is retransmitted on timeout, but the second is not
+		packet = peer.receive (TYPE_DATA, 3000);
+		assertNotNull (packet);
+		assertEquals (first, packet.sequenceNumber);
+		peer.send (TYPE_STATE, 101, first, window, null, null);
+		packet = peer.receive (TYPE_DATA, 500);
+		assertNotNull (packet);
+		assertEquals ((first + 2) & 0xffff, packet.sequenceNumber);
+
+		peer.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that the oldest packet in flight is retransmitted at once after three duplicate
+	 * acknowledgements, without waiting for the retransmission timeout
+	 * @throws Exception
+	 */
+	@Test
+	public void testFastRetransmit() throws Exception {
+
+		LocalEnd localEnd = new LocalEnd (new byte[65536]);
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, localEnd);
+		RawPeer peer = new RawPeer (port, 7000);
+
+		RawPacket synAck = peer.connect (100, 1048576);
+		int first = synAck.sequenceNumber;
+		int duplicateAck = (first - 1) & 0xffff;
+
+		RawPacket firstPacket = peer.receive (TYPE_DATA, 5000);
+		assertEquals (first, firstPacket.sequenceNumber);
+		assertEquals ((first + 1) & 0xffff, peer.receive (TYPE_DATA, 5000).sequenceNumber);
+
+		peer.send (TYPE_STATE, 101, duplicateAck, 1048576, null, null);
+		peer.send (TYPE_STATE, 101, duplicateAck, 1048576, null, null);
+		assertNull (peer.receive (TYPE_DATA, 200));
+
+		peer.send (TYPE_STATE, 101, duplicateAck, 1048576, null, null);
+		RawPacket packet = peer.receive (TYPE_DATA, 500);
+		assertNotNull (packet);
+		assertEquals (first, packet.sequenceNumber);
+		assertArrayEquals (firstPacket.payload, packet.payload);
+		assertTrue (packet.time - firstPacket.time < 900);
+
+		peer.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that the retransmission timeout doubles with each retransmission of an unacknowledged
+	 * packet, and that the connection fails after the maximum number of retransmissions
+	 * @throws Exception
+	 */
+	@Test(timeout=120000)
+	public void testRetransmitBackoff() throws Exception {
+
+		LocalEnd localEnd = new LocalEnd (new byte[65536]);
+		ConnectionManager connectionManager = new ConnectionManager();
+		int port = connectionManager.listenUtp (InetAddress.getByName ("127.0.0.1"), 0, localEnd);
+		RawPeer peer = new RawPeer (port, 8000);
+
+		RawPacket synAck = peer.connect (100, 1048576);
+		int first = synAck.sequenceNumber;
+
+		// Acknowledge the first packet to give a round trip time sample, then nothing more
+		assertEquals (first, peer.receive (TYPE_DATA, 5000).sequenceNumber);
+		peer.send (TYPE_STATE, 101, first, 1048576, null, null);
+
+		List<Long> times = new ArrayList<Long>();
+		while (localEnd.endLatch.getCount() > 0) {
+			RawPacket packet = peer.receive (TYPE_DATA, 1000);
+			if ((packet != null) && (packet.sequenceNumber == ((first + 1) & 0xffff))) {
+				times.add (packet.time);
+			}
+		}
+		long failureTime = System.currentTimeMillis();
+		assertNotNull (localEnd.error.get());
+
+		// One transmission and six retransmissions, each after double the previous interval
+		assertEquals (7, times.size());
+		for (int i = 2; i < times.size() - 1; i++) {
+			double ratio = (times.get (i + 1) - times.get (i)) / (double) (times.get (i) - times.get (i - 1));
+			assertTrue (Arrays.toString (times.toArray()), (ratio > 1.5) && (ratio < 2.5));
+		}
+		assertTrue (failureTime - times.get (times.size() - 1) > 20000);
+
+		peer.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that an outbound connection whose acknowledgement is lost is completed by the first
+	 * data packet of the remote peer, and that data is delivered
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectAcknowledgedByData() throws Exception {
+
+		final LocalEnd localEnd = new LocalEnd (null);
+		DatagramSocket socket = new DatagramSocket (0, InetAddress.getByName ("127.0.0.1"));
+		socket.setSoTimeout (5000);
+
+		ConnectionManager clientManager = new ConnectionManager();
+		clientManager.connectUtp (InetAddress.getByName ("127.0.0.1"), socket.getLocalPort(), new OutboundConnectionListener() {
+			public void connected (Connection connection) {
+				localEnd.accepted (connection);
+			}
+			public void rejected (Connection connection) {
+				fail();
+			}
+		}, 5);
+
+		DatagramPacket datagram = new DatagramPacket (new byte[2048], 2048);
+		socket.receive (datagram);
+		ByteBuffer syn = ByteBuffer.wrap (datagram.getData(), 0, datagram.getLength());
+		assertEquals (TYPE_SYN, (syn.get (0) & 0xff) >> 4);
+
+		// The connection request's acknowledgement is lost; the first data packet carries it
+		byte[] payload = payloads (1, 1000)[0];
+		ByteBuffer buffer = ByteBuffer.allocate (20 + payload.length);
+		buffer.put ((byte) ((TYPE_DATA << 4) | 1));
+		buffer.put ((byte) 0);
+		buffer.putShort (syn.getShort (2));
+		buffer.putInt ((int) (System.nanoTime() / 1000));
+		buffer.putInt (0);
+		buffer.putInt (1048576);
+		buffer.putShort ((short) 500);
+		buffer.putShort (syn.getShort (16));
+		buffer.put (payload);
+		socket.send (new DatagramPacket (buffer.array(), buffer.capacity(), datagram.getSocketAddress()));
+
+		assertTrue (localEnd.acceptedLatch.await (5, TimeUnit.SECONDS));
+		assertTrue (localEnd.awaitReceived (payload.length));
+		assertArrayEquals (payload, localEnd.getReceived());
+
+		clientManager.close();
+		socket.close();
+
+	}
+
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.connectionmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.itadaki.bobbin.connectionmanager.Connection;
+import org.itadaki.bobbin.connectionmanager.ConnectionBackend;
+import org.itadaki.bobbin.connectionmanager.ConnectionManager;
+import org.itadaki.bobbin.connectionmanager.ConnectionReadyListener;
+import org.itadaki.bobbin.connectionmanager.InboundConnectionListener;
+import org.junit.Test;
+
+
+/**
+ * Tests a ConnectionManager that informs its listeners from a pool of worker threads
+ */
+public class TestWorkerPool {
+
+	/**
+	 * Tests that a ConnectionManager rejects a null backend
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testNullBackend() throws Exception {
+
+		new ConnectionManager (1, (ConnectionBackend) null);
+
+	}
+
+
+	/**
+	 * Tests that data is read intact, and that the reading listener is never called concurrently
+	 * @throws Exception
+	 */
+	@Test
+	public void testRead() throws Exception {
+
+		final byte[] data = new byte[1048576];
+		new Random (0).nextBytes (data);
+		final ByteBuffer received = ByteBuffer.allocate (data.length + 1);
+		final CountDownLatch endLatch = new CountDownLatch (1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicInteger callers = new AtomicInteger (0);
+		final AtomicBoolean concurrent = new AtomicBoolean (false);
+
+		final ConnectionReadyListener readListener = new ConnectionReadyListener() {
+			public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+				if (callers.incrementAndGet() > 1) {
+					concurrent.set (true);
+				}
+				try {
+					int bytesRead = connection.read (received);
+					if (bytesRead == -1) {
+						connection.close();
+						endLatch.countDown();
+					}
+				} catch (Throwable t) {
+					error.set (t);
+					endLatch.countDown();
+				}
+				callers.decrementAndGet();
+			}
+		};
+
+		ConnectionManager connectionManager = new ConnectionManager (1, ConnectionBackend.WORKER_POOL);
+		int port = connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				connection.setListener (readListener);
+			}
+		});
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		socket.getOutputStream().write (data);
+		socket.close();
+
+		assertTrue (endLatch.await (30, TimeUnit.SECONDS));
+		assertNull (error.get());
+		assertFalse (concurrent.get());
+		assertEquals (data.length, received.position());
+		received.flip();
+		byte[] receivedData = new byte[data.length];
+		received.get (receivedData);
+		assertArrayEquals (data, receivedData);
+
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that data is written intact when writing is enabled from a worker thread
+	 * @throws Exception
+	 */
+	@Test
+	public void testWrite() throws Exception {
+
+		final byte[] data = new byte[1048576];
+		new Random (0).nextBytes (data);
+		final ByteBuffer sendBuffer = ByteBuffer.wrap (data);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+		final ConnectionReadyListener writeListener = new ConnectionReadyListener() {
+			public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+				try {
+					if (writeable) {
+						connection.write (sendBuffer);
+						if (!sendBuffer.hasRemaining()) {
+							connection.setWriteEnabled (false);
+						}
+					}
+				} catch (IOException e) {
+					error.set (e);
+				}
+			}
+		};
+
+		ConnectionManager connectionManager = new ConnectionManager (1, ConnectionBackend.WORKER_POOL);
+		int port = connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				connection.setListener (writeListener);
+				connection.setWriteEnabled (true);
+			}
+		});
+
+		Socket socket = new Socket (InetAddress.getLocalHost(), port);
+		socket.setSoTimeout (30000);
+		byte[] received = new byte[data.length];
+		new DataInputStream (socket.getInputStream()).readFully (received);
+
+		assertNull (error.get());
+		assertArrayEquals (data, received);
+
+		socket.close();
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests that a listener that blocks does not stall other connections
+	 * @throws Exception
+	 */
+	@Test
+	public void testBlockedListener() throws Exception {
+
+		final CountDownLatch blockedLatch = new CountDownLatch (1);
+		final CountDownLatch releaseLatch = new CountDownLatch (1);
+		final CountDownLatch readLatch = new CountDownLatch (1);
+		final AtomicInteger acceptCount = new AtomicInteger (0);
+
+		ConnectionManager connectionManager = new ConnectionManager (1, ConnectionBackend.WORKER_POOL);
+		int port = connectionManager.listen (null, 0, new InboundConnectionListener() {
+			public void accepted (Connection connection) {
+				if (acceptCount.getAndIncrement() == 0) {
+					connection.setListener (new ConnectionReadyListener() {
+						public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+							blockedLatch.countDown();
+							try {
+								releaseLatch.await();
+							} catch (InterruptedException e) {
+								// Exit
+							}
+						}
+					});
+				} else {
+					connection.setListener (new ConnectionReadyListener() {
+						public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+							try {
+								if (connection.read (ByteBuffer.allocate (1)) > 0) {
+									readLatch.countDown();
+								}
+							} catch (IOException e) {
+								// Ignore
+							}
+						}
+					});
+				}
+			}
+		});
+
+		Socket socket1 = new Socket (InetAddress.getLocalHost(), port);
+		socket1.getOutputStream().write (1);
+		assertTrue (blockedLatch.await (5, TimeUnit.SECONDS));
+
+		Socket socket2 = new Socket (InetAddress.getLocalHost(), port);
+		socket2.getOutputStream().write (1);
+		boolean read = readLatch.await (5, TimeUnit.SECONDS);
+
+		releaseLatch.countDown();
+		assertTrue (read);
+
+		socket1.close();
+		socket2.close();
+		connectionManager.close();
+
+	}
+
+
+}
@@ -13,6 +13,7 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -91,6 +92,11 @@ public class MockConnection extends Connection {
 	 */
 	private int permittedWriteBytes = Integer.MAX_VALUE;
 
+	/**
+	 * The number of write calls made through the Connection
+	 */
+	private int writeCount = 0;
+
 	/**
 	 * If {@code true}, the connection has been closed
 	 */
@@ -106,6 +112,16 @@ public class MockConnection extends Connection {
 	 */
 	private ConnectionReadyListener listener;
 
+	/**
+	 * The most recently scheduled task, or {@code null}
+	 */
+	private Runnable scheduledTask = null;
+
+	/**
+	 * The delay in milliseconds of the most recently scheduled task
+	 */
+	private long scheduledDelay = 0;
+
 
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.connectionmanager.Connection#read(java.nio.ByteBuffer)
@@ -168,6 +184,7 @@ public class MockConnection extends Connection {
 			throw new ClosedChannelException();
 		}
 
+		this.writeCount++;
 		int writeBytesAllowed = Math.min (this.permittedWriteBytes, buffer.remaining());
 
 		ByteBuffer writeBuffer = ByteBuffer.allocate (writeBytesAllowed);
@@ -191,9 +208,7 @@ public class MockConnection extends Connection {
 	@Override
 	public long write (ByteBuffer[] buffers, int offset, int length) throws IOException {
 
-		// Not currently needed
-		fail();
-		return 0;
+		return write (Arrays.copyOfRange (buffers, offset, offset + length));
 
 	}
 
@@ -208,6 +223,7 @@ public class MockConnection extends Connection {
 			throw new ClosedChannelException();
 		}
 
+		this.writeCount++;
 		int writeBytesWanted = 0;
 		for (ByteBuffer buffer : buffers) {
 			writeBytesWanted += buffer.remaining();
@@ -308,6 +324,41 @@ public class MockConnection extends Connection {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#schedule(java.lang.Runnable, long)
+	 */
+	@Override
+	public void schedule (Runnable task, long delay) {
+
+		this.scheduledTask = task;
+		this.scheduledDelay = delay;
+
+	}
+
+
+	/**
+	 * @return The delay in milliseconds of the most recently scheduled task
+	 */
+	public long mockGetScheduledDelay() {
+
+		return this.scheduledDelay;
+
+	}
+
+
+	/**
+	 * Runs the most recently scheduled task, which is then no longer scheduled
+	 */
+	public void mockRunScheduledTask() {
+
+		Runnable task = this.scheduledTask;
+		assertNotNull (task);
+		this.scheduledTask = null;
+		task.run();
+
+	}
+
+
 	/**
 	 * @return {@code true} if writing to the connection is currently being requested
 	 */
@@ -328,6 +379,16 @@ public class MockConnection extends Connection {
 	}
 
 
+	/**
+	 * @return The number of write calls made through the Connection
+	 */
+	public int mockGetWriteCount() {
+
+		return this.writeCount;
+
+	}
+
+
 	/**
 	 * Indicates to the listener that the connection is readable and/or writeable
 	 *
@@ -464,8 +525,10 @@ public class MockConnection extends Connection {
 				System.out.printf ("%2d cancel (%s %d:%d,%d)\n", this.sequence++, resource, descriptor.getPieceNumber(), descriptor.getOffset(), descriptor.getLength());
 			}
 
-			public void bitfieldMessage (ResourceType resource, byte[] bitField) throws IOException {
-				System.out.printf ("%2d bitfield (%s %s)\n", this.sequence++, resource, CharsetUtil.hexencode (bitField));
+			public void bitfieldMessage (ResourceType resource, ByteBuffer bitField) throws IOException {
+				byte[] bitFieldBytes = new byte[bitField.remaining()];
+				bitField.duplicate().get (bitFieldBytes);
+				System.out.printf ("%2d bitfield (%s %s)\n", this.sequence++, resource, CharsetUtil.hexencode (bitFieldBytes));
 			}
 
 			public void allowedFastMessage (int pieceNumber) throws IOException {
@@ -490,7 +553,7 @@ public class MockConnection extends Connection {
 				System.out.printf ("%2d Elastic signature\n", this.sequence++);
 			}
 
-			public void elasticBitfieldMessage (byte[] bitField) throws IOException {
+			public void elasticBitfieldMessage (ByteBuffer bitField) throws IOException {
 				System.out.printf ("%2d Elastic bitfield\n", this.sequence++);
 			}
 
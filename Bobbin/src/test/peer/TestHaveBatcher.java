@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.peer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.itadaki.bobbin.peer.HaveBatcher;
+import org.itadaki.bobbin.peer.ManageablePeer;
+import org.itadaki.bobbin.util.BitField;
+import org.junit.Test;
+
+
+/**
+ * Tests HaveBatcher
+ */
+public class TestHaveBatcher {
+
+	/**
+	 * @param remoteBitField The peer's remote bitfield
+	 * @return A mock peer with the given remote bitfield
+	 */
+	private static ManageablePeer peer (BitField remoteBitField) {
+
+		ManageablePeer peer = mock (ManageablePeer.class);
+		when(peer.getRemoteBitField()).thenReturn (remoteBitField);
+
+		return peer;
+
+	}
+
+
+	/**
+	 * Tests that add() reports the start of each batch
+	 */
+	@Test
+	public void testAdd() {
+
+		HaveBatcher batcher = new HaveBatcher();
+
+		assertTrue (batcher.isEmpty());
+		assertTrue (batcher.add (1));
+		assertFalse (batcher.add (2));
+		assertFalse (batcher.isEmpty());
+
+		batcher.flush (Arrays.<ManageablePeer>asList());
+
+		assertTrue (batcher.isEmpty());
+		assertTrue (batcher.add (3));
+
+	}
+
+
+	/**
+	 * Tests that a batch is sent to each peer in a single call
+	 */
+	@Test
+	public void testFlush() {
+
+		HaveBatcher batcher = new HaveBatcher();
+		ManageablePeer peer1 = peer (new BitField (4));
+		ManageablePeer peer2 = peer (new BitField (4));
+
+		batcher.add (3);
+		batcher.add (1);
+		batcher.flush (Arrays.asList (peer1, peer2));
+
+		verify(peer1).sendHavePieces (Arrays.asList (3, 1));
+		verify(peer2).sendHavePieces (Arrays.asList (3, 1));
+		verify(peer1, never()).sendHavePiece (anyInt());
+
+	}
+
+
+	/**
+	 * Tests that peers are not sent pieces they already have
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFlushSkipsPresentPieces() {
+
+		HaveBatcher batcher = new HaveBatcher();
+		BitField partialBitField = new BitField (4);
+		partialBitField.set (1);
+		BitField fullBitField = new BitField (4).not();
+		ManageablePeer partialPeer = peer (partialBitField);
+		ManageablePeer fullPeer = peer (fullBitField);
+
+		batcher.add (1);
+		batcher.add (2);
+		batcher.flush (Arrays.asList (partialPeer, fullPeer));
+
+		verify(partialPeer).sendHavePieces (Arrays.asList (2));
+		verify(fullPeer, never()).sendHavePieces (any (List.class));
+
+	}
+
+
+	/**
+	 * Tests that pieces beyond a peer's known view are announced
+	 */
+	@Test
+	public void testFlushBeyondRemoteView() {
+
+		HaveBatcher batcher = new HaveBatcher();
+		ManageablePeer peer = peer (new BitField (2).not());
+
+		batcher.add (3);
+		batcher.flush (Arrays.asList (peer));
+
+		verify(peer).sendHavePieces (Arrays.asList (3));
+
+	}
+
+
+	/**
+	 * Tests an invalid window
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidWindow() {
+
+		new HaveBatcher().setWindow (-1);
+
+	}
+
+
+}
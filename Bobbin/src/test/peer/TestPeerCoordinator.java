@@ -23,6 +23,7 @@ import org.itadaki.bobbin.connectionmanager.Connection;
 import org.itadaki.bobbin.connectionmanager.ConnectionManager;
 import org.itadaki.bobbin.peer.PeerCoordinator;
 import org.itadaki.bobbin.peer.PeerID;
+import org.itadaki.bobbin.peer.chokingmanager.DefaultChokingManager;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolBuilder;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolConstants;
 import org.itadaki.bobbin.torrentdb.BlockDescriptor;
@@ -559,6 +560,191 @@ public class TestPeerCoordinator {
 	}
 
 
+	/**
+	 * Tests setRequestDepthBounds
+	 * @throws Exception
+	 */
+	@Test
+	public void testSetRequestDepthBounds() throws Exception {
+
+		// Given
+		PeerID localPeerID = new PeerID();
+		ConnectionManager connectionManager = new ConnectionManager();
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("1", 16384);
+		pieceDatabase.start (true);
+		PeerCoordinator peerCoordinator = new PeerCoordinator (localPeerID, connectionManager, pieceDatabase);
+
+		// When
+		peerCoordinator.setRequestDepthBounds (3, 7);
+
+		// Then
+		assertEquals (3, peerCoordinator.getMinimumRequestDepth());
+		assertEquals (7, peerCoordinator.getMaximumRequestDepth());
+
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests setRequestDepthBounds with a minimum greater than the maximum
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testSetRequestDepthBoundsInvalid() throws Exception {
+
+		// Given
+		PeerID localPeerID = new PeerID();
+		ConnectionManager connectionManager = new ConnectionManager();
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("1", 16384);
+		pieceDatabase.start (true);
+		PeerCoordinator peerCoordinator = new PeerCoordinator (localPeerID, connectionManager, pieceDatabase);
+
+		// When
+		try {
+			peerCoordinator.setRequestDepthBounds (7, 3);
+		} finally {
+			pieceDatabase.terminate (true);
+		}
+
+		// Then
+		// ... exception
+
+	}
+
+
+	/**
+	 * Tests setSendBatchLength
+	 * @throws Exception
+	 */
+	@Test
+	public void testSetSendBatchLength() throws Exception {
+
+		// Given
+		PeerID localPeerID = new PeerID();
+		ConnectionManager connectionManager = new ConnectionManager();
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("1", 16384);
+		pieceDatabase.start (true);
+		PeerCoordinator peerCoordinator = new PeerCoordinator (localPeerID, connectionManager, pieceDatabase);
+
+		// When
+		peerCoordinator.setSendBatchLength (4096);
+
+		// Then
+		assertEquals (4096, peerCoordinator.getSendBatchLength());
+
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests setSendBatchLength with a length of zero
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testSetSendBatchLengthInvalid() throws Exception {
+
+		// Given
+		PeerID localPeerID = new PeerID();
+		ConnectionManager connectionManager = new ConnectionManager();
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("1", 16384);
+		pieceDatabase.start (true);
+		PeerCoordinator peerCoordinator = new PeerCoordinator (localPeerID, connectionManager, pieceDatabase);
+
+		// When
+		try {
+			peerCoordinator.setSendBatchLength (0);
+		} finally {
+			pieceDatabase.terminate (true);
+		}
+
+		// Then
+		// ... exception
+
+	}
+
+
+	/**
+	 * Tests setUploadSlots recalculating the inbound request limit and advertising it to
+	 * connected peers
+	 * @throws Exception
+	 */
+	@Test
+	public void testSetUploadSlots() throws Exception {
+
+		// Given
+		PeerID localPeerID = new PeerID();
+		ConnectionManager connectionManager = new ConnectionManager();
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("1", 16384);
+		pieceDatabase.start (true);
+		BitField wantedPieces = pieceDatabase.getPresentPieces().not();
+		PeerCoordinator peerCoordinator = new PeerCoordinator (localPeerID, connectionManager, pieceDatabase);
+		peerCoordinator.setWantedPieces (wantedPieces);
+		peerCoordinator.start();
+		MockConnection connection = new MockConnection();
+		peerCoordinator.peerConnectionComplete (connection, new PeerID(), false, true);
+
+		// When
+		peerCoordinator.setUploadSlots (DefaultChokingManager.UPLOAD_SLOTS * 2);
+		connection.mockTriggerIO (false, true);
+
+		// Then
+		int initialLimit = PeerProtocolConstants.INBOUND_REQUEST_BUFFER_LENGTH / (DefaultChokingManager.UPLOAD_SLOTS * PeerProtocolConstants.BLOCK_LENGTH);
+		assertEquals (DefaultChokingManager.UPLOAD_SLOTS * 2, peerCoordinator.getUploadSlots());
+		assertEquals (initialLimit / 2, peerCoordinator.getInboundRequestLimit());
+
+		Map<String,Integer> expectedExtensions = new HashMap<String,Integer>();
+		expectedExtensions.put (PeerProtocolConstants.EXTENSION_PEER_METADATA, (int)PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_PEER_METADATA);
+		BDictionary extra = new BDictionary();
+		extra.put ("metadata_size", BEncoder.encode (pieceDatabase.getInfo().getDictionary()).length);
+		BDictionary extra2 = new BDictionary();
+		extra2.put ("reqq", initialLimit);
+		BDictionary extra3 = new BDictionary();
+		extra3.put ("reqq", initialLimit / 2);
+		connection.mockExpectOutput (PeerProtocolBuilder.bitfieldMessage (pieceDatabase.getPresentPieces()));
+		connection.mockExpectOutput (PeerProtocolBuilder.extensionHandshakeMessage (expectedExtensions, extra));
+		connection.mockExpectOutput (PeerProtocolBuilder.extensionHandshakeMessage (new HashMap<String,Integer>(), extra2));
+		connection.mockExpectOutput (PeerProtocolBuilder.extensionHandshakeMessage (new HashMap<String,Integer>(), extra3));
+		connection.mockExpectNoMoreOutput();
+
+
+		peerCoordinator.terminate();
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests setUploadSlots with an invalid value
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testSetUploadSlotsInvalid() throws Exception {
+
+		// Given
+		PeerID localPeerID = new PeerID();
+		ConnectionManager connectionManager = new ConnectionManager();
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("1", 16384);
+		pieceDatabase.start (true);
+		PeerCoordinator peerCoordinator = new PeerCoordinator (localPeerID, connectionManager, pieceDatabase);
+		peerCoordinator.start();
+
+		// When
+		try {
+			peerCoordinator.setUploadSlots (0);
+		} finally {
+			peerCoordinator.terminate();
+			pieceDatabase.terminate (true);
+		}
+
+		// Then
+		// ... exception
+	}
+
+
 	/**
 	 * Tests setWantedPeers
 	 * @throws Exception
@@ -919,7 +1105,7 @@ public class TestPeerCoordinator {
 
 		// Then
 		BDictionary extra2 = new BDictionary();
-		extra2.put ("reqq", 250);
+		extra2.put ("reqq", PeerProtocolConstants.INBOUND_REQUEST_BUFFER_LENGTH / (DefaultChokingManager.UPLOAD_SLOTS * PeerProtocolConstants.BLOCK_LENGTH));
 		assertEquals (totalLength, pieceDatabase.getPiecesetDescriptor().getLength());
 		assertEquals (2, peerCoordinator.getWantedPieces().cardinality());
 		connection.mockExpectOutput (PeerProtocolBuilder.haveNoneMessage());
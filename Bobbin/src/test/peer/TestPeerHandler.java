@@ -185,6 +185,41 @@ public class TestPeerHandler {
 	}
 
 
+	/**
+	 * Tests that the request depth bounds limit the requests allocated to the remote peer
+	 * @throws Exception 
+	 */
+	@Test
+	public void testRequestDepthBounds() throws Exception {
+
+		// Given
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0", 16384);
+		pieceDatabase.start (true);
+		BitField wantedPieces = pieceDatabase.getPresentPieces().not();
+		PeerServices peerServices = mock (PeerServices.class);
+		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, mock (RequestManager.class), null);
+		when(peerSetContext.requestManager.piecesAvailable (any (ManageablePeer.class))).thenReturn (true);
+		when(peerSetContext.requestManager.allocateRequests (any (ManageablePeer.class), anyInt(), eq (false)))
+				.thenReturn (new ArrayList<BlockDescriptor>());
+
+		MockConnection mockConnection = new MockConnection();
+		PeerHandler handler = new PeerHandler (peerSetContext, mockConnection, null, new PeerStatistics(), false, false);
+
+		// When
+		handler.setRequestDepthBounds (1, 3);
+		mockConnection.mockInput (PeerProtocolBuilder.bitfieldMessage (wantedPieces));
+		mockConnection.mockInput (PeerProtocolBuilder.unchokeMessage());
+		handler.connectionReady (mockConnection, true, true);
+
+		// Then
+		verify (peerSetContext.requestManager).allocateRequests (handler, 3, false);
+
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
 	/**
 	 * Test getBlockBytesReceived()
 	 * @throws Exception 
@@ -596,6 +631,37 @@ public class TestPeerHandler {
 	}
 
 
+	/**
+	 * Test sendHavePieces
+	 * @throws Exception 
+	 */
+	@Test
+	public void testSendHavePieces() throws Exception {
+
+		// Given
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("000", 16384);
+		pieceDatabase.start (true);
+		PeerServices peerServices = mock (PeerServices.class);
+		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, mock (RequestManager.class), null);
+		MockConnection mockConnection = new MockConnection();
+		PeerHandler handler = new PeerHandler (peerSetContext, mockConnection, null, new PeerStatistics(), false, false);
+
+		// When
+		handler.sendHavePieces (Arrays.asList (0, 2));
+		handler.connectionReady (mockConnection, true, true);
+
+		// Then
+		mockConnection.mockExpectOutput (PeerProtocolBuilder.haveMessage (0));
+		mockConnection.mockExpectOutput (PeerProtocolBuilder.haveMessage (2));
+		mockConnection.mockExpectNoMoreOutput();
+		assertEquals (1, mockConnection.mockGetWriteCount());
+
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
 	/**
 	 * Test getRemoteBitField
 	 * @throws Exception 
@@ -1493,6 +1559,43 @@ public class TestPeerHandler {
 	}
 
 
+	/**
+	 * Test that a deferred base protocol handshake is written together with the initial messages
+	 * @throws Exception
+	 */
+	@Test
+	public void testPipelinedHandshake() throws Exception {
+
+		// Given
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("1", 16384);
+		pieceDatabase.start (true);
+		Map<String,Integer> extensions = new HashMap<String,Integer>();
+		extensions.put (PeerProtocolConstants.EXTENSION_PEER_METADATA, (int)PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_PEER_METADATA);
+		BDictionary extra = new BDictionary();
+		extra.put ("metadata_size", BEncoder.encode (pieceDatabase.getInfo().getDictionary()).length);
+		PeerServices peerServices = mock (PeerServices.class);
+		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, mock (RequestManager.class), mock (ExtensionManager.class));
+		when(peerSetContext.extensionManager.getInboundRequestLimit()).thenReturn (PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS);
+		MockConnection mockConnection = new MockConnection();
+		ByteBuffer handshake = PeerProtocolBuilder.handshake (true, true, pieceDatabase.getInfo().getHash(), new PeerID());
+		PeerHandler handler = new PeerHandler (peerSetContext, mockConnection, new PeerID(), new PeerStatistics(), true, true, handshake.duplicate());
+
+		// When
+		handler.connectionReady (mockConnection, false, true);
+
+		// Then
+		mockConnection.mockExpectOutput (handshake);
+		mockConnection.mockExpectOutput (PeerProtocolBuilder.haveAllMessage());
+		mockConnection.mockExpectOutput (PeerProtocolBuilder.extensionHandshakeMessage (extensions, extra));
+		mockConnection.mockExpectNoMoreOutput();
+		assertEquals (1, mockConnection.mockGetWriteCount());
+
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
 	/**
 	 * Test that the extension protocol handshake is negotiated correctly
 	 * @throws Exception
@@ -1510,6 +1613,7 @@ public class TestPeerHandler {
 		BitField wantedPieces = pieceDatabase.getPresentPieces().not();
 		PeerServices peerServices = mock (PeerServices.class);
 		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, mock (RequestManager.class), mock (ExtensionManager.class));
+		when(peerSetContext.extensionManager.getInboundRequestLimit()).thenReturn (PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS);
 		when(peerSetContext.requestManager.piecesAvailable (any (ManageablePeer.class))).thenReturn (false);
 		MockConnection mockConnection = new MockConnection();
 		PeerHandler handler = new PeerHandler (peerSetContext, mockConnection, new PeerID(), new PeerStatistics(), false, true);
@@ -1529,6 +1633,51 @@ public class TestPeerHandler {
 	}
 
 
+	/**
+	 * Tests that Peer Metadata requests are answered from the encoded info dictionary
+	 * @throws Exception
+	 */
+	@Test
+	public void testPeerMetadataRequest() throws Exception {
+
+		// Given
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0", 16384);
+		pieceDatabase.start (true);
+		byte[] infoBytes = BEncoder.encode (pieceDatabase.getInfo().getDictionary());
+		Map<String,Integer> extensions = new HashMap<String,Integer>();
+		extensions.put (PeerProtocolConstants.EXTENSION_PEER_METADATA, (int)PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_PEER_METADATA);
+		BDictionary extra = new BDictionary();
+		extra.put ("metadata_size", infoBytes.length);
+		Map<String,Integer> remoteExtensions = new HashMap<String,Integer>();
+		remoteExtensions.put (PeerProtocolConstants.EXTENSION_PEER_METADATA, 3);
+		BitField wantedPieces = pieceDatabase.getPresentPieces().not();
+		PeerServices peerServices = mock (PeerServices.class);
+		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, mock (RequestManager.class), mock (ExtensionManager.class));
+		when(peerSetContext.extensionManager.getInboundRequestLimit()).thenReturn (PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS);
+		when(peerSetContext.requestManager.piecesAvailable (any (ManageablePeer.class))).thenReturn (false);
+		MockConnection mockConnection = new MockConnection();
+		PeerHandler handler = new PeerHandler (peerSetContext, mockConnection, new PeerID(), new PeerStatistics(), false, true);
+
+		// When
+		mockConnection.mockInput (PeerProtocolBuilder.bitfieldMessage (wantedPieces));
+		mockConnection.mockInput (PeerProtocolBuilder.extensionHandshakeMessage (remoteExtensions, null));
+		mockConnection.mockInput (PeerProtocolBuilder.peerMetadataRequestMessage (PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_PEER_METADATA, 0));
+		mockConnection.mockInput (PeerProtocolBuilder.peerMetadataRequestMessage (PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_PEER_METADATA, 1));
+		handler.connectionReady (mockConnection, true, true);
+
+		// Then
+		mockConnection.mockExpectOutput (PeerProtocolBuilder.extensionHandshakeMessage (extensions, extra));
+		mockConnection.mockExpectOutput (PeerProtocolBuilder.peerMetadataDataMessage (3, 0, infoBytes.length, ByteBuffer.wrap (infoBytes)));
+		mockConnection.mockExpectOutput (PeerProtocolBuilder.peerMetadataRejectMessage (3, 1));
+		mockConnection.mockExpectNoMoreOutput();
+		assertTrue (mockConnection.isOpen());
+
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
 	/**
 	 * Tests behaviour during negotiation of an extension
 	 * @throws Exception
@@ -1549,6 +1698,7 @@ public class TestPeerHandler {
 		BitField wantedPieces = pieceDatabase.getPresentPieces().not();
 		PeerServices peerServices = mock (PeerServices.class);
 		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, mock (RequestManager.class), mock (ExtensionManager.class));
+		when(peerSetContext.extensionManager.getInboundRequestLimit()).thenReturn (PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS);
 		when(peerSetContext.requestManager.piecesAvailable (any (ManageablePeer.class))).thenReturn (false);
 		MockConnection mockConnection = new MockConnection();
 		PeerHandler handler = new PeerHandler (peerSetContext, mockConnection, new PeerID(), new PeerStatistics(), false, true);
@@ -1602,6 +1752,7 @@ public class TestPeerHandler {
 		BitField wantedPieces = pieceDatabase.getPresentPieces().not();
 		PeerServices peerServices = mock (PeerServices.class);
 		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, mock (RequestManager.class), mock (ExtensionManager.class));
+		when(peerSetContext.extensionManager.getInboundRequestLimit()).thenReturn (PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS);
 		when(peerSetContext.requestManager.piecesAvailable (any (ManageablePeer.class))).thenReturn (false);
 		MockConnection mockConnection = new MockConnection();
 		PeerHandler handler = new PeerHandler (peerSetContext, mockConnection, new PeerID(), new PeerStatistics(), true, true);
@@ -1673,6 +1824,7 @@ public class TestPeerHandler {
 		final BlockDescriptor requestDescriptor = new BlockDescriptor (0, 0, 16384);
 		PeerServices peerServices = mock (PeerServices.class);
 		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, mock (RequestManager.class), mock (ExtensionManager.class));
+		when(peerSetContext.extensionManager.getInboundRequestLimit()).thenReturn (PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS);
 		when(peerSetContext.requestManager.piecesAvailable (any (ManageablePeer.class))).thenReturn (true);
 		when(peerSetContext.requestManager.allocateRequests (any (ManageablePeer.class), anyInt(), eq (true))).thenReturn (new ArrayList<BlockDescriptor>());
 		when(peerSetContext.requestManager.allocateRequests (any (ManageablePeer.class), anyInt(), eq (false)))
@@ -1751,6 +1903,7 @@ public class TestPeerHandler {
 		extra.put ("metadata_size", BEncoder.encode (pieceDatabase.getInfo().getDictionary()).length);
 		PeerServices peerServices = mock (PeerServices.class);
 		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, mock (RequestManager.class), mock (ExtensionManager.class));
+		when(peerSetContext.extensionManager.getInboundRequestLimit()).thenReturn (PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS);
 		when(peerSetContext.requestManager.piecesAvailable (any (ManageablePeer.class))).thenReturn (true);
 		when(peerSetContext.requestManager.allocateRequests (any (ManageablePeer.class), anyInt(), anyBoolean())).thenReturn (new ArrayList<BlockDescriptor>());
 		MockConnection mockConnection = new MockConnection();
@@ -1811,6 +1964,7 @@ public class TestPeerHandler {
 		extra.put ("metadata_size", BEncoder.encode (pieceDatabase.getInfo().getDictionary()).length);
 		PeerServices peerServices = mock (PeerServices.class);
 		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, mock (RequestManager.class), mock (ExtensionManager.class));
+		when(peerSetContext.extensionManager.getInboundRequestLimit()).thenReturn (PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS);
 		when(peerSetContext.requestManager.piecesAvailable (any (ManageablePeer.class))).thenReturn (true);
 		when(peerSetContext.requestManager.allocateRequests (any (ManageablePeer.class), anyInt(), anyBoolean())).thenReturn (new ArrayList<BlockDescriptor>());
 		// Extend the database. The info hash will not change
@@ -1886,6 +2040,7 @@ public class TestPeerHandler {
 		extra.put ("metadata_size", BEncoder.encode (pieceDatabase.getInfo().getDictionary()).length);
 		PeerServices peerServices = mock (PeerServices.class);
 		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, mock (RequestManager.class), mock (ExtensionManager.class));
+		when(peerSetContext.extensionManager.getInboundRequestLimit()).thenReturn (PeerProtocolConstants.MAXIMUM_INBOUND_REQUESTS);
 		when(peerSetContext.requestManager.piecesAvailable (any (ManageablePeer.class))).thenReturn (false);
 		when(peerSetContext.requestManager.allocateRequests (any (ManageablePeer.class), anyInt(), anyBoolean())).thenReturn (new ArrayList<BlockDescriptor>());
 		MockConnection mockConnection = new MockConnection();
@@ -1972,4 +2127,49 @@ public class TestPeerHandler {
 	}
 
 
+	/**
+	 * Test that a keepalive is scheduled on the connection and sent when due
+	 * @throws Exception 
+	 */
+	@Test
+	public void testKeepalive() throws Exception {
+
+		// Given
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0", 16384);
+		pieceDatabase.start (true);
+		PeerServices peerServices = mock (PeerServices.class);
+		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, null, null);
+		MockConnection mockConnection = new MockConnection();
+		PeerHandler handler = new PeerHandler (peerSetContext, mockConnection, new PeerID(), new PeerStatistics(), false, false);
+
+		// Then
+		assertEquals (PeerProtocolConstants.KEEPALIVE_INTERVAL * 1000L, mockConnection.mockGetScheduledDelay());
+
+		// When
+		// Nothing has yet been sent
+		mockConnection.mockRunScheduledTask();
+		handler.connectionReady (mockConnection, false, true);
+
+		// Then
+		mockConnection.mockExpectOutput (PeerProtocolBuilder.keepaliveMessage());
+		mockConnection.mockExpectNoMoreOutput();
+		assertTrue (mockConnection.isOpen());
+		verify (peerServices, never()).peerDisconnected (handler);
+
+		// When
+		mockConnection.mockRunScheduledTask();
+		handler.connectionReady (mockConnection, false, true);
+
+		// Then
+		// The keepalive was just sent, so the next is not yet due
+		mockConnection.mockExpectNoMoreOutput();
+		assertTrue (mockConnection.mockGetScheduledDelay() > (PeerProtocolConstants.KEEPALIVE_INTERVAL - 10) * 1000L);
+		assertTrue (mockConnection.mockGetScheduledDelay() <= PeerProtocolConstants.KEEPALIVE_INTERVAL * 1000L + 1);
+
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
 }
@@ -7,11 +7,14 @@ package test.peer;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
+import org.itadaki.bobbin.bencode.BDictionary;
 import org.itadaki.bobbin.peer.PeerOutboundQueue;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolBuilder;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolConstants;
@@ -681,6 +684,45 @@ public class TestPeerOutboundQueue {
 	}
 
 
+	/**
+	 * Tests that an adjusted queue limit is applied to inbound requests
+	 * @throws Exception 
+	 */
+	@Test
+	public void testPieceQueueLimitAdjusted() throws Exception {
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("11", 65536);
+		pieceDatabase.start (true);
+		BlockDescriptor descriptor = new BlockDescriptor (1, 32768, 16384);
+
+		MockConnection connection = new MockConnection();
+
+		StatisticCounter sentBlockCounter = new StatisticCounter();
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (connection, pieceDatabase, sentBlockCounter);
+		peerOutboundQueue.setInboundRequestLimit (3);
+
+		for (int i = 0; i < 5; i++) {
+			peerOutboundQueue.sendPieceMessage (descriptor);
+		}
+
+		assertEquals (3, peerOutboundQueue.getUnsentPieceCount());
+		assertEquals (3, peerOutboundQueue.getInboundRequestLimit());
+
+	}
+
+
+	/**
+	 * Tests that an invalid inbound request limit is rejected
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testPieceQueueLimitInvalid() {
+
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (new MockConnection(), null, new StatisticCounter());
+		peerOutboundQueue.setInboundRequestLimit (0);
+
+	}
+
+
 	/**
 	 * Tests that a request is tracked once only
 	 * @throws IOException
@@ -1018,18 +1060,18 @@ public class TestPeerOutboundQueue {
 		assertFalse (connection.mockIsWriteEnabled());
 
 
-		assertEquals (PeerProtocolConstants.MAXIMUM_OUTBOUND_REQUESTS, peerOutboundQueue.getRequestsNeeded());
+		assertEquals (PeerProtocolConstants.INITIAL_OUTBOUND_REQUESTS, peerOutboundQueue.getRequestsNeeded());
 
 		peerOutboundQueue.sendRequestMessage (descriptor);
 
 		connection.mockExpectNoMoreOutput();
-		assertEquals (PeerProtocolConstants.MAXIMUM_OUTBOUND_REQUESTS - 1, peerOutboundQueue.getRequestsNeeded());
+		assertEquals (PeerProtocolConstants.INITIAL_OUTBOUND_REQUESTS - 1, peerOutboundQueue.getRequestsNeeded());
 
 		peerOutboundQueue.sendData();
 
 		connection.mockExpectOutput (PeerProtocolBuilder.requestMessage (descriptor));
 		connection.mockExpectNoMoreOutput();
-		assertEquals (PeerProtocolConstants.MAXIMUM_OUTBOUND_REQUESTS - 1, peerOutboundQueue.getRequestsNeeded());
+		assertEquals (PeerProtocolConstants.INITIAL_OUTBOUND_REQUESTS - 1, peerOutboundQueue.getRequestsNeeded());
 
 	}
 
@@ -1053,22 +1095,98 @@ public class TestPeerOutboundQueue {
 		assertFalse (connection.mockIsWriteEnabled());
 
 
-		assertEquals (PeerProtocolConstants.MAXIMUM_OUTBOUND_REQUESTS, peerOutboundQueue.getRequestsNeeded());
+		assertEquals (PeerProtocolConstants.INITIAL_OUTBOUND_REQUESTS, peerOutboundQueue.getRequestsNeeded());
 
 		peerOutboundQueue.sendRequestMessage (descriptor);
 
 		connection.mockExpectNoMoreOutput();
-		assertEquals (PeerProtocolConstants.MAXIMUM_OUTBOUND_REQUESTS - 1, peerOutboundQueue.getRequestsNeeded());
+		assertEquals (PeerProtocolConstants.INITIAL_OUTBOUND_REQUESTS - 1, peerOutboundQueue.getRequestsNeeded());
 
 		peerOutboundQueue.sendData();
 
 		connection.mockExpectOutput (PeerProtocolBuilder.requestMessage (descriptor));
 		connection.mockExpectNoMoreOutput();
-		assertEquals (PeerProtocolConstants.MAXIMUM_OUTBOUND_REQUESTS - 1, peerOutboundQueue.getRequestsNeeded());
+		assertEquals (PeerProtocolConstants.INITIAL_OUTBOUND_REQUESTS - 1, peerOutboundQueue.getRequestsNeeded());
 
 		peerOutboundQueue.requestReceived (descriptor);
 
-		assertEquals (PeerProtocolConstants.MAXIMUM_OUTBOUND_REQUESTS, peerOutboundQueue.getRequestsNeeded());
+		assertEquals (PeerProtocolConstants.INITIAL_OUTBOUND_REQUESTS, peerOutboundQueue.getRequestsNeeded());
+
+	}
+
+
+	/**
+	 * Tests that the remote peer's advertised request queue length limits getRequestsNeeded()
+	 * @throws IOException
+	 */
+	@Test
+	public void testRequestsNeededRemoteLimit() throws IOException {
+
+		BlockDescriptor descriptor = new BlockDescriptor (1, 32768, 16384);
+
+		MockConnection connection = new MockConnection();
+
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (connection, null, new StatisticCounter());
+		peerOutboundQueue.setRequestsPlugged (false);
+
+		BDictionary extra = new BDictionary();
+		extra.put ("reqq", 5);
+		peerOutboundQueue.updateExtensionMapping (new HashMap<String,Integer>(), null, extra);
+
+		assertEquals (5, peerOutboundQueue.getRequestDepth());
+		assertEquals (5, peerOutboundQueue.getRequestsNeeded());
+
+		peerOutboundQueue.sendRequestMessage (descriptor);
+		peerOutboundQueue.sendData();
+
+		assertEquals (4, peerOutboundQueue.getRequestsNeeded());
+
+		// A later handshake without a queue length leaves the limit in place
+		peerOutboundQueue.updateExtensionMapping (new HashMap<String,Integer>(), null, new BDictionary());
+
+		assertEquals (4, peerOutboundQueue.getRequestsNeeded());
+
+	}
+
+
+	/**
+	 * Tests that an invalid remote request queue length is ignored
+	 */
+	@Test
+	public void testRequestsNeededRemoteLimitInvalid() {
+
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (new MockConnection(), null, new StatisticCounter());
+
+		BDictionary extra = new BDictionary();
+		extra.put ("reqq", 0);
+		peerOutboundQueue.updateExtensionMapping (null, null, extra);
+		extra.put ("reqq", "Not a number");
+		peerOutboundQueue.updateExtensionMapping (null, null, extra);
+
+		assertEquals (PeerProtocolConstants.INITIAL_OUTBOUND_REQUESTS, peerOutboundQueue.getRequestsNeeded());
+
+	}
+
+
+	/**
+	 * Tests that a remote request queue length too large for an int is clamped rather than
+	 * truncated
+	 */
+	@Test
+	public void testRequestsNeededRemoteLimitHuge() {
+
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (new MockConnection(), null, new StatisticCounter());
+
+		BDictionary extra = new BDictionary();
+		extra.put ("reqq", BigInteger.ONE.shiftLeft(64).add (BigInteger.valueOf (5)));
+		peerOutboundQueue.updateExtensionMapping (null, null, extra);
+
+		assertEquals (PeerProtocolConstants.INITIAL_OUTBOUND_REQUESTS, peerOutboundQueue.getRequestsNeeded());
+
+		extra.put ("reqq", BigInteger.ONE.shiftLeft(64).negate().add (BigInteger.valueOf (5)));
+		peerOutboundQueue.updateExtensionMapping (null, null, extra);
+
+		assertEquals (PeerProtocolConstants.INITIAL_OUTBOUND_REQUESTS, peerOutboundQueue.getRequestsNeeded());
 
 	}
 
@@ -1365,4 +1483,170 @@ public class TestPeerOutboundQueue {
 
 	}
 
+	/**
+	 * Tests that queued control messages are gathered into a single write in order of importance
+	 * @throws IOException
+	 */
+	@Test
+	public void testBatchedControlMessages() throws IOException {
+
+		MockConnection connection = new MockConnection();
+
+		PieceDatabase pieceDatabase = null;
+		StatisticCounter sentBlockCounter = new StatisticCounter();
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (connection, pieceDatabase, sentBlockCounter);
+		peerOutboundQueue.setRequestsPlugged (false);
+
+		BlockDescriptor cancelledDescriptor = new BlockDescriptor (0, 0, 16384);
+		peerOutboundQueue.sendRequestMessage (cancelledDescriptor);
+		peerOutboundQueue.sendData();
+		connection.mockExpectOutput (PeerProtocolBuilder.requestMessage (cancelledDescriptor));
+
+		for (int i = 0; i < 10; i++) {
+			peerOutboundQueue.sendHaveMessage (i);
+		}
+		for (int i = 1; i <= 30; i++) {
+			peerOutboundQueue.sendRequestMessage (new BlockDescriptor (i, 0, 16384));
+		}
+		peerOutboundQueue.sendCancelMessage (cancelledDescriptor, false);
+		peerOutboundQueue.sendInterestedMessage (true);
+		peerOutboundQueue.sendData();
+
+		assertEquals (2, connection.mockGetWriteCount());
+		connection.mockExpectOutput (PeerProtocolBuilder.interestedMessage());
+		connection.mockExpectOutput (PeerProtocolBuilder.cancelMessage (cancelledDescriptor));
+		for (int i = 1; i <= 30; i++) {
+			connection.mockExpectOutput (PeerProtocolBuilder.requestMessage (new BlockDescriptor (i, 0, 16384)));
+		}
+		for (int i = 0; i < 10; i++) {
+			connection.mockExpectOutput (PeerProtocolBuilder.haveMessage (i));
+		}
+		connection.mockExpectNoMoreOutput();
+		assertFalse (connection.mockIsWriteEnabled());
+
+	}
+
+
+	/**
+	 * Tests that batches are limited to the send batch length
+	 * @throws IOException
+	 */
+	@Test
+	public void testBatchLength() throws IOException {
+
+		MockConnection connection = new MockConnection();
+
+		PieceDatabase pieceDatabase = null;
+		StatisticCounter sentBlockCounter = new StatisticCounter();
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (connection, pieceDatabase, sentBlockCounter);
+		peerOutboundQueue.setSendBatchLength (27);
+
+		for (int i = 0; i < 10; i++) {
+			peerOutboundQueue.sendHaveMessage (i);
+		}
+		peerOutboundQueue.sendData();
+
+		// 9 byte have messages; each batch is filled to at least 27 bytes
+		assertEquals (4, connection.mockGetWriteCount());
+		for (int i = 0; i < 10; i++) {
+			connection.mockExpectOutput (PeerProtocolBuilder.haveMessage (i));
+		}
+		connection.mockExpectNoMoreOutput();
+
+	}
+
+
+	/**
+	 * Tests that the unwritten part of a partially written batch is completed in order
+	 * @throws IOException
+	 */
+	@Test
+	public void testBatchPartialWrite() throws IOException {
+
+		MockConnection connection = new MockConnection();
+
+		PieceDatabase pieceDatabase = null;
+		StatisticCounter sentBlockCounter = new StatisticCounter();
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (connection, pieceDatabase, sentBlockCounter);
+
+		for (int i = 0; i < 10; i++) {
+			peerOutboundQueue.sendHaveMessage (i);
+		}
+		connection.mockSetPermittedWriteBytes (40);
+		assertEquals (40, peerOutboundQueue.sendData());
+		assertTrue (connection.mockIsWriteEnabled());
+
+		peerOutboundQueue.sendHaveMessage (10);
+		peerOutboundQueue.sendInterestedMessage (true);
+		connection.mockSetPermittedWriteBytes (Integer.MAX_VALUE);
+		assertEquals (64, peerOutboundQueue.sendData());
+
+		for (int i = 0; i < 10; i++) {
+			connection.mockExpectOutput (PeerProtocolBuilder.haveMessage (i));
+		}
+		connection.mockExpectOutput (PeerProtocolBuilder.interestedMessage());
+		connection.mockExpectOutput (PeerProtocolBuilder.haveMessage (10));
+		connection.mockExpectNoMoreOutput();
+		assertFalse (connection.mockIsWriteEnabled());
+
+	}
+
+
+	/**
+	 * Tests an invalid send batch length
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testBatchLengthInvalid() {
+
+		new PeerOutboundQueue (new MockConnection(), null, new StatisticCounter()).setSendBatchLength (0);
+
+	}
+
+
+	/**
+	 * Tests that have, interested and not interested messages are sent without allocation once
+	 * the queue has warmed up
+	 * @throws IOException
+	 */
+	@Test
+	public void testFixedLengthMessagesAllocationFree() throws IOException {
+
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadID = Thread.currentThread().getId();
+
+		// A connection that accepts and discards all data without allocation
+		MockConnection connection = new MockConnection() {
+			@Override
+			public long write (ByteBuffer[] buffers, int offset, int length) throws IOException {
+				long bytesWritten = 0;
+				for (int i = offset; i < offset + length; i++) {
+					bytesWritten += buffers[i].remaining();
+					buffers[i].position (buffers[i].limit());
+				}
+				return bytesWritten;
+			}
+		};
+
+		StatisticCounter sentBlockCounter = new StatisticCounter();
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (connection, null, sentBlockCounter);
+
+		int iterations = 20000;
+		long allocatedBytes = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long startBytes = threadBean.getThreadAllocatedBytes (threadID);
+			for (int i = 0; i < iterations; i++) {
+				peerOutboundQueue.sendHaveMessage (1000 + (i % 100));
+				peerOutboundQueue.sendHaveMessage (2000 + (i % 100));
+				peerOutboundQueue.sendInterestedMessage ((i % 2) == 0);
+				peerOutboundQueue.sendData();
+			}
+			allocatedBytes = threadBean.getThreadAllocatedBytes (threadID) - startBytes;
+		}
+
+		// Any allocation per iteration would amount to at least 16 bytes each
+		assertTrue ("Allocated " + allocatedBytes + " bytes", allocatedBytes < iterations);
+
+	}
+
+
 }
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.peer;
+
+import static org.junit.Assert.*;
+
+import java.util.LinkedList;
+
+import org.itadaki.bobbin.peer.RequestPipeline;
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.junit.Test;
+
+
+/**
+ * Tests RequestPipeline
+ */
+public class TestRequestPipeline {
+
+	/**
+	 * @param index The block index
+	 * @return A block descriptor
+	 */
+	private static BlockDescriptor block (int index) {
+
+		return new BlockDescriptor (index / 16, (index % 16) * 16384, 16384);
+
+	}
+
+
+	/**
+	 * Samples a latency from a request sent while no others were outstanding, then receives blocks
+	 * evenly over one rate interval
+	 *
+	 * @param pipeline The pipeline
+	 * @param latency The latency to sample
+	 * @param blocks The number of blocks to receive, including the sampled block
+	 */
+	private static void measure (RequestPipeline pipeline, long latency, int blocks) {
+
+		pipeline.requestSent (block (0), 0, 0);
+		pipeline.blockReceived (block (0), latency);
+		for (int i = 1; i < blocks; i++) {
+			pipeline.blockReceived (block (i), latency + ((RequestPipeline.RATE_INTERVAL - latency) * i) / (blocks - 1));
+		}
+
+	}
+
+
+	/**
+	 * Simulates a remote peer that serves requests in turn at a fixed rate, while requests are
+	 * sent to it up to the depth
+	 *
+	 * @param pipeline The pipeline
+	 * @param start The time at which to start, in milliseconds
+	 * @param duration The time to simulate, in milliseconds
+	 * @param latency The round trip latency in milliseconds
+	 * @param serviceTime The time the remote peer takes to send each block, in milliseconds
+	 * @return The time at which the simulation ended, with no requests outstanding
+	 */
+	private static long simulate (RequestPipeline pipeline, long start, long duration, long latency, long serviceTime) {
+
+		LinkedList<BlockDescriptor> outstanding = new LinkedList<BlockDescriptor>();
+		LinkedList<Long> arrivalTimes = new LinkedList<Long>();
+		long peerFreeTime = start;
+		int index = 0;
+
+		long time;
+		for (time = start; (time < start + duration) || !outstanding.isEmpty(); time++) {
+			while (!arrivalTimes.isEmpty() && (arrivalTimes.peek() <= time)) {
+				arrivalTimes.remove();
+				pipeline.blockReceived (outstanding.remove(), time);
+			}
+			while ((time < start + duration) && (outstanding.size() < pipeline.getDepth())) {
+				BlockDescriptor request = block (index++);
+				pipeline.requestSent (request, outstanding.size(), time);
+				outstanding.add (request);
+				long sendTime = Math.max (time + latency / 2, peerFreeTime) + serviceTime;
+				peerFreeTime = sendTime;
+				arrivalTimes.add (sendTime + latency / 2);
+			}
+		}
+
+		return time;
+
+	}
+
+
+	/**
+	 * Tests the initial depth
+	 */
+	@Test
+	public void testInitialDepth() {
+
+		RequestPipeline pipeline = new RequestPipeline (2, 30, 500);
+
+		assertEquals (30, pipeline.getDepth());
+
+		pipeline.requestSent (block (0), 0, 0);
+		pipeline.blockReceived (block (0), 100);
+
+		assertEquals (30, pipeline.getDepth());
+
+	}
+
+
+	/**
+	 * Tests the depth of a fast, high latency peer
+	 */
+	@Test
+	public void testFastPeer() {
+
+		RequestPipeline pipeline = new RequestPipeline (2, 30, 500);
+
+		// 200 blocks per second at 100ms latency
+		measure (pipeline, 100, 200);
+
+		assertEquals (40, pipeline.getDepth());
+
+	}
+
+
+	/**
+	 * Tests the depth of a slow peer
+	 */
+	@Test
+	public void testSlowPeer() {
+
+		RequestPipeline pipeline = new RequestPipeline (2, 30, 500);
+
+		// 4 blocks per second at 100ms latency
+		measure (pipeline, 100, 4);
+
+		assertEquals (2, pipeline.getDepth());
+
+	}
+
+
+	/**
+	 * Tests that the depth is limited to the maximum
+	 */
+	@Test
+	public void testMaximumDepth() {
+
+		RequestPipeline pipeline = new RequestPipeline (2, 30, 50);
+
+		measure (pipeline, 500, 200);
+
+		assertEquals (50, pipeline.getDepth());
+
+		pipeline.setBounds (2, 500);
+
+		assertEquals (200, pipeline.getDepth());
+
+	}
+
+
+	/**
+	 * Tests that latency is not sampled from a request sent behind other outstanding requests
+	 */
+	@Test
+	public void testQueuedRequestNotSampled() {
+
+		RequestPipeline pipeline = new RequestPipeline (2, 30, 500);
+
+		measure (pipeline, 100, 200);
+		pipeline.requestSent (block (1), 10, 1000);
+		pipeline.blockReceived (block (1), 1500);
+
+		assertEquals (40, pipeline.getDepth());
+
+	}
+
+
+	/**
+	 * Tests that the depth follows a change in latency while requests are kept outstanding
+	 */
+	@Test
+	public void testLatencyChange() {
+
+		RequestPipeline pipeline = new RequestPipeline (2, 30, 500);
+
+		// 200 blocks per second at 100ms latency
+		measure (pipeline, 100, 200);
+		assertEquals (40, pipeline.getDepth());
+
+		// The latency rises to 300ms. The remote peer still sends 200 blocks per second
+		long time = simulate (pipeline, RequestPipeline.RATE_INTERVAL, 6 * RequestPipeline.SAMPLE_INTERVAL, 300, 5);
+		int depth = pipeline.getDepth();
+		assertTrue (depth >= 100);
+		assertTrue (depth <= 2 * 200 * 300 / 1000);
+
+		// The latency falls to 50ms
+		simulate (pipeline, time, 6 * RequestPipeline.SAMPLE_INTERVAL, 50, 5);
+		depth = pipeline.getDepth();
+		assertTrue (depth >= 2 * 200 * 50 / 1000);
+		assertTrue (depth <= 40);
+
+	}
+
+
+	/**
+	 * Tests that latency is not sampled from an abandoned request
+	 */
+	@Test
+	public void testAbandonedRequestNotSampled() {
+
+		RequestPipeline pipeline = new RequestPipeline (2, 30, 500);
+
+		pipeline.requestSent (block (0), 0, 0);
+		pipeline.requestAbandoned (block (0));
+		pipeline.blockReceived (block (0), 100);
+		for (int i = 1; i < 200; i++) {
+			pipeline.blockReceived (block (i), 100 + (900 * i) / 199);
+		}
+
+		assertEquals (30, pipeline.getDepth());
+
+	}
+
+
+	/**
+	 * Tests invalid bounds
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidBounds() {
+
+		new RequestPipeline (10, 30, 5);
+
+	}
+
+
+}
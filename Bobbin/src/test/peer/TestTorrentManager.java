@@ -96,5 +96,61 @@ public class TestTorrentManager {
 	}
 
 
+	/**
+	 * Test that the have batch window is passed through to the peer set
+	 * @throws Exception 
+	 */
+	@Test
+	public void testSetHaveBatchWindow() throws Exception {
+
+		BDictionary infoDictionary = new BDictionary();
+		infoDictionary.put ("length", 1024);
+		infoDictionary.put ("name", "TestTorrent.txt");
+		infoDictionary.put ("piece length", 262144);
+		infoDictionary.put ("pieces", "01234567890123456789");
+		List<List<String>> announceURLs = Collections.singletonList (Collections.singletonList ("http://te.st.zz:6666/announce"));
+
+		ConnectionManager connectionManager = new ConnectionManager();
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0", 16384);
+		TorrentManager torrentManager = new TorrentManager (new PeerID(), 0, new Info(infoDictionary).getHash(), announceURLs, connectionManager, pieceDatabase);
+
+		torrentManager.setHaveBatchWindow (250);
+
+		assertEquals (250, torrentManager.getHaveBatchWindow());
+
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Test that the send batch length is passed through to the peer set
+	 * @throws Exception 
+	 */
+	@Test
+	public void testSetSendBatchLength() throws Exception {
+
+		BDictionary infoDictionary = new BDictionary();
+		infoDictionary.put ("length", 1024);
+		infoDictionary.put ("name", "TestTorrent.txt");
+		infoDictionary.put ("piece length", 262144);
+		infoDictionary.put ("pieces", "01234567890123456789");
+		List<List<String>> announceURLs = Collections.singletonList (Collections.singletonList ("http://te.st.zz:6666/announce"));
+
+		ConnectionManager connectionManager = new ConnectionManager();
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0", 16384);
+		TorrentManager torrentManager = new TorrentManager (new PeerID(), 0, new Info(infoDictionary).getHash(), announceURLs, connectionManager, pieceDatabase);
+
+		torrentManager.setSendBatchLength (4096);
+
+		assertEquals (4096, torrentManager.getSendBatchLength());
+
+		connectionManager.close();
+
+	}
+
+
 
 }
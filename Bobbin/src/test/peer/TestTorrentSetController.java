@@ -20,6 +20,8 @@ import java.util.concurrent.TimeUnit;
 import org.itadaki.bobbin.bencode.BDictionary;
 import org.itadaki.bobbin.bencode.BEncoder;
 import org.itadaki.bobbin.bencode.InvalidEncodingException;
+import org.itadaki.bobbin.connectionmanager.ConnectionBackend;
+import org.itadaki.bobbin.connectionmanager.ConnectionOptions;
 import org.itadaki.bobbin.peer.PeerID;
 import org.itadaki.bobbin.peer.TorrentManager;
 import org.itadaki.bobbin.peer.TorrentManagerListener;
@@ -107,6 +109,57 @@ public class TestTorrentSetController {
 	}
 
 
+	/**
+	 * Tests starting and stopping a TorrentSetController that serves its peers from several event
+	 * loops
+	 * @throws Exception
+	 */
+	@Test
+	public void testStartStopEventLoops() throws Exception {
+
+		TorrentSetController controller = new TorrentSetController (null, new ConnectionOptions(), ConnectionBackend.EVENT_LOOP, 4);
+
+		MetaInfo metaInfo = createTestMetaInfo();
+
+		TorrentManager manager = controller.addTorrentManager (metaInfo, new MemoryStorage());
+
+		final CountDownLatch startedLatch = new CountDownLatch (1);
+		manager.addListener (new TorrentManagerListener() {
+			public void torrentManagerError (TorrentManager torrentManager) { }
+
+			public void torrentManagerRunning (TorrentManager torrentManager) {
+				startedLatch.countDown();
+			}
+
+			public void torrentManagerStopped (TorrentManager torrentManager) { }
+
+			public void torrentManagerTerminated (TorrentManager torrentManager) { }
+
+		});
+
+		controller.start();
+		assertTrue (startedLatch.await (2, TimeUnit.SECONDS));
+		assertTrue (manager.isEnabled());
+
+		controller.terminate (true);
+
+		assertTrue (controller.isTerminated());
+
+	}
+
+
+	/**
+	 * Tests constructing a TorrentSetController with no event loops
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testNoEventLoops() throws Exception {
+
+		new TorrentSetController (null, new ConnectionOptions(), ConnectionBackend.EVENT_LOOP, 0);
+
+	}
+
+
 	/**
 	 * Tests adding two TorrentManagers for the same info hash
 	 * @throws Exception
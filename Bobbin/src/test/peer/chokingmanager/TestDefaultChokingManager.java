@@ -113,8 +113,18 @@ public class TestDefaultChokingManager {
 
 		public void sendHavePiece (int pieceNumber) { }
 
+		public void sendHavePieces (List<Integer> pieceNumbers) { }
+
 		public void sendKeepaliveOrClose() { }
 
+		public void adjustBufferSizes() { }
+
+		public void setInboundRequestLimit (int inboundRequestLimit) { }
+
+		public void setRequestDepthBounds (int minimumDepth, int maximumDepth) { }
+
+		public void setSendBatchLength (int sendBatchLength) { }
+
 		public void sendExtensionHandshake (Map<String, Integer> extensionsAdded, Set<String> extensionsRemoved, BDictionary extra) { }
 
 		public void sendExtensionMessage (String identifier, ByteBuffer data) { }
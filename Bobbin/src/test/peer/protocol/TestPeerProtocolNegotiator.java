@@ -8,6 +8,7 @@ import static org.mockito.Mockito.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.itadaki.bobbin.connectionmanager.Connection;
 import org.itadaki.bobbin.peer.PeerID;
@@ -281,6 +282,75 @@ public class TestPeerProtocolNegotiator {
 	}
 
 
+	/**
+	 * Tests a pipelined inbound connection, where the local handshake is passed to the listener
+	 * @throws IOException
+	 */
+	@Test
+	public void testInboundPipelined() throws IOException {
+
+		// Given
+		PeerID localPeerID = new PeerID();
+		PeerID remotePeerID = new PeerID();
+		InfoHash infoHash = new InfoHash (new byte[20]);
+		MockConnection connection = new MockConnection();
+		PeerConnectionListener listener = mock (PeerConnectionListener.class);
+		PeerConnectionListenerProvider provider = mock (PeerConnectionListenerProvider.class);
+		when (provider.getPeerConnectionListener(infoHash)).thenReturn (listener);
+		PeerProtocolNegotiator negotiator = new PeerProtocolNegotiator (connection, provider, localPeerID, true);
+		byte[] handshakeBytes = PeerProtocolBuilder.handshake (false, true, infoHash, remotePeerID).array();
+
+		// When
+		connection.mockInput (ByteBuffer.wrap (handshakeBytes));
+		negotiator.connectionReady (connection, true, true);
+
+		// Then
+		verify(listener).peerConnectionComplete (connection, remotePeerID, false, true, PeerProtocolBuilder.handshake (true, true, infoHash, localPeerID));
+		verifyNoMoreInteractions (listener);
+		connection.mockExpectNoMoreOutput();
+
+	}
+
+
+	/**
+	 * Tests a pipelined inbound connection where the remote peer ID is not received with the info
+	 * hash, and the local handshake is sent during negotiation
+	 * @throws IOException
+	 */
+	@Test
+	public void testInboundPipelinedDelayedPeerID() throws IOException {
+
+		// Given
+		PeerID localPeerID = new PeerID();
+		PeerID remotePeerID = new PeerID();
+		InfoHash infoHash = new InfoHash (new byte[20]);
+		MockConnection connection = new MockConnection();
+		PeerConnectionListener listener = mock (PeerConnectionListener.class);
+		PeerConnectionListenerProvider provider = mock (PeerConnectionListenerProvider.class);
+		when (provider.getPeerConnectionListener(infoHash)).thenReturn (listener);
+		PeerProtocolNegotiator negotiator = new PeerProtocolNegotiator (connection, provider, localPeerID, true);
+		byte[] handshakeBytes = PeerProtocolBuilder.handshake (true, true, infoHash, remotePeerID).array();
+
+		// When
+		connection.mockInput (ByteBuffer.wrap (Arrays.copyOfRange (handshakeBytes, 0, 48)));
+		negotiator.connectionReady (connection, true, true);
+
+		// Then
+		connection.mockExpectOutput (PeerProtocolBuilder.handshake (true, true, infoHash, localPeerID));
+		connection.mockExpectNoMoreOutput();
+		verifyZeroInteractions (listener);
+
+		// When
+		connection.mockInput (ByteBuffer.wrap (Arrays.copyOfRange (handshakeBytes, 48, 68)));
+		negotiator.connectionReady (connection, true, false);
+
+		// Then
+		verify(listener).peerConnectionComplete (connection, remotePeerID, true, true);
+		verifyNoMoreInteractions (listener);
+
+	}
+
+
 	/**
 	 * Tests an inbound connection with a bad header
 	 * @throws IOException
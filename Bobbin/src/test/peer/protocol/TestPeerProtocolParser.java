@@ -11,9 +11,11 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -31,6 +33,8 @@ import org.itadaki.bobbin.torrentdb.ViewSignature;
 import org.itadaki.bobbin.util.BitField;
 import org.junit.Test;
 import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import test.Util;
 
@@ -40,6 +44,29 @@ import test.Util;
  */
 public class TestPeerProtocolParser {
 
+	/**
+	 * Creates an Answer that records the content of the bitfield buffer passed to a consumer. The
+	 * parser's buffer is only valid for the duration of the call, so its content must be captured
+	 * then rather than at verification
+	 *
+	 * @param bitFields The list to which the content of each bitfield is added
+	 * @return The Answer
+	 */
+	private static Answer<Object> captureBitfield (final List<byte[]> bitFields) {
+
+		return new Answer<Object>() {
+			public Object answer (InvocationOnMock invocation) throws Throwable {
+				ByteBuffer bitField = ((ByteBuffer) invocation.getArguments()[invocation.getArguments().length - 1]).duplicate();
+				byte[] bitFieldBytes = new byte[bitField.remaining()];
+				bitField.get (bitFieldBytes);
+				bitFields.add (bitFieldBytes);
+				return null;
+			}
+		};
+
+	}
+
+
 	/**
 	 * Tests that PeerProtocolConsumer.keepAliveMessage() is called in sequence
 	 * @throws IOException
@@ -183,13 +210,16 @@ public class TestPeerProtocolParser {
 		byte[] bitFieldBytes = new byte[bitField.byteLength()];
 		bitField.copyTo(bitFieldBytes, 0);
 		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class);
+		List<byte[]> receivedBitFields = new ArrayList<byte[]>();
+		doAnswer(captureBitfield (receivedBitFields)).when(mockConsumer).bitfieldMessage (any (ResourceType.class), any (ByteBuffer.class));
 		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, false, false);
 
 		// When
 		parser.parseBytes (Util.infiniteReadableByteChannelFor (PeerProtocolBuilder.bitfieldMessage(bitField)));
 
 		// Then
-		verify(mockConsumer).bitfieldMessage (null, bitFieldBytes);
+		verify(mockConsumer).bitfieldMessage ((ResourceType) isNull(), any (ByteBuffer.class));
+		assertArrayEquals (bitFieldBytes, receivedBitFields.get (0));
 		verifyNoMoreInteractions (mockConsumer);
 
 	}
@@ -609,6 +639,8 @@ public class TestPeerProtocolParser {
 		Map<String,Integer> extensions = new TreeMap<String,Integer>();
 		extensions.put (PeerProtocolConstants.EXTENSION_ELASTIC, 2);
 		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class);
+		List<byte[]> receivedBitFields = new ArrayList<byte[]>();
+		doAnswer(captureBitfield (receivedBitFields)).when(mockConsumer).elasticBitfieldMessage (any (ByteBuffer.class));
 		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, true, true);
 
 		// When
@@ -622,8 +654,9 @@ public class TestPeerProtocolParser {
 				new HashSet<String>(),
 				new BDictionary()
 		);
-		sequence.verify(mockConsumer).elasticBitfieldMessage (expectedBitfieldBytes);
+		sequence.verify(mockConsumer).elasticBitfieldMessage (any (ByteBuffer.class));
 		verifyNoMoreInteractions (mockConsumer);
+		assertArrayEquals (expectedBitfieldBytes, receivedBitFields.get (0));
 
 	}
 
@@ -688,6 +721,8 @@ public class TestPeerProtocolParser {
 		Map<String,Integer> extensions = new TreeMap<String,Integer>();
 		extensions.put (PeerProtocolConstants.EXTENSION_RESOURCE, 3);
 		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class);
+		List<byte[]> receivedBitFields = new ArrayList<byte[]>();
+		doAnswer(captureBitfield (receivedBitFields)).when(mockConsumer).bitfieldMessage (any (ResourceType.class), any (ByteBuffer.class));
 		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, true, true);
 
 		// When
@@ -711,8 +746,9 @@ public class TestPeerProtocolParser {
 				new BDictionary()
 		);
 		sequence.verify(mockConsumer).resourceDirectoryMessage (Arrays.asList (new ResourceType[] { ResourceType.INFO }), Arrays.asList (new Integer[] { 1 }));
-		sequence.verify(mockConsumer).bitfieldMessage (ResourceType.INFO, bitFieldBytes);
+		sequence.verify(mockConsumer).bitfieldMessage (eq (ResourceType.INFO), any (ByteBuffer.class));
 		verifyNoMoreInteractions (mockConsumer);
+		assertArrayEquals (bitFieldBytes, receivedBitFields.get (0));
 
 	}
 
@@ -2881,6 +2917,8 @@ public class TestPeerProtocolParser {
 		System.arraycopy (unchokeBytes, 0, streamBytes, bitFieldBytes.length, unchokeBytes.length);
 		System.arraycopy (interestedBytes, 0, streamBytes, bitFieldBytes.length + unchokeBytes.length, interestedBytes.length);
 		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class); 
+		List<byte[]> receivedBitFields = new ArrayList<byte[]>();
+		doAnswer(captureBitfield (receivedBitFields)).when(mockConsumer).bitfieldMessage (any (ResourceType.class), any (ByteBuffer.class));
 		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, false, false);
 
 		// When
@@ -2890,10 +2928,179 @@ public class TestPeerProtocolParser {
 
 		// Then
 		InOrder sequence = inOrder (mockConsumer);
-		sequence.verify(mockConsumer).bitfieldMessage (null, bitField.content());
+		sequence.verify(mockConsumer).bitfieldMessage ((ResourceType) isNull(), any (ByteBuffer.class));
 		sequence.verify(mockConsumer).chokeMessage (false);
 		sequence.verify(mockConsumer).interestedMessage (true);
 		verifyNoMoreInteractions (mockConsumer);
+		assertArrayEquals (bitField.content(), receivedBitFields.get (0));
+
+	}
+
+
+	/**
+	 * Tests that many messages available at once are parsed from a single read
+	 * @throws IOException
+	 */
+	@Test
+	public void testMultipleMessagesSingleRead() throws IOException {
+
+		// Given
+		ByteBuffer[] messages = new ByteBuffer[1000];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = (i % 2 == 0) ? PeerProtocolBuilder.haveMessage (i) : PeerProtocolBuilder.requestMessage (new BlockDescriptor (i, 0, 16384));
+		}
+		final ReadableByteChannel channel = Util.infiniteReadableByteChannelFor (messages);
+		final int[] readCount = new int[1];
+		ReadableByteChannel countingChannel = new ReadableByteChannel() {
+			public int read (ByteBuffer dst) throws IOException {
+				readCount[0]++;
+				return channel.read (dst);
+			}
+			public void close() throws IOException { }
+			public boolean isOpen() {
+				return true;
+			}
+		};
+		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class);
+		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, false, false);
+
+		// When
+		parser.parseBytes (countingChannel);
+
+		// Then
+		InOrder sequence = inOrder (mockConsumer);
+		for (int i = 0; i < messages.length; i++) {
+			if (i % 2 == 0) {
+				sequence.verify(mockConsumer).haveMessage (null, i);
+			} else {
+				sequence.verify(mockConsumer).requestMessage (null, new BlockDescriptor (i, 0, 16384));
+			}
+		}
+		verifyNoMoreInteractions (mockConsumer);
+		assertEquals (2, readCount[0]);
+
+	}
+
+
+	/**
+	 * Tests parsing of messages split across reads at arbitrary boundaries
+	 * @throws IOException
+	 */
+	@Test
+	public void testMessagesSplitAcrossReads() throws IOException {
+
+		// Given
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte)i;
+		}
+		BlockDescriptor descriptor = new BlockDescriptor (1, 0, data.length);
+		ByteBuffer[] pieceMessage = PeerProtocolBuilder.pieceMessage (descriptor, ByteBuffer.wrap (data));
+		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class);
+		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, false, false);
+
+		// When
+		parser.parseBytes (Util.chunkedReadableByteChannelFor (
+				7,
+				PeerProtocolBuilder.haveMessage (1),
+				pieceMessage[0],
+				pieceMessage[1],
+				PeerProtocolBuilder.keepaliveMessage(),
+				PeerProtocolBuilder.haveMessage (2)
+		));
+
+		// Then
+		InOrder sequence = inOrder (mockConsumer);
+		sequence.verify(mockConsumer).haveMessage (null, 1);
+		sequence.verify(mockConsumer).pieceMessage (PieceStyle.PLAIN, null, descriptor, null, null, ByteBuffer.wrap (data));
+		sequence.verify(mockConsumer).keepAliveMessage();
+		sequence.verify(mockConsumer).haveMessage (null, 2);
+		verifyNoMoreInteractions (mockConsumer);
+
+	}
+
+
+	/**
+	 * Tests parsing of a message too large for the receive buffer between smaller messages
+	 * @throws IOException
+	 */
+	@Test
+	public void testLargeMessage() throws IOException {
+
+		// Given
+		byte[] data = new byte[PeerProtocolConstants.MAXIMUM_PIECE_LENGTH];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte)(i * 7);
+		}
+		BlockDescriptor descriptor = new BlockDescriptor (1, 0, data.length);
+		ByteBuffer[] pieceMessage = PeerProtocolBuilder.pieceMessage (descriptor, ByteBuffer.wrap (data));
+		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class);
+		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, false, false);
+
+		// When
+		parser.parseBytes (Util.chunkedReadableByteChannelFor (
+				10000,
+				PeerProtocolBuilder.haveMessage (1),
+				pieceMessage[0],
+				pieceMessage[1],
+				PeerProtocolBuilder.haveMessage (2)
+		));
+
+		// Then
+		InOrder sequence = inOrder (mockConsumer);
+		sequence.verify(mockConsumer).haveMessage (null, 1);
+		sequence.verify(mockConsumer).pieceMessage (PieceStyle.PLAIN, null, descriptor, null, null, ByteBuffer.wrap (data));
+		sequence.verify(mockConsumer).haveMessage (null, 2);
+		verifyNoMoreInteractions (mockConsumer);
+
+	}
+
+
+	/**
+	 * Tests that parsing of received messages stops when the channel is closed by the consumer
+	 * @throws Exception
+	 */
+	@Test
+	public void testClosedByConsumer() throws Exception {
+
+		// Given
+		final ReadableByteChannel channel = Util.infiniteReadableByteChannelFor (
+				PeerProtocolBuilder.haveMessage (1),
+				PeerProtocolBuilder.haveMessage (2)
+		);
+		final boolean[] open = new boolean[] { true };
+		ReadableByteChannel closeableChannel = new ReadableByteChannel() {
+			public int read (ByteBuffer dst) throws IOException {
+				return channel.read (dst);
+			}
+			public void close() throws IOException {
+				open[0] = false;
+			}
+			public boolean isOpen() {
+				return open[0];
+			}
+		};
+		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class);
+		doAnswer (new Answer<Object>() {
+			public Object answer (InvocationOnMock invocation) throws Throwable {
+				open[0] = false;
+				return null;
+			}
+		}).when(mockConsumer).haveMessage (null, 1);
+		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, false, false);
+
+		// When
+		boolean closed = false;
+		try {
+			parser.parseBytes (closeableChannel);
+		} catch (ClosedChannelException e) {
+			closed = true;
+		}
+
+		// Then
+		assertTrue (closed);
+		verify(mockConsumer).haveMessage (null, 1);
+		verifyNoMoreInteractions (mockConsumer);
 
 	}
 
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.torrentdb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.itadaki.bobbin.torrentdb.FileLayout;
+import org.itadaki.bobbin.torrentdb.Filespec;
+import org.junit.Test;
+
+
+/**
+ * Tests FileLayout
+ */
+public class TestFileLayout {
+
+	/**
+	 * Creates a layout of files with the given lengths
+	 *
+	 * @param lengths The file lengths
+	 * @return The layout
+	 */
+	private static FileLayout layout (long... lengths) {
+
+		List<File> files = new ArrayList<File>();
+		List<Filespec> filespecs = new ArrayList<Filespec>();
+		for (int i = 0; i < lengths.length; i++) {
+			files.add (new File ("file" + i));
+			filespecs.add (new Filespec ("file" + i, lengths[i]));
+		}
+
+		return new FileLayout (files, filespecs);
+
+	}
+
+
+	/**
+	 * Collects the fragments of a range as {file index, file position, length} triples
+	 *
+	 * @param layout The layout
+	 * @param start The start of the range
+	 * @param length The length of the range
+	 * @return The fragments
+	 */
+	private static List<List<Long>> fragments (FileLayout layout, long start, long length) {
+
+		List<List<Long>> fragmentList = new ArrayList<List<Long>>();
+		FileLayout.Fragments fragments = layout.fragments().reset (start, length);
+		while (fragments.next()) {
+			fragmentList.add (Arrays.asList ((long)fragments.getFileIndex(), fragments.getFilePosition(), (long)fragments.getLength()));
+		}
+
+		return fragmentList;
+
+	}
+
+
+	/**
+	 * @param values The fragment values
+	 * @return A fragment triple
+	 */
+	private static List<Long> fragment (long... values) {
+
+		return Arrays.asList (values[0], values[1], values[2]);
+
+	}
+
+
+	/**
+	 * Tests file offsets and lengths
+	 */
+	@Test
+	public void testOffsets() {
+
+		FileLayout layout = layout (10, 0, 20, 5);
+
+		assertEquals (4, layout.getNumberOfFiles());
+		assertEquals (35, layout.getTotalLength());
+		assertEquals (0, layout.getFileOffset (0));
+		assertEquals (10, layout.getFileOffset (1));
+		assertEquals (10, layout.getFileOffset (2));
+		assertEquals (30, layout.getFileOffset (3));
+		assertEquals (20, layout.getFileLength (2));
+		assertEquals (new File ("file2"), layout.getFile (2));
+
+	}
+
+
+	/**
+	 * Tests getFileIndex()
+	 */
+	@Test
+	public void testFileIndex() {
+
+		FileLayout layout = layout (10, 0, 20, 5);
+
+		assertEquals (0, layout.getFileIndex (0));
+		assertEquals (0, layout.getFileIndex (9));
+		assertEquals (1, layout.getFileIndex (10));
+		assertEquals (1, layout.getFileIndex (29));
+		assertEquals (3, layout.getFileIndex (30));
+		assertEquals (3, layout.getFileIndex (34));
+
+	}
+
+
+	/**
+	 * Tests getFileIndex() with leading zero length files
+	 */
+	@Test
+	public void testFileIndexLeadingZeroLength() {
+
+		FileLayout layout = layout (0, 0, 10);
+
+		assertEquals (0, layout.getFileIndex (0));
+		assertEquals (0, layout.getFileIndex (9));
+
+	}
+
+
+	/**
+	 * Tests getFileIndex() beyond the end of the layout
+	 */
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testFileIndexInvalid() {
+
+		layout (10, 20).getFileIndex (30);
+
+	}
+
+
+	/**
+	 * Tests fragments within a single file
+	 */
+	@Test
+	public void testFragmentsSingleFile() {
+
+		FileLayout layout = layout (10, 20);
+
+		assertEquals (Arrays.asList (fragment (1, 5, 10)), fragments (layout, 15, 10));
+
+	}
+
+
+	/**
+	 * Tests fragments spanning several files including a zero length file
+	 */
+	@Test
+	public void testFragmentsSpanning() {
+
+		FileLayout layout = layout (10, 0, 20, 5);
+
+		assertEquals (
+				Arrays.asList (fragment (0, 5, 5), fragment (1, 0, 0), fragment (2, 0, 20), fragment (3, 0, 2)),
+				fragments (layout, 5, 27)
+		);
+
+	}
+
+
+	/**
+	 * Tests fragments starting at a run of zero length files in the middle of a following file
+	 */
+	@Test
+	public void testFragmentsZeroLengthCarry() {
+
+		FileLayout layout = layout (0, 0, 20);
+
+		assertEquals (
+				Arrays.asList (fragment (0, 0, 0), fragment (1, 0, 0), fragment (2, 5, 10)),
+				fragments (layout, 5, 10)
+		);
+
+	}
+
+
+	/**
+	 * Tests that a cursor may be reused
+	 */
+	@Test
+	public void testFragmentsReuse() {
+
+		FileLayout layout = layout (10, 20);
+		FileLayout.Fragments fragments = layout.fragments();
+
+		fragments.reset (0, 30);
+		while (fragments.next());
+		fragments.reset (8, 4);
+
+		assertTrue (fragments.next());
+		assertEquals (0, fragments.getFileIndex());
+		assertEquals (8, fragments.getFilePosition());
+		assertEquals (2, fragments.getLength());
+		assertTrue (fragments.next());
+		assertEquals (1, fragments.getFileIndex());
+		assertEquals (0, fragments.getFilePosition());
+		assertEquals (2, fragments.getLength());
+		assertFalse (fragments.next());
+
+	}
+
+
+	/**
+	 * Tests a range beyond the end of the layout
+	 */
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testFragmentsInvalid() {
+
+		layout (10, 20).fragments().reset (25, 10);
+
+	}
+
+
+	/**
+	 * Tests extend()
+	 */
+	@Test
+	public void testExtend() {
+
+		FileLayout layout = layout (10, 20);
+		FileLayout extendedLayout = layout.extend (50);
+
+		assertEquals (30, layout.getTotalLength());
+		assertEquals (20, layout.getFileLength (1));
+		assertEquals (50, extendedLayout.getTotalLength());
+		assertEquals (40, extendedLayout.getFileLength (1));
+		assertEquals (Arrays.asList (fragment (1, 15, 25)), fragments (extendedLayout, 25, 25));
+
+	}
+
+
+	/**
+	 * Tests extend() to a shorter length
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testExtendShorter() {
+
+		layout (10, 20).extend (20);
+
+	}
+
+
+	/**
+	 * Tests lookup on a large layout
+	 */
+	@Test
+	public void testLargeLayout() {
+
+		long[] lengths = new long[100000];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = (i % 3 == 0) ? 0 : 1000 + i;
+		}
+		FileLayout layout = layout (lengths);
+
+		for (int i = 0; i < lengths.length; i++) {
+			if (lengths[i] > 0) {
+				int expectedIndex = ((i > 0) && (lengths[i - 1] == 0)) ? i - 1 : i;
+				assertEquals (expectedIndex, layout.getFileIndex (layout.getFileOffset (i)));
+				assertEquals (expectedIndex, layout.getFileIndex (layout.getFileOffset (i) + lengths[i] - 1));
+			}
+		}
+
+	}
+
+
+}
@@ -10,6 +10,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -587,6 +588,66 @@ public class TestFileStorage {
 	}
 
 
+	/**
+	 * Write spanning a nonexistent zero length file should create the file including its
+	 * subdirectories
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteCreatesZeroLengthFileWithSubdirectories() throws Exception {
+
+		InfoFileset fileset = new InfoFileset ("base", Arrays.asList (new Filespec[] {
+				new Filespec ("a", 10L),
+				new Filespec (Arrays.asList (new String[] { "sub", "empty" }), 0L),
+				new Filespec ("b", 6L)
+		}));
+		int pieceSize = 16;
+
+		File baseDirectory = Util.createTemporaryDirectory();
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+
+		ByteBuffer buffer = ByteBuffer.wrap (new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+		storage.write (0, buffer);
+
+		File emptyFile = new File (baseDirectory, "base" + File.separator + "sub" + File.separator + "empty");
+		assertTrue (emptyFile.exists());
+		assertEquals (0, emptyFile.length());
+		assertEquals (ByteBuffer.wrap (new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }), storage.read (0));
+
+	}
+
+
+	/**
+	 * Output channel write spanning a nonexistent zero length file should create the file
+	 * including its subdirectories
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testOutputChannelCreatesZeroLengthFileWithSubdirectories() throws Exception {
+
+		InfoFileset fileset = new InfoFileset ("base", Arrays.asList (new Filespec[] {
+				new Filespec ("a", 10L),
+				new Filespec (Arrays.asList (new String[] { "sub", "empty" }), 0L),
+				new Filespec ("b", 6L)
+		}));
+		int pieceSize = 16;
+
+		File baseDirectory = Util.createTemporaryDirectory();
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+
+		WritableByteChannel channel = storage.openOutputChannel (0, 8);
+		channel.write (ByteBuffer.wrap (new byte[] { 9, 10, 11, 12 }));
+
+		assertTrue (new File (baseDirectory, "base" + File.separator + "sub" + File.separator + "empty").exists());
+		assertEquals (2, new File (baseDirectory, "base" + File.separator + "b").length());
+
+	}
+
+
 	// Test closure
 
 	/**
@@ -1025,6 +1086,82 @@ public class TestFileStorage {
 	}
 
 
+	/**
+	 * Tests getting the file backed pieces of files in several directories, some of which are
+	 * missing or short
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFileBackedPiecesDirectories() throws Exception {
+
+		InfoFileset fileset = new InfoFileset ("base", Arrays.asList(new Filespec[] {
+				new Filespec ("blah1", 1024L),
+				new Filespec (Arrays.asList ("dir1", "blah2"), 1536L),
+				new Filespec (Arrays.asList ("dir1", "blah3"), 512L),
+				new Filespec (Arrays.asList ("dir2", "blah4"), 0L),
+				new Filespec (Arrays.asList ("dir2", "blah5"), 2048L),
+				new Filespec ("blah6", 3072L)
+		}));
+		int pieceSize = 1024;
+
+		File baseDirectory = Util.createTemporaryDirectory();
+		new File (baseDirectory, "base" + File.separator + "dir1").mkdirs();
+
+		new RandomAccessFile (new File (baseDirectory, "base" + File.separator + "blah1"), "rw").setLength (1024L);
+		new RandomAccessFile (new File (baseDirectory, "base" + File.separator + "dir1" + File.separator + "blah2"), "rw").setLength (1536L);
+		new RandomAccessFile (new File (baseDirectory, "base" + File.separator + "blah6"), "rw").setLength (1100L);
+
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+
+		BitField fileBackedPieces = storage.getStorageBackedPieces();
+		assertEquals (8, fileBackedPieces.length());
+		assertEquals (true, fileBackedPieces.get (0));
+		assertEquals (true, fileBackedPieces.get (1));
+		assertEquals (false, fileBackedPieces.get (2));
+		assertEquals (false, fileBackedPieces.get (3));
+		assertEquals (false, fileBackedPieces.get (4));
+		assertEquals (true, fileBackedPieces.get (5));
+		assertEquals (false, fileBackedPieces.get (6));
+		assertEquals (false, fileBackedPieces.get (7));
+
+	}
+
+
+	/**
+	 * Tests getting the file backed pieces where a missing zero length file is the only missing
+	 * part of a piece
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFileBackedPiecesMissingZeroLength() throws Exception {
+
+		InfoFileset fileset = new InfoFileset ("base", Arrays.asList(new Filespec[] {
+				new Filespec ("blah1", 512L),
+				new Filespec ("blah2", 0L),
+				new Filespec ("blah3", 1536L)
+		}));
+		int pieceSize = 1024;
+
+		File baseDirectory = Util.createTemporaryDirectory();
+		new File (baseDirectory, "base").mkdir();
+
+		new RandomAccessFile (new File (baseDirectory, "base" + File.separator + "blah1"), "rw").setLength (512L);
+		new RandomAccessFile (new File (baseDirectory, "base" + File.separator + "blah3"), "rw").setLength (1536L);
+
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+
+		BitField fileBackedPieces = storage.getStorageBackedPieces();
+		assertEquals (2, fileBackedPieces.length());
+		assertEquals (false, fileBackedPieces.get (0));
+		assertEquals (true, fileBackedPieces.get (1));
+
+	}
+
+
 	/**
 	 * Test construction failure if parent directory is not a directory
 	 *
@@ -1033,4 +1033,59 @@ public class TestMetaInfo {
 	}
 
 
+	/**
+	 * Test comparePieceHash() and getPieceHashes() on an info dictionary with entries both before
+	 * and after the piece hashes
+	 *
+	 * @throws Exception 
+	 */
+	@Test
+	public void testInfoPieceHashes() throws Exception {
+
+		byte[] pieces = "0123456789012345678998765432109876543210".getBytes();
+
+		BDictionary infoDictionary = new BDictionary();
+		infoDictionary.put ("length", 262145);
+		infoDictionary.put ("name", "TestTorrent.txt");
+		infoDictionary.put ("piece length", 262144);
+		infoDictionary.put ("pieces", pieces);
+		infoDictionary.put ("private", 1);
+
+		Info info = new Info (infoDictionary);
+
+		assertArrayEquals (pieces, info.getPieceHashes());
+		assertTrue (info.comparePieceHash (0, "01234567890123456789".getBytes()));
+		assertTrue (info.comparePieceHash (1, "98765432109876543210".getBytes()));
+		assertFalse (info.comparePieceHash (0, "98765432109876543210".getBytes()));
+		assertFalse (info.comparePieceHash (1, "01234567890123456789".getBytes()));
+
+		try {
+			info.comparePieceHash (2, "01234567890123456789".getBytes());
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+
+	}
+
+
+	/**
+	 * Test that the info and meta info dictionaries are faithfully reproduced
+	 *
+	 * @throws Exception 
+	 */
+	@Test
+	public void testDictionaryRoundTrip() throws Exception {
+
+		BDictionary dictionary = standardMultiFileMetaInfo();
+		((BDictionary)dictionary.get ("info")).put ("private", 1);
+		MetaInfo metaInfo = new MetaInfo (dictionary);
+
+		assertEquals (dictionary, metaInfo.getDictionary());
+		assertEquals (dictionary.get ("info"), metaInfo.getInfo().getDictionary());
+		assertEquals ("TestTorrent", metaInfo.getInfo().getFileset().getBaseDirectoryName());
+
+	}
+
+
 }
@@ -1016,6 +1016,49 @@ public class TestPieceDatabase {
 	}
 
 
+	/**
+	 * Tests that verifyViewSignature() remembers previously verified signatures
+	 * @throws Exception
+	 */
+	@Test
+	public void testElasticVerifyViewSignatureCached() throws Exception {
+
+		int pieceSize = 16384;
+		int totalLength = 16384;
+
+		ElasticTree tree = ElasticTree.buildFromLeaves (pieceSize, totalLength, Util.pseudoRandomBlockHashes (pieceSize, totalLength));
+		byte[] originalSignature = Util.dsaSign (MockPieceDatabase.mockPrivateKey, tree.getView(totalLength).getRootHash());
+		Info info = Info.createElastic (new InfoFileset (new Filespec ("blah", (long)totalLength)), pieceSize, tree.getView(totalLength).getRootHash(), originalSignature);
+		PieceDatabase pieceDatabase = new PieceDatabase (info, MockPieceDatabase.mockPublicKey, new MemoryStorage(), null);
+		pieceDatabase.start (true);
+
+		totalLength += pieceSize;
+		tree = ElasticTree.buildFromLeaves (pieceSize, totalLength, Util.pseudoRandomBlockHashes (pieceSize, totalLength));
+		byte[] rootHash = tree.getView(totalLength).getRootHash();
+		byte[] viewLength = ByteBuffer.allocate(8).putLong (totalLength).array();
+		byte[] signature = Util.dsaSign (MockPieceDatabase.mockPrivateKey, info.getHash().getBytes(), viewLength, rootHash);
+		byte[] badSignature = signature.clone();
+		badSignature[39]++;
+
+		ViewSignature validViewSignature = new ViewSignature (totalLength, ByteBuffer.wrap (rootHash), ByteBuffer.wrap (signature));
+		ViewSignature invalidViewSignature = new ViewSignature (totalLength, ByteBuffer.wrap (rootHash), ByteBuffer.wrap (badSignature));
+
+		assertFalse (pieceDatabase.verifyViewSignature (invalidViewSignature));
+		assertEquals (0, pieceDatabase.getVerifiedViewSignatures().size());
+
+		assertTrue (pieceDatabase.verifyViewSignature (validViewSignature));
+		assertTrue (pieceDatabase.verifyViewSignature (new ViewSignature (totalLength, ByteBuffer.wrap (rootHash), ByteBuffer.wrap (signature))));
+		assertFalse (pieceDatabase.verifyViewSignature (invalidViewSignature));
+
+		assertEquals (1, pieceDatabase.getVerifiedViewSignatures().size());
+		assertEquals (1, pieceDatabase.getVerifiedViewSignatures().getHits());
+		assertEquals (3, pieceDatabase.getVerifiedViewSignatures().getMisses());
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
 	/**
 	 * Tests extend() on an Elastic database from 1 to 2 pieces
 	 * @throws Exception
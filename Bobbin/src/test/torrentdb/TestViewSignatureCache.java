@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.torrentdb;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.itadaki.bobbin.torrentdb.ViewSignature;
+import org.itadaki.bobbin.torrentdb.ViewSignatureCache;
+import org.junit.Test;
+
+
+/**
+ * Tests ViewSignatureCache
+ */
+public class TestViewSignatureCache {
+
+	/**
+	 * @param viewLength The view length
+	 * @param rootHashByte The byte to fill the root hash with
+	 * @param signatureByte The byte to fill the signature with
+	 * @return A view signature
+	 */
+	private static ViewSignature viewSignature (long viewLength, int rootHashByte, int signatureByte) {
+
+		byte[] rootHash = new byte[20];
+		byte[] signature = new byte[40];
+		Arrays.fill (rootHash, (byte)rootHashByte);
+		Arrays.fill (signature, (byte)signatureByte);
+
+		return new ViewSignature (viewLength, ByteBuffer.wrap (rootHash), ByteBuffer.wrap (signature));
+
+	}
+
+
+	/**
+	 * Tests lookup of an added signature
+	 */
+	@Test
+	public void testHit() {
+
+		ViewSignatureCache cache = new ViewSignatureCache (4);
+		cache.add (viewSignature (1024, 1, 2));
+
+		assertTrue (cache.contains (viewSignature (1024, 1, 2)));
+		assertEquals (1, cache.getHits());
+		assertEquals (0, cache.getMisses());
+		assertEquals (1, cache.size());
+
+	}
+
+
+	/**
+	 * Tests lookup of an unknown signature
+	 */
+	@Test
+	public void testMiss() {
+
+		ViewSignatureCache cache = new ViewSignatureCache (4);
+		cache.add (viewSignature (1024, 1, 2));
+
+		assertFalse (cache.contains (viewSignature (2048, 1, 2)));
+		assertFalse (cache.contains (viewSignature (1024, 3, 2)));
+		assertEquals (0, cache.getHits());
+		assertEquals (2, cache.getMisses());
+
+	}
+
+
+	/**
+	 * Tests that a different signature over a cached view is not accepted
+	 */
+	@Test
+	public void testDifferentSignature() {
+
+		ViewSignatureCache cache = new ViewSignatureCache (4);
+		cache.add (viewSignature (1024, 1, 2));
+
+		assertFalse (cache.contains (viewSignature (1024, 1, 3)));
+
+		cache.add (viewSignature (1024, 1, 3));
+
+		assertTrue (cache.contains (viewSignature (1024, 1, 3)));
+		assertFalse (cache.contains (viewSignature (1024, 1, 2)));
+		assertEquals (1, cache.size());
+
+	}
+
+
+	/**
+	 * Tests eviction of the least recently used signature
+	 */
+	@Test
+	public void testEviction() {
+
+		ViewSignatureCache cache = new ViewSignatureCache (2);
+		cache.add (viewSignature (1024, 1, 1));
+		cache.add (viewSignature (2048, 2, 2));
+		assertTrue (cache.contains (viewSignature (1024, 1, 1)));
+		cache.add (viewSignature (4096, 3, 3));
+
+		assertEquals (2, cache.size());
+		assertEquals (1, cache.getEvictions());
+		assertTrue (cache.contains (viewSignature (1024, 1, 1)));
+		assertFalse (cache.contains (viewSignature (2048, 2, 2)));
+		assertTrue (cache.contains (viewSignature (4096, 3, 3)));
+
+	}
+
+
+	/**
+	 * Tests an invalid capacity
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidCapacity() {
+
+		new ViewSignatureCache (0);
+
+	}
+
+
+}
@@ -6,6 +6,7 @@ package test.util;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -1271,4 +1272,165 @@ public class TestBitField {
 	}
 
 
+	/**
+	 * Tests setting a range of bits
+	 */
+	@Test
+	public void testSetRange() {
+
+		BitField bitField = new BitField (20);
+		bitField.set (3, 17);
+
+		assertEquals (14, bitField.cardinality());
+		assertArrayEquals (new byte[] { (byte)0x1f, (byte)0xff, (byte)0x80 }, bitField.content());
+
+	}
+
+
+	/**
+	 * Tests setting a range of bits within a single byte over set bits
+	 */
+	@Test
+	public void testSetRangeSingleByte() {
+
+		BitField bitField = new BitField (8);
+		bitField.set (2);
+		bitField.set (1, 4);
+
+		assertEquals (3, bitField.cardinality());
+		assertArrayEquals (new byte[] { (byte)0x70 }, bitField.content());
+
+	}
+
+
+	/**
+	 * Tests setting an empty range of bits
+	 */
+	@Test
+	public void testSetRangeEmpty() {
+
+		BitField bitField = new BitField (8);
+		bitField.set (8, 8);
+
+		assertEquals (0, bitField.cardinality());
+
+	}
+
+
+	/**
+	 * Tests setting a range of bits beyond the end of the bitfield
+	 */
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testSetRangeInvalid() {
+
+		new BitField(20).set (10, 21);
+
+	}
+
+
+	/**
+	 * Tests clearing a range of bits
+	 */
+	@Test
+	public void testClearRange() {
+
+		BitField bitField = new BitField(20).not();
+		bitField.clear (7, 9);
+
+		assertEquals (18, bitField.cardinality());
+		assertArrayEquals (new byte[] { (byte)0xfe, (byte)0x7f, (byte)0xf0 }, bitField.content());
+
+	}
+
+
+	/**
+	 * Tests clearing a range of bits ending before its start
+	 */
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testClearRangeInvalid() {
+
+		new BitField(20).clear (10, 9);
+
+	}
+
+
+	/**
+	 * Tests creating a bit field from a buffer
+	 */
+	@Test
+	public void testBufferConstructor() {
+
+		ByteBuffer buffer = ByteBuffer.wrap (new byte[] { 0x00, (byte)0x81, 0x40, 0x00 });
+		buffer.position (1);
+		buffer.limit (3);
+		BitField bitField = new BitField (buffer, 10);
+
+		assertEquals (10, bitField.length());
+		assertEquals (3, bitField.cardinality());
+		assertTrue (bitField.get (0));
+		assertTrue (bitField.get (7));
+		assertTrue (bitField.get (9));
+		assertEquals (1, buffer.position());
+		assertEquals (3, buffer.limit());
+
+	}
+
+
+	/**
+	 * Tests creating a bit field from a buffer of the wrong size
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testBufferConstructorInvalidSize() {
+
+		new BitField (ByteBuffer.wrap (new byte[3]), 10);
+
+	}
+
+
+	/**
+	 * Tests creating a bit field from a buffer with a bit set beyond the length
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testBufferConstructorInvalidBits() {
+
+		new BitField (ByteBuffer.wrap (new byte[] { 0x00, 0x20 }), 10);
+
+	}
+
+
+	/**
+	 * Tests nextSetBit()
+	 */
+	@Test
+	public void testNextSetBit() {
+
+		BitField bitField = new BitField (100);
+		bitField.set (3);
+		bitField.set (4);
+		bitField.set (63);
+		bitField.set (99);
+
+		assertEquals (3, bitField.nextSetBit (0));
+		assertEquals (3, bitField.nextSetBit (3));
+		assertEquals (4, bitField.nextSetBit (4));
+		assertEquals (63, bitField.nextSetBit (5));
+		assertEquals (99, bitField.nextSetBit (64));
+		assertEquals (-1, bitField.nextSetBit (100));
+		assertEquals (-1, new BitField (100).nextSetBit (0));
+		assertEquals (-1, new BitField (0).nextSetBit (0));
+
+	}
+
+
+	/**
+	 * Tests nextSetBit() with a negative index
+	 */
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testNextSetBitInvalid() {
+
+		new BitField(10).nextSetBit (-1);
+
+	}
+
+
 }
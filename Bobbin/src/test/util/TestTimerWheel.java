@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.itadaki.bobbin.util.TimerWheel;
+import org.junit.Test;
+
+
+/**
+ * Tests TimerWheel
+ */
+public class TestTimerWheel {
+
+	/**
+	 * A task that records the order in which tasks run
+	 */
+	private static class RecordingTask implements Runnable {
+
+		/**
+		 * The list to record to
+		 */
+		private final List<Integer> record;
+
+		/**
+		 * The identifier to record
+		 */
+		private final int id;
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+			this.record.add (this.id);
+		}
+
+		/**
+		 * @param record The list to record to
+		 * @param id The identifier to record
+		 */
+		public RecordingTask (List<Integer> record, int id) {
+			this.record = record;
+			this.id = id;
+		}
+
+	}
+
+
+	/**
+	 * Tests that a timer does not expire before its deadline, and does expire on it
+	 */
+	@Test
+	public void testExpiry() {
+
+		List<Integer> record = new ArrayList<Integer>();
+		TimerWheel wheel = new TimerWheel (10, 8, 1000);
+		TimerWheel.Timeout timeout = wheel.schedule (new RecordingTask (record, 1), 1025);
+
+		assertEquals (1, wheel.size());
+		wheel.advance (1020);
+		assertEquals (0, record.size());
+		assertTrue (timeout.isPending());
+
+		wheel.advance (1030);
+		assertEquals (1, record.size());
+		assertFalse (timeout.isPending());
+		assertEquals (0, wheel.size());
+
+	}
+
+
+	/**
+	 * Tests a timer further away than one revolution of the wheel
+	 */
+	@Test
+	public void testMultipleRounds() {
+
+		List<Integer> record = new ArrayList<Integer>();
+		TimerWheel wheel = new TimerWheel (10, 8, 0);
+		wheel.schedule (new RecordingTask (record, 1), 250);
+		wheel.schedule (new RecordingTask (record, 2), 90);
+
+		wheel.advance (100);
+		assertEquals (1, record.size());
+		assertEquals (2, (int) record.get (0));
+
+		wheel.advance (240);
+		assertEquals (1, record.size());
+
+		wheel.advance (250);
+		assertEquals (2, record.size());
+		assertEquals (1, (int) record.get (1));
+
+	}
+
+
+	/**
+	 * Tests that timers expire in order across a long advance
+	 */
+	@Test
+	public void testOrder() {
+
+		List<Integer> record = new ArrayList<Integer>();
+		TimerWheel wheel = new TimerWheel (10, 4, 0);
+		wheel.schedule (new RecordingTask (record, 3), 300);
+		wheel.schedule (new RecordingTask (record, 1), 10);
+		wheel.schedule (new RecordingTask (record, 2), 55);
+
+		wheel.advance (1000);
+
+		assertEquals (3, record.size());
+		assertEquals (1, (int) record.get (0));
+		assertEquals (2, (int) record.get (1));
+		assertEquals (3, (int) record.get (2));
+
+	}
+
+
+	/**
+	 * Tests that a timer whose deadline has passed expires at the next tick
+	 */
+	@Test
+	public void testPastDeadline() {
+
+		List<Integer> record = new ArrayList<Integer>();
+		TimerWheel wheel = new TimerWheel (10, 8, 0);
+		wheel.advance (500);
+		wheel.schedule (new RecordingTask (record, 1), 100);
+
+		assertEquals (5, wheel.getDelay (505));
+		wheel.advance (505);
+		assertEquals (0, record.size());
+		wheel.advance (510);
+		assertEquals (1, record.size());
+
+	}
+
+
+	/**
+	 * Tests cancelling timers
+	 */
+	@Test
+	public void testCancel() {
+
+		List<Integer> record = new ArrayList<Integer>();
+		TimerWheel wheel = new TimerWheel (10, 8, 0);
+		TimerWheel.Timeout timeout1 = wheel.schedule (new RecordingTask (record, 1), 50);
+		TimerWheel.Timeout timeout2 = wheel.schedule (new RecordingTask (record, 2), 50);
+		TimerWheel.Timeout timeout3 = wheel.schedule (new RecordingTask (record, 3), 50);
+
+		assertTrue (timeout2.cancel());
+		assertFalse (timeout2.cancel());
+		assertTrue (timeout3.cancel());
+		assertEquals (1, wheel.size());
+
+		wheel.advance (50);
+		assertEquals (1, record.size());
+		assertEquals (1, (int) record.get (0));
+		assertFalse (timeout1.cancel());
+
+	}
+
+
+	/**
+	 * Tests that an expiring task may schedule a further timer
+	 */
+	@Test
+	public void testScheduleFromTask() {
+
+		final List<Integer> record = new ArrayList<Integer>();
+		final TimerWheel wheel = new TimerWheel (10, 8, 0);
+		wheel.schedule (new Runnable() {
+			public void run() {
+				record.add (1);
+				wheel.schedule (new RecordingTask (record, 2), 20);
+			}
+		}, 20);
+
+		wheel.advance (20);
+		assertEquals (1, record.size());
+		assertEquals (1, wheel.size());
+
+		wheel.advance (30);
+		assertEquals (2, record.size());
+
+	}
+
+
+	/**
+	 * Tests the delay until the wheel next needs advancing
+	 */
+	@Test
+	public void testDelay() {
+
+		TimerWheel wheel = new TimerWheel (10, 8, 0);
+		assertEquals (Long.MAX_VALUE, wheel.getDelay (0));
+
+		wheel.advance (3);
+		wheel.schedule (new RecordingTask (new ArrayList<Integer>(), 1), 50);
+		assertEquals (47, wheel.getDelay (3));
+
+		// An earlier timer brings the delay forward
+		wheel.schedule (new RecordingTask (new ArrayList<Integer>(), 2), 25);
+		assertEquals (27, wheel.getDelay (3));
+
+	}
+
+
+	/**
+	 * Tests that a single timer more than one revolution away does not demand advancing at every
+	 * tick
+	 */
+	@Test
+	public void testDelayFarTimer() {
+
+		List<Integer> record = new ArrayList<Integer>();
+		TimerWheel wheel = new TimerWheel (10, 8, 0);
+		wheel.schedule (new RecordingTask (record, 1), 1000);
+
+		// The wheel is advanced once per revolution until the timer's last round
+		long now = 0;
+		int advances = 0;
+		while (record.isEmpty()) {
+			long delay = wheel.getDelay (now);
+			assertTrue (delay >= 10);
+			assertTrue (delay <= 90);
+			now += delay;
+			wheel.advance (now);
+			advances++;
+		}
+
+		assertEquals (1000, now);
+		assertTrue (advances <= (1000 / 80) + 1);
+		assertEquals (Long.MAX_VALUE, wheel.getDelay (now));
+
+	}
+
+
+	/**
+	 * Tests the delay after the earliest timer is cancelled
+	 */
+	@Test
+	public void testDelayCancelled() {
+
+		TimerWheel wheel = new TimerWheel (10, 8, 0);
+		TimerWheel.Timeout timeout = wheel.schedule (new RecordingTask (new ArrayList<Integer>(), 1), 20);
+		wheel.schedule (new RecordingTask (new ArrayList<Integer>(), 2), 60);
+		assertEquals (20, wheel.getDelay (0));
+
+		// The wheel may wake once for the cancelled timer, but then waits for the remaining one
+		timeout.cancel();
+		long delay = wheel.getDelay (0);
+		assertTrue ((delay == 20) || (delay == 60));
+		wheel.advance (delay);
+		assertEquals (60 - delay, wheel.getDelay (delay));
+
+	}
+
+
+	/**
+	 * Tests that the number of buckets must be a power of two
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidBuckets() {
+
+		new TimerWheel (10, 6, 0);
+
+	}
+
+
+}